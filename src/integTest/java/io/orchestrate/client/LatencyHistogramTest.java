@@ -0,0 +1,109 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link LatencyHistogram}.
+ */
+public final class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesHaveTheirOwnBuckets() {
+        for (int value = 0; value < 64; value++) {
+            assertEquals(value, LatencyHistogram.bucketIndex(value));
+            assertEquals(value, LatencyHistogram.bucketUpperBound(value));
+        }
+        assertEquals(64, LatencyHistogram.bucketIndex(64));
+        assertEquals(64, LatencyHistogram.bucketIndex(65));
+        assertEquals(65, LatencyHistogram.bucketIndex(66));
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        for (int index = 0; index < LatencyHistogram.BUCKET_COUNT - 1; index++) {
+            final long upperBound = LatencyHistogram.bucketUpperBound(index);
+            assertEquals(index, LatencyHistogram.bucketIndex(upperBound));
+            assertEquals(index + 1, LatencyHistogram.bucketIndex(upperBound + 1));
+        }
+    }
+
+    @Test
+    public void bucketsAreWithinThreePercent() {
+        for (long value = 64; value < (1L << 38); value = value * 3 / 2 + 1) {
+            final long upperBound = LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(value));
+            assertTrue(String.valueOf(value), upperBound >= value);
+            assertTrue(String.valueOf(value), upperBound - value <= value / 32);
+        }
+    }
+
+    @Test
+    public void largeValuesAreCountedInTheLastBucket() {
+        final int last = LatencyHistogram.BUCKET_COUNT - 1;
+        assertEquals(last, LatencyHistogram.bucketIndex((1L << 38) - 1));
+        assertEquals(last, LatencyHistogram.bucketIndex(1L << 38));
+        assertEquals(last, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+        assertEquals((1L << 38) - 1, LatencyHistogram.bucketUpperBound(last));
+    }
+
+    @Test
+    public void percentilesAreWithinTheBucketPrecision() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        histogram.record(-1);
+
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.getCount());
+        assertWithin(500, snapshot.getValueAtPercentile(50, TimeUnit.MICROSECONDS));
+        assertWithin(990, snapshot.getValueAtPercentile(99, TimeUnit.MICROSECONDS));
+        assertWithin(1, snapshot.getValueAtPercentile(0, TimeUnit.MICROSECONDS));
+        assertEquals(1000, snapshot.getValueAtPercentile(100, TimeUnit.MICROSECONDS));
+        assertEquals(1000, snapshot.getMax(TimeUnit.MICROSECONDS));
+        assertEquals(500.5, snapshot.getMean(TimeUnit.MICROSECONDS), 0.001);
+    }
+
+    @Test
+    public void percentilesNeverExceedTheMax() {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(1000001);
+
+        final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(1000001, snapshot.getValueAtPercentile(50, TimeUnit.NANOSECONDS));
+        assertEquals(1000001, snapshot.getValueAtPercentile(100, TimeUnit.NANOSECONDS));
+    }
+
+    @Test
+    public void emptySnapshotIsZero() {
+        final LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getValueAtPercentile(99, TimeUnit.NANOSECONDS));
+        assertEquals(0, snapshot.getMean(TimeUnit.NANOSECONDS), 0);
+        assertEquals(0, snapshot.getMax(TimeUnit.NANOSECONDS));
+    }
+
+    private static void assertWithin(final long expected, final long actual) {
+        assertTrue(actual + " isn't within 3% of " + expected,
+                actual >= expected && actual - expected <= Math.max(1, expected * 3 / 100));
+    }
+
+}
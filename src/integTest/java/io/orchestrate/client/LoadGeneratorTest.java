@@ -0,0 +1,111 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import io.orchestrate.client.stub.LatencyDistribution;
+import io.orchestrate.client.stub.StubServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the {@link LoadGenerator} against a stub server with a fixed latency
+ * and checks its report, in particular that an open loop charges requests for
+ * the time they waited to be sent.
+ */
+public final class LoadGeneratorTest {
+
+    /** The latency of every request to the stub, in milliseconds. */
+    private static final long LATENCY_MILLIS = 20;
+    /** The column of the p99 in a report row. */
+    private static final int P99_COLUMN = 6;
+
+    /** The stub server to run the load against. */
+    private StubServer server;
+    /** The client to run the load with. */
+    private Client client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = StubServer.builder()
+                .latency(LatencyDistribution.fixed(LATENCY_MILLIS, TimeUnit.MILLISECONDS))
+                .build();
+        server.start();
+        client = server.clientBuilder("loadgen").build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.stop();
+        server.stop();
+    }
+
+    @Test
+    public void openLoopCorrectsForCoordinatedOmission() throws InterruptedException {
+        // one request in flight at a time can serve ~50 ops/s, well below the rate
+        final String report = run("--rate=200", "--concurrency=1", "--duration=1", "--warmup=0", "--keys=10");
+
+        assertTrue(report, report.contains("corrected for coordinated omission"));
+        final List<String[]> totals = totals(report);
+        assertEquals(report, 2, totals.size());
+
+        final double correctedP99 = Double.parseDouble(totals.get(0)[P99_COLUMN]);
+        final double serviceP99 = Double.parseDouble(totals.get(1)[P99_COLUMN]);
+        assertTrue(report, serviceP99 >= LATENCY_MILLIS);
+        assertTrue(report, serviceP99 < LATENCY_MILLIS * 5);
+        // the backlog grows for the whole run, so the last requests wait for most of it
+        assertTrue(report, correctedP99 > serviceP99 * 10);
+    }
+
+    @Test
+    public void closedLoopReportsServiceTime() throws InterruptedException {
+        final String report = run("--rate=0", "--concurrency=2", "--duration=1", "--warmup=0", "--keys=10");
+
+        assertTrue(report, report.contains("Latency in a closed loop, not corrected"));
+        assertFalse(report, report.contains("Service time"));
+        final List<String[]> totals = totals(report);
+        assertEquals(report, 1, totals.size());
+        assertEquals(report, "0", totals.get(0)[2]);
+        assertTrue(report, Double.parseDouble(totals.get(0)[P99_COLUMN]) >= LATENCY_MILLIS);
+    }
+
+    private String run(final String... args) throws InterruptedException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final PrintStream out = new PrintStream(bytes);
+        new LoadGenerator(LoadOptions.parse(args), client).run(out);
+        out.flush();
+        return bytes.toString();
+    }
+
+    private static List<String[]> totals(final String report) {
+        final List<String[]> totals = new ArrayList<String[]>();
+        for (final String line : report.split("\n")) {
+            if (line.startsWith("TOTAL")) {
+                totals.add(line.trim().split("\\s+"));
+            }
+        }
+        return totals;
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import io.orchestrate.client.stub.LatencyDistribution;
+import io.orchestrate.client.stub.StubServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link OperationLatency} and the {@link RequestPhase} marks of a request.
+ */
+public final class OperationLatencyTest {
+
+    /** The latency of the stub server's responses. */
+    private static final long LATENCY_MILLIS = 50;
+
+    /** The stub server with latency. */
+    private StubServer server;
+    /** The client of the stub server. */
+    private Client client;
+
+    @Before
+    public void setUp() throws Exception {
+        server = StubServer.builder()
+                .latency(LatencyDistribution.fixed(LATENCY_MILLIS, TimeUnit.MILLISECONDS))
+                .build();
+        server.start();
+        client = server.clientBuilder("stub").build();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.stop();
+        server.stop();
+    }
+
+    @Test
+    public void phasesAreMarkedInOrder() throws Exception {
+        final OrchestrateFutureImpl<KvMetadata> future = (OrchestrateFutureImpl<KvMetadata>)
+                client.execute(new KvStoreOperation("phases", "key", "{}"));
+        assertNotNull(future.get(5, TimeUnit.SECONDS));
+
+        final long start = future.getStartNanos();
+        final long connected = future.getConnectedNanos();
+        final long written = future.getWrittenNanos();
+        final long firstByte = future.getFirstByteNanos();
+        final long lastByte = future.getLastByteNanos();
+        assertTrue(start != 0);
+        assertTrue(connected >= start);
+        // the write is marked when it completes, on another thread
+        assertTrue(written >= connected);
+        assertTrue(firstByte >= connected);
+        assertTrue(firstByte - start >= TimeUnit.MILLISECONDS.toNanos(LATENCY_MILLIS));
+        assertTrue(lastByte >= firstByte);
+    }
+
+    @Test
+    public void eachPhaseIsRecordedOnce() throws Exception {
+        client.execute(new KvStoreOperation("phases", "key", "{}")).get(5, TimeUnit.SECONDS);
+        final OperationLatency latency = awaitLatency(KvStoreOperation.class, "phases");
+
+        assertEquals(KvStoreOperation.class, latency.getOperationType());
+        assertEquals("phases", latency.getCollection());
+        long phases = 0;
+        for (final RequestPhase phase : RequestPhase.values()) {
+            final LatencyHistogram.Snapshot snapshot = latency.getHistogram(phase).snapshot();
+            assertEquals(phase.toString(), 1, snapshot.getCount());
+            if (phase != RequestPhase.TOTAL) {
+                phases += snapshot.getMax(TimeUnit.NANOSECONDS);
+            }
+        }
+        // the phases follow each other, so they can't add up to more than
+        // the whole request
+        final long total = latency.getHistogram(RequestPhase.TOTAL).snapshot().getMax(TimeUnit.NANOSECONDS);
+        assertTrue(phases + " > " + total, phases <= total);
+        assertTrue(total >= TimeUnit.MILLISECONDS.toNanos(LATENCY_MILLIS));
+        final long waited = latency.getHistogram(RequestPhase.WAIT).snapshot().getMax(TimeUnit.MILLISECONDS);
+        assertTrue(String.valueOf(waited), waited >= LATENCY_MILLIS / 2);
+    }
+
+    // the latencies are recorded on the I/O thread after the future completes
+    private OperationLatency awaitLatency(final Class<?> operationType, final String collection)
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (System.nanoTime() < deadline) {
+            final OperationLatency latency = client.getMetrics().getOperationLatency(operationType, collection);
+            if (latency != null && latency.getHistogram(RequestPhase.TOTAL).getCount() > 0) {
+                return latency;
+            }
+            Thread.sleep(1);
+        }
+        throw new AssertionError("No latencies recorded for " + operationType.getSimpleName() + ".");
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import org.glassfish.grizzly.http.HttpHeader;
+import org.glassfish.grizzly.http.HttpRequestPacket;
+import org.glassfish.grizzly.http.HttpResponsePacket;
+import org.glassfish.grizzly.http.Method;
+import org.glassfish.grizzly.http.util.DataChunk;
+import org.glassfish.grizzly.http.util.Header;
+import org.glassfish.grizzly.memory.Buffers;
+import org.glassfish.grizzly.memory.MemoryManager;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Checks the bytes allocated on the response fast path stay within budget,
+ * {@link AbstractOperation#refFromETag(HttpHeader)} and the {@code
+ * fromResponse} of KV fetches and stores.
+ */
+public final class ResponseAllocationTest {
+
+    /** The number of calls to warm up the JIT with before measuring. */
+    private static final int WARMUP = 50000;
+    /** The number of calls to measure. */
+    private static final int ITERATIONS = 100000;
+
+    /** The thread bean to read allocated bytes from. */
+    private com.sun.management.ThreadMXBean threadBean;
+    /** The header of a response with an ETag, as read off the wire. */
+    private HttpHeader header;
+    /** The mapper to parse responses with. */
+    private JacksonMapper mapper;
+
+    @Before
+    public void setUp() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        final HttpRequestPacket request = HttpRequestPacket.builder()
+                .method(Method.PUT)
+                .uri("/v0/users/user-0")
+                .build();
+        final HttpResponsePacket response = HttpResponsePacket.builder(request)
+                .status(201)
+                .build();
+        final byte[] etag = "\"f8a86a25029a907b-gzip\"".getBytes(Charset.forName("US-ASCII"));
+        final DataChunk value = response.getHeaders().addValue(Header.ETag);
+        value.setBuffer(Buffers.wrap(MemoryManager.DEFAULT_MEMORY_MANAGER, etag), 0, etag.length);
+        header = response;
+        mapper = JacksonMapper.builder().build();
+    }
+
+    @Test
+    public void refFromETagAllocatesOnlyTheRef() {
+        final double bytes = bytesPerCall(new Runnable() {
+            @Override
+            public void run() {
+                AbstractOperation.refFromETag(header);
+            }
+        });
+
+        // the ref decoded from the buffer, no regex or copies of the header
+        assertTrue("refFromETag allocated " + bytes + " bytes per call", bytes <= 192);
+    }
+
+    @Test
+    public void kvStoreResponseAllocations() {
+        final KvStoreOperation kvStoreOp = new KvStoreOperation("users", "user-0", "{}");
+        final double bytes = bytesPerCall(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    kvStoreOp.fromResponse(201, header, "", mapper);
+                } catch (final Exception e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+
+        // the ref and the metadata
+        assertTrue("fromResponse allocated " + bytes + " bytes per call", bytes <= 256);
+    }
+
+    @Test
+    public void kvFetchNotFoundResponseDoesNotAllocate() {
+        final KvFetchOperation<String> kvFetchOp =
+                new KvFetchOperation<String>("users", "user-0", String.class);
+        final double bytes = bytesPerCall(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    kvFetchOp.fromResponse(404, header, "", mapper);
+                } catch (final Exception e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+
+        assertTrue("fromResponse allocated " + bytes + " bytes per call", bytes < 1);
+    }
+
+    private double bytesPerCall(final Runnable call) {
+        for (int i = 0; i < WARMUP; i++) {
+            call.run();
+        }
+        final long threadId = Thread.currentThread().getId();
+        final long start = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < ITERATIONS; i++) {
+            call.run();
+        }
+        final long end = threadBean.getThreadAllocatedBytes(threadId);
+        return (end - start) / (double) ITERATIONS;
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client.integration;
+
+import io.orchestrate.client.*;
+import io.orchestrate.client.stub.StubServer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link AbstractOperation#withApiKey(String)}, against a stub server that
+ * only accepts some API keys.
+ */
+public final class ApiKeyTest extends OperationTest {
+
+    /** The API keys the stub server accepts, but the client isn't built with. */
+    private static final String[] REQUEST_KEYS = { "key-a", "key-b", "key-c" };
+
+    /** The stub server that checks API keys. */
+    private StubServer server;
+    /** The client of the stub server. */
+    private Client client;
+
+    @After
+    public void tearDown() throws Exception {
+        if (client != null) {
+            client.stop();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void requestsUseTheirOwnKey() throws Exception {
+        start(ClientBuilder.DEFAULT_API_KEY_CACHE_SIZE, REQUEST_KEYS);
+
+        assertEquals(401, statusOf(client.execute(store(null))));
+        for (final String apiKey : REQUEST_KEYS) {
+            assertNotNull(client.execute(store(apiKey)).get(3, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void unknownKeysAreRejected() throws Exception {
+        start(ClientBuilder.DEFAULT_API_KEY_CACHE_SIZE, REQUEST_KEYS);
+
+        assertEquals(401, statusOf(client.execute(store("key-d"))));
+        assertNotNull(client.execute(store("key-a")).get(3, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void evictedKeysAreStillSent() throws Exception {
+        // a cache of one entry evicts a key on every other request
+        start(1, REQUEST_KEYS);
+
+        final List<Future<KvMetadata>> futures = new ArrayList<Future<KvMetadata>>();
+        for (int i = 0; i < 30; i++) {
+            futures.add(client.execute(store(REQUEST_KEYS[i % REQUEST_KEYS.length])));
+        }
+        for (final Future<KvMetadata> future : futures) {
+            assertNotNull(future.get(3, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void requestKeysDontReplaceTheClientKey() throws Exception {
+        start(1, STUB_API_KEY, "key-a");
+
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(client.execute(store("key-a")).get(3, TimeUnit.SECONDS));
+            assertNotNull(client.execute(store(null)).get(3, TimeUnit.SECONDS));
+        }
+    }
+
+    private void start(final int apiKeyCacheSize, final String... apiKeys) throws Exception {
+        server = StubServer.builder().apiKeys(apiKeys).build();
+        server.start();
+        client = server.clientBuilder(STUB_API_KEY)
+                .apiKeyCacheSize(apiKeyCacheSize)
+                .build();
+    }
+
+    private static KvStoreOperation store(final String apiKey) {
+        final KvStoreOperation storeOp =
+                new KvStoreOperation(TEST_COLLECTION, generateString(), "{}");
+        if (apiKey != null) {
+            storeOp.withApiKey(apiKey);
+        }
+        return storeOp;
+    }
+
+    private static int statusOf(final Future<?> future) throws Exception {
+        try {
+            future.get(3, TimeUnit.SECONDS);
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof RequestException);
+            return ((RequestException) e.getCause()).getStatusCode();
+        }
+        fail("The request didn't fail.");
+        return -1;
+    }
+
+}
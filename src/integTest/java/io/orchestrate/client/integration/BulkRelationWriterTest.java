@@ -0,0 +1,209 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client.integration;
+
+import io.orchestrate.client.*;
+import io.orchestrate.client.stub.LatencyDistribution;
+import io.orchestrate.client.stub.StubServer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link io.orchestrate.client.BulkRelationWriter}.
+ */
+public final class BulkRelationWriterTest extends OperationTest {
+
+    /** The stub server to inject errors with, if started by the test. */
+    private StubServer server;
+    /** The client of the stub server. */
+    private Client stubClient;
+
+    @After
+    public void tearDown() throws Exception {
+        if (stubClient != null) {
+            stubClient.stop();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void writesEveryRelationOnce() throws Exception {
+        final String collection = TEST_COLLECTION + "-" + generateString();
+        for (int i = 0; i < 10; i++) {
+            client().execute(new KvStoreOperation(collection, "key" + i, "{}")).get(3, TimeUnit.SECONDS);
+        }
+        final Recorder recorder = new Recorder();
+        final BulkRelationWriter writer = BulkRelationWriter.builder(client())
+                .maxInFlight(4)
+                .listener(recorder)
+                .build();
+        final List<BulkRelationWriter.Edge> edges = new ArrayList<BulkRelationWriter.Edge>();
+        for (int i = 1; i < 10; i++) {
+            edges.add(new BulkRelationWriter.Edge(collection, "key0", "link", collection, "key" + i));
+            edges.add(new BulkRelationWriter.Edge(collection, "key0", "link", collection, "key" + i));
+        }
+        assertEquals(9, writer.writeAll(edges));
+        writer.close();
+
+        assertEquals(9, recorder.succeeded.size());
+        assertTrue(recorder.failed.isEmpty());
+        assertEquals(9, writer.getStats().getDuplicates());
+        assertEquals(0, writer.getStats().getOutstanding());
+        final Set<String> related = new HashSet<String>();
+        for (final KvObject<String> kvObject : client().execute(
+                new RelationFetchOperation(collection, "key0", "link")).get(3, TimeUnit.SECONDS)) {
+            related.add(kvObject.getKey());
+        }
+        assertEquals(9, related.size());
+    }
+
+    @Test
+    public void remembersOnlyTheRecentRelations() throws Exception {
+        final String collection = TEST_COLLECTION + "-" + generateString();
+        for (int i = 0; i < 4; i++) {
+            client().execute(new KvStoreOperation(collection, "key" + i, "{}")).get(3, TimeUnit.SECONDS);
+        }
+        final BulkRelationWriter writer = BulkRelationWriter.builder(client())
+                .deduplicateWindow(2)
+                .listener(new Recorder())
+                .build();
+        final BulkRelationWriter.Edge a = new BulkRelationWriter.Edge(collection, "key0", "link", collection, "key1");
+        final BulkRelationWriter.Edge b = new BulkRelationWriter.Edge(collection, "key0", "link", collection, "key2");
+        final BulkRelationWriter.Edge c = new BulkRelationWriter.Edge(collection, "key0", "link", collection, "key3");
+
+        assertTrue(writer.write(a));
+        assertTrue(writer.write(b));
+        assertFalse(writer.write(a));
+        // the window holds the two most recently written, so c evicts b
+        assertTrue(writer.write(c));
+        assertFalse(writer.write(a));
+        assertTrue(writer.write(b));
+        writer.close();
+
+        assertEquals(4, writer.getStats().getSubmitted());
+        assertEquals(2, writer.getStats().getDuplicates());
+    }
+
+    @Test
+    public void retriesTransientErrors() throws Exception {
+        startStub(StubServer.builder().errorRate(0.3, 503));
+        final Recorder recorder = new Recorder();
+        final BulkRelationWriter writer = BulkRelationWriter.builder(stubClient)
+                .maxInFlight(16)
+                .maxRetries(20)
+                .retryBackoff(1, 5, TimeUnit.MILLISECONDS)
+                .listener(recorder)
+                .build();
+        for (int i = 0; i < 200; i++) {
+            writer.write("bulk", "key" + i, "link", "bulk", "other" + i);
+        }
+        assertTrue(writer.flush(10, TimeUnit.SECONDS));
+
+        final BulkRelationWriter.Stats stats = writer.getStats();
+        writer.close();
+        assertEquals(200, stats.getSubmitted());
+        assertEquals(200, stats.getSucceeded());
+        assertEquals(0, stats.getFailed());
+        assertTrue(stats.toString(), stats.getRetried() > 0);
+        assertEquals(200, recorder.succeeded.size());
+    }
+
+    @Test
+    public void failedRelationsCanBeWrittenAgain() throws Exception {
+        startStub(StubServer.builder().errorRate(1.0, 503));
+        final Recorder recorder = new Recorder();
+        final BulkRelationWriter writer = BulkRelationWriter.builder(stubClient)
+                .maxRetries(2)
+                .retryBackoff(0, 0, TimeUnit.MILLISECONDS)
+                .listener(recorder)
+                .build();
+        final BulkRelationWriter.Edge edge = new BulkRelationWriter.Edge("bulk", "a", "link", "bulk", "b");
+        assertTrue(writer.write(edge));
+        assertTrue(writer.flush(5, TimeUnit.SECONDS));
+        assertTrue(writer.write(edge));
+        writer.close();
+
+        assertEquals(1, recorder.failed.size());
+        assertEquals(503, ((RequestException) recorder.failed.get(edge)).getStatusCode());
+        assertEquals(2, writer.getStats().getFailed());
+        assertEquals(4, writer.getStats().getRetried());
+        assertEquals(0, writer.getStats().getDuplicates());
+    }
+
+    @Test
+    public void boundsTheWritesInFlight() throws Exception {
+        startStub(StubServer.builder().latency(LatencyDistribution.uniform(1, 5, TimeUnit.MILLISECONDS)));
+        final Recorder recorder = new Recorder();
+        final BulkRelationWriter writer = BulkRelationWriter.builder(stubClient)
+                .maxInFlight(4)
+                .listener(recorder)
+                .build();
+        int maxOutstanding = 0;
+        for (int i = 0; i < 200; i++) {
+            writer.write("bulk", "key" + i, "link", "bulk", "other");
+            maxOutstanding = Math.max(maxOutstanding, writer.getStats().getOutstanding());
+        }
+        writer.close();
+
+        assertTrue(String.valueOf(maxOutstanding), maxOutstanding <= 4);
+        assertEquals(200, recorder.succeeded.size());
+        try {
+            writer.write("bulk", "late", "link", "bulk", "other");
+            fail("Expected a closed writer to reject writes.");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private void startStub(final StubServer.Builder builder) throws Exception {
+        server = builder.build();
+        server.start();
+        stubClient = server.clientBuilder("integration-tests").build();
+    }
+
+    /**
+     * Records the results of the relations written.
+     */
+    private static final class Recorder implements BulkRelationWriter.Listener {
+
+        /** The relations written. */
+        final Set<BulkRelationWriter.Edge> succeeded =
+                Collections.synchronizedSet(new HashSet<BulkRelationWriter.Edge>());
+        /** The relations that failed, with their errors. */
+        final ConcurrentHashMap<BulkRelationWriter.Edge, Throwable> failed =
+                new ConcurrentHashMap<BulkRelationWriter.Edge, Throwable>();
+
+        @Override
+        public void onSuccess(final BulkRelationWriter.Edge edge) {
+            succeeded.add(edge);
+        }
+
+        @Override
+        public void onFailure(final BulkRelationWriter.Edge edge, final Throwable error) {
+            failed.put(edge, error);
+        }
+
+    }
+
+}
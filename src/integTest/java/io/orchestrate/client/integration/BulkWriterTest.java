@@ -0,0 +1,190 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client.integration;
+
+import io.orchestrate.client.*;
+import io.orchestrate.client.stub.LatencyDistribution;
+import io.orchestrate.client.stub.StubServer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link io.orchestrate.client.BulkWriter}.
+ */
+public final class BulkWriterTest extends OperationTest {
+
+    /** The stub server to inject errors with, if started by the test. */
+    private StubServer server;
+    /** The client of the stub server. */
+    private Client stubClient;
+
+    @After
+    public void tearDown() throws Exception {
+        if (stubClient != null) {
+            stubClient.stop();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void writesEveryObject() throws Exception {
+        final String collection = TEST_COLLECTION + "-" + generateString();
+        final Recorder recorder = new Recorder();
+        final BulkWriter writer = BulkWriter.builder(client(), collection)
+                .maxInFlight(8)
+                .listener(recorder)
+                .build();
+        for (int i = 0; i < 50; i++) {
+            writer.write("key" + i, "{\"i\":" + i + "}");
+        }
+        writer.close();
+
+        assertEquals(50, recorder.succeeded.size());
+        assertTrue(recorder.failed.isEmpty());
+        assertEquals(50, writer.getStats().getSucceeded());
+        assertEquals(0, writer.getStats().getOutstanding());
+        final KvObject<String> kvObject =
+                client().execute(new KvFetchOperation<String>(collection, "key7", String.class)).get(3, TimeUnit.SECONDS);
+        assertEquals("{\"i\":7}", kvObject.getValue());
+    }
+
+    @Test
+    public void retriesTransientErrors() throws Exception {
+        startStub(StubServer.builder().errorRate(0.3, 503));
+        final Recorder recorder = new Recorder();
+        final BulkWriter writer = BulkWriter.builder(stubClient, "bulk")
+                .maxInFlight(16)
+                .maxRetries(20)
+                .retryBackoff(1, 5, TimeUnit.MILLISECONDS)
+                .listener(recorder)
+                .build();
+        for (int i = 0; i < 300; i++) {
+            writer.write("key" + i, "{}");
+        }
+        assertTrue(writer.flush(10, TimeUnit.SECONDS));
+
+        final BulkWriter.Stats stats = writer.getStats();
+        writer.close();
+        assertEquals(300, stats.getSubmitted());
+        assertEquals(300, stats.getSucceeded());
+        assertEquals(0, stats.getFailed());
+        assertTrue(stats.toString(), stats.getRetried() > 0);
+        assertEquals(300, recorder.succeeded.size());
+    }
+
+    @Test
+    public void givesUpAfterMaxRetries() throws Exception {
+        startStub(StubServer.builder().errorRate(1.0, 503));
+        final Recorder recorder = new Recorder();
+        final BulkWriter writer = BulkWriter.builder(stubClient, "bulk")
+                .maxRetries(2)
+                .retryBackoff(0, 0, TimeUnit.MILLISECONDS)
+                .listener(recorder)
+                .build();
+        for (int i = 0; i < 10; i++) {
+            writer.write("key" + i, "{}");
+        }
+        writer.close();
+
+        assertEquals(10, recorder.failed.size());
+        assertEquals(10, writer.getStats().getFailed());
+        assertEquals(20, writer.getStats().getRetried());
+        for (final Throwable error : recorder.failed.values()) {
+            assertEquals(503, ((RequestException) error).getStatusCode());
+        }
+    }
+
+    @Test
+    public void doesNotRetryClientErrors() throws Exception {
+        startStub(StubServer.builder().errorRate(1.0, 400));
+        final Recorder recorder = new Recorder();
+        final BulkWriter writer = BulkWriter.builder(stubClient, "bulk")
+                .listener(recorder)
+                .build();
+        for (int i = 0; i < 5; i++) {
+            writer.write("key" + i, "{}");
+        }
+        writer.close();
+
+        assertEquals(5, recorder.failed.size());
+        assertEquals(0, writer.getStats().getRetried());
+    }
+
+    @Test
+    public void boundsTheWritesInFlight() throws Exception {
+        startStub(StubServer.builder().latency(LatencyDistribution.fixed(10, TimeUnit.MILLISECONDS)));
+        final Recorder recorder = new Recorder();
+        final BulkWriter writer = BulkWriter.builder(stubClient, "bulk")
+                .maxInFlight(4)
+                .listener(recorder)
+                .build();
+        int maxOutstanding = 0;
+        for (int i = 0; i < 40; i++) {
+            writer.write("key" + i, "{}");
+            maxOutstanding = Math.max(maxOutstanding, writer.getStats().getOutstanding());
+        }
+        writer.close();
+
+        assertTrue(String.valueOf(maxOutstanding), maxOutstanding <= 4);
+        assertEquals(40, recorder.succeeded.size());
+        try {
+            writer.write("late", "{}");
+            fail("Expected a closed writer to reject writes.");
+        } catch (final IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private void startStub(final StubServer.Builder builder) throws Exception {
+        server = builder.build();
+        server.start();
+        stubClient = server.clientBuilder("integration-tests").build();
+    }
+
+    /**
+     * Records the results of the writes.
+     */
+    private static final class Recorder implements BulkWriter.Listener {
+
+        /** The keys written. */
+        final Set<String> succeeded = Collections.synchronizedSet(new HashSet<String>());
+        /** The keys that failed, with their errors. */
+        final ConcurrentHashMap<String, Throwable> failed = new ConcurrentHashMap<String, Throwable>();
+
+        @Override
+        public void onSuccess(final String key, final KvMetadata metadata) {
+            assertEquals(key, metadata.getKey());
+            succeeded.add(key);
+        }
+
+        @Override
+        public void onFailure(final String key, final Throwable error) {
+            failed.put(key, error);
+        }
+
+    }
+
+}
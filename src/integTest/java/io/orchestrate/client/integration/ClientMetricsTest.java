@@ -0,0 +1,188 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client.integration;
+
+import io.orchestrate.client.*;
+import io.orchestrate.client.stub.StubServer;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.management.JMX;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link io.orchestrate.client.ClientMetrics}, its MBean and the {@link
+ * io.orchestrate.client.MetricsReporter}.
+ */
+public final class ClientMetricsTest extends OperationTest {
+
+    /** The platform MBean server the client registers its metrics with. */
+    private final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    /** The stub server the measured client talks to. */
+    private StubServer server;
+    /** The client under test. */
+    private Client measuredClient;
+
+    @After
+    public void tearDown() throws Exception {
+        if (measuredClient != null) {
+            measuredClient.stop();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void countsAreReadThroughJmx() throws Exception {
+        startStub(StubServer.builder());
+        final ObjectName name = buildWithJmx(server.clientBuilder("integration-tests"));
+        final ClientMetricsMXBean mBean = JMX.newMXBeanProxy(mBeanServer, name, ClientMetricsMXBean.class);
+
+        for (int i = 0; i < 10; i++) {
+            measuredClient.execute(new KvStoreOperation("metrics", "key" + i, "{}")).get(3, TimeUnit.SECONDS);
+        }
+        for (int i = 0; i < 5; i++) {
+            assertNull(measuredClient.execute(
+                    new KvFetchOperation<String>("metrics", "missing" + i, String.class)).get(3, TimeUnit.SECONDS));
+        }
+        awaitResponses(mBean, 15);
+
+        assertEquals(15, mBean.getRequestCount());
+        assertEquals(0, mBean.getInFlightCount());
+        assertEquals(0, mBean.getErrorCount());
+        final Map<Integer, Long> responses = mBean.getResponseCounts();
+        assertEquals(Long.valueOf(5), responses.get(404));
+        assertEquals(10, sum(responses) - 5);
+        assertTrue(mBean.getBytesRead() > 0);
+        assertTrue(mBean.getBytesWritten() > 0);
+        assertTrue(mBean.getOpenConnections() > 0);
+        assertEquals(measuredClient.getMetrics().getRequestCount(), mBean.getRequestCount());
+    }
+
+    @Test
+    public void errorsAreCounted() throws Exception {
+        startStub(StubServer.builder().errorRate(1.0, 503));
+        final ObjectName name = buildWithJmx(server.clientBuilder("integration-tests"));
+        final ClientMetricsMXBean mBean = JMX.newMXBeanProxy(mBeanServer, name, ClientMetricsMXBean.class);
+
+        for (int i = 0; i < 4; i++) {
+            try {
+                measuredClient.execute(new KvStoreOperation("metrics", "key" + i, "{}")).get(3, TimeUnit.SECONDS);
+                fail("Expected the stub to fail the request.");
+            } catch (final Exception e) {
+                // expected
+            }
+        }
+        awaitResponses(mBean, 4);
+
+        assertEquals(4, mBean.getErrorCount());
+        assertEquals(Long.valueOf(4), mBean.getResponseCounts().get(503));
+    }
+
+    @Test
+    public void stoppingTheClientUnregistersItsMBean() throws Exception {
+        startStub(StubServer.builder());
+        final ObjectName name = buildWithJmx(server.clientBuilder("integration-tests"));
+        assertTrue(mBeanServer.isRegistered(name));
+
+        measuredClient.stop();
+        assertFalse(mBeanServer.isRegistered(name));
+        measuredClient = null;
+    }
+
+    @Test
+    public void reporterReportsPeriodicallyAndWhenStopped() throws Exception {
+        startStub(StubServer.builder());
+        final List<Long> reported = new CopyOnWriteArrayList<Long>();
+        final Set<String> threads = new HashSet<String>();
+        measuredClient = server.clientBuilder("integration-tests")
+                .metricsReporter(new MetricsReporter() {
+                    @Override
+                    public void report(final ClientMetrics metrics) {
+                        synchronized (threads) {
+                            threads.add(Thread.currentThread().getName());
+                        }
+                        reported.add(metrics.getRequestCount());
+                        if (reported.size() == 1) {
+                            throw new IllegalStateException("A failed report doesn't stop reporting.");
+                        }
+                    }
+                }, 20, TimeUnit.MILLISECONDS)
+                .build();
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (reported.size() < 3 && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertTrue(String.valueOf(reported), reported.size() >= 3);
+
+        measuredClient.execute(new KvStoreOperation("metrics", "key", "{}")).get(3, TimeUnit.SECONDS);
+        measuredClient.stop();
+        final int reports = reported.size();
+        assertEquals(Long.valueOf(1), reported.get(reports - 1));
+        Thread.sleep(100);
+        assertEquals(reports, reported.size());
+        assertEquals(1, threads.size());
+        assertEquals("OrchestrateClientMetricsReporter", threads.iterator().next());
+        measuredClient = null;
+    }
+
+    private void startStub(final StubServer.Builder builder) throws Exception {
+        server = builder.build();
+        server.start();
+    }
+
+    // the name of the new client's MBean is the one that wasn't registered
+    // before it was built
+    private ObjectName buildWithJmx(final ClientBuilder builder) throws Exception {
+        final ObjectName pattern = new ObjectName("io.orchestrate.client:type=ClientMetrics,*");
+        final Set<ObjectName> before = mBeanServer.queryNames(pattern, null);
+        measuredClient = builder.useJmx(true).build();
+        final Set<ObjectName> names = mBeanServer.queryNames(pattern, null);
+        names.removeAll(before);
+        assertEquals(1, names.size());
+        return names.iterator().next();
+    }
+
+    // responses are counted on the I/O thread after their futures complete
+    private static void awaitResponses(final ClientMetricsMXBean mBean, final long count) throws Exception {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (sum(mBean.getResponseCounts()) < count && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, sum(mBean.getResponseCounts()));
+    }
+
+    private static long sum(final Map<Integer, Long> counts) {
+        long sum = 0;
+        for (final long count : counts.values()) {
+            sum += count;
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client.integration;
+
+import io.orchestrate.client.*;
+import io.orchestrate.client.stub.LatencyDistribution;
+import io.orchestrate.client.stub.StubServer;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * {@link io.orchestrate.client.EventAppender}.
+ */
+public final class EventAppenderTest extends OperationTest {
+
+    /** The directory for spilled events. */
+    @Rule
+    public final TemporaryFolder spillDirectory = new TemporaryFolder();
+
+    /** The stub server with latency. */
+    private StubServer server;
+    /** The client of the stub server. */
+    private Client stubClient;
+    /** The listener of the appender made by {@link #spillSlowly()}. */
+    private Recorder recorder;
+
+    @After
+    public void tearDown() throws Exception {
+        if (stubClient != null) {
+            stubClient.stop();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void spilledEventsKeepTheirOrder() throws Exception {
+        startStub(20);
+        final Recorder recorder = new Recorder();
+        final EventAppender appender = EventAppender.builder(stubClient)
+                .queueCapacity(2)
+                .overflowPolicy(EventAppender.OverflowPolicy.SPILL)
+                .spillDirectory(spillDirectory.getRoot())
+                .maxInFlight(1)
+                .listener(recorder)
+                .build();
+        for (int i = 0; i < 30; i++) {
+            assertTrue(appender.append(new EventStoreOperation("events", "key", "tick", "{\"i\":" + i + "}")));
+            Thread.sleep(5);
+        }
+        assertTrue(appender.flush(10, TimeUnit.SECONDS));
+        appender.close();
+
+        assertEquals(30, appender.getStats().getStored());
+        assertTrue(appender.getStats().getSpilled() > 0);
+        assertTrue(recorder.failures.isEmpty());
+
+        // one event is in flight at a time, so each one reaches the stub at
+        // a later time than the one before
+        final List<Event<String>> events = new ArrayList<Event<String>>();
+        for (final Event<String> event : stubClient
+                .execute(new EventFetchOperation<String>("events", "key", "tick", String.class))
+                .get(3, TimeUnit.SECONDS)) {
+            events.add(event);
+        }
+        Collections.reverse(events);
+        assertEquals(30, events.size());
+        for (int i = 0; i < events.size(); i++) {
+            assertEquals("{\"i\":" + i + "}", events.get(i).getValue());
+        }
+    }
+
+    @Test
+    public void malformedSpilledEventFails() throws Exception {
+        final EventAppender appender = spillSlowly();
+        final File file = spillFile();
+
+        // overwrite the last line, it's been flushed but not read back
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final byte[] bytes = new byte[(int) raf.length()];
+            raf.readFully(bytes);
+            int i = bytes.length - 2;
+            while (i >= 0 && bytes[i] != '\n') {
+                bytes[i--] = 'x';
+            }
+            raf.seek(0);
+            raf.write(bytes);
+        } finally {
+            raf.close();
+        }
+
+        assertTrue(appender.flush(10, TimeUnit.SECONDS));
+        appender.close();
+        assertEquals(1, appender.getStats().getFailed());
+        assertEquals(4, appender.getStats().getStored());
+        assertEquals(1, recorder.failures.size());
+        assertNull(recorder.failures.get(0));
+    }
+
+    @Test
+    public void unreadableSpillFileFailsItsEvents() throws Exception {
+        final EventAppender appender = spillSlowly();
+        assertTrue(spillFile().delete());
+
+        assertTrue(appender.flush(10, TimeUnit.SECONDS));
+        appender.close();
+        assertEquals(3, appender.getStats().getFailed());
+        assertEquals(2, appender.getStats().getStored());
+        assertEquals(3, recorder.failures.size());
+        for (final EventStoreOperation eventStoreOp : recorder.failures) {
+            assertNull(eventStoreOp);
+        }
+    }
+
+    @Test
+    public void saturatedDrainThreadParks() throws Exception {
+        startStub(500);
+        final EventAppender appender = EventAppender.builder(stubClient)
+                .maxInFlight(1)
+                .build();
+        for (int i = 0; i < 5; i++) {
+            assertTrue(appender.append(new EventStoreOperation("events", "key", "tick", "{\"i\":" + i + "}")));
+        }
+        while (appender.getStats().getInFlight() == 0) {
+            Thread.sleep(1);
+        }
+
+        // the queued events wait for the one in flight, the drain thread
+        // must park rather than spin until it completes
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads.isThreadCpuTimeSupported());
+        final Thread drainThread = drainThread();
+        final long startCpuNanos = threads.getThreadCpuTime(drainThread.getId());
+        Thread.sleep(200);
+        final long cpuNanos = threads.getThreadCpuTime(drainThread.getId()) - startCpuNanos;
+        assertEquals(1, appender.getStats().getInFlight());
+        assertEquals(4, appender.getStats().getQueued());
+        assertTrue(String.valueOf(cpuNanos), cpuNanos < TimeUnit.MILLISECONDS.toNanos(50));
+
+        assertTrue(appender.flush(10, TimeUnit.SECONDS));
+        appender.close();
+        assertEquals(5, appender.getStats().getStored());
+    }
+
+    // appends 5 events to a queue of 1 while the first one takes half a
+    // second, so that the last 3 are spilled
+    private EventAppender spillSlowly() throws Exception {
+        startStub(500);
+        recorder = new Recorder();
+        final EventAppender appender = EventAppender.builder(stubClient)
+                .queueCapacity(1)
+                .overflowPolicy(EventAppender.OverflowPolicy.SPILL)
+                .spillDirectory(spillDirectory.getRoot())
+                .maxInFlight(1)
+                .listener(recorder)
+                .build();
+        assertTrue(appender.append(new EventStoreOperation("events", "key", "tick", "{\"i\":0}")));
+        while (appender.getStats().getInFlight() == 0) {
+            Thread.sleep(1);
+        }
+        // the next event takes the room in the queue until the first one
+        // completes, so no spilled event is read back before then
+        for (int i = 1; i < 5; i++) {
+            assertTrue(appender.append(new EventStoreOperation("events", "key", "tick", "{\"i\":" + i + "}")));
+        }
+        assertEquals(3, appender.getStats().getSpilled());
+        return appender;
+    }
+
+    private static Thread drainThread() {
+        for (final Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().equals("OrchestrateEventAppender-drain")) {
+                return thread;
+            }
+        }
+        throw new AssertionError("No drain thread.");
+    }
+
+    private File spillFile() {
+        final File[] files = spillDirectory.getRoot().listFiles();
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    private void startStub(final long latencyMillis) throws Exception {
+        server = StubServer.builder()
+                .latency(LatencyDistribution.fixed(latencyMillis, TimeUnit.MILLISECONDS))
+                .build();
+        server.start();
+        stubClient = server.clientBuilder("integration-tests").build();
+    }
+
+    private static final class Recorder implements EventAppender.Listener {
+
+        /** The events that failed. */
+        private final List<EventStoreOperation> failures =
+                Collections.synchronizedList(new ArrayList<EventStoreOperation>());
+
+        @Override
+        public void onFailure(final EventStoreOperation eventStoreOp, final Throwable error) {
+            failures.add(eventStoreOp);
+        }
+
+        @Override
+        public void onDropped(final EventStoreOperation eventStoreOp) {
+        }
+
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client.integration;
+
+import io.orchestrate.client.*;
+import io.orchestrate.client.stub.StubServer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link io.orchestrate.client.EventCache}.
+ */
+public final class EventCacheTest extends OperationTest {
+
+    /** The timestamp of the first event. */
+    private static final long BASE = 1400000000000L;
+
+    /** The stub server, if started by the test. */
+    private StubServer server;
+    /** The client with the cache under test. */
+    private Client cachingClient;
+
+    @After
+    public void tearDown() throws Exception {
+        if (cachingClient != null) {
+            cachingClient.stop();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void servesCoveredRangesFromTheCache() throws Exception {
+        final EventCache cache = EventCache.builder().build();
+        start(StubServer.builder(), cache);
+        for (int i = 0; i < 20; i++) {
+            store("key", i);
+        }
+
+        assertEquals(newestFirst(0, 10), fetch("key", 0, 10));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(newestFirst(2, 8), fetch("key", 2, 8));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(newestFirst(5, 15), fetch("key", 5, 15));
+        assertEquals(1, cache.getPartialHitCount());
+        assertEquals(15, cache.getEventCount());
+    }
+
+    @Test
+    public void storeInvalidatesTheInterval() throws Exception {
+        final EventCache cache = EventCache.builder().build();
+        start(StubServer.builder(), cache);
+        store("key", 1);
+        store("key", 5);
+        assertEquals(Arrays.asList(5L, 1L), fetch("key", 0, 10));
+
+        store("key", 3);
+        assertEquals(Arrays.asList(5L, 3L, 1L), fetch("key", 0, 10));
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void emptyIntervalsCountTowardsTheBound() throws Exception {
+        final EventCache cache = EventCache.builder().maxEvents(10).build();
+        start(StubServer.builder(), cache);
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(fetch("key" + i, 0, 10).isEmpty());
+        }
+        // each key and its empty interval weigh one each
+        assertEquals(15, cache.getEvictionCount());
+        assertEquals(0, cache.getEventCount());
+    }
+
+    @Test
+    public void intervalsOfAKeyAreBounded() throws Exception {
+        final EventCache cache = EventCache.builder().maxIntervals(4).build();
+        start(StubServer.builder(), cache);
+        for (int i = 0; i < 10; i++) {
+            store("key", i * 10);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            fetch("key", i * 10, i * 10 + 1);
+        }
+        assertEquals(4, cache.getEventCount());
+
+        // the intervals furthest from the last fetch were dropped
+        fetch("key", 90, 91);
+        assertEquals(1, cache.getHitCount());
+        fetch("key", 0, 1);
+        assertEquals(11, cache.getMissCount());
+    }
+
+    @Test
+    public void failedFetchIsNotKept() throws Exception {
+        final EventCache cache = EventCache.builder().maxEvents(5).build();
+        start(StubServer.builder().errorRate(1.0, 503), cache);
+
+        for (int i = 0; i < 20; i++) {
+            try {
+                fetch("key" + i, 0, 10);
+                fail();
+            } catch (final ExecutionException e) {
+                assertEquals(503, ((RequestException) e.getCause()).getStatusCode());
+            }
+        }
+        assertEquals(0, cache.getEvictionCount());
+    }
+
+    private void start(final StubServer.Builder builder, final EventCache cache) throws Exception {
+        server = builder.build();
+        server.start();
+        cachingClient = server.clientBuilder("integration-tests").eventCache(cache).build();
+    }
+
+    private void store(final String key, final int second) throws Exception {
+        cachingClient.execute(new EventStoreOperation(
+                "events", key, "tick", "{\"s\":" + second + "}", BASE + TimeUnit.SECONDS.toMillis(second)))
+                .get(3, TimeUnit.SECONDS);
+    }
+
+    // the seconds of the events in the range, newest first
+    private List<Long> fetch(final String key, final int fromSecond, final int toSecond) throws Exception {
+        final List<Long> seconds = new ArrayList<Long>();
+        for (final Event<String> event : cachingClient.execute(new EventFetchOperation<String>(
+                "events", key, "tick",
+                BASE + TimeUnit.SECONDS.toMillis(fromSecond), BASE + TimeUnit.SECONDS.toMillis(toSecond),
+                String.class)).get(3, TimeUnit.SECONDS)) {
+            seconds.add(TimeUnit.MILLISECONDS.toSeconds(event.getTimestamp() - BASE));
+        }
+        return seconds;
+    }
+
+    // the seconds in the range, newest first
+    private static List<Long> newestFirst(final int fromSecond, final int toSecond) {
+        final List<Long> seconds = new ArrayList<Long>();
+        for (long s = toSecond - 1; s >= fromSecond; s--) {
+            seconds.add(s);
+        }
+        return seconds;
+    }
+
+}
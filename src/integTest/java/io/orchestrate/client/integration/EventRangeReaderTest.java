@@ -0,0 +1,181 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client.integration;
+
+import io.orchestrate.client.*;
+import io.orchestrate.client.stub.LatencyDistribution;
+import io.orchestrate.client.stub.StubServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link io.orchestrate.client.EventRangeReader}.
+ */
+public final class EventRangeReaderTest extends OperationTest {
+
+    /** The timestamp of the first event. */
+    private static final long BASE = 1400000000000L;
+
+    /** The stub server with latency. */
+    private StubServer server;
+    /** The client of the stub server. */
+    private Client stubClient;
+
+    @Before
+    public void setUp() throws Exception {
+        server = StubServer.builder()
+                .latency(LatencyDistribution.uniform(1, 20, TimeUnit.MILLISECONDS))
+                .build();
+        server.start();
+        stubClient = server.clientBuilder("integration-tests").build();
+
+        // store 100 events a second apart, in a shuffled order
+        final List<Integer> seconds = new ArrayList<Integer>();
+        for (int i = 0; i < 100; i++) {
+            seconds.add(i);
+        }
+        Collections.shuffle(seconds);
+        for (final int i : seconds) {
+            stubClient.execute(new EventStoreOperation(
+                    "events", "key", "tick", "{\"i\":" + i + "}", BASE + TimeUnit.SECONDS.toMillis(i)))
+                    .get(3, TimeUnit.SECONDS);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        stubClient.stop();
+        server.stop();
+    }
+
+    @Test
+    public void readsEventsInTimestampOrder() throws Exception {
+        final EventRangeReader<String> reader = reader()
+                .range(BASE, BASE + TimeUnit.SECONDS.toMillis(100))
+                .windowSize(3, TimeUnit.SECONDS)
+                .maxInFlight(8)
+                .build();
+        assertEquals(34, reader.getWindowCount());
+
+        final List<Long> timestamps = read(reader);
+        assertEquals(100, timestamps.size());
+        for (int i = 0; i < timestamps.size(); i++) {
+            assertEquals(BASE + TimeUnit.SECONDS.toMillis(i), (long) timestamps.get(i));
+        }
+    }
+
+    @Test
+    public void readsNewestFirst() throws Exception {
+        final EventRangeReader<String> reader = reader()
+                .range(BASE, BASE + TimeUnit.SECONDS.toMillis(100))
+                .windowSize(7, TimeUnit.SECONDS)
+                .newestFirst(true)
+                .build();
+
+        final List<Long> timestamps = read(reader);
+        assertEquals(100, timestamps.size());
+        for (int i = 0; i < timestamps.size(); i++) {
+            assertEquals(BASE + TimeUnit.SECONDS.toMillis(99 - i), (long) timestamps.get(i));
+        }
+    }
+
+    @Test
+    public void readsOnlyTheRange() throws Exception {
+        // the end is exclusive
+        final EventRangeReader<String> reader = reader()
+                .range(BASE + TimeUnit.SECONDS.toMillis(10), BASE + TimeUnit.SECONDS.toMillis(50))
+                .windowSize(4, TimeUnit.SECONDS)
+                .build();
+
+        final List<Long> timestamps = read(reader);
+        assertEquals(40, timestamps.size());
+        assertEquals(BASE + TimeUnit.SECONDS.toMillis(10), (long) timestamps.get(0));
+        assertEquals(BASE + TimeUnit.SECONDS.toMillis(49), (long) timestamps.get(39));
+    }
+
+    @Test
+    public void emptyWindowsAreSkipped() throws Exception {
+        final EventRangeReader<String> reader = reader()
+                .range(BASE - TimeUnit.HOURS.toMillis(1), BASE + TimeUnit.HOURS.toMillis(1))
+                .windowSize(1, TimeUnit.MINUTES)
+                .maxInFlight(16)
+                .build();
+
+        assertEquals(100, read(reader).size());
+    }
+
+    @Test
+    public void closeStopsReading() throws Exception {
+        final EventRangeReader.EventIterator<String> iter = reader()
+                .range(BASE, BASE + TimeUnit.SECONDS.toMillis(100))
+                .windowSize(1, TimeUnit.SECONDS)
+                .build()
+                .iterator();
+        assertTrue(iter.hasNext());
+        assertEquals(BASE, iter.next().getTimestamp());
+        iter.close();
+        assertFalse(iter.hasNext());
+    }
+
+    @Test(expected = ClientException.class)
+    public void failedWindowFailsTheIterator() throws Exception {
+        final StubServer failing = StubServer.builder().errorRate(1.0, 503).build();
+        failing.start();
+        final Client failingClient = failing.clientBuilder("integration-tests").build();
+        try {
+            final EventRangeReader.EventIterator<String> iter = EventRangeReader
+                    .builder(failingClient, "events", "key", "tick", String.class)
+                    .range(BASE, BASE + TimeUnit.SECONDS.toMillis(100))
+                    .windowSize(10, TimeUnit.SECONDS)
+                    .build()
+                    .iterator();
+            try {
+                iter.hasNext();
+            } finally {
+                iter.close();
+            }
+        } finally {
+            failingClient.stop();
+            failing.stop();
+        }
+    }
+
+    private EventRangeReader.Builder<String> reader() {
+        return EventRangeReader.builder(stubClient, "events", "key", "tick", String.class);
+    }
+
+    private static List<Long> read(final EventRangeReader<String> reader) {
+        final List<Long> timestamps = new ArrayList<Long>();
+        final EventRangeReader.EventIterator<String> iter = reader.iterator();
+        try {
+            while (iter.hasNext()) {
+                timestamps.add(iter.next().getTimestamp());
+            }
+        } finally {
+            iter.close();
+        }
+        return timestamps;
+    }
+
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client.integration;
+
+import io.orchestrate.client.*;
+import io.orchestrate.client.stub.StubServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link io.orchestrate.client.EventTailer}.
+ */
+public final class EventTailerTest extends OperationTest {
+
+    /** The timestamp of the first event. */
+    private static final long BASE = 1400000000000L;
+
+    /** The stub server to tail events from. */
+    private StubServer server;
+    /** The client of the stub server. */
+    private Client stubClient;
+    /** The tailer under test. */
+    private EventTailer tailer;
+
+    @Before
+    public void setUp() throws Exception {
+        startStub(StubServer.builder());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (tailer != null) {
+            tailer.close();
+        }
+        stubClient.stop();
+        server.stop();
+    }
+
+    @Test
+    public void deliversEachEventOnce() throws Exception {
+        tailer = EventTailer.builder(stubClient)
+                .minInterval(10, TimeUnit.MILLISECONDS)
+                .maxInterval(50, TimeUnit.MILLISECONDS)
+                .build();
+        final Recorder recorder = new Recorder();
+        tailer.subscribe("events", "key", "tick", BASE, String.class, recorder);
+
+        for (int i = 0; i < 5; i++) {
+            store(i, i);
+        }
+        recorder.await(5);
+
+        // a new event at the last timestamp is delivered, the old ones aren't
+        store(4, 5);
+        for (int i = 6; i < 10; i++) {
+            store(i, i);
+        }
+        recorder.await(10);
+        Thread.sleep(200);
+
+        final List<String> values = recorder.values();
+        assertEquals(10, values.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("{\"i\":" + i + "}", values.get(i));
+        }
+        assertEquals(10, tailer.getDeliveredCount());
+        assertTrue(recorder.failures.isEmpty());
+    }
+
+    @Test
+    public void backsOffWhenIdle() throws Exception {
+        tailer = EventTailer.builder(stubClient)
+                .minInterval(10, TimeUnit.MILLISECONDS)
+                .maxInterval(200, TimeUnit.MILLISECONDS)
+                .build();
+        tailer.subscribe("events", "key", "tick", BASE, String.class, new Recorder());
+        Thread.sleep(1000);
+
+        // 10, 20, 40, 80, 160 then 200ms apart, rather than 100 polls
+        final long polls = tailer.getPollCount();
+        assertTrue(String.valueOf(polls), polls >= 5 && polls <= 15);
+    }
+
+    @Test
+    public void cancelledSubscriptionIsNotPolled() throws Exception {
+        tailer = EventTailer.builder(stubClient)
+                .minInterval(10, TimeUnit.MILLISECONDS)
+                .maxInterval(10, TimeUnit.MILLISECONDS)
+                .build();
+        final Recorder recorder = new Recorder();
+        final EventTailer.Subscription<String> subscription =
+                tailer.subscribe("events", "key", "tick", BASE, String.class, recorder);
+        store(0, 0);
+        recorder.await(1);
+        assertEquals(BASE, subscription.getLastTimestamp());
+
+        subscription.cancel();
+        Thread.sleep(50);
+        final long polls = tailer.getPollCount();
+        store(1, 1);
+        Thread.sleep(100);
+        assertEquals(polls, tailer.getPollCount());
+        assertEquals(1, recorder.values().size());
+    }
+
+    @Test
+    public void failedPollIsReported() throws Exception {
+        tearDown();
+        startStub(StubServer.builder().errorRate(1.0, 503));
+        tailer = EventTailer.builder(stubClient)
+                .minInterval(10, TimeUnit.MILLISECONDS)
+                .maxInterval(50, TimeUnit.MILLISECONDS)
+                .build();
+        final Recorder recorder = new Recorder();
+        tailer.subscribe("events", "key", "tick", BASE, String.class, recorder);
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (recorder.failures.size() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(recorder.failures.size() >= 2);
+        assertTrue(recorder.values().isEmpty());
+    }
+
+    private void store(final int second, final int i) throws Exception {
+        stubClient.execute(new EventStoreOperation(
+                "events", "key", "tick", "{\"i\":" + i + "}", BASE + TimeUnit.SECONDS.toMillis(second)))
+                .get(3, TimeUnit.SECONDS);
+    }
+
+    private void startStub(final StubServer.Builder builder) throws Exception {
+        server = builder.build();
+        server.start();
+        stubClient = server.clientBuilder("integration-tests").build();
+    }
+
+    private static final class Recorder implements EventTailer.Listener<String> {
+
+        /** The events delivered. */
+        private final List<Event<String>> events = new ArrayList<Event<String>>();
+        /** The errors of the failed polls. */
+        private final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+
+        @Override
+        public synchronized void onEvents(final List<Event<String>> events) {
+            this.events.addAll(events);
+            notifyAll();
+        }
+
+        @Override
+        public void onFailure(final Throwable error) {
+            failures.add(error);
+        }
+
+        synchronized void await(final int count) throws InterruptedException {
+            final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+            while (events.size() < count && System.currentTimeMillis() < deadline) {
+                wait(10);
+            }
+            assertTrue(events.size() >= count);
+        }
+
+        synchronized List<String> values() {
+            final List<String> values = new ArrayList<String>();
+            for (final Event<String> event : events) {
+                values.add(event.getValue());
+            }
+            return values;
+        }
+
+    }
+
+}
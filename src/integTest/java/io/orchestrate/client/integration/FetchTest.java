@@ -107,6 +107,26 @@ public final class FetchTest extends OperationTest {
         }
     }
 
+    @Test
+    public void fetchObjectWithPreparedFetch()
+            throws InterruptedException, ExecutionException, TimeoutException {
+        final String key = generateString() + "/ !";
+        final String value = "{}";
+
+        KvStoreOperation kvStoreOp = new KvStoreOperation(TEST_COLLECTION, key, value);
+        Future<KvMetadata> future_1 = client().execute(kvStoreOp);
+        KvMetadata kvMetadata = future_1.get(3, TimeUnit.SECONDS);
+
+        PreparedKvFetch<String> preparedFetch = new PreparedKvFetch<String>(TEST_COLLECTION, String.class);
+        KvObject<String> result = result(preparedFetch.operation(key));
+
+        assertNotNull(kvMetadata);
+        assertNotNull(result);
+        assertEquals(key, result.getKey());
+        assertEquals(value, result.getValue());
+        assertEquals(kvMetadata.getRef(), result.getRef());
+    }
+
     @Test
     public void fetchNotFoundObject()
             throws InterruptedException, ExecutionException, TimeoutException {
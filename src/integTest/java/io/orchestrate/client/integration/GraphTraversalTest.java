@@ -0,0 +1,175 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client.integration;
+
+import io.orchestrate.client.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link io.orchestrate.client.GraphTraversal}.
+ */
+public final class GraphTraversalTest extends OperationTest {
+
+    /** The collection of the graph, unique to each test. */
+    private String collection;
+
+    @Before
+    public void setUp() throws Exception {
+        collection = TEST_COLLECTION + "-" + generateString();
+
+        // a -> b, a -> c, b -> d, c -> d, d -> e
+        for (final String key : Arrays.asList("a", "b", "c", "d", "e")) {
+            store(client(), key);
+        }
+        relate(client(), "a", "b");
+        relate(client(), "a", "c");
+        relate(client(), "b", "d");
+        relate(client(), "c", "d");
+        relate(client(), "d", "e");
+    }
+
+    @Test
+    public void findsEachNodeAtItsShortestDepth() throws Exception {
+        final Recorder recorder = new Recorder();
+        final Future<Integer> done = traversal(client()).maxDepth(2).build().start(recorder);
+
+        assertEquals(3, (int) done.get(3, TimeUnit.SECONDS));
+        assertEquals(1, (int) recorder.depths.get("b"));
+        assertEquals(1, (int) recorder.depths.get("c"));
+        assertEquals(2, (int) recorder.depths.get("d"));
+        assertFalse(recorder.depths.containsKey("e"));
+    }
+
+    @Test
+    public void stopsAtMaxNodes() throws Exception {
+        final Recorder recorder = new Recorder();
+        final GraphTraversal traversal = traversal(client()).maxDepth(5).maxNodes(2).build();
+
+        assertEquals(2, (int) traversal.start(recorder).get(3, TimeUnit.SECONDS));
+        assertEquals(2, recorder.depths.size());
+        assertEquals(2, traversal.getNodeCount());
+    }
+
+    @Test
+    public void listenerIsCalledWithoutTheLock() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final AtomicReference<GraphTraversal> traversal = new AtomicReference<GraphTraversal>();
+            traversal.set(traversal(client()).maxDepth(3).build());
+            final Future<Integer> done = traversal.get().start(new GraphTraversal.Listener() {
+                @Override
+                public void onNode(final GraphTraversal.Node node) {
+                    // blocks on the traversal's lock if it's held
+                    try {
+                        executor.submit(new Callable<Integer>() {
+                            @Override
+                            public Integer call() {
+                                return traversal.get().getNodeCount();
+                            }
+                        }).get(1, TimeUnit.SECONDS);
+                    } catch (final Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+            assertEquals(4, (int) done.get(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void listenerExceptionFailsTheTraversal() throws Exception {
+        final Future<Integer> done = traversal(client()).build().start(new GraphTraversal.Listener() {
+            @Override
+            public void onNode(final GraphTraversal.Node node) {
+                throw new IllegalStateException("boom");
+            }
+        });
+        try {
+            done.get(3, TimeUnit.SECONDS);
+            fail();
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void cachedRelationsDontGrowTheStack() throws Exception {
+        final Client cachingClient = clientBuilder()
+                .relationCache(RelationCache.builder().build())
+                .build();
+        try {
+            for (int i = 0; i < 2000; i++) {
+                store(cachingClient, "leaf" + i);
+                relate(cachingClient, "e", "leaf" + i);
+            }
+            // warm the cache, then traverse again from cached relations only
+            assertEquals(2004, (int) traversal(cachingClient).maxDepth(5).maxInFlight(1).build()
+                    .start(new Recorder()).get(30, TimeUnit.SECONDS));
+
+            final AtomicReference<Object> outcome = new AtomicReference<Object>();
+            final Thread thread = new Thread(null, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        outcome.set(traversal(cachingClient).maxDepth(5).maxInFlight(1).build()
+                                .start(new Recorder()).get(30, TimeUnit.SECONDS));
+                    } catch (final Throwable t) {
+                        outcome.set(t);
+                    }
+                }
+            }, "small-stack", 256 * 1024);
+            thread.start();
+            thread.join();
+            assertEquals(2004, outcome.get());
+        } finally {
+            cachingClient.stop();
+        }
+    }
+
+    private GraphTraversal.Builder traversal(final Client client) {
+        return GraphTraversal.builder(client).start(collection, "a").kinds("link");
+    }
+
+    private void store(final Client client, final String key) throws Exception {
+        client.execute(new KvStoreOperation(collection, key, "{}")).get(3, TimeUnit.SECONDS);
+    }
+
+    private void relate(final Client client, final String from, final String to) throws Exception {
+        client.execute(new RelationStoreOperation(collection, from, "link", collection, to)).get(3, TimeUnit.SECONDS);
+    }
+
+    private static final class Recorder implements GraphTraversal.Listener {
+
+        /** The depth of each node found, by key. */
+        private final Map<String, Integer> depths = new ConcurrentHashMap<String, Integer>();
+
+        @Override
+        public void onNode(final GraphTraversal.Node node) {
+            assertNull(depths.put(node.getKey(), node.getDepth()));
+        }
+
+    }
+
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client.integration;
+
+import io.orchestrate.client.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link io.orchestrate.client.KvCache}.
+ */
+public final class KvCacheTest extends OperationTest {
+
+    /** The collection to fetch from, unique to each test. */
+    private String collection;
+    /** The client with the cache under test, if the test made one. */
+    private Client cachingClient;
+
+    @Before
+    public void setUp() {
+        collection = TEST_COLLECTION + "-" + generateString();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (cachingClient != null) {
+            cachingClient.stop();
+        }
+    }
+
+    @Test
+    public void servesRepeatedFetchesFromTheCache() throws Exception {
+        final KvCache cache = start(KvCache.builder().build());
+        store("a", "{\"v\":1}");
+
+        assertEquals("{\"v\":1}", fetch("a").getRawValue());
+        assertEquals("{\"v\":1}", fetch("a").getRawValue());
+        assertNull(fetch("missing"));
+        assertNull(fetch("missing"));
+        assertEquals(2, cache.getMissCount());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getSize());
+    }
+
+    @Test
+    public void storingAnObjectInvalidatesItsKey() throws Exception {
+        final KvCache cache = start(KvCache.builder().build());
+        store("a", "{\"v\":1}");
+        fetch("a");
+
+        store("a", "{\"v\":2}");
+        assertEquals("{\"v\":2}", fetch("a").getRawValue());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void frequentlyFetchedKeysSurviveAScan() throws Exception {
+        final KvCache cache = start(KvCache.builder().maxEntries(50).build());
+        for (int i = 0; i < 3; i++) {
+            for (int j = 0; j < 20; j++) {
+                fetch("hot" + j);
+            }
+        }
+        for (int i = 0; i < 200; i++) {
+            fetch("cold" + i);
+        }
+
+        final long hits = cache.getHitCount();
+        for (int j = 0; j < 20; j++) {
+            fetch("hot" + j);
+        }
+        assertEquals(20, cache.getHitCount() - hits);
+        assertTrue(cache.getEvictionCount() > 0);
+        assertTrue(cache.getSize() <= 50);
+    }
+
+    @Test
+    public void multiFetchOfCachedKeysDoesNotRecurse() throws Exception {
+        final KvCache cache = start(KvCache.builder().build());
+        final List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 2000; i++) {
+            keys.add("missing" + i);
+        }
+        cachingClient.execute(new KvMultiFetchOperation<String>(collection, keys, 8, String.class))
+                .get(30, TimeUnit.SECONDS);
+        assertEquals(2000, cache.getSize());
+
+        // every fetch is a hit completed on the calling thread, a small
+        // stack overflows if each hit sends the next fetch recursively
+        final AtomicReference<Object> outcome = new AtomicReference<Object>();
+        final Thread thread = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    outcome.set(cachingClient.execute(
+                            new KvMultiFetchOperation<String>(collection, keys, 1, String.class))
+                            .get(30, TimeUnit.SECONDS));
+                } catch (final Throwable t) {
+                    outcome.set(t);
+                }
+            }
+        }, "small-stack", 256 * 1024);
+        thread.start();
+        thread.join();
+        assertTrue(String.valueOf(outcome.get()), outcome.get() instanceof Map);
+        assertTrue(((Map<?, ?>) outcome.get()).isEmpty());
+        assertEquals(2000, cache.getHitCount());
+    }
+
+    private KvCache start(final KvCache cache) {
+        cachingClient = clientBuilder().kvCache(cache).build();
+        return cache;
+    }
+
+    private void store(final String key, final String json) throws Exception {
+        await(cachingClient.execute(new KvStoreOperation(collection, key, json)));
+    }
+
+    private KvObject<String> fetch(final String key) throws Exception {
+        return await(cachingClient.execute(new KvFetchOperation<String>(collection, key, String.class)));
+    }
+
+    // the client's own listeners, which fill and invalidate the cache, can
+    // still be running when get() returns, a listener added once the request
+    // is in flight runs after them
+    private static <T> T await(final OrchestrateFuture<T> future) throws Exception {
+        final CountDownLatch listened = new CountDownLatch(1);
+        future.addListener(new OrchestrateFutureListener<T>() {
+            @Override
+            public void onComplete(final OrchestrateFuture<T> future) {
+                listened.countDown();
+            }
+
+            @Override
+            public void onException(final OrchestrateFuture<T> future) {
+                listened.countDown();
+            }
+        });
+        assertTrue(listened.await(10, TimeUnit.SECONDS));
+        return future.get();
+    }
+
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client.integration;
+
+import io.orchestrate.client.*;
+import io.orchestrate.client.stub.StubServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link io.orchestrate.client.KvListIterator}.
+ */
+public final class KvListIteratorTest extends OperationTest {
+
+    /** The number of objects stored in the collection. */
+    private static final int OBJECTS = 25;
+
+    /** The collection to list, unique to each test. */
+    private String collection;
+
+    @Before
+    public void setUp() throws Exception {
+        collection = TEST_COLLECTION + "-" + generateString();
+        for (int i = 0; i < OBJECTS; i++) {
+            final KvStoreOperation storeOp =
+                    new KvStoreOperation(collection, key(i), new MyObject("value" + i));
+            client().execute(storeOp).get(3, TimeUnit.SECONDS);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client().execute(new DeleteOperation(collection)).get(3, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void iteratesEveryPageInKeyOrder() {
+        final KvListOperation<MyObject> listOp = new KvListOperation<MyObject>(collection, 4, MyObject.class);
+        final KvListIterator<MyObject> iter = KvListIterator.builder(client(), listOp)
+                .prefetchPages(2)
+                .build();
+
+        final List<String> keys = new ArrayList<String>();
+        try {
+            while (iter.hasNext()) {
+                keys.add(iter.next().getKey());
+            }
+        } finally {
+            iter.close();
+        }
+
+        assertEquals(OBJECTS, keys.size());
+        for (int i = 0; i < OBJECTS; i++) {
+            assertEquals(key(i), keys.get(i));
+        }
+    }
+
+    @Test
+    public void smallBufferStillReadsEveryObject() {
+        final KvListOperation<MyObject> listOp = new KvListOperation<MyObject>(collection, 10, MyObject.class);
+        final KvListIterator<MyObject> iter = KvListIterator.builder(client(), listOp)
+                .prefetchPages(3)
+                .maxBufferedObjects(1)
+                .build();
+
+        int count = 0;
+        try {
+            while (iter.hasNext()) {
+                assertNotNull(iter.next().getValue());
+                count++;
+            }
+        } finally {
+            iter.close();
+        }
+        assertEquals(OBJECTS, count);
+    }
+
+    @Test
+    public void closeStopsIteration() {
+        final KvListOperation<MyObject> listOp = new KvListOperation<MyObject>(collection, 5, MyObject.class);
+        final KvListIterator<MyObject> iter = KvListIterator.builder(client(), listOp).build();
+
+        assertTrue(iter.hasNext());
+        assertEquals(key(0), iter.next().getKey());
+        iter.close();
+        assertFalse(iter.hasNext());
+    }
+
+    @Test
+    public void failedPageIsRethrown() throws Exception {
+        final StubServer server = StubServer.builder().errorRate(1.0, 503).build();
+        server.start();
+        final Client failing = server.clientBuilder("integration-tests").build();
+        try {
+            final KvListOperation<MyObject> listOp = new KvListOperation<MyObject>(collection, 5, MyObject.class);
+            final KvListIterator<MyObject> iter = KvListIterator.builder(failing, listOp).build();
+            try {
+                iter.hasNext();
+                fail("Expected the failed page request to be rethrown.");
+            } catch (final ClientException e) {
+                assertNotNull(e.getCause());
+            } finally {
+                iter.close();
+            }
+        } finally {
+            failing.stop();
+            server.stop();
+        }
+    }
+
+    private static String key(final int i) {
+        return String.format("key-%03d", i);
+    }
+
+}
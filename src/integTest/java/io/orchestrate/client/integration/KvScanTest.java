@@ -0,0 +1,271 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client.integration;
+
+import io.orchestrate.client.*;
+import io.orchestrate.client.stub.LatencyDistribution;
+import io.orchestrate.client.stub.StubServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * {@link io.orchestrate.client.KvScan}.
+ */
+public final class KvScanTest extends OperationTest {
+
+    /** The number of objects stored in the collection. */
+    private static final int OBJECTS = 40;
+
+    /** The collection to scan, unique to each test. */
+    private String collection;
+
+    @Before
+    public void setUp() throws Exception {
+        collection = TEST_COLLECTION + "-" + generateString();
+        for (int i = 0; i < OBJECTS; i++) {
+            final KvStoreOperation storeOp =
+                    new KvStoreOperation(collection, key(i), new MyObject("value" + i));
+            client().execute(storeOp).get(3, TimeUnit.SECONDS);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client().execute(new DeleteOperation(collection)).get(3, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void scansEveryKeyOnceAcrossSplitKeys() throws Exception {
+        final KvScan<MyObject> scan = KvScan.builder(client(), collection, MyObject.class)
+                .parallelism(2)
+                .pageSize(3)
+                .splitKeys(key(10), key(20), key(30))
+                .build();
+        final Recorder recorder = new Recorder(-1);
+
+        final KvScan.Checkpoint checkpoint = scan.start(recorder).get(5, TimeUnit.SECONDS);
+
+        assertEquals(allKeys(), recorder.sortedKeys());
+        assertEquals(OBJECTS, recorder.keys.size());
+        assertEquals(4, recorder.completed.size());
+        assertTrue(checkpoint.isComplete());
+        assertEquals(OBJECTS, checkpoint.getObjectCount());
+    }
+
+    @Test
+    public void scansEveryKeyAcrossSampledPartitions() throws Exception {
+        // sampling relies on the search index, which lags behind the writes
+        assumeTrue(isStub());
+        final KvScan<MyObject> scan = KvScan.builder(client(), collection, MyObject.class)
+                .parallelism(3)
+                .pageSize(5)
+                .partitions(3)
+                .build();
+        final Recorder recorder = new Recorder(-1);
+
+        final KvScan.Checkpoint checkpoint = scan.start(recorder).get(5, TimeUnit.SECONDS);
+
+        assertEquals(allKeys(), recorder.sortedKeys());
+        assertEquals(OBJECTS, recorder.keys.size());
+        assertEquals(3, checkpoint.getPartitions().size());
+        assertTrue(checkpoint.isComplete());
+    }
+
+    @Test
+    public void samplingStaysWithinTheParallelism() throws Exception {
+        // a slow stub keeps the samples in flight long enough to count them
+        final StubServer server = StubServer.builder()
+                .latency(LatencyDistribution.fixed(10, TimeUnit.MILLISECONDS))
+                .build();
+        server.start();
+        final Client slowClient = server.clientBuilder(STUB_API_KEY).build();
+        final InFlightMonitor monitor = new InFlightMonitor(slowClient);
+        try {
+            for (int i = 0; i < OBJECTS; i++) {
+                slowClient.execute(new KvStoreOperation(collection, key(i), new MyObject("value" + i)))
+                        .get(3, TimeUnit.SECONDS);
+            }
+            final KvScan<MyObject> scan = KvScan.builder(slowClient, collection, MyObject.class)
+                    .parallelism(2)
+                    .pageSize(20)
+                    .partitions(8)
+                    .build();
+            final Recorder recorder = new Recorder(-1);
+
+            monitor.start();
+            final KvScan.Checkpoint checkpoint = scan.start(recorder).get(10, TimeUnit.SECONDS);
+            monitor.interrupt();
+            monitor.join();
+
+            assertEquals(allKeys(), recorder.sortedKeys());
+            assertTrue(checkpoint.isComplete());
+            // a request counts as in flight until its listener, which sends the
+            // next request, returns, so each slot of the window can count twice
+            assertTrue("max in flight " + monitor.maxInFlight, monitor.maxInFlight <= 2 * 2);
+        } finally {
+            slowClient.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void emptyCollectionCompletes() throws Exception {
+        final KvScan<MyObject> scan = KvScan.builder(client(), collection + "-empty", MyObject.class)
+                .partitions(4)
+                .build();
+        final Recorder recorder = new Recorder(-1);
+
+        final KvScan.Checkpoint checkpoint = scan.start(recorder).get(5, TimeUnit.SECONDS);
+
+        assertTrue(recorder.keys.isEmpty());
+        assertTrue(checkpoint.isComplete());
+        assertEquals(0, checkpoint.getObjectCount());
+    }
+
+    @Test
+    public void failedPageIsRedeliveredOnResume() throws Exception {
+        final KvScan<MyObject> scan = KvScan.builder(client(), collection, MyObject.class)
+                .parallelism(1)
+                .pageSize(5)
+                .splitKeys(key(20))
+                .build();
+        // fail the third page of the scan
+        final Recorder failing = new Recorder(2);
+        try {
+            scan.start(failing).get(5, TimeUnit.SECONDS);
+            fail("Expected the listener's exception to fail the scan.");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+
+        final KvScan.Checkpoint checkpoint = KvScan.Checkpoint.fromJson(scan.getCheckpoint().toJson());
+        assertFalse(checkpoint.isComplete());
+        assertEquals(failing.keys.size(), checkpoint.getObjectCount());
+
+        final KvScan<MyObject> resumed = KvScan.builder(client(), collection, MyObject.class)
+                .pageSize(5)
+                .resumeFrom(checkpoint)
+                .build();
+        final Recorder recorder = new Recorder(-1);
+        assertTrue(resumed.start(recorder).get(5, TimeUnit.SECONDS).isComplete());
+
+        // the rejected page is read again and nothing else is read twice
+        assertTrue(recorder.keys.containsAll(failing.rejected));
+        final Set<String> all = new TreeSet<String>(failing.keys);
+        for (final String key : recorder.keys) {
+            assertTrue(key, all.add(key));
+        }
+        assertEquals(allKeys(), new ArrayList<String>(all));
+    }
+
+    private static List<String> allKeys() {
+        final List<String> keys = new ArrayList<String>(OBJECTS);
+        for (int i = 0; i < OBJECTS; i++) {
+            keys.add(key(i));
+        }
+        return keys;
+    }
+
+    private static String key(final int i) {
+        return String.format("key-%03d", i);
+    }
+
+    /**
+     * Samples the number of requests a client has in flight.
+     */
+    private static final class InFlightMonitor extends Thread {
+
+        /** The client to sample. */
+        private final Client client;
+        /** The most requests seen in flight. */
+        volatile long maxInFlight;
+
+        InFlightMonitor(final Client client) {
+            this.client = client;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                maxInFlight = Math.max(maxInFlight, client.getMetrics().getInFlightCount());
+                try {
+                    Thread.sleep(1);
+                } catch (final InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Records the keys delivered to a scan, optionally rejecting one page.
+     */
+    private static final class Recorder implements KvScan.Listener<MyObject> {
+
+        /** The position of the page to reject, or {@code -1} for none. */
+        private final int rejectPage;
+        /** The number of pages delivered. */
+        private int pages;
+        /** The keys of the accepted pages. */
+        final List<String> keys = Collections.synchronizedList(new ArrayList<String>());
+        /** The keys of the rejected page. */
+        final List<String> rejected = new ArrayList<String>();
+        /** The indexes of the completed key ranges. */
+        final Set<Integer> completed = Collections.synchronizedSet(new HashSet<Integer>());
+
+        Recorder(final int rejectPage) {
+            this.rejectPage = rejectPage;
+        }
+
+        @Override
+        public synchronized void onPage(final KvScan.Partition partition, final List<KvObject<MyObject>> objects) {
+            final List<String> page = new ArrayList<String>(objects.size());
+            for (final KvObject<MyObject> kvObject : objects) {
+                page.add(kvObject.getKey());
+            }
+            assertEquals(page.get(page.size() - 1), partition.getLastKey());
+            if (pages++ == rejectPage) {
+                rejected.addAll(page);
+                throw new IllegalStateException("Rejected page " + page + ".");
+            }
+            keys.addAll(page);
+        }
+
+        @Override
+        public void onPartitionComplete(final KvScan.Partition partition) {
+            assertTrue(partition.isDone());
+            completed.add(partition.getIndex());
+        }
+
+        List<String> sortedKeys() {
+            final List<String> sorted = new ArrayList<String>(keys);
+            Collections.sort(sorted);
+            return sorted;
+        }
+
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client.integration;
+
+import io.orchestrate.client.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * {@link io.orchestrate.client.MultiCollectionSearch}.
+ */
+public final class MultiCollectionSearchTest extends OperationTest {
+
+    /** The collections to search, with 7, 0 and 12 objects. */
+    private String[] collections;
+
+    @Before
+    public void setUp() throws Exception {
+        // the search index of the service lags behind the writes
+        assumeTrue(isStub());
+
+        final String prefix = TEST_COLLECTION + "-" + generateString();
+        collections = new String[] { prefix + "-a", prefix + "-b", prefix + "-c" };
+        store(collections[0], 7);
+        store(collections[2], 12);
+    }
+
+    @Test
+    public void iteratorMergesEveryCollection() {
+        final MultiCollectionSearch.ResultIterator<String> iter = search("*", 5).iterator();
+        final List<String> keys = new ArrayList<String>();
+        try {
+            while (iter.hasNext()) {
+                final Result<String> r = iter.next();
+                keys.add(r.getKvObject().getCollection() + "/" + r.getKvObject().getKey());
+            }
+        } finally {
+            iter.close();
+        }
+
+        assertEquals(19, keys.size());
+        assertEquals(19, new HashSet<String>(keys).size());
+        // every score is the same, so the collections merge in the order given
+        for (int i = 0; i < keys.size(); i++) {
+            assertTrue(keys.get(i), keys.get(i).startsWith(collections[i < 7 ? 0 : 2] + "/"));
+        }
+    }
+
+    @Test
+    public void iteratorAppliesTheQuery() {
+        final MultiCollectionSearch.ResultIterator<String> iter = search("parity:even", 3).iterator();
+        int count = 0;
+        try {
+            while (iter.hasNext()) {
+                assertEquals("{\"parity\":\"even\"}", iter.next().getKvObject().getValue());
+                count++;
+            }
+        } finally {
+            iter.close();
+        }
+        assertEquals(4 + 6, count);
+    }
+
+    @Test
+    public void topIsBoundedToK() throws Exception {
+        final List<Result<String>> top = search("*", 4).top(10).get(5, TimeUnit.SECONDS);
+
+        assertEquals(10, top.size());
+        final HashSet<String> keys = new HashSet<String>();
+        for (final Result<String> r : top) {
+            keys.add(r.getKvObject().getCollection() + "/" + r.getKvObject().getKey());
+        }
+        assertEquals(10, keys.size());
+    }
+
+    @Test
+    public void topReturnsEverythingWhenFewerThanK() throws Exception {
+        final List<Result<String>> top = search("*", 100).top(50).get(5, TimeUnit.SECONDS);
+        assertEquals(19, top.size());
+    }
+
+    private MultiCollectionSearch<String> search(final String query, final int pageSize) {
+        return MultiCollectionSearch.builder(client(), String.class)
+                .collections(collections)
+                .query(query)
+                .pageSize(pageSize)
+                .build();
+    }
+
+    private void store(final String collection, final int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            final String value = "{\"parity\":\"" + ((i % 2 == 0) ? "even" : "odd") + "\"}";
+            client().execute(new KvStoreOperation(collection, "key" + i, value)).get(3, TimeUnit.SECONDS);
+        }
+    }
+
+}
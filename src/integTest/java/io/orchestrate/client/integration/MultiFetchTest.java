@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client.integration;
+
+import io.orchestrate.client.*;
+import io.orchestrate.client.dao.GenericAsyncDao;
+import io.orchestrate.client.stub.StubServer;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link io.orchestrate.client.KvMultiFetchOperation}.
+ */
+public final class MultiFetchTest extends OperationTest {
+
+    /** The collection to fetch from, unique to each test. */
+    private String collection;
+
+    @Before
+    public void setUp() throws Exception {
+        collection = TEST_COLLECTION + "-" + generateString();
+        for (int i = 0; i < 5; i++) {
+            final KvStoreOperation storeOp = new KvStoreOperation(collection, "key" + i, "{\"i\":" + i + "}");
+            client().execute(storeOp).get(3, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void fetchesFoundKeysInOrder() throws Exception {
+        final KvMultiFetchOperation<String> kvMultiFetchOp = new KvMultiFetchOperation<String>(collection,
+                Arrays.asList("key3", "missing1", "key0", "key3", "key4", "key1", "missing2", "key2"), 2, String.class);
+        final Map<String, KvObject<String>> results = client().execute(kvMultiFetchOp).get(3, TimeUnit.SECONDS);
+
+        assertEquals(Arrays.asList("key3", "key0", "key4", "key1", "key2"),
+                Arrays.asList(results.keySet().toArray(new String[results.size()])));
+        for (final Map.Entry<String, KvObject<String>> entry : results.entrySet()) {
+            assertEquals(entry.getKey(), entry.getValue().getKey());
+            assertEquals("{\"i\":" + entry.getKey().substring(3) + "}", entry.getValue().getValue());
+        }
+    }
+
+    @Test
+    public void noKeysCompletesEmpty() throws Exception {
+        final KvMultiFetchOperation<String> kvMultiFetchOp =
+                new KvMultiFetchOperation<String>(collection, Collections.<String>emptyList(), String.class);
+        assertTrue(client().execute(kvMultiFetchOp).get(3, TimeUnit.SECONDS).isEmpty());
+    }
+
+    @Test
+    public void failedFetchFailsTheResult() throws Exception {
+        final StubServer server = StubServer.builder().errorRate(1.0, 503).build();
+        server.start();
+        final Client failing = server.clientBuilder("integration-tests").build();
+        try {
+            final KvMultiFetchOperation<String> kvMultiFetchOp =
+                    new KvMultiFetchOperation<String>(collection, Arrays.asList("key0", "key1"), String.class);
+            failing.execute(kvMultiFetchOp).get(3, TimeUnit.SECONDS);
+            fail("Expected the failed fetch to fail the result.");
+        } catch (final ExecutionException e) {
+            assertNotNull(e.getCause());
+        } finally {
+            failing.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void daoFindsAll() throws Exception {
+        final GenericAsyncDao<String> dao = new GenericAsyncDao<String>(client(), collection, String.class) {};
+        final Map<String, KvObject<String>> results =
+                dao.findAll(Arrays.asList("key1", "missing", "key2")).get(3, TimeUnit.SECONDS);
+
+        assertEquals(2, results.size());
+        assertEquals("{\"i\":1}", results.get("key1").getValue());
+        assertEquals("{\"i\":2}", results.get("key2").getValue());
+    }
+
+}
@@ -17,6 +17,7 @@ package io.orchestrate.client.integration;
 
 import io.orchestrate.client.Client;
 import io.orchestrate.client.ClientBuilder;
+import io.orchestrate.client.stub.StubServer;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 
@@ -29,30 +30,67 @@ public abstract class OperationTest {
 
     /** The name of the collection used with all integration tests. */
     public static final String TEST_COLLECTION = "integration-tests";
+    /** The API key of clients of the stub server, the only one it accepts. */
+    static final String STUB_API_KEY = "integration-tests";
 
     /** The client instance to use with requests to the Orchestrate service. */
     private static Client client;
+    /** The stub server to run the tests against, if enabled. */
+    private static StubServer stubServer;
 
     protected Client client() {
         return client;
     }
 
-    @BeforeClass
-    public static void setUpBeforeClass() {
-        final String apiKey = System.getProperty("orchestrate.apiKey");
-        if (apiKey == null || apiKey.length() < 1) {
-            throw new IllegalStateException("Cannot run integration tests, 'apiKey' is blank.");
+    /**
+     * Returns a builder for another client of the service or stub server the
+     * tests run against, e.g. to test a client with a cache.
+     *
+     * @return A new client builder.
+     */
+    protected static ClientBuilder clientBuilder() {
+        final ClientBuilder builder;
+        if (stubServer != null) {
+            builder = stubServer.clientBuilder(STUB_API_KEY);
+        } else {
+            final String apiKey = System.getProperty("orchestrate.apiKey");
+            if (apiKey == null || apiKey.length() < 1) {
+                throw new IllegalStateException("Cannot run integration tests, 'apiKey' is blank.");
+            }
+            builder = new ClientBuilder(apiKey);
         }
 
-        client = new ClientBuilder(apiKey)
+        return builder
                 .poolSize(5)
-                .maxPoolSize(Integer.MAX_VALUE)
-                .build();
+                .maxPoolSize(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns whether the tests run against the in-process stub server, tests
+     * that inject latency or errors only run against the stub.
+     *
+     * @return {@code true} if the tests run against the stub server.
+     */
+    protected static boolean isStub() {
+        return (stubServer != null);
+    }
+
+    @BeforeClass
+    public static void setUpBeforeClass() throws IOException {
+        if (Boolean.getBoolean("orchestrate.stub")) {
+            stubServer = StubServer.builder().apiKeys(STUB_API_KEY).build();
+            stubServer.start();
+        }
+        client = clientBuilder().build();
     }
 
     @AfterClass
     public static void tearDownAfterClass() throws IOException {
         client.stop();
+        if (stubServer != null) {
+            stubServer.stop();
+            stubServer = null;
+        }
     }
 
     static String generateString() {
@@ -0,0 +1,177 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client.integration;
+
+import io.orchestrate.client.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link io.orchestrate.client.RelationCache}.
+ */
+public final class RelationCacheTest extends OperationTest {
+
+    /** The collection of the graph, unique to each test. */
+    private String collection;
+    /** The client with the cache under test, if the test made one. */
+    private Client cachingClient;
+
+    @Before
+    public void setUp() {
+        collection = TEST_COLLECTION + "-" + generateString();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (cachingClient != null) {
+            cachingClient.stop();
+        }
+    }
+
+    @Test
+    public void servesRepeatedFetchesFromTheCache() throws Exception {
+        final RelationCache cache = start(RelationCache.builder().build());
+        graph("a", "b", "c");
+
+        final Map<String, String> first = related("a", "link");
+        final Map<String, String> second = related("a", "link");
+        assertEquals(2, first.size());
+        assertEquals(first, second);
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+        assertEquals(2, cache.getEdgeCount());
+    }
+
+    @Test
+    public void sharedNodesAreStoredOnce() throws Exception {
+        final RelationCache cache = start(RelationCache.builder().build());
+        graph("a", "x");
+        graph("b", "x");
+
+        related("a", "link");
+        assertEquals(2, cache.getNodeCount());
+        related("b", "link");
+        assertEquals(3, cache.getNodeCount());
+        assertEquals(2, cache.getEdgeCount());
+    }
+
+    @Test
+    public void storingARelationInvalidatesItsKey() throws Exception {
+        final RelationCache cache = start(RelationCache.builder().build());
+        graph("a", "b");
+        related("a", "link");
+
+        store("c", "{}");
+        relate("a", "c");
+        assertEquals(2, related("a", "link").size());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void storingAnObjectInvalidatesTheRelationsToIt() throws Exception {
+        final RelationCache cache = start(RelationCache.builder().build());
+        graph("a", "b");
+        assertEquals("{\"v\":0}", related("a", "link").get("b"));
+
+        store("b", "{\"v\":1}");
+        assertEquals("{\"v\":1}", related("a", "link").get("b"));
+        assertEquals(0, cache.getHitCount());
+    }
+
+    @Test
+    public void evictsUnusedEntries() throws Exception {
+        final RelationCache cache = start(RelationCache.builder().maxEdges(5).build());
+        for (int i = 0; i < 4; i++) {
+            graph("s" + i, "t" + i + "a", "t" + i + "b");
+            related("s" + i, "link");
+        }
+
+        assertTrue(cache.getEvictionCount() > 0);
+        assertTrue(cache.getEdgeCount() <= 5);
+    }
+
+    @Test
+    public void severalKindsAreNotCached() throws Exception {
+        final RelationCache cache = start(RelationCache.builder().build());
+        graph("a", "b");
+        related("a", "link", "link");
+        related("a", "link", "link");
+
+        assertEquals(0, cache.getHitCount());
+        assertEquals(0, cache.getEdgeCount());
+    }
+
+    private RelationCache start(final RelationCache cache) {
+        cachingClient = clientBuilder().relationCache(cache).build();
+        return cache;
+    }
+
+    // stores the keys and relates the first one to the others
+    private void graph(final String from, final String... to) throws Exception {
+        store(from, "{\"v\":0}");
+        for (final String key : to) {
+            store(key, "{\"v\":0}");
+            relate(from, key);
+        }
+    }
+
+    private void store(final String key, final String json) throws Exception {
+        await(cachingClient.execute(new KvStoreOperation(collection, key, json)));
+    }
+
+    private void relate(final String from, final String to) throws Exception {
+        await(cachingClient.execute(new RelationStoreOperation(collection, from, "link", collection, to)));
+    }
+
+    // the raw values of the related objects, by key
+    private Map<String, String> related(final String key, final String... kinds) throws Exception {
+        final Map<String, String> related = new HashMap<String, String>();
+        for (final KvObject<String> kvObject
+                : await(cachingClient.execute(new RelationFetchOperation(collection, key, kinds)))) {
+            related.put(kvObject.getKey(), kvObject.getRawValue());
+        }
+        return related;
+    }
+
+    // the client's own listeners, which fill and invalidate the cache, can
+    // still be running when get() returns, a listener added once the request
+    // is in flight runs after them
+    private static <T> T await(final OrchestrateFuture<T> future) throws Exception {
+        final CountDownLatch listened = new CountDownLatch(1);
+        future.addListener(new OrchestrateFutureListener<T>() {
+            @Override
+            public void onComplete(final OrchestrateFuture<T> future) {
+                listened.countDown();
+            }
+
+            @Override
+            public void onException(final OrchestrateFuture<T> future) {
+                listened.countDown();
+            }
+        });
+        assertTrue(listened.await(3, TimeUnit.SECONDS));
+        return future.get();
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client.integration;
+
+import io.orchestrate.client.*;
+import io.orchestrate.client.stub.LatencyDistribution;
+import io.orchestrate.client.stub.StubServer;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link io.orchestrate.client.RequestTracer}.
+ */
+public final class RequestTracerTest extends OperationTest {
+
+    /** The stub server the traced client talks to. */
+    private StubServer server;
+    /** The client with the tracer under test. */
+    private Client tracedClient;
+    /** The tracer under test. */
+    private RequestTracer tracer;
+
+    @After
+    public void tearDown() throws Exception {
+        if (tracedClient != null) {
+            tracedClient.stop();
+        }
+        if (tracer != null) {
+            tracer.stop();
+        }
+        if (server != null) {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void tracesEverySampledRequest() throws Exception {
+        final Recorder recorder = new Recorder();
+        start(StubServer.builder(), RequestTracer.builder().sampleRate(1).listener(recorder));
+        fetch(10);
+
+        final List<RequestTrace> traces = recorder.take(10);
+        for (final RequestTrace trace : traces) {
+            assertEquals(KvFetchOperation.class, trace.getOperationType());
+            assertEquals("GET", trace.getMethod());
+            assertTrue(trace.getUri(), trace.getUri().contains("/tracer/key"));
+            assertEquals(404, trace.getStatusCode());
+            assertNull(trace.getError());
+            assertTrue(trace.getDuration(TimeUnit.NANOSECONDS) > 0);
+        }
+        assertEquals("OrchestrateClientTracer", recorder.threadName);
+        assertEquals(0, tracer.getDroppedCount());
+    }
+
+    @Test
+    public void unsampledRequestsAreNotTraced() throws Exception {
+        final Recorder recorder = new Recorder();
+        start(StubServer.builder(), RequestTracer.builder().listener(recorder));
+        fetch(20);
+        settle();
+        assertTrue(recorder.traces.isEmpty());
+    }
+
+    @Test
+    public void samplesAFractionOfRequests() throws Exception {
+        final Recorder recorder = new Recorder();
+        start(StubServer.builder(), RequestTracer.builder().sampleRate(0.5).listener(recorder));
+        fetch(400);
+        settle();
+        final int traced = recorder.traces.size();
+        assertTrue(String.valueOf(traced), traced > 100 && traced < 300);
+    }
+
+    @Test
+    public void tracesOnlySlowRequests() throws Exception {
+        final Recorder recorder = new Recorder();
+        start(StubServer.builder().latency(LatencyDistribution.uniform(0, 100, TimeUnit.MILLISECONDS)),
+                RequestTracer.builder().slowRequestThreshold(50, TimeUnit.MILLISECONDS).listener(recorder));
+        fetch(40);
+        settle();
+        final int traced = recorder.traces.size();
+        assertTrue(String.valueOf(traced), traced > 0 && traced < 40);
+        for (final RequestTrace trace : recorder.traces) {
+            assertTrue(trace.getDuration(TimeUnit.MILLISECONDS) >= 50);
+        }
+    }
+
+    @Test
+    public void fullBufferDropsTraces() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Recorder recorder = new Recorder() {
+            @Override
+            public void onTrace(final RequestTrace trace) {
+                super.onTrace(trace);
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        start(StubServer.builder(), RequestTracer.builder().sampleRate(1).bufferSize(2).listener(recorder));
+        recorder.take(1);
+        // the drain thread is held by the listener, so two more fill the
+        // buffer and the rest are dropped
+        fetch(10);
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (tracer.getDroppedCount() < 8 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+
+        tracer.stop();
+        // the held trace was taken, the two buffered ones are delivered
+        assertEquals(2, recorder.traces.size());
+        assertEquals(8, tracer.getDroppedCount());
+    }
+
+    @Test
+    public void stoppingTheClientDoesNotStopTheTracer() throws Exception {
+        final Recorder recorder = new Recorder();
+        start(StubServer.builder(), RequestTracer.builder().sampleRate(1).listener(recorder));
+        recorder.take(1);
+        tracedClient.stop();
+
+        tracedClient = server.clientBuilder("integration-tests").tracer(tracer).build();
+        fetch(1);
+        assertEquals(1, recorder.take(1).size());
+    }
+
+    // makes a request, which is traced when sampled, so the drain thread
+    // has started by the time the test continues
+    private void start(final StubServer.Builder serverBuilder, final RequestTracer.Builder tracerBuilder)
+            throws Exception {
+        server = serverBuilder.build();
+        server.start();
+        tracer = tracerBuilder.build();
+        tracedClient = server.clientBuilder("integration-tests").tracer(tracer).build();
+        fetch(1);
+    }
+
+    // a request is traced on the I/O thread after its future completes, so
+    // give the last ones time to be recorded before stopping the tracer
+    private void settle() throws InterruptedException {
+        Thread.sleep(200);
+        tracer.stop();
+    }
+
+    private void fetch(final int count) throws Exception {
+        final List<OrchestrateFuture<KvObject<String>>> futures = new ArrayList<OrchestrateFuture<KvObject<String>>>();
+        for (int i = 0; i < count; i++) {
+            futures.add(tracedClient.execute(new KvFetchOperation<String>("tracer", "key" + i, String.class)));
+        }
+        for (final OrchestrateFuture<KvObject<String>> future : futures) {
+            assertNull(future.get(5, TimeUnit.SECONDS));
+        }
+    }
+
+    /**
+     * Records the traces delivered by the tracer.
+     */
+    private static class Recorder implements RequestTracer.Listener {
+
+        /** The traces delivered, in order. */
+        final BlockingQueue<RequestTrace> traces = new LinkedBlockingQueue<RequestTrace>();
+        /** The name of the thread the traces were delivered on. */
+        volatile String threadName;
+
+        @Override
+        public void onTrace(final RequestTrace trace) {
+            threadName = Thread.currentThread().getName();
+            traces.add(trace);
+        }
+
+        List<RequestTrace> take(final int count) throws InterruptedException {
+            final List<RequestTrace> taken = new ArrayList<RequestTrace>(count);
+            for (int i = 0; i < count; i++) {
+                final RequestTrace trace = traces.poll(5, TimeUnit.SECONDS);
+                assertNotNull("Expected " + count + " traces, got " + i + ".", trace);
+                taken.add(trace);
+            }
+            return taken;
+        }
+
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client.integration;
+
+import io.orchestrate.client.*;
+import io.orchestrate.client.stub.LatencyDistribution;
+import io.orchestrate.client.stub.StubServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link io.orchestrate.client.SearchStream}.
+ */
+public final class SearchStreamTest extends OperationTest {
+
+    /** The number of objects stored in the collection. */
+    private static final int OBJECTS = 47;
+
+    /** The stub server with a varying latency, so windows arrive out of order. */
+    private StubServer server;
+    /** The client of the stub server. */
+    private Client client;
+    /** The collection to search, unique to each test. */
+    private String collection;
+
+    @Before
+    public void setUp() throws Exception {
+        server = StubServer.builder()
+                .latency(LatencyDistribution.uniform(1, 30, TimeUnit.MILLISECONDS))
+                .build();
+        server.start();
+        client = server.clientBuilder("integration-tests").build();
+
+        collection = TEST_COLLECTION + "-" + generateString();
+        for (int i = 0; i < OBJECTS; i++) {
+            final KvStoreOperation storeOp = new KvStoreOperation(collection, "key" + i, new MyObject("value" + i));
+            client.execute(storeOp).get(3, TimeUnit.SECONDS);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        client.stop();
+        server.stop();
+    }
+
+    @Test
+    public void deliversWindowsInOffsetOrder() throws Exception {
+        final Recorder recorder = new Recorder(false);
+        final int count = SearchStream.builder(client, search(10))
+                .maxInFlight(4)
+                .build()
+                .start(recorder)
+                .get(5, TimeUnit.SECONDS);
+
+        assertEquals(OBJECTS, count);
+        assertEquals(Arrays.asList(0, 10, 20, 30, 40), recorder.offsets);
+        assertEquals(OBJECTS, recorder.keys.size());
+        assertEquals(OBJECTS, new HashSet<String>(recorder.keys).size());
+    }
+
+    @Test
+    public void unorderedDeliversEveryWindow() throws Exception {
+        final Recorder recorder = new Recorder(false);
+        final int count = SearchStream.builder(client, search(5))
+                .maxInFlight(8)
+                .ordered(false)
+                .build()
+                .start(recorder)
+                .get(5, TimeUnit.SECONDS);
+
+        assertEquals(OBJECTS, count);
+        final List<Integer> offsets = new ArrayList<Integer>(recorder.offsets);
+        Collections.sort(offsets);
+        assertEquals(Arrays.asList(0, 5, 10, 15, 20, 25, 30, 35, 40, 45), offsets);
+        assertEquals(OBJECTS, new HashSet<String>(recorder.keys).size());
+    }
+
+    @Test
+    public void stopsAtMaxResults() throws Exception {
+        final Recorder recorder = new Recorder(false);
+        final SearchStream<MyObject> stream = SearchStream.builder(client, search(10))
+                .maxResults(25)
+                .build();
+        final int count = stream.start(recorder).get(5, TimeUnit.SECONDS);
+
+        assertEquals(25, count);
+        assertEquals(25, stream.getExpectedCount());
+        assertEquals(Arrays.asList(0, 10, 20), recorder.offsets);
+        assertEquals(25, recorder.keys.size());
+    }
+
+    @Test
+    public void listenerExceptionFailsStream() throws Exception {
+        try {
+            SearchStream.builder(client, search(10))
+                    .build()
+                    .start(new Recorder(true))
+                    .get(5, TimeUnit.SECONDS);
+            fail("Expected the listener's exception to fail the stream.");
+        } catch (final ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    private SearchOperation<MyObject> search(final int windowSize) {
+        return SearchOperation.builder(collection, MyObject.class)
+                .query("*")
+                .limit(windowSize)
+                .build();
+    }
+
+    /**
+     * Records the windows delivered to a stream, and checks they're never
+     * delivered concurrently.
+     */
+    private static final class Recorder implements SearchStream.Listener<MyObject> {
+
+        /** Whether to throw from the first window. */
+        private final boolean fail;
+        /** The offsets of the windows, in delivery order. */
+        final List<Integer> offsets = new ArrayList<Integer>();
+        /** The keys of the results, in delivery order. */
+        final List<String> keys = new ArrayList<String>();
+        /** Whether a window is being delivered. */
+        private boolean delivering;
+
+        Recorder(final boolean fail) {
+            this.fail = fail;
+        }
+
+        @Override
+        public void onResults(final int offset, final List<Result<MyObject>> results) {
+            assertFalse(delivering);
+            delivering = true;
+            try {
+                if (fail) {
+                    throw new IllegalStateException("Rejected the window at " + offset + ".");
+                }
+                offsets.add(offset);
+                for (final Result<MyObject> r : results) {
+                    keys.add(r.getKvObject().getKey());
+                }
+            } finally {
+                delivering = false;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client.integration;
+
+import io.orchestrate.client.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link io.orchestrate.client.TypedRelationFetchOperation}.
+ */
+public final class TypedRelationFetchTest extends OperationTest {
+
+    /** The collection of the users, unique to each test. */
+    private String users;
+    /** The collection of the pages, unique to each test. */
+    private String pages;
+
+    @Before
+    public void setUp() throws Exception {
+        users = TEST_COLLECTION + "-users-" + generateString();
+        pages = TEST_COLLECTION + "-pages-" + generateString();
+
+        store(users, "alice", "{\"name\":\"alice\",\"tags\":[1,2]}");
+        store(users, "bob", "{\"name\":\"bob\",\"tags\":[]}");
+        store(users, "carol", "{\"name\":\"carol\",\"tags\":[3]}");
+        store(pages, "home", "{\"title\":\"home\"}");
+        relate("alice", users, "bob");
+        relate("alice", users, "carol");
+        relate("alice", pages, "home");
+    }
+
+    @Test
+    public void deserializesByCollection() throws Exception {
+        final RelatedObjects related = client().execute(fetch("alice").as(users, Map.class).build())
+                .get(3, TimeUnit.SECONDS);
+
+        assertTrue(related.isHydrated());
+        assertEquals(3, related.size());
+        assertEquals(new HashSet<String>(Arrays.asList("bob", "carol")), names(related.ofType(Map.class)));
+        final List<KvObject<String>> others = related.ofType(String.class);
+        assertEquals(1, others.size());
+        assertEquals("home", others.get(0).getKey());
+        assertEquals("{\"title\":\"home\"}", others.get(0).getValue());
+    }
+
+    @Test
+    public void rawValueIsTheJsonOfTheValue() throws Exception {
+        final RelatedObjects related = client().execute(fetch("alice").as(users, Map.class).build())
+                .get(3, TimeUnit.SECONDS);
+
+        for (final KvObject<Map> user : related.ofType(Map.class)) {
+            if (user.getKey().equals("carol")) {
+                assertEquals("{\"name\":\"carol\",\"tags\":[3]}", user.getRawValue());
+                assertEquals(Collections.singletonList(3), user.getValue().get("tags"));
+            }
+        }
+    }
+
+    @Test
+    public void metadataOnlyDefersDeserializing() throws Exception {
+        final RelatedObjects related = client().execute(
+                fetch("alice").as(users, Map.class).metadataOnly(true).build()).get(3, TimeUnit.SECONDS);
+
+        assertFalse(related.isHydrated());
+        final Set<String> keys = new HashSet<String>();
+        for (final KvMetadata kvMetadata : related.getMetadata()) {
+            keys.add(kvMetadata.getKey());
+            assertNotNull(kvMetadata.getRef());
+        }
+        assertEquals(new HashSet<String>(Arrays.asList("bob", "carol", "home")), keys);
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            assertSame(related, related.hydrate(executor).get(3, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(related.isHydrated());
+        assertEquals(new HashSet<String>(Arrays.asList("bob", "carol")), names(related.ofType(Map.class)));
+    }
+
+    @Test
+    public void emptyResultIsHydrated() throws Exception {
+        final RelatedObjects related = client().execute(
+                fetch("bob").as(users, Map.class).metadataOnly(true).build()).get(3, TimeUnit.SECONDS);
+
+        assertEquals(0, related.size());
+        assertTrue(related.isHydrated());
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertSame(related, related.hydrate(executor).get(3, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private TypedRelationFetchOperation.Builder fetch(final String key) {
+        return TypedRelationFetchOperation.builder(users, key, "link");
+    }
+
+    private void store(final String collection, final String key, final String json) throws Exception {
+        client().execute(new KvStoreOperation(collection, key, json)).get(3, TimeUnit.SECONDS);
+    }
+
+    private void relate(final String from, final String toCollection, final String to) throws Exception {
+        client().execute(new RelationStoreOperation(users, from, "link", toCollection, to)).get(3, TimeUnit.SECONDS);
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static Set<String> names(final List<KvObject<Map>> objects) {
+        final Set<String> names = new HashSet<String>();
+        for (final KvObject<Map> kvObject : objects) {
+            names.add((String) kvObject.getValue().get("name"));
+        }
+        return names;
+    }
+
+}
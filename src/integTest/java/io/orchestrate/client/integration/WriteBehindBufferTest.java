@@ -0,0 +1,186 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client.integration;
+
+import io.orchestrate.client.*;
+import io.orchestrate.client.dao.GenericAsyncDao;
+import io.orchestrate.client.stub.LatencyDistribution;
+import io.orchestrate.client.stub.StubServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link io.orchestrate.client.WriteBehindBuffer}.
+ */
+public final class WriteBehindBufferTest extends OperationTest {
+
+    /** The collection to write to, unique to each test. */
+    private String collection;
+    /** The buffer under test, if the test made one. */
+    private WriteBehindBuffer buffer;
+
+    @Before
+    public void setUp() {
+        collection = TEST_COLLECTION + "-" + generateString();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (buffer != null) {
+            buffer.close();
+        }
+    }
+
+    @Test
+    public void coalescesStoresToAKey() throws Exception {
+        buffer = WriteBehindBuffer.builder(client())
+                .flushWindow(200, TimeUnit.MILLISECONDS)
+                .build();
+        final List<OrchestrateFuture<KvMetadata>> futures = new ArrayList<OrchestrateFuture<KvMetadata>>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(buffer.store(new KvStoreOperation(collection, "key", "{\"i\":" + i + "}")));
+        }
+        assertTrue(buffer.flush(3, TimeUnit.SECONDS));
+
+        assertEquals(1, buffer.getWrittenCount());
+        assertEquals(9, buffer.getCoalescedCount());
+        final String ref = futures.get(0).get(3, TimeUnit.SECONDS).getRef();
+        for (final OrchestrateFuture<KvMetadata> future : futures) {
+            assertEquals(ref, future.get(3, TimeUnit.SECONDS).getRef());
+        }
+        assertEquals("{\"i\":9}", fetch(client(), "key"));
+    }
+
+    @Test
+    public void fetchReadsTheBufferedStore() throws Exception {
+        client().execute(new KvStoreOperation(collection, "key", "{\"v\":1}")).get(3, TimeUnit.SECONDS);
+        buffer = WriteBehindBuffer.builder(client())
+                .flushWindow(30, TimeUnit.SECONDS)
+                .build();
+        buffer.store(new KvStoreOperation(collection, "key", "{\"v\":2}"));
+
+        final KvFetchOperation<String> kvFetchOp = new KvFetchOperation<String>(collection, "key", String.class);
+        assertEquals("{\"v\":2}", buffer.fetch(kvFetchOp).get(3, TimeUnit.SECONDS).getValue());
+        assertEquals(1, buffer.getWrittenCount());
+    }
+
+    @Test
+    public void discardedStoreIsNotWritten() throws Exception {
+        buffer = WriteBehindBuffer.builder(client())
+                .flushWindow(30, TimeUnit.SECONDS)
+                .build();
+        final OrchestrateFuture<KvMetadata> future = buffer.store(new KvStoreOperation(collection, "key", "{}"));
+
+        assertTrue(buffer.discard(collection, "key"));
+        assertNull(future.get(3, TimeUnit.SECONDS));
+        assertTrue(buffer.flush(3, TimeUnit.SECONDS));
+        assertEquals(0, buffer.getWrittenCount());
+        assertNull(fetch(client(), "key"));
+    }
+
+    @Test
+    public void fullBufferBlocksTheCaller() throws Exception {
+        final StubServer server = StubServer.builder()
+                .latency(LatencyDistribution.fixed(100, TimeUnit.MILLISECONDS))
+                .build();
+        server.start();
+        final Client slow = server.clientBuilder("integration-tests").build();
+        try {
+            buffer = WriteBehindBuffer.builder(slow)
+                    .flushWindow(30, TimeUnit.SECONDS)
+                    .maxConcurrency(1)
+                    .maxBufferedKeys(3)
+                    .build();
+            final List<OrchestrateFuture<KvMetadata>> futures = new ArrayList<OrchestrateFuture<KvMetadata>>();
+            final long start = System.nanoTime();
+            for (int i = 0; i < 8; i++) {
+                futures.add(buffer.store(new KvStoreOperation(collection, "key" + i, "{}")));
+            }
+            final long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            // with one write at a time, room for the last 5 keys is made by
+            // at least 4 writes landing one after the other
+            assertTrue(String.valueOf(elapsedMillis), elapsedMillis >= 400);
+            assertTrue(buffer.flush(5, TimeUnit.SECONDS));
+            for (final OrchestrateFuture<KvMetadata> future : futures) {
+                assertNotNull(future.get(3, TimeUnit.SECONDS));
+            }
+            assertEquals(8, buffer.getWrittenCount());
+        } finally {
+            buffer.close();
+            buffer = null;
+            slow.stop();
+            server.stop();
+        }
+    }
+
+    @Test
+    public void daoReadsItsOwnBufferedSave() throws Exception {
+        buffer = WriteBehindBuffer.builder(client())
+                .flushWindow(30, TimeUnit.SECONDS)
+                .build();
+        final GenericAsyncDao<String> dao = new GenericAsyncDao<String>(client(), collection, String.class, buffer) {};
+
+        dao.save("key", "{\"v\":1}");
+        dao.save("key", "{\"v\":2}");
+        assertEquals("{\"v\":2}", dao.findOne("key").get(3, TimeUnit.SECONDS).getValue());
+        assertEquals(1, buffer.getWrittenCount());
+    }
+
+    @Test
+    public void clientBuffersItsStores() throws Exception {
+        final Client buffered = clientBuilder()
+                .writeBehind(30, TimeUnit.SECONDS)
+                .build();
+        try {
+            final OrchestrateFuture<KvMetadata> first =
+                    buffered.execute(new KvStoreOperation(collection, "key", "{\"v\":1}"));
+            final OrchestrateFuture<KvMetadata> second =
+                    buffered.execute(new KvStoreOperation(collection, "key", "{\"v\":2}"));
+            buffered.execute(new KvStoreOperation(collection, "other", "{}"));
+            buffered.execute(new KvStoreOperation(collection, "stopped", "{}"));
+
+            // the fetch waits for the buffered store, the other keys stay buffered
+            assertEquals("{\"v\":2}", fetch(buffered, "key"));
+            assertEquals(first.get(3, TimeUnit.SECONDS).getRef(), second.get(3, TimeUnit.SECONDS).getRef());
+            assertNull(fetch(client(), "other"));
+
+            // a delete discards the buffered store
+            buffered.execute(new KvDeleteOperation(collection, "other")).get(3, TimeUnit.SECONDS);
+        } finally {
+            buffered.stop();
+        }
+
+        // stopping the client writes what's still buffered
+        assertEquals("{}", fetch(client(), "stopped"));
+        assertNull(fetch(client(), "other"));
+    }
+
+    private String fetch(final Client client, final String key) throws Exception {
+        final KvObject<String> kvObject = client
+                .execute(new KvFetchOperation<String>(collection, key, String.class))
+                .get(3, TimeUnit.SECONDS);
+        return (kvObject == null) ? null : kvObject.getValue();
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import org.glassfish.grizzly.http.HttpHeader;
+import org.glassfish.grizzly.http.HttpRequestPacket;
+import org.glassfish.grizzly.http.HttpResponsePacket;
+import org.glassfish.grizzly.http.Method;
+import org.glassfish.grizzly.http.util.DataChunk;
+import org.glassfish.grizzly.http.util.Header;
+import org.glassfish.grizzly.memory.Buffers;
+import org.glassfish.grizzly.memory.MemoryManager;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The objects and response bodies shared by the benchmarks.
+ */
+final class BenchmarkData {
+
+    /** The collection the benchmarks query. */
+    static final String COLLECTION = "users";
+    /** The ref the benchmark objects are stored with. */
+    static final String REF = "f8a86a25029a907b";
+    /** The number of results in list, search, event and relation responses. */
+    static final int RESULTS = 10;
+
+    private BenchmarkData() {}
+
+    /**
+     * A small object, typical of what is stored in a collection.
+     */
+    public static final class User {
+
+        public String name;
+        public String email;
+        public int age;
+        public List<String> tags;
+
+        public User() {}
+
+        User(final String name, final String email, final int age, final List<String> tags) {
+            this.name = name;
+            this.email = email;
+            this.age = age;
+            this.tags = tags;
+        }
+
+    }
+
+    static User user(final int i) {
+        return new User("user" + i, "user" + i + "@example.com", 20 + i, Arrays.asList("a", "b", "c"));
+    }
+
+    static String userJson(final int i) {
+        return "{\"name\":\"user" + i + "\",\"email\":\"user" + i + "@example.com\"," +
+                "\"age\":" + (20 + i) + ",\"tags\":[\"a\",\"b\",\"c\"]}";
+    }
+
+    static String kvResultJson(final int i) {
+        return "{\"path\":{\"collection\":\"" + COLLECTION + "\",\"key\":\"user-" + i + "\"," +
+                "\"ref\":\"" + REF + "\"},\"value\":" + userJson(i) + "}";
+    }
+
+    static String listJson() {
+        final StringBuilder sb = new StringBuilder("{\"count\":").append(RESULTS).append(",\"results\":[");
+        for (int i = 0; i < RESULTS; i++) {
+            sb.append((i > 0) ? "," : "").append(kvResultJson(i));
+        }
+        return sb.append("],\"next\":\"/v0/").append(COLLECTION)
+                .append("?limit=10&afterKey=user-9\"}").toString();
+    }
+
+    static String searchJson() {
+        final StringBuilder sb = new StringBuilder("{\"count\":").append(RESULTS)
+                .append(",\"total_count\":").append(RESULTS * 10).append(",\"results\":[");
+        for (int i = 0; i < RESULTS; i++) {
+            final String result = kvResultJson(i);
+            sb.append((i > 0) ? "," : "")
+                    .append(result, 0, result.length() - 1)
+                    .append(",\"score\":").append(1.0 / (i + 1)).append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    static String eventsJson() {
+        final StringBuilder sb = new StringBuilder("{\"count\":").append(RESULTS).append(",\"results\":[");
+        for (int i = 0; i < RESULTS; i++) {
+            sb.append((i > 0) ? "," : "")
+                    .append("{\"timestamp\":").append(1388534400000L + i)
+                    .append(",\"value\":").append(userJson(i)).append('}');
+        }
+        return sb.append("]}").toString();
+    }
+
+    /**
+     * Returns the header of a response with an ETag, the value is backed by a
+     * buffer (as it is when it's parsed off the wire) or by a string.
+     *
+     * @param status The status code of the response.
+     * @param bufferBacked Whether the ETag value is backed by a buffer.
+     * @return The response header.
+     */
+    static HttpHeader responseHeader(final int status, final boolean bufferBacked) {
+        final HttpRequestPacket request = HttpRequestPacket.builder()
+                .method(Method.GET)
+                .uri("/v0/" + COLLECTION + "/user-0")
+                .build();
+        final HttpResponsePacket response = HttpResponsePacket.builder(request)
+                .status(status)
+                .build();
+
+        final String etag = "\"" + REF + "-gzip\"";
+        final DataChunk value = response.getHeaders().addValue(Header.ETag);
+        if (bufferBacked) {
+            final byte[] bytes = etag.getBytes(Charset.forName("US-ASCII"));
+            value.setBuffer(Buffers.wrap(MemoryManager.DEFAULT_MEMORY_MANAGER, bytes), 0, bytes.length);
+        } else {
+            value.setString(etag);
+        }
+        return response;
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static io.orchestrate.client.BenchmarkData.*;
+
+/**
+ * Benchmarks for executing operations with the client against a server on the
+ * loopback interface, run with more threads to measure the client under
+ * concurrency, e.g.:
+ * <pre>
+ * gradle jmh -Pjmh.include=EndToEnd -Pjmh.threads=8
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EndToEndBenchmark {
+
+    private LoopbackServer server;
+    private Client client;
+    private PreparedKvFetch<User> preparedFetch;
+    private User user;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = LoopbackServer.start(userJson(0));
+        client = server.clientBuilder().build();
+        preparedFetch = new PreparedKvFetch<User>(COLLECTION, User.class);
+        user = user(0);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.stop();
+        server.stop();
+    }
+
+    @Benchmark
+    public KvObject<User> kvFetch() throws ExecutionException, InterruptedException {
+        return client.execute(new KvFetchOperation<User>(COLLECTION, "user-0", User.class)).get();
+    }
+
+    @Benchmark
+    public KvObject<User> preparedKvFetch() throws ExecutionException, InterruptedException {
+        return client.execute(preparedFetch.operation("user-0")).get();
+    }
+
+    @Benchmark
+    public KvMetadata kvStore() throws ExecutionException, InterruptedException {
+        return client.execute(new KvStoreOperation(COLLECTION, "user-0", user)).get();
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for completing futures, alone and while other threads add
+ * listeners to them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FutureCompletionBenchmark {
+
+    /** A listener that does nothing. */
+    private static final class NoopListener implements OrchestrateFutureListener<Boolean> {
+
+        @Override
+        public void onComplete(final OrchestrateFuture<Boolean> future) {}
+
+        @Override
+        public void onException(final OrchestrateFuture<Boolean> future) {}
+
+    }
+
+    @State(Scope.Benchmark)
+    public static class Operation {
+
+        final KvDeleteOperation op = new KvDeleteOperation(BenchmarkData.COLLECTION, "user-0");
+
+        @Setup
+        public void setUp() {
+            op.addListener(new NoopListener());
+        }
+
+    }
+
+    @State(Scope.Group)
+    public static class SharedFuture {
+
+        volatile OrchestrateFutureImpl<Boolean> current;
+
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadListener {
+
+        final OrchestrateFutureListener<Boolean> listener = new NoopListener();
+
+    }
+
+    @Benchmark
+    public Boolean completeAndGet(final Operation operation)
+            throws ExecutionException, InterruptedException {
+        final OrchestrateFutureImpl<Boolean> future = new OrchestrateFutureImpl<Boolean>(operation.op);
+        future.setResult(Boolean.TRUE);
+        return future.get();
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(1)
+    public void complete(final Operation operation, final SharedFuture shared) {
+        final OrchestrateFutureImpl<Boolean> future = new OrchestrateFutureImpl<Boolean>(operation.op);
+        shared.current = future;
+        future.setResult(Boolean.TRUE);
+    }
+
+    @Benchmark
+    @Group("contended")
+    @GroupThreads(3)
+    public void addListener(final SharedFuture shared, final ThreadListener listener, final Blackhole bh) {
+        final OrchestrateFutureImpl<Boolean> future = shared.current;
+        if (future != null) {
+            future.addListener(listener.listener);
+            bh.consume(future.isDone());
+        }
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.filterchain.BaseFilter;
+import org.glassfish.grizzly.filterchain.FilterChainBuilder;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+import org.glassfish.grizzly.filterchain.TransportFilter;
+import org.glassfish.grizzly.http.HttpContent;
+import org.glassfish.grizzly.http.HttpRequestPacket;
+import org.glassfish.grizzly.http.HttpResponsePacket;
+import org.glassfish.grizzly.http.HttpServerFilter;
+import org.glassfish.grizzly.http.KeepAlive;
+import org.glassfish.grizzly.http.Method;
+import org.glassfish.grizzly.memory.Buffers;
+import org.glassfish.grizzly.memory.MemoryManager;
+import org.glassfish.grizzly.nio.transport.TCPNIOServerConnection;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
+import org.glassfish.grizzly.utils.DelayedExecutor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A minimal HTTP server on the loopback interface that answers every request
+ * with a canned response, so that benchmarks measure the client rather than
+ * the network or the service.
+ *
+ * <p>{@code GET} requests are answered with a {@code 200} and a fixed JSON
+ * body, {@code PUT} requests with a {@code 201} and {@code DELETE} requests
+ * with a {@code 204}.
+ */
+final class LoopbackServer {
+
+    /** The ref returned in the ETag header of responses. */
+    static final String REF = "f8a86a25029a907b";
+
+    /** The executor for keep-alive timeouts. */
+    private final ExecutorService executor;
+    /** The scheduler for keep-alive timeouts. */
+    private final DelayedExecutor delayedExecutor;
+    /** The server transport. */
+    private final TCPNIOTransport transport;
+    /** The port the server is listening on. */
+    private final int port;
+
+    @SuppressWarnings("deprecation")    // keep-alive is only configurable this way in grizzly 2.3
+    private LoopbackServer(final byte[] body) throws IOException {
+        executor = Executors.newCachedThreadPool();
+        delayedExecutor = new DelayedExecutor(executor);
+        delayedExecutor.start();
+
+        final FilterChainBuilder filterChainBuilder = FilterChainBuilder.stateless()
+                .add(new TransportFilter())
+                .add(new HttpServerFilter(true, 8192, "application/json", new KeepAlive(), delayedExecutor))
+                .add(new ResponseFilter(body));
+        transport = TCPNIOTransportBuilder.newInstance()
+                .setTcpNoDelay(true)
+                .setProcessor(filterChainBuilder.build())
+                .build();
+        final TCPNIOServerConnection connection = transport.bind("127.0.0.1", 0);
+        transport.start();
+        port = ((InetSocketAddress) connection.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Starts a server on an ephemeral port.
+     *
+     * @param body The JSON body of responses to {@code GET} requests.
+     * @return The started server.
+     * @throws IOException If the server couldn't be started.
+     */
+    static LoopbackServer start(final String body) throws IOException {
+        return new LoopbackServer(body.getBytes(Charset.forName("UTF-8")));
+    }
+
+    /**
+     * Returns a builder for a client that connects to this server.
+     *
+     * @return A client builder for this server.
+     */
+    ClientBuilder clientBuilder() {
+        return new ClientBuilder("loopback")
+                .host("http://127.0.0.1")
+                .port(port)
+                .useSSL(false);
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    void stop() throws IOException {
+        transport.shutdownNow();
+        delayedExecutor.stop();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Answers each request with a canned response.
+     */
+    private static final class ResponseFilter extends BaseFilter {
+
+        /** The body of responses to {@code GET} requests. */
+        private final byte[] body;
+
+        ResponseFilter(final byte[] body) {
+            this.body = body;
+        }
+
+        @Override
+        public NextAction handleRead(final FilterChainContext ctx) throws IOException {
+            final HttpContent content = ctx.getMessage();
+            if (!content.isLast()) {
+                return ctx.getStopAction(content);
+            }
+
+            final HttpRequestPacket request = (HttpRequestPacket) content.getHttpHeader();
+            final HttpResponsePacket response = HttpResponsePacket.builder(request)
+                    .header("ETag", "\"" + REF + "\"")
+                    .build();
+            final Method method = request.getMethod();
+            final HttpContent.Builder<?> responseContent = response.httpContentBuilder().last(true);
+            if (Method.GET.equals(method)) {
+                final MemoryManager<?> memoryManager = ctx.getMemoryManager();
+                final Buffer buffer = Buffers.wrap(memoryManager, body);
+                response.setStatus(200);
+                response.setContentLength(body.length);
+                responseContent.content(buffer);
+            } else if (Method.PUT.equals(method)) {
+                response.setStatus(201);
+                response.setContentLength(0);
+            } else {
+                response.setStatus(204);
+            }
+
+            ctx.write(responseContent.build());
+            return ctx.getStopAction();
+        }
+
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import org.glassfish.grizzly.http.HttpContent;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static io.orchestrate.client.BenchmarkData.*;
+
+/**
+ * Benchmarks for building the HTTP requests of operations in the client.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RequestBuildingBenchmark {
+
+    private HttpClient client;
+    private PreparedKvFetch<User> preparedFetch;
+    private KvFetchOperation<User> kvFetchOp;
+    private KvStoreOperation kvStoreOp;
+    private KvListOperation<User> kvListOp;
+    private SearchOperation<User> searchOp;
+    private EventFetchOperation<User> eventFetchOp;
+
+    @Setup
+    public void setUp() {
+        // the client is never started, so no connections are made
+        client = new HttpClient(new ClientBuilder("benchmark"));
+        preparedFetch = new PreparedKvFetch<User>(COLLECTION, User.class);
+        kvFetchOp = new KvFetchOperation<User>(COLLECTION, "user 0/ünicode", User.class);
+        kvStoreOp = new KvStoreOperation(COLLECTION, "user-0", user(0));
+        kvListOp = new KvListOperation<User>(COLLECTION, "user-0", User.class);
+        searchOp = new SearchOperation<User>(COLLECTION, User.class, "name:user* AND age:[20 TO 30]");
+        eventFetchOp = new EventFetchOperation<User>(COLLECTION, "user-0", "logins", 0, 1388534400000L, User.class);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.stop();
+    }
+
+    @Benchmark
+    public HttpContent kvFetch() {
+        return client.newRequest(kvFetchOp);
+    }
+
+    @Benchmark
+    public HttpContent preparedKvFetch() {
+        return client.newRequest(preparedFetch.operation("user-0"));
+    }
+
+    @Benchmark
+    public HttpContent kvStore() throws JsonProcessingException {
+        return client.newRequest(kvStoreOp);
+    }
+
+    @Benchmark
+    public HttpContent kvList() {
+        return client.newRequest(kvListOp);
+    }
+
+    @Benchmark
+    public HttpContent search() {
+        return client.newRequest(searchOp);
+    }
+
+    @Benchmark
+    public HttpContent eventFetch() {
+        return client.newRequest(eventFetchOp);
+    }
+
+}
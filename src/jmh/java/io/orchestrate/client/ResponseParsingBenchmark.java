@@ -0,0 +1,150 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.glassfish.grizzly.http.HttpHeader;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static io.orchestrate.client.BenchmarkData.*;
+
+/**
+ * Benchmarks for parsing responses into the results of operations, run with
+ * the {@code gc} profiler to measure allocations, e.g.:
+ * <pre>
+ * gradle jmh -Pjmh.include=ResponseParsing -Pjmh.profilers=gc
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ResponseParsingBenchmark {
+
+    private JacksonMapper mapper;
+    private ObjectMapper objectMapper;
+    private JsonNode kvResultNode;
+    private String objectJson;
+    private String listJson;
+    private String searchJson;
+    private String eventsJson;
+    private HttpHeader okHeader;
+    private HttpHeader createdHeader;
+    private HttpHeader stringHeader;
+
+    private KvFetchOperation<User> kvFetchOp;
+    private KvFetchOperation<String> kvFetchRawOp;
+    private KvStoreOperation kvStoreOp;
+    private KvListOperation<User> kvListOp;
+    private SearchOperation<User> searchOp;
+    private EventFetchOperation<User> eventFetchOp;
+    private RelationFetchOperation relationFetchOp;
+    private TypedRelationFetchOperation typedRelationFetchOp;
+    private TypedRelationFetchOperation metadataRelationFetchOp;
+
+    @Setup
+    public void setUp() throws IOException {
+        mapper = JacksonMapper.builder().build();
+        objectMapper = mapper.getMapper();
+        kvResultNode = objectMapper.readTree(kvResultJson(0));
+        objectJson = userJson(0);
+        listJson = listJson();
+        searchJson = searchJson();
+        eventsJson = eventsJson();
+        okHeader = responseHeader(200, true);
+        createdHeader = responseHeader(201, true);
+        stringHeader = responseHeader(200, false);
+
+        kvFetchOp = new KvFetchOperation<User>(COLLECTION, "user-0", User.class);
+        kvFetchRawOp = new KvFetchOperation<String>(COLLECTION, "user-0", String.class);
+        kvStoreOp = new KvStoreOperation(COLLECTION, "user-0", user(0));
+        kvListOp = new KvListOperation<User>(COLLECTION, User.class);
+        searchOp = new SearchOperation<User>(COLLECTION, User.class, "*");
+        eventFetchOp = new EventFetchOperation<User>(COLLECTION, "user-0", "logins", User.class);
+        relationFetchOp = new RelationFetchOperation(COLLECTION, "user-0", "friends");
+        typedRelationFetchOp = TypedRelationFetchOperation.builder(COLLECTION, "user-0", "friends")
+                .as(COLLECTION, User.class)
+                .build();
+        metadataRelationFetchOp = TypedRelationFetchOperation.builder(COLLECTION, "user-0", "friends")
+                .as(COLLECTION, User.class)
+                .metadataOnly(true)
+                .build();
+    }
+
+    @Benchmark
+    public KvObject<User> jsonToKvObject() throws IOException {
+        return AbstractOperation.jsonToKvObject(objectMapper, kvResultNode, User.class);
+    }
+
+    @Benchmark
+    public KvObject<User> kvFetch() throws IOException {
+        return kvFetchOp.fromResponse(200, okHeader, objectJson, mapper);
+    }
+
+    @Benchmark
+    public KvObject<String> kvFetchRaw() throws IOException {
+        return kvFetchRawOp.fromResponse(200, okHeader, objectJson, mapper);
+    }
+
+    @Benchmark
+    public KvMetadata kvStore() throws IOException {
+        return kvStoreOp.fromResponse(201, createdHeader, "", mapper);
+    }
+
+    @Benchmark
+    public KvList<User> kvList() throws IOException {
+        return kvListOp.fromResponse(200, okHeader, listJson, mapper);
+    }
+
+    @Benchmark
+    public SearchResults<User> search() throws IOException {
+        return searchOp.fromResponse(200, okHeader, searchJson, mapper);
+    }
+
+    @Benchmark
+    public Iterable<Event<User>> eventFetch() throws IOException {
+        return eventFetchOp.fromResponse(200, okHeader, eventsJson, mapper);
+    }
+
+    @Benchmark
+    public Iterable<KvObject<String>> relationFetch() throws IOException {
+        return relationFetchOp.fromResponse(200, okHeader, listJson, mapper);
+    }
+
+    @Benchmark
+    public RelatedObjects typedRelationFetch() throws IOException {
+        return typedRelationFetchOp.fromResponse(200, okHeader, listJson, mapper);
+    }
+
+    @Benchmark
+    public RelatedObjects typedRelationFetchMetadataOnly() throws IOException {
+        return metadataRelationFetchOp.fromResponse(200, okHeader, listJson, mapper);
+    }
+
+    @Benchmark
+    public String refFromBufferETag() {
+        return AbstractOperation.refFromETag(okHeader);
+    }
+
+    @Benchmark
+    public String refFromStringETag() {
+        return AbstractOperation.refFromETag(stringHeader);
+    }
+
+}
@@ -0,0 +1,418 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import io.orchestrate.client.stub.LatencyDistribution;
+import io.orchestrate.client.stub.StubServer;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A command line load generator for the client, to measure its throughput
+ * ceiling and latency curve against the service or an in-process {@link
+ * StubServer}.
+ *
+ * <p>With a positive {@code --rate} requests arrive in an open loop: each
+ * request has an intended start time on a fixed schedule, and its latency is
+ * measured from that time rather than from when it was actually sent. Requests
+ * that queue behind the {@code --concurrency} limit or a slow response are
+ * charged for the wait, so the reported percentiles are corrected for
+ * coordinated omission. The service time, from when each request was sent, is
+ * reported alongside for comparison.
+ *
+ * <p>With {@code --rate=0} the generator runs a closed loop of {@code
+ * --concurrency} threads that each send a request as soon as the previous one
+ * completes, which finds the throughput ceiling but can't correct for
+ * coordinated omission.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * gradle loadgen -Ploadgen.args="--rate=5000 --concurrency=128 --stubLatency=2,20"
+ * }
+ * </pre>
+ */
+public final class LoadGenerator {
+
+    /** The percentiles to report. */
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9, 99.99 };
+    /** The time to wait for requests in flight at the end of a run. */
+    private static final long DRAIN_TIMEOUT_SECONDS = 30;
+
+    /** The options of this run. */
+    private final LoadOptions options;
+    /** The client to generate load with. */
+    private final Client client;
+    /** The permits for requests in flight. */
+    private final Semaphore inFlight;
+    /** The JSON value to store to keys. */
+    private final String value;
+    /** The JSON value to store as events. */
+    private final String eventValue;
+    /** The intended start time of the next request in an open loop. */
+    private long nextNanos;
+
+    LoadGenerator(final LoadOptions options, final Client client) {
+        assert (options != null);
+        assert (client != null);
+
+        this.options = options;
+        this.client = client;
+        this.inFlight = new Semaphore(options.concurrency);
+        this.value = jsonValue(options.valueSize);
+        this.eventValue = "{\"source\":\"loadgen\"}";
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (Arrays.asList(args).contains("--help")) {
+            System.out.print(LoadOptions.USAGE);
+            return;
+        }
+
+        final LoadOptions options;
+        try {
+            options = LoadOptions.parse(args);
+        } catch (final IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.print(LoadOptions.USAGE);
+            System.exit(2);
+            return;
+        }
+
+        StubServer server = null;
+        final ClientBuilder builder;
+        if ("stub".equals(options.target)) {
+            final StubServer.Builder stubBuilder = StubServer.builder()
+                    .errorRate(options.stubErrorRate, 503)
+                    .bandwidth(options.stubBandwidth);
+            if (options.stubMedianMillis > 0) {
+                stubBuilder.latency(LatencyDistribution.logNormal(
+                        options.stubMedianMillis, options.stubP99Millis, TimeUnit.MILLISECONDS));
+            }
+            server = stubBuilder.build();
+            server.start();
+            builder = server.clientBuilder("loadgen");
+        } else {
+            builder = new ClientBuilder(options.apiKey).host(options.host);
+        }
+
+        final Client client = builder.poolSize(options.poolSize).build();
+        try {
+            new LoadGenerator(options, client).run(System.out);
+        } finally {
+            client.stop();
+            if (server != null) {
+                server.stop();
+            }
+        }
+    }
+
+    /**
+     * Loads the keys, warms up and measures the client, then prints the
+     * report to the {@code out} stream.
+     *
+     * @param out The stream to print the report to.
+     * @throws InterruptedException If the run was interrupted.
+     */
+    void run(final PrintStream out) throws InterruptedException {
+        out.println("Running " + options);
+
+        final Recorder load = new Recorder();
+        for (int i = 0; i < options.keys; i++) {
+            inFlight.acquire();
+            dispatch(OperationMix.Type.STORE, i, System.nanoTime(), load);
+        }
+        drain();
+        final long loadErrors = load.totalErrors();
+        if (loadErrors > 0) {
+            out.println("Warning: " + loadErrors + " of " + options.keys + " keys failed to load.");
+        }
+
+        nextNanos = System.nanoTime();
+        if (options.warmupSeconds > 0) {
+            runPhase(options.warmupSeconds, new Recorder());
+        }
+
+        final Recorder recorder = new Recorder();
+        final ProcessStats start = ProcessStats.capture();
+        final long startNanos = System.nanoTime();
+        runPhase(options.durationSeconds, recorder);
+        final long elapsedNanos = System.nanoTime() - startNanos;
+        drain();
+        final ProcessStats end = ProcessStats.capture();
+
+        report(out, recorder, elapsedNanos);
+        out.println("process: " + end.since(start));
+    }
+
+    private void runPhase(final int seconds, final Recorder recorder) throws InterruptedException {
+        final long endNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        if (options.rate > 0) {
+            openLoop(endNanos, recorder);
+        } else {
+            closedLoop(endNanos, recorder);
+        }
+    }
+
+    private void openLoop(final long endNanos, final Recorder recorder) throws InterruptedException {
+        final Random random = new Random();
+        final long intervalNanos = Math.max(1, (long) (1e9 / options.rate));
+        while (nextNanos < endNanos) {
+            long now = System.nanoTime();
+            while (now < nextNanos) {
+                LockSupport.parkNanos(nextNanos - now);
+                now = System.nanoTime();
+            }
+
+            // waiting for a permit delays this request, which is charged to
+            // its latency since it's measured from the intended start time
+            inFlight.acquire();
+            recorder.dispatchLag(System.nanoTime() - nextNanos);
+            dispatch(options.mix.next(random), random.nextInt(options.keys), nextNanos, recorder);
+            nextNanos += intervalNanos;
+        }
+    }
+
+    private void closedLoop(final long endNanos, final Recorder recorder) throws InterruptedException {
+        final Thread[] threads = new Thread[options.concurrency];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    final Random random = new Random();
+                    while (System.nanoTime() < endNanos) {
+                        inFlight.acquireUninterruptibly();
+                        final OrchestrateFuture<?> future = dispatch(
+                                options.mix.next(random), random.nextInt(options.keys),
+                                System.nanoTime(), recorder);
+                        try {
+                            if (future != null) {
+                                future.get();
+                            }
+                        } catch (final Exception ignored) {
+                            // recorded by the future's listener
+                        }
+                    }
+                }
+            }, "LoadGenerator-" + i);
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private void drain() throws InterruptedException {
+        if (inFlight.tryAcquire(options.concurrency, DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            inFlight.release(options.concurrency);
+        }
+    }
+
+    private OrchestrateFuture<?> dispatch(
+            final OperationMix.Type type, final int keyIndex, final long intendedNanos,
+            final Recorder recorder) {
+        final String collection = options.collection;
+        final String key = "key-" + keyIndex;
+        final long sentNanos = System.nanoTime();
+        try {
+            switch (type) {
+                case FETCH:
+                    return track(client.execute(new KvFetchOperation<String>(collection, key, String.class)),
+                            type, intendedNanos, sentNanos, recorder);
+                case STORE:
+                    return track(client.execute(new KvStoreOperation(collection, key, value)),
+                            type, intendedNanos, sentNanos, recorder);
+                case LIST:
+                    return track(client.execute(new KvListOperation<String>(collection, key, 10, String.class)),
+                            type, intendedNanos, sentNanos, recorder);
+                case SEARCH:
+                    return track(client.execute(new SearchOperation<String>(collection, String.class, "*")),
+                            type, intendedNanos, sentNanos, recorder);
+                case EVENT:
+                    return track(client.execute(new EventStoreOperation(collection, key, "loadgen", eventValue)),
+                            type, intendedNanos, sentNanos, recorder);
+                default:
+                    throw new AssertionError(type);
+            }
+        } catch (final RuntimeException e) {
+            recorder.completed(type, intendedNanos, sentNanos, System.nanoTime(), true);
+            inFlight.release();
+            return null;
+        }
+    }
+
+    private <T> OrchestrateFuture<T> track(
+            final OrchestrateFuture<T> future, final OperationMix.Type type, final long intendedNanos,
+            final long sentNanos, final Recorder recorder) {
+        future.addListener(new OrchestrateFutureListener<T>() {
+            @Override
+            public void onComplete(final OrchestrateFuture<T> future) {
+                recorder.completed(type, intendedNanos, sentNanos, System.nanoTime(), false);
+                inFlight.release();
+            }
+
+            @Override
+            public void onException(final OrchestrateFuture<T> future) {
+                recorder.completed(type, intendedNanos, sentNanos, System.nanoTime(), true);
+                inFlight.release();
+            }
+        });
+        return future;
+    }
+
+    private void report(final PrintStream out, final Recorder recorder, final long elapsedNanos) {
+        final double seconds = elapsedNanos / 1e9;
+        final boolean corrected = (options.rate > 0);
+
+        out.println();
+        out.println(corrected
+                ? "Latency from intended start, corrected for coordinated omission (ms):"
+                : "Latency in a closed loop, not corrected for coordinated omission (ms):");
+        header(out);
+        for (final Map.Entry<OperationMix.Type, Stats> entry : recorder.stats.entrySet()) {
+            row(out, entry.getKey().name(), entry.getValue().latency.snapshot(),
+                    entry.getValue().errors.get(), seconds);
+        }
+        row(out, "TOTAL", recorder.total.latency.snapshot(), recorder.total.errors.get(), seconds);
+
+        if (corrected) {
+            out.println();
+            out.println("Service time, from when each request was sent (ms):");
+            header(out);
+            for (final Map.Entry<OperationMix.Type, Stats> entry : recorder.stats.entrySet()) {
+                row(out, entry.getKey().name(), entry.getValue().serviceTime.snapshot(),
+                        entry.getValue().errors.get(), seconds);
+            }
+            row(out, "TOTAL", recorder.total.serviceTime.snapshot(), recorder.total.errors.get(), seconds);
+
+            out.println();
+            out.println(String.format("dispatch: target %.0f ops/s, max %.2fms behind schedule",
+                    options.rate, recorder.maxDispatchLagNanos.get() / 1e6));
+        }
+    }
+
+    private static void header(final PrintStream out) {
+        final StringBuilder sb = new StringBuilder(128)
+                .append(String.format("%-8s %10s %8s %10s", "op", "count", "errors", "ops/s"));
+        for (final double percentile : PERCENTILES) {
+            sb.append(String.format(" %9s", "p" + formatPercentile(percentile)));
+        }
+        out.println(sb.append(String.format(" %9s", "max")));
+    }
+
+    private static void row(
+            final PrintStream out, final String name, final LatencyHistogram.Snapshot snapshot,
+            final long errors, final double seconds) {
+        if (snapshot.getCount() == 0) {
+            return;
+        }
+        final StringBuilder sb = new StringBuilder(128).append(String.format("%-8s %10d %8d %10.1f",
+                name, snapshot.getCount(), errors, snapshot.getCount() / seconds));
+        for (final double percentile : PERCENTILES) {
+            sb.append(String.format(" %9.3f",
+                    snapshot.getValueAtPercentile(percentile, TimeUnit.MICROSECONDS) / 1000.0));
+        }
+        out.println(sb.append(String.format(" %9.3f", snapshot.getMax(TimeUnit.MICROSECONDS) / 1000.0)));
+    }
+
+    private static String formatPercentile(final double percentile) {
+        return (percentile == Math.rint(percentile))
+                ? String.valueOf((long) percentile)
+                : String.valueOf(percentile);
+    }
+
+    private static String jsonValue(final int size) {
+        final StringBuilder sb = new StringBuilder(size + 32).append("{\"name\":\"loadgen\",\"payload\":\"");
+        while (sb.length() < size - 2) {
+            sb.append('x');
+        }
+        return sb.append("\"}").toString();
+    }
+
+    /**
+     * The latencies and errors recorded for a type of operation.
+     */
+    private static final class Stats {
+
+        /** The latencies from the intended start times. */
+        final LatencyHistogram latency = new LatencyHistogram();
+        /** The latencies from when requests were sent. */
+        final LatencyHistogram serviceTime = new LatencyHistogram();
+        /** The number of failed requests. */
+        final AtomicLong errors = new AtomicLong(0);
+
+        void record(final long latencyNanos, final long serviceTimeNanos, final boolean failed) {
+            latency.record(latencyNanos);
+            serviceTime.record(serviceTimeNanos);
+            if (failed) {
+                errors.incrementAndGet();
+            }
+        }
+
+    }
+
+    /**
+     * Records the results of the requests dispatched in a phase of a run.
+     */
+    private static final class Recorder {
+
+        /** The stats of each type of operation. */
+        final Map<OperationMix.Type, Stats> stats;
+        /** The stats of all operations. */
+        final Stats total;
+        /** The furthest the dispatcher fell behind the schedule. */
+        final AtomicLong maxDispatchLagNanos;
+
+        Recorder() {
+            stats = new EnumMap<OperationMix.Type, Stats>(OperationMix.Type.class);
+            for (final OperationMix.Type type : OperationMix.Type.values()) {
+                stats.put(type, new Stats());
+            }
+            total = new Stats();
+            maxDispatchLagNanos = new AtomicLong(0);
+        }
+
+        void completed(
+                final OperationMix.Type type, final long intendedNanos, final long sentNanos,
+                final long completedNanos, final boolean failed) {
+            final long latency = completedNanos - intendedNanos;
+            final long serviceTime = completedNanos - sentNanos;
+            stats.get(type).record(latency, serviceTime, failed);
+            total.record(latency, serviceTime, failed);
+        }
+
+        void dispatchLag(final long lagNanos) {
+            long current = maxDispatchLagNanos.get();
+            while (lagNanos > current && !maxDispatchLagNanos.compareAndSet(current, lagNanos)) {
+                current = maxDispatchLagNanos.get();
+            }
+        }
+
+        long totalErrors() {
+            return total.errors.get();
+        }
+
+    }
+
+}
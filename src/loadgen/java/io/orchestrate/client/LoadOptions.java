@@ -0,0 +1,149 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * The options of a {@link LoadGenerator} run, parsed from {@code --name=value}
+ * command line arguments.
+ */
+final class LoadOptions {
+
+    /** The usage of the command line options. */
+    static final String USAGE =
+            "Usage: LoadGenerator [--help] [--name=value ...]\n" +
+            "  --target=stub|service  run against an in-process stub server or the service (default: stub)\n" +
+            "  --apiKey=KEY           the API key for the service\n" +
+            "  --host=URL             the host of the service (default: " + ClientBuilder.DEFAULT_HOST + ")\n" +
+            "  --rate=N               the arrival rate in ops/s, 0 for a closed loop (default: 1000)\n" +
+            "  --concurrency=N        the max requests in flight, or threads in a closed loop (default: 64)\n" +
+            "  --duration=S           the seconds to measure for (default: 30)\n" +
+            "  --warmup=S             the seconds to run before measuring (default: 5)\n" +
+            "  --mix=TYPE=W,...       the weights of fetch, store, list, search and event operations\n" +
+            "                         (default: fetch=70,store=20,list=5,search=3,event=2)\n" +
+            "  --keys=N               the number of keys to load and operate on (default: 1000)\n" +
+            "  --valueSize=BYTES      the approximate size of stored values (default: 256)\n" +
+            "  --collection=NAME      the collection to operate on (default: loadgen)\n" +
+            "  --poolSize=N           the client's connection pool size (default: 16)\n" +
+            "  --stubLatency=P50,P99  the stub's log-normal latency in ms (default: none)\n" +
+            "  --stubErrorRate=R      the fraction of stub requests that fail with a 503 (default: 0)\n" +
+            "  --stubBandwidth=B      the stub's bandwidth in bytes/s, 0 for unlimited (default: 0)\n";
+
+    String target = "stub";
+    String apiKey = null;
+    String host = ClientBuilder.DEFAULT_HOST;
+    double rate = 1000;
+    int concurrency = 64;
+    int durationSeconds = 30;
+    int warmupSeconds = 5;
+    OperationMix mix = OperationMix.parse("fetch=70,store=20,list=5,search=3,event=2");
+    int keys = 1000;
+    int valueSize = 256;
+    String collection = "loadgen";
+    int poolSize = 16;
+    long stubMedianMillis = 0;
+    long stubP99Millis = 0;
+    double stubErrorRate = 0;
+    long stubBandwidth = 0;
+
+    /**
+     * Parses the command line {@code args}.
+     *
+     * @param args The command line arguments.
+     * @return The parsed options.
+     * @throws IllegalArgumentException If an argument is invalid.
+     */
+    static LoadOptions parse(final String[] args) {
+        final Map<String, String> values = new HashMap<String, String>();
+        for (final String arg : args) {
+            final int eq = arg.indexOf('=');
+            checkArgument(arg.startsWith("--") && eq > 2, "Invalid argument '" + arg + "'.");
+            values.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+
+        final LoadOptions options = new LoadOptions();
+        for (final Map.Entry<String, String> entry : values.entrySet()) {
+            options.set(entry.getKey(), entry.getValue());
+        }
+
+        checkArgument("stub".equals(options.target) || "service".equals(options.target),
+                "'target' must be 'stub' or 'service'.");
+        checkArgument(!"service".equals(options.target) || options.apiKey != null,
+                "'apiKey' is required for the service.");
+        checkArgument(options.rate >= 0, "'rate' cannot be negative.");
+        checkArgument(options.concurrency > 0, "'concurrency' must be greater than zero.");
+        checkArgument(options.durationSeconds > 0, "'duration' must be greater than zero.");
+        checkArgument(options.warmupSeconds >= 0, "'warmup' cannot be negative.");
+        checkArgument(options.keys > 0, "'keys' must be greater than zero.");
+        checkArgument(options.valueSize >= 0, "'valueSize' cannot be negative.");
+        checkArgument(options.poolSize > 0, "'poolSize' must be greater than zero.");
+        return options;
+    }
+
+    private void set(final String name, final String value) {
+        if ("target".equals(name)) {
+            target = value;
+        } else if ("apiKey".equals(name)) {
+            apiKey = value;
+        } else if ("host".equals(name)) {
+            host = value;
+        } else if ("rate".equals(name)) {
+            rate = Double.parseDouble(value);
+        } else if ("concurrency".equals(name)) {
+            concurrency = Integer.parseInt(value);
+        } else if ("duration".equals(name)) {
+            durationSeconds = Integer.parseInt(value);
+        } else if ("warmup".equals(name)) {
+            warmupSeconds = Integer.parseInt(value);
+        } else if ("mix".equals(name)) {
+            mix = OperationMix.parse(value);
+        } else if ("keys".equals(name)) {
+            keys = Integer.parseInt(value);
+        } else if ("valueSize".equals(name)) {
+            valueSize = Integer.parseInt(value);
+        } else if ("collection".equals(name)) {
+            collection = checkNotNullOrEmpty(value, "collection");
+        } else if ("poolSize".equals(name)) {
+            poolSize = Integer.parseInt(value);
+        } else if ("stubLatency".equals(name)) {
+            final String[] parts = value.split(",");
+            checkArgument(parts.length == 2, "'stubLatency' must be 'p50,p99' in milliseconds.");
+            stubMedianMillis = Long.parseLong(parts[0].trim());
+            stubP99Millis = Long.parseLong(parts[1].trim());
+        } else if ("stubErrorRate".equals(name)) {
+            stubErrorRate = Double.parseDouble(value);
+        } else if ("stubBandwidth".equals(name)) {
+            stubBandwidth = Long.parseLong(value);
+        } else {
+            throw new IllegalArgumentException("Unknown option '" + name + "'.");
+        }
+    }
+
+    @Override
+    public String toString() {
+        final String loop = (rate > 0)
+                ? "open loop at " + rate + " ops/s, " + concurrency + " max in flight"
+                : "closed loop with " + concurrency + " threads";
+        return "target=" + target + ", " + loop + ", mix=" + mix +
+                ", duration=" + durationSeconds + "s, warmup=" + warmupSeconds + "s" +
+                ", keys=" + keys + ", valueSize=" + valueSize + ", poolSize=" + poolSize;
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * The weighted mix of operations a {@link LoadGenerator} executes.
+ *
+ * <p>A mix is written as comma separated {@code type=weight} pairs, e.g.
+ * {@code fetch=70,store=20,list=5,search=3,event=2}, weights don't need to add
+ * up to 100.
+ */
+final class OperationMix {
+
+    /**
+     * The types of operation in a mix.
+     */
+    enum Type {
+        FETCH, STORE, LIST, SEARCH, EVENT
+    }
+
+    /** The types in the mix, with a positive weight. */
+    private final Type[] types;
+    /** The cumulative weights of the types. */
+    private final int[] cumulativeWeights;
+    /** The sum of the weights. */
+    private final int totalWeight;
+
+    private OperationMix(final Map<Type, Integer> weights) {
+        assert (weights != null);
+
+        types = new Type[weights.size()];
+        cumulativeWeights = new int[weights.size()];
+        int total = 0;
+        int i = 0;
+        for (final Map.Entry<Type, Integer> entry : weights.entrySet()) {
+            total += entry.getValue();
+            types[i] = entry.getKey();
+            cumulativeWeights[i] = total;
+            i++;
+        }
+        totalWeight = total;
+    }
+
+    /**
+     * Parses a mix of operations, e.g. {@code fetch=70,store=30}.
+     *
+     * @param mix The mix of operations.
+     * @return The parsed mix.
+     */
+    static OperationMix parse(final String mix) {
+        checkNotNullOrEmpty(mix, "mix");
+
+        final Map<Type, Integer> weights = new EnumMap<Type, Integer>(Type.class);
+        for (final String pair : mix.split(",")) {
+            final int eq = pair.indexOf('=');
+            checkArgument(eq > 0, "Invalid operation mix entry '" + pair + "', expected 'type=weight'.");
+
+            final Type type = Type.valueOf(pair.substring(0, eq).trim().toUpperCase(Locale.ENGLISH));
+            final int weight = Integer.parseInt(pair.substring(eq + 1).trim());
+            checkArgument(weight >= 0, "'weight' cannot be negative.");
+            if (weight > 0) {
+                weights.put(type, weight);
+            }
+        }
+        checkArgument(!weights.isEmpty(), "The operation mix must have a positive weight.");
+        return new OperationMix(weights);
+    }
+
+    /**
+     * Returns the next type of operation to execute.
+     *
+     * @param random The source of randomness to pick with.
+     * @return The type of operation.
+     */
+    Type next(final Random random) {
+        final int value = random.nextInt(totalWeight);
+        for (int i = 0; i < cumulativeWeights.length; i++) {
+            if (value < cumulativeWeights[i]) {
+                return types[i];
+            }
+        }
+        throw new AssertionError();
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(64);
+        int previous = 0;
+        for (int i = 0; i < types.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(types[i].name().toLowerCase(Locale.ENGLISH))
+                    .append('=')
+                    .append(cumulativeWeights[i] - previous);
+            previous = cumulativeWeights[i];
+        }
+        return sb.toString();
+    }
+
+}
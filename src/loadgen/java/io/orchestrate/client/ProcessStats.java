@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * A point in time sample of the resources used by the JVM, to report the CPU
+ * use and allocation rate of a load test.
+ *
+ * <p>The CPU time and allocated bytes are only available on JVMs that provide
+ * the {@code com.sun.management} extensions, allocations are only counted
+ * for threads that are still alive when the sample is taken.
+ */
+final class ProcessStats {
+
+    /** The time of the sample, in nanoseconds. */
+    private final long nanoTime;
+    /** The CPU time used by the process, or {@code -1} if unavailable. */
+    private final long cpuNanos;
+    /** The bytes allocated by live threads, or {@code -1} if unavailable. */
+    private final long allocatedBytes;
+    /** The number of garbage collections. */
+    private final long gcCount;
+    /** The time spent in garbage collection, in milliseconds. */
+    private final long gcMillis;
+
+    private ProcessStats(
+            final long nanoTime, final long cpuNanos, final long allocatedBytes,
+            final long gcCount, final long gcMillis) {
+        this.nanoTime = nanoTime;
+        this.cpuNanos = cpuNanos;
+        this.allocatedBytes = allocatedBytes;
+        this.gcCount = gcCount;
+        this.gcMillis = gcMillis;
+    }
+
+    /**
+     * Samples the resources used by the JVM.
+     *
+     * @return A new sample.
+     */
+    static ProcessStats capture() {
+        long gcCount = 0;
+        long gcMillis = 0;
+        for (final GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            gcCount += Math.max(0, gc.getCollectionCount());
+            gcMillis += Math.max(0, gc.getCollectionTime());
+        }
+        return new ProcessStats(System.nanoTime(), cpuNanos(), allocatedBytes(), gcCount, gcMillis);
+    }
+
+    /**
+     * Returns a summary of the resources used between the {@code start}
+     * sample and this sample.
+     *
+     * @param start The earlier sample.
+     * @return A summary of the resources used.
+     */
+    String since(final ProcessStats start) {
+        final double seconds = (nanoTime - start.nanoTime) / 1e9;
+        final int processors = Runtime.getRuntime().availableProcessors();
+        final StringBuilder sb = new StringBuilder(128);
+        if (cpuNanos >= 0 && start.cpuNanos >= 0) {
+            final double cores = (cpuNanos - start.cpuNanos) / 1e9 / seconds;
+            sb.append(String.format("cpu %.2f cores (%.1f%% of %d)",
+                    cores, 100 * cores / processors, processors));
+        } else {
+            sb.append("cpu n/a");
+        }
+        if (allocatedBytes >= 0 && start.allocatedBytes >= 0) {
+            final double mbPerSecond = (allocatedBytes - start.allocatedBytes) / 1e6 / seconds;
+            sb.append(String.format(", alloc %.1f MB/s", mbPerSecond));
+        } else {
+            sb.append(", alloc n/a");
+        }
+        sb.append(", gc ").append(gcCount - start.gcCount)
+                .append(" collections in ").append(gcMillis - start.gcMillis).append("ms");
+        return sb.toString();
+    }
+
+    private static long cpuNanos() {
+        final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+
+    private static long allocatedBytes() {
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        final com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+        if (!sunThreads.isThreadAllocatedMemorySupported()) {
+            return -1;
+        }
+        if (!sunThreads.isThreadAllocatedMemoryEnabled()) {
+            sunThreads.setThreadAllocatedMemoryEnabled(true);
+        }
+
+        long total = 0;
+        for (final long bytes : sunThreads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (bytes > 0) {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * The flow control, retries and statistics shared by the bulk writers.
+ *
+ * <p>A write takes a permit before it's sent and gives it back once its
+ * result has been delivered to the listener, so no more than the maximum
+ * number of writes are ever outstanding, including writes waiting to be
+ * retried.
+ *
+ * @param <W> The type of write.
+ * @param <R> The type of result of a write.
+ */
+@Slf4j
+abstract class AbstractBulkWriter<W extends AbstractBulkWriter.PendingWrite, R> implements Closeable {
+
+    /** The executor that sends writes and schedules retries. */
+    private final ScheduledExecutorService executor;
+    /** The permits for writes in flight. */
+    private final Semaphore permits;
+    /** The maximum number of retries for a write. */
+    private final int maxRetries;
+    /** The delay before the first retry. */
+    private final long retryBackoffNanos;
+    /** The longest delay between retries. */
+    private final long maxRetryBackoffNanos;
+    /** The number of writes that haven't completed, guarded by this for waits. */
+    private final AtomicInteger outstanding;
+    /** The number of writes submitted. */
+    private final AtomicLong submitted;
+    /** The number of writes that succeeded. */
+    private final Meter succeeded;
+    /** The number of writes that failed. */
+    private final AtomicLong failed;
+    /** The number of retries made. */
+    private final AtomicLong retried;
+    /** The value of the system timer when this writer was created. */
+    private final long startNanos;
+    /** Whether this writer has been closed. */
+    private volatile boolean closed;
+
+    AbstractBulkWriter(
+            final ScheduledExecutorService executor, final int maxInFlight, final int maxRetries,
+            final long retryBackoffNanos, final long maxRetryBackoffNanos) {
+        assert (executor != null);
+        assert (maxInFlight > 0);
+
+        this.executor = executor;
+        this.permits = new Semaphore(maxInFlight);
+        this.maxRetries = maxRetries;
+        this.retryBackoffNanos = retryBackoffNanos;
+        this.maxRetryBackoffNanos = maxRetryBackoffNanos;
+        this.outstanding = new AtomicInteger(0);
+        this.submitted = new AtomicLong(0);
+        this.succeeded = new Meter();
+        this.failed = new AtomicLong(0);
+        this.retried = new AtomicLong(0);
+        this.startNanos = System.nanoTime();
+        this.closed = false;
+    }
+
+    /**
+     * Sends the write to the service.
+     *
+     * @param write The write to send.
+     * @return The future for the result of the write.
+     */
+    abstract OrchestrateFuture<R> execute(final W write);
+
+    /**
+     * Delivers the result of a write that succeeded to the listener.
+     *
+     * @param write The write.
+     * @param result The result of the write.
+     */
+    abstract void onSuccess(final W write, @Nullable final R result);
+
+    /**
+     * Delivers the error of a write that failed to the listener.
+     *
+     * @param write The write.
+     * @param error The error the last attempt failed with.
+     */
+    abstract void onFailure(final W write, final Throwable error);
+
+    /**
+     * Waits until every write made so far has completed.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit The unit of time of the {@code timeout}.
+     * @return {@code true} if the writes completed, {@code false} if the
+     *         timeout elapsed first.
+     * @throws InterruptedException If the thread was interrupted while
+     *         waiting.
+     */
+    public boolean flush(final long timeout, final TimeUnit unit) throws InterruptedException {
+        checkNotNull(unit, "unit");
+
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (outstanding) {
+            while (outstanding.get() > 0) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(outstanding, remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stops accepting writes, waits for the outstanding writes to complete
+     * and stops the writer's threads.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        try {
+            flush(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("The writer has been closed.");
+        }
+    }
+
+    // waits for a permit, the caller must complete the write once it has one
+    void acquire() throws InterruptedException {
+        permits.acquire();
+        outstanding.incrementAndGet();
+        submitted.incrementAndGet();
+    }
+
+    void submit(final W write, final long delayNanos) {
+        final Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                send(write);
+            }
+        };
+        try {
+            if (delayNanos > 0) {
+                executor.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+            } else {
+                executor.execute(task);
+            }
+        } catch (final RejectedExecutionException e) {
+            completed(write, null, e);
+        }
+    }
+
+    void send(final W write) {
+        final OrchestrateFuture<R> future;
+        try {
+            future = execute(write);
+        } catch (final RuntimeException e) {
+            failed(write, e);
+            return;
+        }
+        future.addListener(new OrchestrateFutureListener<R>() {
+            @Override
+            public void onComplete(final OrchestrateFuture<R> future) {
+                try {
+                    completed(write, future.get(), null);
+                } catch (final ExecutionException e) {
+                    failed(write, e.getCause());
+                } catch (final InterruptedException e) {
+                    failed(write, e);
+                }
+            }
+
+            @Override
+            public void onException(final OrchestrateFuture<R> future) {
+                try {
+                    future.get();
+                    failed(write, new IllegalStateException("The write failed without an error."));
+                } catch (final ExecutionException e) {
+                    failed(write, e.getCause());
+                } catch (final InterruptedException e) {
+                    failed(write, e);
+                }
+            }
+        });
+    }
+
+    private void failed(final W write, final Throwable error) {
+        if (write.attempts < maxRetries && !executor.isShutdown() && isTransient(error)) {
+            final long backoff = retryBackoffNanos << Math.min(write.attempts, 20);
+            write.attempts++;
+            retried.incrementAndGet();
+            final boolean overflow = (backoff < 0 || backoff > maxRetryBackoffNanos);
+            submit(write, overflow ? maxRetryBackoffNanos : backoff);
+            return;
+        }
+        completed(write, null, error);
+    }
+
+    private void completed(final W write, @Nullable final R result, @Nullable final Throwable error) {
+        try {
+            if (error == null) {
+                succeeded.mark();
+                onSuccess(write, result);
+            } else {
+                failed.incrementAndGet();
+                onFailure(write, error);
+            }
+        } catch (final RuntimeException e) {
+            log.warn("Bulk writer listener failed.", e);
+        } finally {
+            // count the write as done before its permit lets another one in,
+            // so the outstanding count never exceeds the maximum in flight
+            if (outstanding.decrementAndGet() == 0) {
+                synchronized (outstanding) {
+                    outstanding.notifyAll();
+                }
+            }
+            permits.release();
+        }
+    }
+
+    long getSubmitted() {
+        return submitted.get();
+    }
+
+    long getSucceeded() {
+        return succeeded.getCount();
+    }
+
+    long getFailed() {
+        return failed.get();
+    }
+
+    long getRetried() {
+        return retried.get();
+    }
+
+    int getOutstanding() {
+        return outstanding.get();
+    }
+
+    long getElapsedNanos() {
+        return System.nanoTime() - startNanos;
+    }
+
+    double getOneMinuteRate() {
+        return succeeded.getOneMinuteRate();
+    }
+
+    static boolean isTransient(final Throwable error) {
+        if (error instanceof RequestException) {
+            final int statusCode = ((RequestException) error).getStatusCode();
+            return (statusCode == 429 || statusCode >= 500);
+        }
+        if (error instanceof JsonProcessingException) {
+            return false;
+        }
+        return (error instanceof IOException)
+                || (error instanceof ClientException && error.getCause() instanceof IOException);
+    }
+
+    /**
+     * A write that hasn't completed.
+     */
+    static class PendingWrite {
+
+        /** The number of attempts that have failed. */
+        int attempts;
+
+    }
+
+}
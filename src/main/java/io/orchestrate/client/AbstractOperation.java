@@ -18,8 +18,13 @@ package io.orchestrate.client;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.EqualsAndHashCode;
+import org.glassfish.grizzly.Buffer;
 import org.glassfish.grizzly.http.HttpHeader;
+import org.glassfish.grizzly.http.util.BufferChunk;
+import org.glassfish.grizzly.http.util.DataChunk;
+import org.glassfish.grizzly.http.util.Header;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.*;
 
@@ -33,11 +38,17 @@ import static io.orchestrate.client.Preconditions.*;
 @EqualsAndHashCode
 abstract class AbstractOperation<T> {
 
+    /** The suffix added to the ETag of a compressed response. */
+    private static final String GZIP_SUFFIX = "-gzip";
+
     /** The list of listeners for the operation's future. */
     private final Set<OrchestrateFutureListener<T>> listeners;
+    /** The API key to make this operation with, may be {@code null}. */
+    private String apiKey;
 
     AbstractOperation() {
         listeners = new LinkedHashSet<OrchestrateFutureListener<T>>();
+        apiKey = null;
     }
 
     /**
@@ -54,6 +65,13 @@ abstract class AbstractOperation<T> {
             final int status, final HttpHeader httpHeader, final String json, final JacksonMapper mapper)
             throws IOException;
 
+    /**
+     * Returns the collection this operation is made on.
+     *
+     * @return The collection for this operation.
+     */
+    abstract String getCollection();
+
     /**
      * Add the specified {@code listener} to the future for this operation.
      *
@@ -121,6 +139,100 @@ abstract class AbstractOperation<T> {
         return this;
     }
 
+    /**
+     * Make this operation with the specified {@code apiKey} instead of the API
+     * key the client was built with.
+     *
+     * <p>This allows a single client (and its connections) to be shared
+     * between many accounts on the Orchestrate.io service.
+     *
+     * @param apiKey An API key for the Orchestrate.io service.
+     * @return This operation.
+     */
+    public final AbstractOperation<T> withApiKey(final String apiKey) {
+        this.apiKey = checkNotNullOrEmpty(apiKey, "apiKey");
+        return this;
+    }
+
+    /**
+     * Returns the API key for this operation.
+     *
+     * @return The API key for this operation, may be {@code null}.
+     * @see #hasApiKey()
+     */
+    @Nullable
+    public final String getApiKey() {
+        return apiKey;
+    }
+
+    /**
+     * Returns whether an API key was supplied to this operation.
+     *
+     * @return {@code true} if an API key was supplied to this operation.
+     */
+    public final boolean hasApiKey() {
+        return (apiKey != null);
+    }
+
+    /**
+     * Returns the ref (version) from the ETag header of the response.
+     *
+     * <p>The surrounding quotes and any "-gzip" suffix are trimmed from the
+     * value by position, the header bytes are only decoded for the ref itself.
+     *
+     * @param httpHeader The HTTP header from the response.
+     * @return The ref from the ETag header, or {@code null} if the header is
+     *         missing.
+     */
+    @Nullable
+    static String refFromETag(final HttpHeader httpHeader) {
+        final DataChunk etag = httpHeader.getHeaders().getValue(Header.ETag);
+        if (etag == null || etag.isNull()) {
+            return null;
+        }
+
+        if (etag.getType() == DataChunk.Type.Buffer) {
+            final BufferChunk chunk = etag.getBufferChunk();
+            final Buffer buffer = chunk.getBuffer();
+            final int offset = chunk.getStart();
+
+            int start = 0;
+            int end = chunk.getLength();
+            if (start < end && buffer.get(offset + start) == '"') {
+                start++;
+            }
+            if (start < end && buffer.get(offset + end - 1) == '"') {
+                end--;
+            }
+            if (end - start >= GZIP_SUFFIX.length()) {
+                final int suffixStart = end - GZIP_SUFFIX.length();
+                boolean hasSuffix = true;
+                for (int i = 0; i < GZIP_SUFFIX.length() && hasSuffix; i++) {
+                    hasSuffix = (buffer.get(offset + suffixStart + i) == GZIP_SUFFIX.charAt(i));
+                }
+                if (hasSuffix) {
+                    end = suffixStart;
+                }
+            }
+            return chunk.toString(start, end);
+        }
+
+        // the header has already been decoded (or was set by hand)
+        final String value = etag.toString();
+        int start = 0;
+        int end = value.length();
+        if (start < end && value.charAt(start) == '"') {
+            start++;
+        }
+        if (start < end && value.charAt(end - 1) == '"') {
+            end--;
+        }
+        if (end - start >= GZIP_SUFFIX.length() && value.startsWith(GZIP_SUFFIX, end - GZIP_SUFFIX.length())) {
+            end -= GZIP_SUFFIX.length();
+        }
+        return value.substring(start, end);
+    }
+
     @SuppressWarnings("unchecked")
     static <T> KvObject<T> jsonToKvObject(
             final ObjectMapper objectMapper, final JsonNode jsonNode, final Class<T> clazz)
@@ -0,0 +1,611 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import lombok.EqualsAndHashCode;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * Writes lists of relations between KV objects, with flow control.
+ *
+ * <p>Each relation is sent as soon as it's written, and {@link
+ * #write(Edge)} blocks the caller while {@link Builder#maxInFlight(int)}
+ * relations are outstanding, so the requests share the client's pooled
+ * connections without overwhelming the service. Relations the writer has
+ * recently stored or is storing are skipped, so edge lists with repeats, e.g.
+ * from both ends of a relation, don't send the same request twice. Writes
+ * that fail with a transient error, a {@code 429} or {@code 5xx} response or
+ * an I/O error, are retried with exponential backoff.
+ *
+ * <p>The result of each relation is delivered to the {@link Listener} from
+ * the client's I/O threads.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * BulkRelationWriter writer = BulkRelationWriter.builder(client)
+ *         .maxInFlight(128)
+ *         .build();
+ * try {
+ *     for (Friendship f : friendships) {
+ *         writer.write("users", f.getUser(), "friend", "users", f.getFriend());
+ *     }
+ * } finally {
+ *     writer.close();  // waits for the outstanding writes
+ * }
+ * }
+ * </pre>
+ */
+@Slf4j
+public final class BulkRelationWriter extends AbstractBulkWriter<BulkRelationWriter.EdgeWrite, Boolean> {
+
+    /**
+     * Receives the results of the relations written by a {@code
+     * BulkRelationWriter}.
+     */
+    public interface Listener {
+
+        /**
+         * Invoked when a relation has been stored.
+         *
+         * @param edge The relation.
+         */
+        void onSuccess(final Edge edge);
+
+        /**
+         * Invoked when a relation couldn't be stored, after any retries.
+         *
+         * @param edge The relation.
+         * @param error The error the last attempt failed with.
+         */
+        void onFailure(final Edge edge, final Throwable error);
+
+    }
+
+    /** The listener that logs failed writes. */
+    private static final Listener LOGGING_LISTENER = new Listener() {
+        @Override
+        public void onSuccess(final Edge edge) {
+        }
+
+        @Override
+        public void onFailure(final Edge edge, final Throwable error) {
+            log.warn("Failed to write relation '{}'.", edge, error);
+        }
+    };
+
+    /** The builder for this writer. */
+    private final Builder builder;
+    /** The relations recently stored or being stored, if writes are de-duplicated. */
+    private final Set<Edge> written;
+    /** The number of writes skipped as duplicates. */
+    private final AtomicLong duplicates;
+
+    private BulkRelationWriter(final Builder builder) {
+        super(Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "OrchestrateBulkRelationWriter-retry");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), builder.maxInFlight, builder.maxRetries, builder.retryBackoffNanos, builder.maxRetryBackoffNanos);
+
+        this.builder = builder;
+        this.written = (builder.deduplicate)
+                ? Collections.synchronizedSet(Collections.newSetFromMap(
+                        new LinkedHashMap<Edge, Boolean>(16, 0.75f, true) {
+                            @Override
+                            protected boolean removeEldestEntry(final Map.Entry<Edge, Boolean> eldest) {
+                                // forget the least recently written relation
+                                return size() > builder.deduplicateWindow;
+                            }
+                        }))
+                : null;
+        this.duplicates = new AtomicLong(0);
+    }
+
+    /**
+     * Writes a relation of the {@code kind} from the {@code key} in the
+     * {@code collection} to the {@code toKey} in the {@code toCollection},
+     * waiting while the maximum number of writes are in flight.
+     *
+     * @param collection The collection containing the source key.
+     * @param key The source key to add the relation to.
+     * @param kind The kind of relation to write.
+     * @param toCollection The collection containing the destination key.
+     * @param toKey The destination key to add the relation to.
+     * @return {@code true} if the relation was sent, {@code false} if it was
+     *         skipped as a duplicate.
+     * @throws InterruptedException If the thread was interrupted while
+     *         waiting for a write to complete.
+     */
+    public boolean write(
+            final String collection, final String key, final String kind,
+            final String toCollection, final String toKey) throws InterruptedException {
+        return write(new Edge(collection, key, kind, toCollection, toKey));
+    }
+
+    /**
+     * Writes the relation, waiting while the maximum number of writes are in
+     * flight.
+     *
+     * @param edge The relation to write.
+     * @return {@code true} if the relation was sent, {@code false} if it was
+     *         skipped as a duplicate.
+     * @throws InterruptedException If the thread was interrupted while
+     *         waiting for a write to complete.
+     */
+    public boolean write(final Edge edge) throws InterruptedException {
+        checkNotNull(edge, "edge");
+        checkOpen();
+
+        if (written != null && !written.add(edge)) {
+            duplicates.incrementAndGet();
+            return false;
+        }
+        try {
+            acquire();
+        } catch (final InterruptedException e) {
+            if (written != null) {
+                written.remove(edge);
+            }
+            throw e;
+        }
+        // relations have no body, so the request is sent without a worker
+        send(new EdgeWrite(edge));
+        return true;
+    }
+
+    /**
+     * Writes the relations in the {@code edges} list, waiting while the
+     * maximum number of writes are in flight.
+     *
+     * @param edges The relations to write.
+     * @return The number of relations sent, not skipped as duplicates.
+     * @throws InterruptedException If the thread was interrupted while
+     *         waiting for a write to complete.
+     */
+    public int writeAll(final Iterable<Edge> edges) throws InterruptedException {
+        checkNotNull(edges, "edges");
+
+        int sent = 0;
+        for (final Edge edge : edges) {
+            if (write(edge)) {
+                sent++;
+            }
+        }
+        return sent;
+    }
+
+    /**
+     * Returns the statistics for the writes made so far.
+     *
+     * @return A snapshot of the writer's statistics.
+     */
+    public Stats getStats() {
+        return new Stats(
+                getSubmitted(), duplicates.get(), getSucceeded(), getFailed(), getRetried(),
+                getOutstanding(), getElapsedNanos(), getOneMinuteRate());
+    }
+
+    @Override
+    OrchestrateFuture<Boolean> execute(final EdgeWrite write) {
+        final Edge edge = write.edge;
+        return builder.client.execute(new RelationStoreOperation(
+                edge.collection, edge.key, edge.kind, edge.toCollection, edge.toKey));
+    }
+
+    @Override
+    void onSuccess(final EdgeWrite write, @Nullable final Boolean result) {
+        builder.listener.onSuccess(write.edge);
+    }
+
+    @Override
+    void onFailure(final EdgeWrite write, final Throwable error) {
+        // a failed relation can be written again
+        if (written != null) {
+            written.remove(write.edge);
+        }
+        builder.listener.onFailure(write.edge, error);
+    }
+
+    /**
+     * A new builder to write relations with the {@code client}.
+     *
+     * @param client The client to write with.
+     * @return A new {@code Builder} with default settings.
+     */
+    public static Builder builder(final Client client) {
+        return new Builder(client);
+    }
+
+    /**
+     * A relation of a kind from one KV object to another.
+     */
+    @EqualsAndHashCode
+    public static final class Edge {
+
+        /** The collection containing the source key. */
+        private final String collection;
+        /** The source key of the relation. */
+        private final String key;
+        /** The kind of relation. */
+        private final String kind;
+        /** The collection containing the destination key. */
+        private final String toCollection;
+        /** The destination key of the relation. */
+        private final String toKey;
+
+        /**
+         * Create a relation of the {@code kind} from the {@code key} in the
+         * {@code collection} to the {@code toKey} in the {@code toCollection}.
+         *
+         * @param collection The collection containing the source key.
+         * @param key The source key of the relation.
+         * @param kind The kind of relation.
+         * @param toCollection The collection containing the destination key.
+         * @param toKey The destination key of the relation.
+         */
+        public Edge(
+                final String collection, final String key, final String kind,
+                final String toCollection, final String toKey) {
+            this.collection = checkNotNullOrEmpty(collection, "collection");
+            this.key = checkNotNullOrEmpty(key, "key");
+            this.kind = checkNotNullOrEmpty(kind, "kind");
+            this.toCollection = checkNotNullOrEmpty(toCollection, "toCollection");
+            this.toKey = checkNotNullOrEmpty(toKey, "toKey");
+        }
+
+        /**
+         * Returns the collection containing the source key.
+         *
+         * @return The collection of the source key.
+         */
+        public String getCollection() {
+            return collection;
+        }
+
+        /**
+         * Returns the source key of the relation.
+         *
+         * @return The source key.
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Returns the kind of relation.
+         *
+         * @return The kind of relation.
+         */
+        public String getKind() {
+            return kind;
+        }
+
+        /**
+         * Returns the collection containing the destination key.
+         *
+         * @return The collection of the destination key.
+         */
+        public String getToCollection() {
+            return toCollection;
+        }
+
+        /**
+         * Returns the destination key of the relation.
+         *
+         * @return The destination key.
+         */
+        public String getToKey() {
+            return toKey;
+        }
+
+        @Override
+        public String toString() {
+            return collection + "/" + key + " -" + kind + "-> " + toCollection + "/" + toKey;
+        }
+
+    }
+
+    /**
+     * A write of a relation.
+     */
+    static final class EdgeWrite extends AbstractBulkWriter.PendingWrite {
+
+        /** The relation to write. */
+        final Edge edge;
+
+        EdgeWrite(final Edge edge) {
+            this.edge = edge;
+        }
+
+    }
+
+    /**
+     * A point in time copy of the statistics of a {@link BulkRelationWriter}.
+     */
+    public static final class Stats {
+
+        /** The number of writes submitted. */
+        private final long submitted;
+        /** The number of writes skipped as duplicates. */
+        private final long duplicates;
+        /** The number of writes that succeeded. */
+        private final long succeeded;
+        /** The number of writes that failed. */
+        private final long failed;
+        /** The number of retries made. */
+        private final long retried;
+        /** The number of writes that haven't completed. */
+        private final int outstanding;
+        /** The time since the writer was created, in nanoseconds. */
+        private final long elapsedNanos;
+        /** The one minute moving average of successful writes per second. */
+        private final double oneMinuteRate;
+
+        private Stats(final long submitted, final long duplicates, final long succeeded, final long failed,
+                final long retried, final int outstanding, final long elapsedNanos, final double oneMinuteRate) {
+            this.submitted = submitted;
+            this.duplicates = duplicates;
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.retried = retried;
+            this.outstanding = outstanding;
+            this.elapsedNanos = elapsedNanos;
+            this.oneMinuteRate = oneMinuteRate;
+        }
+
+        /**
+         * Returns the number of relations sent by the writer.
+         *
+         * @return The number of writes submitted.
+         */
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        /**
+         * Returns the number of relations skipped because the writer had
+         * already stored them or was storing them.
+         *
+         * @return The number of duplicate relations.
+         */
+        public long getDuplicates() {
+            return duplicates;
+        }
+
+        /**
+         * Returns the number of writes that succeeded.
+         *
+         * @return The number of writes that succeeded.
+         */
+        public long getSucceeded() {
+            return succeeded;
+        }
+
+        /**
+         * Returns the number of writes that failed, after any retries.
+         *
+         * @return The number of writes that failed.
+         */
+        public long getFailed() {
+            return failed;
+        }
+
+        /**
+         * Returns the number of retries made for transient errors.
+         *
+         * @return The number of retries.
+         */
+        public long getRetried() {
+            return retried;
+        }
+
+        /**
+         * Returns the number of writes that haven't completed.
+         *
+         * @return The number of outstanding writes.
+         */
+        public int getOutstanding() {
+            return outstanding;
+        }
+
+        /**
+         * Returns the mean rate of successful writes since the writer was
+         * created.
+         *
+         * @return The rate, in relations per second.
+         */
+        public double getMeanRate() {
+            if (elapsedNanos <= 0) {
+                return 0;
+            }
+            return succeeded / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+
+        /**
+         * Returns the one minute moving average of the rate of successful
+         * writes.
+         *
+         * @return The rate, in relations per second.
+         */
+        public double getOneMinuteRate() {
+            return oneMinuteRate;
+        }
+
+        @Override
+        public String toString() {
+            return "submitted=" + submitted +
+                    ", duplicates=" + duplicates +
+                    ", succeeded=" + succeeded +
+                    ", failed=" + failed +
+                    ", retried=" + retried +
+                    ", outstanding=" + outstanding +
+                    ", meanRate=" + (long) getMeanRate() + "/s";
+        }
+
+    }
+
+    /**
+     * Builder used to create {@code BulkRelationWriter} instances.
+     */
+    public static final class Builder {
+
+        /** The client to write with. */
+        private final Client client;
+        /** The maximum number of writes in flight. */
+        private int maxInFlight;
+        /** Whether to skip relations that have already been written. */
+        private boolean deduplicate;
+        /** The number of recently written relations to skip duplicates of. */
+        private int deduplicateWindow;
+        /** The maximum number of retries for a write. */
+        private int maxRetries;
+        /** The delay before the first retry. */
+        private long retryBackoffNanos;
+        /** The longest delay between retries. */
+        private long maxRetryBackoffNanos;
+        /** The listener for the results of writes. */
+        private Listener listener;
+
+        private Builder(final Client client) {
+            this.client = checkNotNull(client, "client");
+            this.maxInFlight = 64;
+            this.deduplicate = true;
+            this.deduplicateWindow = 65536;
+            this.maxRetries = 3;
+            this.retryBackoffNanos = TimeUnit.MILLISECONDS.toNanos(100);
+            this.maxRetryBackoffNanos = TimeUnit.SECONDS.toNanos(10);
+            this.listener = LOGGING_LISTENER;
+        }
+
+        /**
+         * The maximum number of relations that have been submitted but not
+         * completed, including writes waiting to be retried. Defaults to
+         * {@code 64}.
+         *
+         * @param maxInFlight The maximum number of outstanding writes.
+         * @return This builder.
+         */
+        public Builder maxInFlight(final int maxInFlight) {
+            checkArgument(maxInFlight > 0, "'maxInFlight' must be greater than zero.");
+
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Whether to skip relations the writer has recently stored or is
+         * storing, defaults to {@code true}. Turn it off for edge lists known
+         * to have no repeats.
+         *
+         * @param deduplicate If {@code true} skip duplicate relations.
+         * @return This builder.
+         * @see #deduplicateWindow(int)
+         */
+        public Builder deduplicate(final boolean deduplicate) {
+            this.deduplicate = deduplicate;
+            return this;
+        }
+
+        /**
+         * The number of recently written relations the writer remembers to
+         * skip duplicates, defaults to {@code 65536}. A relation repeated
+         * after this many others is written again, which is harmless since
+         * storing a relation is idempotent, so the window bounds the memory
+         * of long-running writers at the cost of some repeated requests.
+         *
+         * @param deduplicateWindow The number of relations to remember.
+         * @return This builder.
+         */
+        public Builder deduplicateWindow(final int deduplicateWindow) {
+            checkArgument(deduplicateWindow > 0, "'deduplicateWindow' must be greater than zero.");
+
+            this.deduplicateWindow = deduplicateWindow;
+            return this;
+        }
+
+        /**
+         * The number of times to retry a write that failed with a transient
+         * error, defaults to {@code 3}.
+         *
+         * @param maxRetries The maximum number of retries.
+         * @return This builder.
+         */
+        public Builder maxRetries(final int maxRetries) {
+            checkArgument(maxRetries >= 0, "'maxRetries' cannot be negative.");
+
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * The delay before the first retry of a write, doubled for each
+         * following retry up to {@code maxBackoff}. Defaults to {@code 100}
+         * milliseconds, up to {@code 10} seconds.
+         *
+         * @param backoff The delay before the first retry.
+         * @param maxBackoff The longest delay between retries.
+         * @param unit The unit of time of the delays.
+         * @return This builder.
+         */
+        public Builder retryBackoff(final long backoff, final long maxBackoff, final TimeUnit unit) {
+            checkArgument(backoff >= 0, "'backoff' cannot be negative.");
+            checkArgument(maxBackoff >= backoff, "'maxBackoff' cannot be less than 'backoff'.");
+            checkNotNull(unit, "unit");
+
+            this.retryBackoffNanos = unit.toNanos(backoff);
+            this.maxRetryBackoffNanos = unit.toNanos(maxBackoff);
+            return this;
+        }
+
+        /**
+         * The listener for the results of writes, defaults to logging failed
+         * writes.
+         *
+         * @param listener The listener for the results of writes.
+         * @return This builder.
+         */
+        public Builder listener(@Nullable final Listener listener) {
+            this.listener = (listener == null) ? LOGGING_LISTENER : listener;
+            return this;
+        }
+
+        /**
+         * Creates a new {@code BulkRelationWriter} and starts its retry
+         * thread.
+         *
+         * @return A new {@link BulkRelationWriter}.
+         */
+        public BulkRelationWriter build() {
+            return new BulkRelationWriter(this);
+        }
+
+    }
+
+}
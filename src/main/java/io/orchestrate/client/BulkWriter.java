@@ -0,0 +1,423 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * Writes a stream of KV objects to a collection, with flow control.
+ *
+ * <p>Each write is serialized and sent from a pool of worker threads, and
+ * {@link #write(String, Object)} blocks the caller while {@link
+ * Builder#maxInFlight(int)} writes are outstanding, so a bulk load can't
+ * overwhelm the service or buffer an unbounded number of objects. Writes that
+ * fail with a transient error, a {@code 429} or {@code 5xx} response or an
+ * I/O error, are retried with exponential backoff.
+ *
+ * <p>The result of each write is delivered to the {@link Listener} from the
+ * client's I/O threads.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * BulkWriter writer = BulkWriter.builder(client, "myCollection")
+ *         .maxInFlight(128)
+ *         .listener(new BulkWriter.Listener() {
+ *             public void onSuccess(String key, KvMetadata metadata) {}
+ *
+ *             public void onFailure(String key, Throwable error) {
+ *                 // log the failed key
+ *             }
+ *         })
+ *         .build();
+ * try {
+ *     for (MyObject obj : objects) {
+ *         writer.write(obj.getId(), obj);
+ *     }
+ * } finally {
+ *     writer.close();  // waits for the outstanding writes
+ * }
+ * }
+ * </pre>
+ */
+@Slf4j
+public final class BulkWriter extends AbstractBulkWriter<BulkWriter.KvWrite, KvMetadata> {
+
+    /**
+     * Receives the results of the writes made by a {@code BulkWriter}.
+     */
+    public interface Listener {
+
+        /**
+         * Invoked when an object has been written.
+         *
+         * @param key The key of the object.
+         * @param metadata The metadata about the written object.
+         */
+        void onSuccess(final String key, final KvMetadata metadata);
+
+        /**
+         * Invoked when an object couldn't be written, after any retries.
+         *
+         * @param key The key of the object.
+         * @param error The error the last attempt failed with.
+         */
+        void onFailure(final String key, final Throwable error);
+
+    }
+
+    /** The listener that logs failed writes. */
+    private static final Listener LOGGING_LISTENER = new Listener() {
+        @Override
+        public void onSuccess(final String key, final KvMetadata metadata) {
+        }
+
+        @Override
+        public void onFailure(final String key, final Throwable error) {
+            log.warn("Failed to write key '{}'.", key, error);
+        }
+    };
+
+    /** The builder for this writer. */
+    private final Builder builder;
+
+    private BulkWriter(final Builder builder) {
+        super(Executors.newScheduledThreadPool(builder.workerThreads, new ThreadFactory() {
+            private final AtomicInteger threadIds = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "OrchestrateBulkWriter-" + threadIds.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }), builder.maxInFlight, builder.maxRetries, builder.retryBackoffNanos, builder.maxRetryBackoffNanos);
+
+        this.builder = builder;
+    }
+
+    /**
+     * Writes the {@code value} to the {@code key}, waiting while the maximum
+     * number of writes are in flight.
+     *
+     * @param key The key to write the value to.
+     * @param value The object to write.
+     * @throws InterruptedException If the thread was interrupted while
+     *         waiting for a write to complete.
+     */
+    public void write(final String key, final Object value) throws InterruptedException {
+        checkNotNullOrEmpty(key, "key");
+        checkNotNull(value, "value");
+        checkOpen();
+
+        acquire();
+        submit(new KvWrite(key, value), 0);
+    }
+
+    /**
+     * Returns the statistics for the writes made so far.
+     *
+     * @return A snapshot of the writer's statistics.
+     */
+    public Stats getStats() {
+        return new Stats(
+                getSubmitted(), getSucceeded(), getFailed(), getRetried(), getOutstanding(),
+                getElapsedNanos(), getOneMinuteRate());
+    }
+
+    // called from a worker thread, the client serializes the value
+    @Override
+    OrchestrateFuture<KvMetadata> execute(final KvWrite write) {
+        return builder.client.execute(new KvStoreOperation(builder.collection, write.key, write.value));
+    }
+
+    @Override
+    void onSuccess(final KvWrite write, @Nullable final KvMetadata metadata) {
+        builder.listener.onSuccess(write.key, metadata);
+    }
+
+    @Override
+    void onFailure(final KvWrite write, final Throwable error) {
+        builder.listener.onFailure(write.key, error);
+    }
+
+    /**
+     * A new builder to write to the {@code collection}.
+     *
+     * @param client The client to write with.
+     * @param collection The collection to write to.
+     * @return A new {@code Builder} with default settings.
+     */
+    public static Builder builder(final Client client, final String collection) {
+        return new Builder(client, collection);
+    }
+
+    /**
+     * A write of an object to a key.
+     */
+    static final class KvWrite extends AbstractBulkWriter.PendingWrite {
+
+        /** The key to write to. */
+        final String key;
+        /** The object to write. */
+        final Object value;
+
+        KvWrite(final String key, final Object value) {
+            this.key = key;
+            this.value = value;
+        }
+
+    }
+
+    /**
+     * A point in time copy of the statistics of a {@link BulkWriter}.
+     */
+    public static final class Stats {
+
+        /** The number of writes submitted. */
+        private final long submitted;
+        /** The number of writes that succeeded. */
+        private final long succeeded;
+        /** The number of writes that failed. */
+        private final long failed;
+        /** The number of retries made. */
+        private final long retried;
+        /** The number of writes that haven't completed. */
+        private final int outstanding;
+        /** The time since the writer was created, in nanoseconds. */
+        private final long elapsedNanos;
+        /** The one minute moving average of successful writes per second. */
+        private final double oneMinuteRate;
+
+        private Stats(final long submitted, final long succeeded, final long failed, final long retried,
+                final int outstanding, final long elapsedNanos, final double oneMinuteRate) {
+            this.submitted = submitted;
+            this.succeeded = succeeded;
+            this.failed = failed;
+            this.retried = retried;
+            this.outstanding = outstanding;
+            this.elapsedNanos = elapsedNanos;
+            this.oneMinuteRate = oneMinuteRate;
+        }
+
+        /**
+         * Returns the number of writes submitted to the writer.
+         *
+         * @return The number of writes submitted.
+         */
+        public long getSubmitted() {
+            return submitted;
+        }
+
+        /**
+         * Returns the number of writes that succeeded.
+         *
+         * @return The number of writes that succeeded.
+         */
+        public long getSucceeded() {
+            return succeeded;
+        }
+
+        /**
+         * Returns the number of writes that failed, after any retries.
+         *
+         * @return The number of writes that failed.
+         */
+        public long getFailed() {
+            return failed;
+        }
+
+        /**
+         * Returns the number of retries made for transient errors.
+         *
+         * @return The number of retries.
+         */
+        public long getRetried() {
+            return retried;
+        }
+
+        /**
+         * Returns the number of writes that haven't completed.
+         *
+         * @return The number of outstanding writes.
+         */
+        public int getOutstanding() {
+            return outstanding;
+        }
+
+        /**
+         * Returns the mean rate of successful writes since the writer was
+         * created.
+         *
+         * @return The rate, in writes per second.
+         */
+        public double getMeanRate() {
+            if (elapsedNanos <= 0) {
+                return 0;
+            }
+            return succeeded / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+
+        /**
+         * Returns the one minute moving average of the rate of successful
+         * writes.
+         *
+         * @return The rate, in writes per second.
+         */
+        public double getOneMinuteRate() {
+            return oneMinuteRate;
+        }
+
+        @Override
+        public String toString() {
+            return "submitted=" + submitted +
+                    ", succeeded=" + succeeded +
+                    ", failed=" + failed +
+                    ", retried=" + retried +
+                    ", outstanding=" + outstanding +
+                    ", meanRate=" + (long) getMeanRate() + "/s";
+        }
+
+    }
+
+    /**
+     * Builder used to create {@code BulkWriter} instances.
+     */
+    public static final class Builder {
+
+        /** The client to write with. */
+        private final Client client;
+        /** The collection to write to. */
+        private final String collection;
+        /** The maximum number of writes in flight. */
+        private int maxInFlight;
+        /** The number of worker threads. */
+        private int workerThreads;
+        /** The maximum number of retries for a write. */
+        private int maxRetries;
+        /** The delay before the first retry. */
+        private long retryBackoffNanos;
+        /** The longest delay between retries. */
+        private long maxRetryBackoffNanos;
+        /** The listener for the results of writes. */
+        private Listener listener;
+
+        private Builder(final Client client, final String collection) {
+            this.client = checkNotNull(client, "client");
+            this.collection = checkNotNullOrEmpty(collection, "collection");
+            this.maxInFlight = 64;
+            this.workerThreads = Runtime.getRuntime().availableProcessors();
+            this.maxRetries = 3;
+            this.retryBackoffNanos = TimeUnit.MILLISECONDS.toNanos(100);
+            this.maxRetryBackoffNanos = TimeUnit.SECONDS.toNanos(10);
+            this.listener = LOGGING_LISTENER;
+        }
+
+        /**
+         * The maximum number of writes that have been submitted but not
+         * completed, including writes waiting to be retried. Defaults to
+         * {@code 64}.
+         *
+         * @param maxInFlight The maximum number of outstanding writes.
+         * @return This builder.
+         */
+        public Builder maxInFlight(final int maxInFlight) {
+            checkArgument(maxInFlight > 0, "'maxInFlight' must be greater than zero.");
+
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * The number of threads that serialize and send writes, defaults to
+         * the number of processors.
+         *
+         * @param workerThreads The number of worker threads.
+         * @return This builder.
+         */
+        public Builder workerThreads(final int workerThreads) {
+            checkArgument(workerThreads > 0, "'workerThreads' must be greater than zero.");
+
+            this.workerThreads = workerThreads;
+            return this;
+        }
+
+        /**
+         * The number of times to retry a write that failed with a transient
+         * error, defaults to {@code 3}.
+         *
+         * @param maxRetries The maximum number of retries.
+         * @return This builder.
+         */
+        public Builder maxRetries(final int maxRetries) {
+            checkArgument(maxRetries >= 0, "'maxRetries' cannot be negative.");
+
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * The delay before the first retry of a write, doubled for each
+         * following retry up to {@code maxBackoff}. Defaults to {@code 100}
+         * milliseconds, up to {@code 10} seconds.
+         *
+         * @param backoff The delay before the first retry.
+         * @param maxBackoff The longest delay between retries.
+         * @param unit The unit of time of the delays.
+         * @return This builder.
+         */
+        public Builder retryBackoff(final long backoff, final long maxBackoff, final TimeUnit unit) {
+            checkArgument(backoff >= 0, "'backoff' cannot be negative.");
+            checkArgument(maxBackoff >= backoff, "'maxBackoff' cannot be less than 'backoff'.");
+            checkNotNull(unit, "unit");
+
+            this.retryBackoffNanos = unit.toNanos(backoff);
+            this.maxRetryBackoffNanos = unit.toNanos(maxBackoff);
+            return this;
+        }
+
+        /**
+         * The listener for the results of writes, defaults to logging failed
+         * writes.
+         *
+         * @param listener The listener for the results of writes.
+         * @return This builder.
+         */
+        public Builder listener(@Nullable final Listener listener) {
+            this.listener = (listener == null) ? LOGGING_LISTENER : listener;
+            return this;
+        }
+
+        /**
+         * Creates a new {@code BulkWriter} and starts its worker threads.
+         *
+         * @return A new {@link BulkWriter}.
+         */
+        public BulkWriter build() {
+            return new BulkWriter(this);
+        }
+
+    }
+
+}
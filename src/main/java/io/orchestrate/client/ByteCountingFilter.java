@@ -0,0 +1,58 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.filterchain.BaseFilter;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+
+import java.io.IOException;
+
+/**
+ * A filter to count the bytes read from and written to the network, it sits
+ * next to the transport so that the counts include TLS and HTTP framing.
+ */
+final class ByteCountingFilter extends BaseFilter {
+
+    /** The metrics to record the byte counts in. */
+    private final ClientMetrics metrics;
+
+    ByteCountingFilter(final ClientMetrics metrics) {
+        assert (metrics != null);
+
+        this.metrics = metrics;
+    }
+
+    @Override
+    public NextAction handleRead(final FilterChainContext ctx) throws IOException {
+        final Object message = ctx.getMessage();
+        if (message instanceof Buffer) {
+            metrics.recordBytesRead(((Buffer) message).remaining());
+        }
+        return ctx.getInvokeAction();
+    }
+
+    @Override
+    public NextAction handleWrite(final FilterChainContext ctx) throws IOException {
+        final Object message = ctx.getMessage();
+        if (message instanceof Buffer) {
+            metrics.recordBytesWritten(((Buffer) message).remaining());
+        }
+        return ctx.getInvokeAction();
+    }
+
+}
@@ -16,6 +16,8 @@
 package io.orchestrate.client;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Future;
 
 /**
  * A client used to read and write data to the Orchestrate.io service.
@@ -82,6 +84,16 @@ public interface Client {
      */
     public <T> OrchestrateFuture<KvObject<T>> execute(final KvFetchOperation<T> kvFetchOp);
 
+    /**
+     * Executes the specified {@code kvMultiFetchOp} on the Orchestrate.io
+     * service.
+     *
+     * @param kvMultiFetchOp The KV multi fetch operation to execute.
+     * @param <T> The type to deserialize the results to.
+     * @return The future for the objects found, by key.
+     */
+    public <T> Future<Map<String, KvObject<T>>> execute(final KvMultiFetchOperation<T> kvMultiFetchOp);
+
     /**
      * Executes the specified {@code kvListOp} on the Orchestrate.io service.
      *
@@ -108,6 +120,15 @@ public interface Client {
      */
     public OrchestrateFuture<Iterable<KvObject<String>>> execute(final RelationFetchOperation relationFetchOp);
 
+    /**
+     * Executes the specified {@code relationFetchOp} on the Orchestrate.io
+     * service.
+     *
+     * @param relationFetchOp The typed relation fetch operation to execute.
+     * @return The future for the response from this operation.
+     */
+    public OrchestrateFuture<RelatedObjects> execute(final TypedRelationFetchOperation relationFetchOp);
+
     /**
      * Executes the specified {@code relationStoreOp} on the Orchestrate.io
      * service.
@@ -135,6 +156,13 @@ public interface Client {
      */
     public <T> OrchestrateFuture<SearchResults<T>> execute(final SearchOperation<T> searchOp);
 
+    /**
+     * Returns the metrics recorded for the operations executed by this client.
+     *
+     * @return The metrics for this client.
+     */
+    public ClientMetrics getMetrics();
+
     /**
      * Stops the thread pool and closes all connections in use by all the
      * operations.
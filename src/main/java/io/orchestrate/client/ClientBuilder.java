@@ -19,7 +19,9 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.AccessLevel;
 import lombok.Getter;
 
+import javax.annotation.Nullable;
 import java.net.URI;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Builder used to create {@code Client} instances.
@@ -33,6 +35,14 @@ import java.net.URI;
  *         .version(Client.V0) // optional
  *         .poolSize(Runtime.getRuntime().availableProcessors()) // optional
  *         .maxPoolSize(15)    // optional
+ *         .maxIdleConnections(10)   // optional
+ *         .apiKeyCacheSize(1024)    // optional
+ *         .tracer(RequestTracer.builder().sampleRate(0.01).build()) // optional
+ *         .eventCache(EventCache.builder().maxEvents(100000).build()) // optional
+ *         .relationCache(RelationCache.builder().maxEdges(1000000).build()) // optional
+ *         .kvCache(KvCache.builder().maxEntries(10000).build()) // optional
+ *         .writeBehind(100, TimeUnit.MILLISECONDS) // optional
+ *         .useJmx(true)       // optional
  *         .build();
  * }
  * </pre>
@@ -44,6 +54,10 @@ public final class ClientBuilder {
     public static final String DEFAULT_HOST = "https://api.orchestrate.io";
     /** The default port for the Orchestrate.io service. */
     public static final int DEFAULT_PORT = 443;
+    /** The default number of idle connections to keep open. */
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 10;
+    /** The default number of API keys to cache authentication headers for. */
+    public static final int DEFAULT_API_KEY_CACHE_SIZE = 1024;
 
     /** An API key for the Orchestrate.io service. */
     private final String apiKey;
@@ -61,6 +75,26 @@ public final class ClientBuilder {
     private JacksonMapper mapper;
     /** Whether to use SSL with the connection. */
     private boolean useSSL;
+    /** The maximum number of idle connections to keep open. */
+    private int maxIdleConnections;
+    /** The maximum number of per-operation API keys to cache headers for. */
+    private int apiKeyCacheSize;
+    /** The tracer to capture request traces with. */
+    private RequestTracer tracer;
+    /** The cache for fetched event ranges. */
+    private EventCache eventCache;
+    /** The cache for fetched relations. */
+    private RelationCache relationCache;
+    /** The cache for fetched KV objects. */
+    private KvCache kvCache;
+    /** The flush window of unconditional stores, or {@code 0} to not buffer them. */
+    private long writeBehindNanos;
+    /** Whether to register the client's metrics with the platform MBean server. */
+    private boolean useJmx;
+    /** The reporter to publish the client's metrics to. */
+    private MetricsReporter metricsReporter;
+    /** The interval to publish metrics at, in milliseconds. */
+    private long metricsReportPeriodMillis;
 
     public ClientBuilder(final String apiKey) {
         if (apiKey == null) {
@@ -78,6 +112,16 @@ public final class ClientBuilder {
         maxPoolSize(Integer.MAX_VALUE);
         mapper(JacksonMapper.builder());
         useSSL(Boolean.TRUE);
+        maxIdleConnections(DEFAULT_MAX_IDLE_CONNECTIONS);
+        apiKeyCacheSize(DEFAULT_API_KEY_CACHE_SIZE);
+        tracer = null;
+        eventCache = null;
+        relationCache = null;
+        kvCache = null;
+        writeBehindNanos = 0;
+        useJmx(Boolean.FALSE);
+        metricsReporter = null;
+        metricsReportPeriodMillis = 0;
     }
 
     /**
@@ -216,6 +260,160 @@ public final class ClientBuilder {
         return this;
     }
 
+    /**
+     * The maximum number of idle connections to keep open to the service,
+     * defaults to {@code ClientBuilder.DEFAULT_MAX_IDLE_CONNECTIONS}.
+     *
+     * <p>Connections are reused across operations, including operations made
+     * with a different API key.
+     *
+     * @param maxIdleConnections The number of idle connections to keep open.
+     * @return This builder.
+     * @see ClientBuilder#DEFAULT_MAX_IDLE_CONNECTIONS
+     */
+    public ClientBuilder maxIdleConnections(final int maxIdleConnections) {
+        if (maxIdleConnections < 0) {
+            throw new IllegalArgumentException("'maxIdleConnections' cannot be negative.");
+        }
+        this.maxIdleConnections = maxIdleConnections;
+        return this;
+    }
+
+    /**
+     * The maximum number of API keys to cache the authentication header for
+     * when operations are made with their own API key (see {@code
+     * withApiKey(String)} on an operation), defaults to {@code
+     * ClientBuilder.DEFAULT_API_KEY_CACHE_SIZE}.
+     *
+     * @param apiKeyCacheSize The number of API keys to cache headers for.
+     * @return This builder.
+     */
+    public ClientBuilder apiKeyCacheSize(final int apiKeyCacheSize) {
+        if (apiKeyCacheSize < 1) {
+            throw new IllegalArgumentException("'apiKeyCacheSize' cannot be smaller than one.");
+        }
+        this.apiKeyCacheSize = apiKeyCacheSize;
+        return this;
+    }
+
+    /**
+     * The tracer to capture request traces with, tracing is disabled by
+     * default. A tracer can be shared by several clients, stopping a client
+     * doesn't stop its tracer.
+     *
+     * @param tracer A {@code RequestTracer}, or {@code null} to disable tracing.
+     * @return This builder.
+     * @see RequestTracer#builder()
+     */
+    public ClientBuilder tracer(@Nullable final RequestTracer tracer) {
+        this.tracer = tracer;
+        return this;
+    }
+
+    /**
+     * The cache to serve event fetches for time ranges from, events aren't
+     * cached by default.
+     *
+     * @param eventCache An {@code EventCache}, or {@code null} to disable
+     *                   caching events.
+     * @return This builder.
+     * @see EventCache#builder()
+     */
+    public ClientBuilder eventCache(@Nullable final EventCache eventCache) {
+        this.eventCache = eventCache;
+        return this;
+    }
+
+    /**
+     * The cache to serve relation fetches from, relations aren't cached by
+     * default.
+     *
+     * @param relationCache A {@code RelationCache}, or {@code null} to disable
+     *                      caching relations.
+     * @return This builder.
+     * @see RelationCache#builder()
+     */
+    public ClientBuilder relationCache(@Nullable final RelationCache relationCache) {
+        this.relationCache = relationCache;
+        return this;
+    }
+
+    /**
+     * The cache to serve KV fetches from, objects aren't cached by default.
+     *
+     * @param kvCache A {@code KvCache}, or {@code null} to disable caching
+     *                objects.
+     * @return This builder.
+     * @see KvCache#builder()
+     */
+    public ClientBuilder kvCache(@Nullable final KvCache kvCache) {
+        this.kvCache = kvCache;
+        return this;
+    }
+
+    /**
+     * Buffer the client's unconditional KV stores in a {@link
+     * WriteBehindBuffer} with the {@code flushWindow}, stores aren't
+     * buffered by default.
+     *
+     * <p>Fetches of a key with a buffered store are made once the store
+     * lands, and deletes discard the buffered store of the key. The buffer
+     * is flushed when the client is stopped.
+     *
+     * @param flushWindow The time to buffer stores for, or {@code 0} to not
+     *                    buffer them.
+     * @param unit The unit of time of the {@code flushWindow}.
+     * @return This builder.
+     */
+    public ClientBuilder writeBehind(final long flushWindow, final TimeUnit unit) {
+        if (flushWindow < 0) {
+            throw new IllegalArgumentException("'flushWindow' cannot be negative.");
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("'unit' cannot be null.");
+        }
+        this.writeBehindNanos = unit.toNanos(flushWindow);
+        return this;
+    }
+
+    /**
+     * Enable or disable registering the client's metrics with the platform
+     * MBean server, this value defaults to {@code false}.
+     *
+     * @param useJmx If {@code true} register an MBean for the client's metrics.
+     * @return This builder.
+     * @see ClientMetricsMXBean
+     */
+    public ClientBuilder useJmx(final boolean useJmx) {
+        this.useJmx = useJmx;
+        return this;
+    }
+
+    /**
+     * The reporter to publish the client's metrics to every {@code period},
+     * metrics aren't reported by default.
+     *
+     * @param reporter A {@code MetricsReporter}.
+     * @param period The interval to report metrics at.
+     * @param unit The unit of time of the {@code period}.
+     * @return This builder.
+     */
+    public ClientBuilder metricsReporter(
+            final MetricsReporter reporter, final long period, final TimeUnit unit) {
+        if (reporter == null) {
+            throw new IllegalArgumentException("'reporter' cannot be null.");
+        }
+        if (unit == null) {
+            throw new IllegalArgumentException("'unit' cannot be null.");
+        }
+        if (unit.toMillis(period) < 1) {
+            throw new IllegalArgumentException("'period' must be at least one millisecond.");
+        }
+        this.metricsReporter = reporter;
+        this.metricsReportPeriodMillis = unit.toMillis(period);
+        return this;
+    }
+
     public Client build() {
         return new HttpClient(this);
     }
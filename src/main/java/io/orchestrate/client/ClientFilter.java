@@ -17,18 +17,26 @@ package io.orchestrate.client;
 
 import lombok.AccessLevel;
 import lombok.Getter;
-import lombok.extern.slf4j.Slf4j;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.EmptyCompletionHandler;
+import org.glassfish.grizzly.WriteResult;
 import org.glassfish.grizzly.attributes.Attribute;
 import org.glassfish.grizzly.filterchain.BaseFilter;
 import org.glassfish.grizzly.filterchain.FilterChainContext;
 import org.glassfish.grizzly.filterchain.NextAction;
 import org.glassfish.grizzly.http.*;
 import org.glassfish.grizzly.http.util.Base64Utils;
+import org.glassfish.grizzly.http.util.DataChunk;
 import org.glassfish.grizzly.http.util.Header;
 import org.glassfish.grizzly.http.util.HttpStatus;
-import org.glassfish.grizzly.http.util.UEncoder;
+import org.glassfish.grizzly.http.util.MimeHeaders;
 
+import javax.annotation.Nullable;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static org.glassfish.grizzly.attributes.DefaultAttributeBuilder.DEFAULT_ATTRIBUTE_BUILDER;
 
@@ -36,9 +44,11 @@ import static org.glassfish.grizzly.attributes.DefaultAttributeBuilder.DEFAULT_A
  * A filter to handle HTTP operations and apply the Orchestrate.io
  * authentication header.
  */
-@Slf4j
 final class ClientFilter extends BaseFilter {
 
+    /** The charset for HTTP header values. */
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
     /** The name of the filter attribute for a HTTP response. */
     public static final String HTTP_RESPONSE_ATTR = "orchestrate-client-response";
     /** The attribute for the HTTP response. */
@@ -46,55 +56,89 @@ final class ClientFilter extends BaseFilter {
     private final Attribute<OrchestrateFutureImpl> httpResponseAttr;
 
     /** The header value to authenticate with the Orchestrate.io service */
-    private final String authHeaderValue;
+    private final byte[] authHeaderValue;
+    /** The header values for operations made with their own API key. */
+    private final ConcurrentMap<String, byte[]> authHeaderCache;
+    /** The maximum number of header values to cache. */
+    private final int authHeaderCacheSize;
+    /** The pool to return connections to once a response has been read. */
+    private volatile ConnectionPool connectionPool;
     /** The header value to indicate the client and version queried with. */
-    private final String userAgentValue;
+    private final byte[] userAgentValue;
     /** The hostname for the Orchestrate.io service. */
-    private final String host;
-    /** The version of the Orchestrate.io API to use. */
-    private final String version;
+    private final byte[] host;
     /** The mapper to use when deserializing responses from JSON. */
     private final JacksonMapper mapper;
+    /** The tracer to capture request traces with, or {@code null}. */
+    private final RequestTracer tracer;
+    /** The metrics to record completed requests in. */
+    private final ClientMetrics metrics;
 
-    ClientFilter(final ClientBuilder builder) {
+    ClientFilter(final ClientBuilder builder, final ClientMetrics metrics) {
         assert (builder != null);
+        assert (metrics != null);
 
         assert (builder.getHost() != null);
         assert (builder.getHost().toString().length() > 0);
         assert (builder.getApiKey() != null);
         assert (builder.getApiKey().length() > 0);
-        assert (builder.getVersion() != null);
-        assert (builder.getVersion().name().length() > 0);
         assert (builder.getMapper() != null);
 
         this.httpResponseAttr =
                 DEFAULT_ATTRIBUTE_BUILDER.createAttribute(HTTP_RESPONSE_ATTR);
-        this.authHeaderValue =
-                "Basic ".concat(Base64Utils.encodeToString(builder.getApiKey().getBytes(), true));
+        this.authHeaderValue = authHeaderValue(builder.getApiKey());
+        this.authHeaderCache = new ConcurrentHashMap<String, byte[]>();
+        this.authHeaderCacheSize = builder.getApiKeyCacheSize();
+        this.connectionPool = null;
         this.userAgentValue =
-                "Orchestrate Java Client/" + getClass().getPackage().getImplementationVersion();
-        this.host = builder.getHost().toString();
-        this.version = builder.getVersion().name();
+                ("Orchestrate Java Client/" + getClass().getPackage().getImplementationVersion())
+                        .getBytes(US_ASCII);
+        this.host = builder.getHost().toString().getBytes(US_ASCII);
         this.mapper = builder.getMapper();
+        this.tracer = builder.getTracer();
+        this.metrics = metrics;
+    }
+
+    void setConnectionPool(final ConnectionPool connectionPool) {
+        assert (connectionPool != null);
+
+        this.connectionPool = connectionPool;
     }
 
     @Override
     @SuppressWarnings("unchecked")
     public NextAction handleRead(final FilterChainContext ctx) throws IOException {
-        final OrchestrateFutureImpl future =
-                httpResponseAttr.get(ctx.getConnection().getAttributes());
+        final Connection<?> connection = ctx.getConnection();
+        final OrchestrateFutureImpl future = httpResponseAttr.get(connection.getAttributes());
+        if (future == null) {
+            // a response no request is waiting for, e.g. a 408 sent to an
+            // idle pooled connection
+            connection.closeSilently();
+            return ctx.getStopAction();
+        }
+
+        HttpHeader header = null;
+        int statusCode = 0;
+        boolean partial = false;
+        boolean keepAlive = false;
         try {
             final HttpContent content = ctx.getMessage();
+            future.markFirstByte();
             if (!content.isLast()) {
+                partial = true;
                 return ctx.getStopAction(content);
             }
+            future.markLastByte();
 
-            final HttpHeader header = content.getHttpHeader();
+            header = content.getHttpHeader();
             final HttpStatus status = ((HttpResponsePacket) header).getHttpStatus();
-            final int statusCode = status.getStatusCode();
+            statusCode = status.getStatusCode();
+            httpResponseAttr.remove(connection.getAttributes());
+            keepAlive = isKeepAlive(header);
 
-            log.info("Received content: {}", header);
-            final String contentString = content.getContent().toStringContent();
+            final String contentString = hasBody(statusCode, content)
+                    ? content.getContent().toStringContent()
+                    : "";
 
             switch (statusCode) {
                 case 200:   // intentional fallthrough
@@ -102,19 +146,40 @@ final class ClientFilter extends BaseFilter {
                 case 204:   // intentional fallthrough
                 case 404:   // intentional fallthrough
                 case 412:
+                    final long deserializeStart = System.nanoTime();
                     final Object result = future.getOperation()
                             .fromResponse(statusCode, header, contentString, mapper);
+                    final long deserializeEnd = System.nanoTime();
                     future.setResult(result);
+                    complete(future, statusCode, false, deserializeStart, deserializeEnd);
+                    trace(future, header, statusCode, null);
                     break;
                 default:
                     final String reqId = header.getHeader("x-orchestrate-req-id");
-                    future.setException(new RequestException(statusCode, contentString, reqId));
+                    final RequestException e = new RequestException(statusCode, contentString, reqId);
+                    future.setException(e);
+                    complete(future, statusCode, true, 0, 0);
+                    trace(future, header, statusCode, e);
             }
 
             return ctx.getStopAction();
         } catch (final Throwable t) {
+            httpResponseAttr.remove(connection.getAttributes());
+            keepAlive = false;
             future.setException(t);
+            complete(future, statusCode, true, 0, 0);
+            trace(future, header, statusCode, t);
             return ctx.getStopAction();
+        } finally {
+            // the response's buffers are read until here, so only now can the
+            // connection serve another request
+            if (!partial) {
+                if (keepAlive && connectionPool != null) {
+                    connectionPool.release(connection);
+                } else {
+                    connection.closeSilently();
+                }
+            }
         }
     }
 
@@ -127,35 +192,147 @@ final class ClientFilter extends BaseFilter {
 
         final HttpPacket request = (HttpPacket) message;
         final HttpRequestPacket httpHeader = (HttpRequestPacket) request.getHttpHeader();
+        final OrchestrateFutureImpl<?> future =
+                httpResponseAttr.get(ctx.getConnection().getAttributes());
 
-        final String uriWithPrefix = "/"
-                .concat(version)    // add version information
-                .concat("/")
-                .concat(httpHeader.getRequestURI());
-
-        // adjust the HTTP request to include standard headers
+        // adjust the HTTP request to include standard headers, the request
+        // URI already includes the version information
+        final MimeHeaders headers = httpHeader.getHeaders();
         httpHeader.setProtocol(Protocol.HTTP_1_1);
-        httpHeader.setHeader(Header.UserAgent, userAgentValue);
-        httpHeader.setHeader(Header.Host, host);
-        httpHeader.setRequestURI(uriWithPrefix);
+        headers.setValue(Header.UserAgent).setBytes(userAgentValue);
+        headers.setValue(Header.Host).setBytes(host);
 
         // add basic auth information
-        httpHeader.addHeader(Header.Authorization, authHeaderValue);
+        final AbstractOperation<?> operation = (future != null) ? future.getOperation() : null;
+        final byte[] authValue = (operation != null && operation.hasApiKey())
+                ? cachedAuthHeaderValue(operation.getApiKey())
+                : authHeaderValue;
+        headers.addValue(Header.Authorization).setBytes(authValue);
 
-        log.info("Sending request: {}", httpHeader);
-        ctx.write(request);
+        if (future != null) {
+            // the write is asynchronous, it's made when the bytes reach the socket
+            ctx.write(request, new EmptyCompletionHandler<WriteResult>() {
+                @Override
+                public void completed(final WriteResult result) {
+                    future.markWritten();
+                }
+            });
+        } else {
+            ctx.write(request);
+        }
 
         return ctx.getStopAction();
     }
 
+    @Override
+    public NextAction handleClose(final FilterChainContext ctx) throws IOException {
+        // fail any request still waiting on a response from this connection
+        final OrchestrateFutureImpl future =
+                httpResponseAttr.remove(ctx.getConnection().getAttributes());
+        if (future != null && !future.isDone()) {
+            final IOException e = new IOException("Connection closed before the response was read.");
+            future.setException(e);
+            complete(future, 0, true, 0, 0);
+            trace(future, null, 0, e);
+        }
+
+        return ctx.getInvokeAction();
+    }
+
     @Override
     public void exceptionOccurred(final FilterChainContext ctx, final Throwable ex) {
         // propagate exceptions to the call-site
         final OrchestrateFutureImpl future =
-                httpResponseAttr.get(ctx.getConnection().getAttributes());
-        future.setException(ex);
+                httpResponseAttr.remove(ctx.getConnection().getAttributes());
+        if (future != null && !future.isDone()) {
+            future.setException(ex);
+            complete(future, 0, true, 0, 0);
+            trace(future, null, 0, ex);
+        }
 
         super.exceptionOccurred(ctx, ex);
     }
 
+    private void complete(
+            final OrchestrateFutureImpl<?> future, final int statusCode, final boolean exceptional,
+            final long deserializeStartNanos, final long deserializeEndNanos) {
+        metrics.requestCompleted(future, statusCode, exceptional,
+                deserializeStartNanos, deserializeEndNanos, System.nanoTime());
+    }
+
+    private void trace(
+            final OrchestrateFutureImpl<?> future, @Nullable final HttpHeader header,
+            final int statusCode, @Nullable final Throwable error) {
+        final RequestTracer tracer = this.tracer;
+        if (tracer == null) {
+            return;
+        }
+        final long durationNanos = System.nanoTime() - future.getStartNanos();
+        if (!tracer.shouldTrace(durationNanos)) {
+            return;
+        }
+
+        // only read the request details for the requests we trace
+        String method = null;
+        String uri = null;
+        String reqId = null;
+        if (header instanceof HttpResponsePacket) {
+            final HttpRequestPacket request = ((HttpResponsePacket) header).getRequest();
+            if (request != null) {
+                method = request.getMethod().getMethodString();
+                uri = (request.getQueryString() != null)
+                        ? request.getRequestURI().concat("?").concat(request.getQueryString())
+                        : request.getRequestURI();
+            }
+            reqId = header.getHeader("x-orchestrate-req-id");
+        }
+
+        final Class<?> operationType = future.getOperation().getClass();
+        tracer.record(new RequestTrace(operationType, method, uri, statusCode, reqId,
+                error, future.getStartTimeMillis(), durationNanos));
+    }
+
+    private byte[] cachedAuthHeaderValue(final String apiKey) {
+        byte[] value = authHeaderCache.get(apiKey);
+        if (value == null) {
+            value = authHeaderValue(apiKey);
+            if (authHeaderCache.size() >= authHeaderCacheSize) {
+                // evict an arbitrary entry to keep the cache bounded
+                final Iterator<String> iter = authHeaderCache.keySet().iterator();
+                if (iter.hasNext()) {
+                    authHeaderCache.remove(iter.next());
+                }
+            }
+            authHeaderCache.put(apiKey, value);
+        }
+        return value;
+    }
+
+    private static byte[] authHeaderValue(final String apiKey) {
+        assert (apiKey != null);
+
+        final String value =
+                "Basic ".concat(Base64Utils.encodeToString(apiKey.getBytes(), true));
+        return value.getBytes(US_ASCII);
+    }
+
+    private static boolean hasBody(final int statusCode, final HttpContent content) {
+        switch (statusCode) {
+            case 204:   // intentional fallthrough
+            case 205:   // intentional fallthrough
+            case 304:
+                return false;
+            default:
+                return content.getContent().hasRemaining();
+        }
+    }
+
+    private static boolean isKeepAlive(final HttpHeader header) {
+        if (header.getProtocol() != Protocol.HTTP_1_1) {
+            return false;
+        }
+        final DataChunk value = header.getHeaders().getValue(Header.Connection);
+        return (value == null || !value.equalsIgnoreCase("close"));
+    }
+
 }
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The metrics recorded by a client for the operations it executes.
+ *
+ * <p>Counters are recorded on striped cells so that recording doesn't add
+ * contention between the threads executing requests, the values are summed
+ * when they're read.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * ClientMetrics metrics = client.getMetrics();
+ * for (OperationLatency latency : metrics.getOperationLatencies()) {
+ *     System.out.println(latency);
+ * }
+ * }
+ * </pre>
+ */
+public final class ClientMetrics implements ClientMetricsMXBean {
+
+    /** The collection name latencies are recorded under once there are too many. */
+    public static final String OTHER_COLLECTIONS = "*";
+
+    /** The maximum number of operation types and collections to track. */
+    private static final int MAX_TRACKED_LATENCIES = 256;
+    /** The number of HTTP status codes to count responses for. */
+    private static final int STATUS_CODES = 600;
+
+    /** The latencies by operation type and collection. */
+    private final ConcurrentMap<Class<?>, ConcurrentMap<String, OperationLatency>> latencies;
+    /** The number of operation types and collections tracked. */
+    private final AtomicInteger trackedCount;
+    /** The requests executed. */
+    private final Meter requests;
+    /** The number of requests completed. */
+    private final StripedCounter completed;
+    /** The requests that completed with an exception. */
+    private final Meter errors;
+    /** The number of responses for each status code, created on first use. */
+    private final AtomicReferenceArray<StripedCounter> responses;
+    /** The number of bytes read from the network. */
+    private final StripedCounter bytesRead;
+    /** The number of bytes written to the network. */
+    private final StripedCounter bytesWritten;
+    /** The time spent serializing requests, in nanoseconds. */
+    private final StripedCounter serializationNanos;
+    /** The time spent deserializing responses, in nanoseconds. */
+    private final StripedCounter deserializationNanos;
+    /** The time spent completing futures, in nanoseconds. */
+    private final StripedCounter listenerNanos;
+    /** The pool of connections for the client. */
+    private volatile ConnectionPool connectionPool;
+
+    ClientMetrics() {
+        latencies = new ConcurrentHashMap<Class<?>, ConcurrentMap<String, OperationLatency>>();
+        trackedCount = new AtomicInteger(0);
+        requests = new Meter();
+        completed = new StripedCounter();
+        errors = new Meter();
+        responses = new AtomicReferenceArray<StripedCounter>(STATUS_CODES);
+        bytesRead = new StripedCounter();
+        bytesWritten = new StripedCounter();
+        serializationNanos = new StripedCounter();
+        deserializationNanos = new StripedCounter();
+        listenerNanos = new StripedCounter();
+        connectionPool = null;
+    }
+
+    void setConnectionPool(final ConnectionPool connectionPool) {
+        assert (connectionPool != null);
+
+        this.connectionPool = connectionPool;
+    }
+
+    void requestStarted() {
+        requests.mark();
+    }
+
+    /**
+     * Records a request that completed.
+     *
+     * @param future The future of the request.
+     * @param statusCode The status code of the response, or {@code 0} if no
+     *                   response was read.
+     * @param exceptional Whether the future completed with an exception.
+     * @param deserializeStartNanos When deserializing the response started, or
+     *                              {@code 0} if it wasn't deserialized.
+     * @param deserializeEndNanos When deserializing the response finished.
+     * @param completedNanos When the future and its listeners completed.
+     */
+    void requestCompleted(
+            final OrchestrateFutureImpl<?> future, final int statusCode, final boolean exceptional,
+            final long deserializeStartNanos, final long deserializeEndNanos, final long completedNanos) {
+        assert (future != null);
+
+        completed.increment();
+        if (exceptional) {
+            errors.mark();
+        }
+        if (statusCode > 0 && statusCode < STATUS_CODES) {
+            responseCounter(statusCode).increment();
+        }
+        if (deserializeStartNanos != 0 && deserializeEndNanos != 0) {
+            deserializationNanos.add(deserializeEndNanos - deserializeStartNanos);
+            listenerNanos.add(completedNanos - deserializeEndNanos);
+        }
+        latencyFor(future.getOperation())
+                .record(future, deserializeStartNanos, deserializeEndNanos, completedNanos);
+    }
+
+    /**
+     * Records a request that failed before it could be sent.
+     */
+    void requestFailed() {
+        completed.increment();
+        errors.mark();
+    }
+
+    void recordBytesRead(final long bytes) {
+        bytesRead.add(bytes);
+    }
+
+    void recordBytesWritten(final long bytes) {
+        bytesWritten.add(bytes);
+    }
+
+    void recordSerialization(final long nanos) {
+        serializationNanos.add(nanos);
+    }
+
+    private StripedCounter responseCounter(final int statusCode) {
+        StripedCounter counter = responses.get(statusCode);
+        if (counter == null) {
+            responses.compareAndSet(statusCode, null, new StripedCounter());
+            counter = responses.get(statusCode);
+        }
+        return counter;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getRequestCount() {
+        return requests.getCount();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public double getRequestRate() {
+        return requests.getOneMinuteRate();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getInFlightCount() {
+        // read completions first, so that the count can't be negative
+        final long completedCount = completed.sum();
+        return Math.max(0, requests.getCount() - completedCount);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getErrorCount() {
+        return errors.getCount();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public double getErrorRate() {
+        return errors.getOneMinuteRate();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Map<Integer, Long> getResponseCounts() {
+        final Map<Integer, Long> counts = new TreeMap<Integer, Long>();
+        for (int i = 0; i < STATUS_CODES; i++) {
+            final StripedCounter counter = responses.get(i);
+            if (counter != null) {
+                counts.put(i, counter.sum());
+            }
+        }
+        return counts;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getOpenConnections() {
+        final ConnectionPool pool = connectionPool;
+        return (pool != null) ? pool.getOpenCount() : 0;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getIdleConnections() {
+        final ConnectionPool pool = connectionPool;
+        return (pool != null) ? pool.getIdleCount() : 0;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getBytesWritten() {
+        return bytesWritten.sum();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getSerializationTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(serializationNanos.sum());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getDeserializationTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(deserializationNanos.sum());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getListenerTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(listenerNanos.sum());
+    }
+
+    /**
+     * Returns the latencies for the type of the {@code operation} and its
+     * collection, creating them if they don't exist.
+     *
+     * @param operation The operation to record latencies for.
+     * @return The latencies for the operation.
+     */
+    OperationLatency latencyFor(final AbstractOperation<?> operation) {
+        assert (operation != null);
+
+        final Class<?> type = operation.getClass();
+        ConcurrentMap<String, OperationLatency> byCollection = latencies.get(type);
+        if (byCollection == null) {
+            byCollection = new ConcurrentHashMap<String, OperationLatency>();
+            final ConcurrentMap<String, OperationLatency> existing =
+                    latencies.putIfAbsent(type, byCollection);
+            if (existing != null) {
+                byCollection = existing;
+            }
+        }
+
+        String collection = operation.getCollection();
+        OperationLatency latency = byCollection.get(collection);
+        if (latency != null) {
+            return latency;
+        }
+        if (trackedCount.get() >= MAX_TRACKED_LATENCIES) {
+            // bound the memory used by clients that use many collections
+            collection = OTHER_COLLECTIONS;
+            latency = byCollection.get(collection);
+            if (latency != null) {
+                return latency;
+            }
+        }
+
+        latency = new OperationLatency(type, collection);
+        final OperationLatency existing = byCollection.putIfAbsent(collection, latency);
+        if (existing != null) {
+            return existing;
+        }
+        trackedCount.incrementAndGet();
+        return latency;
+    }
+
+    /**
+     * Returns the latencies for every operation type and collection that
+     * operations have been executed for.
+     *
+     * @return The latencies of operations.
+     */
+    public Collection<OperationLatency> getOperationLatencies() {
+        final List<OperationLatency> results = new ArrayList<OperationLatency>();
+        for (final ConcurrentMap<String, OperationLatency> byCollection : latencies.values()) {
+            results.addAll(byCollection.values());
+        }
+        return results;
+    }
+
+    /**
+     * Returns the latencies for the {@code operationType} on the specified
+     * {@code collection}.
+     *
+     * @param operationType The type of operation, e.g. {@code KvFetchOperation.class}.
+     * @param collection The collection the operations were made on.
+     * @return The latencies, or {@code null} if no such operations have been
+     *         executed.
+     */
+    @Nullable
+    public OperationLatency getOperationLatency(final Class<?> operationType, final String collection) {
+        final ConcurrentMap<String, OperationLatency> byCollection = latencies.get(operationType);
+        return (byCollection != null) ? byCollection.get(collection) : null;
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import java.util.Map;
+
+/**
+ * The management interface of the metrics of a client, registered with the
+ * platform MBean server when JMX is enabled on the {@link ClientBuilder}.
+ *
+ * @see ClientBuilder#useJmx(boolean)
+ */
+public interface ClientMetricsMXBean {
+
+    /**
+     * Returns the number of requests executed.
+     *
+     * @return The number of requests.
+     */
+    long getRequestCount();
+
+    /**
+     * Returns the one minute moving average of the request rate.
+     *
+     * @return The rate of requests, per second.
+     */
+    double getRequestRate();
+
+    /**
+     * Returns the number of requests waiting for a response.
+     *
+     * @return The number of requests in flight.
+     */
+    long getInFlightCount();
+
+    /**
+     * Returns the number of requests that completed with an exception, either
+     * an error response or a failure to get a response.
+     *
+     * @return The number of failed requests.
+     */
+    long getErrorCount();
+
+    /**
+     * Returns the one minute moving average of the error rate.
+     *
+     * @return The rate of errors, per second.
+     */
+    double getErrorRate();
+
+    /**
+     * Returns the number of responses received for each HTTP status code.
+     *
+     * @return The number of responses by status code.
+     */
+    Map<Integer, Long> getResponseCounts();
+
+    /**
+     * Returns the number of connections open to the service.
+     *
+     * @return The number of open connections.
+     */
+    int getOpenConnections();
+
+    /**
+     * Returns the number of open connections that are idle in the pool.
+     *
+     * @return The number of idle connections.
+     */
+    int getIdleConnections();
+
+    /**
+     * Returns the number of bytes read from the network.
+     *
+     * @return The number of bytes read.
+     */
+    long getBytesRead();
+
+    /**
+     * Returns the number of bytes written to the network.
+     *
+     * @return The number of bytes written.
+     */
+    long getBytesWritten();
+
+    /**
+     * Returns the total time spent serializing request bodies to JSON.
+     *
+     * @return The serialization time, in milliseconds.
+     */
+    long getSerializationTimeMillis();
+
+    /**
+     * Returns the total time spent deserializing responses.
+     *
+     * @return The deserialization time, in milliseconds.
+     */
+    long getDeserializationTimeMillis();
+
+    /**
+     * Returns the total time spent completing futures, including the
+     * execution of their listeners.
+     *
+     * @return The listener time, in milliseconds.
+     */
+    long getListenerTimeMillis();
+
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import org.glassfish.grizzly.CloseListener;
+import org.glassfish.grizzly.CloseType;
+import org.glassfish.grizzly.Closeable;
+import org.glassfish.grizzly.Connection;
+import org.glassfish.grizzly.nio.NIOTransport;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of keep-alive connections to the Orchestrate.io service.
+ *
+ * <p>Connections are handed out to one request at a time and returned to the
+ * pool once the response has been read, so that all the operations from a
+ * client (regardless of the API key they're made with) share a small set of
+ * warm sockets.
+ */
+final class ConnectionPool {
+
+    /** The transport implementation for socket handling. */
+    private final NIOTransport transport;
+    /** The hostname for the Orchestrate.io service. */
+    private final String host;
+    /** The port for the Orchestrate.io service. */
+    private final int port;
+    /** The maximum number of idle connections to keep open. */
+    private final int maxIdle;
+    /** The idle connections ready to be used. */
+    private final Queue<Connection<?>> idle;
+    /** The number of connections in the idle queue. */
+    private final AtomicInteger idleCount;
+    /** The number of connections opened by the pool that are still open. */
+    private final AtomicInteger openCount;
+    /** The listener to count connections as they're closed. */
+    private final CloseListener<Closeable, CloseType> closeListener;
+
+    ConnectionPool(final NIOTransport transport, final ClientBuilder builder) {
+        assert (transport != null);
+        assert (builder != null);
+
+        this.transport = transport;
+        this.host = builder.getHost().getHost();
+        this.port = builder.getPort();
+        this.maxIdle = builder.getMaxIdleConnections();
+        this.idle = new ConcurrentLinkedQueue<Connection<?>>();
+        this.idleCount = new AtomicInteger(0);
+        this.openCount = new AtomicInteger(0);
+        this.closeListener = new CloseListener<Closeable, CloseType>() {
+            @Override
+            public void onClosed(final Closeable closeable, final CloseType type) {
+                openCount.decrementAndGet();
+            }
+        };
+    }
+
+    /**
+     * Returns an open connection from the pool, or a new connection if there
+     * are no idle connections available.
+     *
+     * @return An open connection to the Orchestrate.io service.
+     */
+    Connection<?> acquire() {
+        Connection<?> connection;
+        while ((connection = idle.poll()) != null) {
+            idleCount.decrementAndGet();
+            if (connection.isOpen()) {
+                return connection;
+            }
+        }
+
+        try {
+            // requests racing for the first connection start the transport once
+            synchronized (transport) {
+                if (transport.isStopped()) {
+                    transport.start();
+                }
+            }
+
+            final Future<Connection> connectionFuture = transport.connect(host, port);
+            connection = connectionFuture.get(5, TimeUnit.SECONDS);
+            openCount.incrementAndGet();
+            connection.addCloseListener(closeListener);
+            return connection;
+        } catch (final Exception e) {
+            throw new ClientException(e);
+        }
+    }
+
+    /**
+     * Returns the {@code connection} to the pool, the connection is closed if
+     * the pool already holds the maximum number of idle connections.
+     *
+     * @param connection The connection to return to the pool.
+     */
+    void release(final Connection<?> connection) {
+        assert (connection != null);
+
+        if (connection.isOpen()) {
+            if (idleCount.incrementAndGet() <= maxIdle) {
+                idle.offer(connection);
+                return;
+            }
+            idleCount.decrementAndGet();
+        }
+        connection.closeSilently();
+    }
+
+    /**
+     * Returns the number of idle connections held by the pool.
+     *
+     * @return The number of idle connections.
+     */
+    int getIdleCount() {
+        return idleCount.get();
+    }
+
+    /**
+     * Returns the number of connections opened by the pool that are still
+     * open, whether they're idle or in use.
+     *
+     * @return The number of open connections.
+     */
+    int getOpenCount() {
+        return openCount.get();
+    }
+
+    /**
+     * Closes all the idle connections in the pool.
+     */
+    void close() {
+        Connection<?> connection;
+        while ((connection = idle.poll()) != null) {
+            idleCount.decrementAndGet();
+            connection.closeSilently();
+        }
+    }
+
+}
@@ -0,0 +1,975 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * Stores a high volume of events without blocking the callers on the
+ * network.
+ *
+ * <p>Appended events are put on a lock-free queue that a single drain thread
+ * takes them from in batches, and are serialized and sent from a pool of
+ * serializer threads. At most {@link Builder#maxInFlightPerStream(int)}
+ * events are in flight for each collection, key and type, and at most
+ * {@link Builder#maxInFlight(int)} in total. Events waiting for their stream
+ * count towards the {@link Builder#queueCapacity(int) queue capacity}, and
+ * the {@link OverflowPolicy} decides what happens to an event appended to a
+ * full queue.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * EventAppender appender = EventAppender.builder(client)
+ *         .queueCapacity(100000)
+ *         .overflowPolicy(EventAppender.OverflowPolicy.SPILL)
+ *         .spillDirectory(new File("/var/spool/myapp"))
+ *         .build();
+ * appender.append(new EventStoreOperation("myCollection", "someKey", "eventType", obj));
+ * ...
+ * appender.close();  // stores the queued events
+ * }
+ * </pre>
+ */
+@Slf4j
+public final class EventAppender implements Closeable {
+
+    /**
+     * What to do with an event appended to a full queue.
+     */
+    public enum OverflowPolicy {
+
+        /** Drop the event, {@link #append} returns {@code false}. */
+        DROP,
+        /** Wait in {@link #append} for room in the queue. */
+        BLOCK,
+        /**
+         * Write the event to a file in the spill directory, to be read back
+         * when the queue has room. Until the spilled events have been read
+         * back, later events are spilled behind them so that events are
+         * stored in the order they were appended. Events with their own API
+         * key are blocked instead, so that API keys aren't written to disk,
+         * and may be stored ahead of spilled events.
+         */
+        SPILL
+
+    }
+
+    /**
+     * Receives the events that an {@code EventAppender} couldn't store.
+     */
+    public interface Listener {
+
+        /**
+         * Invoked when an event couldn't be stored.
+         *
+         * @param eventStoreOp The event, or {@code null} if it was spilled
+         *        and couldn't be read back from the spill file.
+         * @param error The error the request failed with.
+         */
+        void onFailure(@Nullable final EventStoreOperation eventStoreOp, final Throwable error);
+
+        /**
+         * Invoked when an event was dropped because the queue was full.
+         *
+         * @param eventStoreOp The event.
+         */
+        void onDropped(final EventStoreOperation eventStoreOp);
+
+    }
+
+    /** The listener that logs failed and dropped events. */
+    private static final Listener LOGGING_LISTENER = new Listener() {
+        @Override
+        public void onFailure(@Nullable final EventStoreOperation eventStoreOp, final Throwable error) {
+            if (eventStoreOp == null) {
+                log.warn("Failed to read back a spilled event.", error);
+            } else {
+                log.warn("Failed to store event '{}' for key '{}'.", eventStoreOp.getType(), eventStoreOp.getKey(), error);
+            }
+        }
+
+        @Override
+        public void onDropped(final EventStoreOperation eventStoreOp) {
+            log.debug("Dropped event '{}' for key '{}'.", eventStoreOp.getType(), eventStoreOp.getKey());
+        }
+    };
+
+    /** The charset of the spill file. */
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /** The time the drain thread waits for new events when idle. */
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /** The builder for this appender. */
+    private final Builder builder;
+    /** The events appended and not yet taken by the drain thread. */
+    private final Queue<EventStoreOperation> queue;
+    /** The room in the queue, including the events waiting for their stream. */
+    private final Semaphore capacity;
+    /** The threads that serialize and send events. */
+    private final ExecutorService serializers;
+    /** The thread that takes events from the queue. */
+    private final Thread drainThread;
+    /** The number of events in flight for each stream. */
+    private final Map<String, AtomicInteger> streamInFlight;
+    /** The events waiting for their stream, only used by the drain thread. */
+    private final Map<String, Deque<EventStoreOperation>> deferred;
+    /** The number of events in flight. */
+    private final AtomicInteger inFlight;
+    /** The number of events accepted and not yet completed. */
+    private final AtomicLong outstanding;
+    /** The events that overflowed to disk, may be {@code null}. */
+    private final Spill spill;
+    /** The number of events appended. */
+    private final AtomicLong appended;
+    /** The number of events stored. */
+    private final AtomicLong stored;
+    /** The number of events that couldn't be stored. */
+    private final AtomicLong failed;
+    /** The number of events dropped. */
+    private final AtomicLong dropped;
+    /** The number of events spilled to disk. */
+    private final AtomicLong spilled;
+    /** Whether the drain thread is waiting for events. */
+    private volatile boolean drainWaiting;
+    /** Whether this appender has been closed. */
+    private volatile boolean closed;
+
+    private EventAppender(final Builder builder) {
+        assert (builder != null);
+
+        this.builder = builder;
+        this.queue = new ConcurrentLinkedQueue<EventStoreOperation>();
+        this.capacity = new Semaphore(builder.queueCapacity);
+        this.serializers = Executors.newFixedThreadPool(builder.serializerThreads, new ThreadFactory() {
+            private final AtomicInteger threadIds = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "OrchestrateEventAppender-" + threadIds.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.streamInFlight = new ConcurrentHashMap<String, AtomicInteger>();
+        this.deferred = new LinkedHashMap<String, Deque<EventStoreOperation>>();
+        this.inFlight = new AtomicInteger(0);
+        this.outstanding = new AtomicLong(0);
+        this.spill = (builder.spillDirectory != null) ? new Spill(builder.spillDirectory) : null;
+        this.appended = new AtomicLong(0);
+        this.stored = new AtomicLong(0);
+        this.failed = new AtomicLong(0);
+        this.dropped = new AtomicLong(0);
+        this.spilled = new AtomicLong(0);
+        this.drainWaiting = false;
+        this.closed = false;
+
+        this.drainThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "OrchestrateEventAppender-drain");
+        drainThread.setDaemon(true);
+        drainThread.start();
+    }
+
+    /**
+     * Appends the event to the queue, this never waits on the network but
+     * waits for room in the queue with the {@link OverflowPolicy#BLOCK}
+     * policy.
+     *
+     * @param eventStoreOp The event to store.
+     * @return {@code true} if the event was accepted, {@code false} if it was
+     *         dropped.
+     */
+    public boolean append(final EventStoreOperation eventStoreOp) {
+        checkNotNull(eventStoreOp, "eventStoreOp");
+        if (closed) {
+            throw new IllegalStateException("The appender has been closed.");
+        }
+
+        final OverflowPolicy policy = builder.overflowPolicy;
+        if (policy == OverflowPolicy.SPILL && !eventStoreOp.hasApiKey() && spill.hasPending()) {
+            // queue behind the spilled events to keep the order of appends
+            return spill(eventStoreOp);
+        }
+        if (!capacity.tryAcquire()) {
+            if (policy == OverflowPolicy.DROP) {
+                return drop(eventStoreOp);
+            }
+            if (policy == OverflowPolicy.SPILL && !eventStoreOp.hasApiKey()) {
+                return spill(eventStoreOp);
+            }
+            try {
+                capacity.acquire();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return drop(eventStoreOp);
+            }
+        }
+
+        outstanding.incrementAndGet();
+        appended.incrementAndGet();
+        queue.offer(eventStoreOp);
+        if (drainWaiting) {
+            LockSupport.unpark(drainThread);
+        }
+        return true;
+    }
+
+    /**
+     * Waits until every event appended so far has been stored or has failed.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit The unit of time of the {@code timeout}.
+     * @return {@code true} if the events completed, {@code false} if the
+     *         timeout elapsed first.
+     * @throws InterruptedException If the thread was interrupted while
+     *         waiting.
+     */
+    public boolean flush(final long timeout, final TimeUnit unit) throws InterruptedException {
+        checkNotNull(unit, "unit");
+
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (outstanding) {
+            while (outstanding.get() > 0) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(outstanding, remaining);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the statistics for the events appended so far.
+     *
+     * @return A snapshot of the appender's statistics.
+     */
+    public Stats getStats() {
+        return new Stats(
+                appended.get(), stored.get(), failed.get(), dropped.get(), spilled.get(),
+                builder.queueCapacity - capacity.availablePermits(), inFlight.get());
+    }
+
+    /**
+     * Stops accepting events, waits for the queued and spilled events to be
+     * stored and stops the appender's threads.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(drainThread);
+        try {
+            flush(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            drainThread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            serializers.shutdownNow();
+            if (spill != null) {
+                spill.close();
+            }
+        }
+    }
+
+    private boolean drop(final EventStoreOperation eventStoreOp) {
+        dropped.incrementAndGet();
+        try {
+            builder.listener.onDropped(eventStoreOp);
+        } catch (final RuntimeException e) {
+            log.warn("Event appender listener failed.", e);
+        }
+        return false;
+    }
+
+    private boolean spill(final EventStoreOperation eventStoreOp) {
+        outstanding.incrementAndGet();
+        try {
+            spill.write(eventStoreOp, builder.mapper);
+        } catch (final IOException e) {
+            log.warn("Failed to spill event to '{}'.", spill.file, e);
+            completed(null);
+            return drop(eventStoreOp);
+        }
+        appended.incrementAndGet();
+        spilled.incrementAndGet();
+        if (drainWaiting) {
+            LockSupport.unpark(drainThread);
+        }
+        return true;
+    }
+
+    private void drain() {
+        while (true) {
+            try {
+                if (!drainOnce()) {
+                    return;
+                }
+            } catch (final RuntimeException e) {
+                log.error("Event appender drain failed.", e);
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    // returns false once the appender is closed and every event completed
+    private boolean drainOnce() {
+        boolean progress = sendDeferred();
+
+        // take a batch while there's room to send events
+        for (int i = 0; i < builder.batchSize && inFlight.get() < builder.maxInFlight; i++) {
+            final EventStoreOperation eventStoreOp = queue.poll();
+            if (eventStoreOp == null) {
+                break;
+            }
+            admit(eventStoreOp);
+            progress = true;
+        }
+
+        if (spill != null && queue.isEmpty() && spill.hasPending()) {
+            progress |= unspill();
+        }
+
+        if (!progress) {
+            if (closed && outstanding.get() == 0) {
+                return false;
+            }
+            // nothing to send or no room to send it, a new event or a
+            // completed one unparks the thread
+            drainWaiting = true;
+            LockSupport.parkNanos(IDLE_PARK_NANOS);
+            drainWaiting = false;
+            pruneStreams();
+        }
+        return true;
+    }
+
+    private void admit(final EventStoreOperation eventStoreOp) {
+        final String stream = streamOf(eventStoreOp);
+        final Deque<EventStoreOperation> waiting = deferred.get(stream);
+        if (waiting != null) {
+            waiting.add(eventStoreOp);
+            return;
+        }
+
+        // spilled events are admitted in batches, so check the total too
+        final AtomicInteger streamCount = streamCount(stream);
+        if (streamCount.get() >= builder.maxInFlightPerStream || inFlight.get() >= builder.maxInFlight) {
+            final Deque<EventStoreOperation> queued = new ArrayDeque<EventStoreOperation>();
+            queued.add(eventStoreOp);
+            deferred.put(stream, queued);
+            return;
+        }
+        send(eventStoreOp, streamCount);
+    }
+
+    private boolean sendDeferred() {
+        boolean progress = false;
+        final Iterator<Map.Entry<String, Deque<EventStoreOperation>>> iter = deferred.entrySet().iterator();
+        while (iter.hasNext() && inFlight.get() < builder.maxInFlight) {
+            final Map.Entry<String, Deque<EventStoreOperation>> entry = iter.next();
+            final AtomicInteger streamCount = streamCount(entry.getKey());
+            final Deque<EventStoreOperation> waiting = entry.getValue();
+            while (!waiting.isEmpty() && streamCount.get() < builder.maxInFlightPerStream
+                    && inFlight.get() < builder.maxInFlight) {
+                send(waiting.poll(), streamCount);
+                progress = true;
+            }
+            if (waiting.isEmpty()) {
+                iter.remove();
+            }
+        }
+        return progress;
+    }
+
+    private boolean unspill() {
+        int permits = 0;
+        while (permits < builder.batchSize && capacity.tryAcquire()) {
+            permits++;
+        }
+        if (permits == 0) {
+            return false;
+        }
+
+        final List<EventStoreOperation> events = new ArrayList<EventStoreOperation>(permits);
+        final List<Exception> unreadable = new ArrayList<Exception>(0);
+        try {
+            spill.read(permits, builder.mapper, events, unreadable);
+        } catch (final IOException e) {
+            // the rest of the file can't be read, fail its events
+            log.warn("Failed to read spilled events from '{}'.", spill.file, e);
+            for (int lost = spill.abandon(); lost > 0; lost--) {
+                unreadable.add(e);
+            }
+        }
+        capacity.release(permits - events.size());
+        for (final Exception e : unreadable) {
+            failed(null, null, e);
+        }
+        for (final EventStoreOperation eventStoreOp : events) {
+            admit(eventStoreOp);
+        }
+        return !events.isEmpty() || !unreadable.isEmpty();
+    }
+
+    private void send(final EventStoreOperation eventStoreOp, final AtomicInteger streamCount) {
+        streamCount.incrementAndGet();
+        inFlight.incrementAndGet();
+        capacity.release();
+
+        try {
+            serializers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    execute(eventStoreOp, streamCount);
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            failed(eventStoreOp, streamCount, e);
+        }
+    }
+
+    // called from a serializer thread, the client serializes the value
+    private void execute(final EventStoreOperation eventStoreOp, final AtomicInteger streamCount) {
+        final OrchestrateFuture<Boolean> future;
+        try {
+            future = builder.client.execute(eventStoreOp);
+        } catch (final RuntimeException e) {
+            failed(eventStoreOp, streamCount, e);
+            return;
+        }
+        future.addListener(new OrchestrateFutureListener<Boolean>() {
+            @Override
+            public void onComplete(final OrchestrateFuture<Boolean> future) {
+                stored.incrementAndGet();
+                completed(streamCount);
+            }
+
+            @Override
+            public void onException(final OrchestrateFuture<Boolean> future) {
+                try {
+                    future.get();
+                    failed(eventStoreOp, streamCount,
+                            new IllegalStateException("The event store failed without an error."));
+                } catch (final ExecutionException e) {
+                    failed(eventStoreOp, streamCount, e.getCause());
+                } catch (final InterruptedException e) {
+                    failed(eventStoreOp, streamCount, e);
+                }
+            }
+        });
+    }
+
+    private void failed(
+            @Nullable final EventStoreOperation eventStoreOp, @Nullable final AtomicInteger streamCount,
+            final Throwable error) {
+        failed.incrementAndGet();
+        try {
+            builder.listener.onFailure(eventStoreOp, error);
+        } catch (final RuntimeException e) {
+            log.warn("Event appender listener failed.", e);
+        }
+        completed(streamCount);
+    }
+
+    private void completed(@Nullable final AtomicInteger streamCount) {
+        if (streamCount != null) {
+            streamCount.decrementAndGet();
+            inFlight.decrementAndGet();
+        }
+        if (outstanding.decrementAndGet() == 0) {
+            synchronized (outstanding) {
+                outstanding.notifyAll();
+            }
+        }
+        LockSupport.unpark(drainThread);
+    }
+
+    private AtomicInteger streamCount(final String stream) {
+        AtomicInteger streamCount = streamInFlight.get(stream);
+        if (streamCount == null) {
+            streamCount = new AtomicInteger(0);
+            streamInFlight.put(stream, streamCount);
+        }
+        return streamCount;
+    }
+
+    // only the drain thread adds to the counters, so an idle stream can be
+    // removed without racing a send
+    private void pruneStreams() {
+        if (streamInFlight.size() < 1024) {
+            return;
+        }
+        final Iterator<Map.Entry<String, AtomicInteger>> iter = streamInFlight.entrySet().iterator();
+        while (iter.hasNext()) {
+            final Map.Entry<String, AtomicInteger> entry = iter.next();
+            if (entry.getValue().get() == 0 && !deferred.containsKey(entry.getKey())) {
+                iter.remove();
+            }
+        }
+    }
+
+    private static String streamOf(final EventStoreOperation eventStoreOp) {
+        return eventStoreOp.getCollection() + '/' + eventStoreOp.getKey() + '/' + eventStoreOp.getType();
+    }
+
+    /**
+     * A new builder to store events with the {@code client}.
+     *
+     * @param client The client to store events with.
+     * @return A new {@code Builder} with default settings.
+     */
+    public static Builder builder(final Client client) {
+        return new Builder(client);
+    }
+
+    /**
+     * The events that overflowed the queue, as JSON lines in a file.
+     */
+    private static final class Spill {
+
+        /** The file of spilled events. */
+        private final File file;
+        /** The directory of the file. */
+        private final File directory;
+        /** The writer for the file, or {@code null} if it's not open. */
+        private Writer writer;
+        /** The reader for the file, or {@code null} if it's not open. */
+        private BufferedReader reader;
+        /** The number of events written to the file. */
+        private long written;
+        /** The number of events read back from the file. */
+        private long read;
+
+        Spill(final File directory) {
+            this.directory = directory;
+            this.file = new File(directory, "orchestrate-events-" + UUID.randomUUID() + ".spill");
+            this.writer = null;
+            this.reader = null;
+            this.written = 0;
+            this.read = 0;
+        }
+
+        synchronized void write(final EventStoreOperation eventStoreOp, final ObjectMapper mapper)
+                throws IOException {
+            if (writer == null) {
+                if (!directory.isDirectory() && !directory.mkdirs()) {
+                    throw new IOException("Couldn't create the spill directory '" + directory + "'.");
+                }
+                writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8));
+            }
+
+            final ObjectNode node = mapper.createObjectNode();
+            node.put("collection", eventStoreOp.getCollection());
+            node.put("key", eventStoreOp.getKey());
+            node.put("type", eventStoreOp.getType());
+            if (eventStoreOp.hasTimestamp()) {
+                node.put("timestamp", eventStoreOp.getTimestamp());
+            }
+            final Object value = eventStoreOp.getValue();
+            node.put("value", (value instanceof String) ? (String) value : mapper.writeValueAsString(value));
+
+            // readers only read as many lines as have been flushed whole
+            writer.write(node.toString());
+            writer.write('\n');
+            writer.flush();
+            written++;
+        }
+
+        synchronized boolean hasPending() {
+            return (read < written);
+        }
+
+        // adds up to max events to the events, or the error of each line
+        // that isn't an event to unreadable
+        synchronized void read(
+                final int max, final ObjectMapper mapper, final List<EventStoreOperation> events,
+                final List<Exception> unreadable) throws IOException {
+            final int count = (int) Math.min(max, written - read);
+            if (count <= 0) {
+                return;
+            }
+            if (reader == null) {
+                reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+            }
+
+            for (int i = 0; i < count; i++) {
+                final String line = reader.readLine();
+                if (line == null) {
+                    throw new EOFException("The spill file '" + file + "' ended early.");
+                }
+                read++;
+                try {
+                    events.add(parse(line, mapper));
+                } catch (final IOException e) {
+                    unreadable.add(e);
+                } catch (final RuntimeException e) {
+                    unreadable.add(e);
+                }
+            }
+
+            // start a new file once everything spilled has been read back
+            if (read == written) {
+                close();
+            }
+        }
+
+        // gives up on the events not yet read back, returns their number
+        synchronized int abandon() {
+            final int lost = (int) (written - read);
+            close();
+            return lost;
+        }
+
+        private static EventStoreOperation parse(final String line, final ObjectMapper mapper) throws IOException {
+            final JsonNode node = mapper.readTree(line);
+            if (node == null || !node.has("collection") || !node.has("key") || !node.has("type")
+                    || !node.has("value")) {
+                throw new IOException("Malformed spilled event: " + line);
+            }
+            final String collection = node.get("collection").asText();
+            final String key = node.get("key").asText();
+            final String type = node.get("type").asText();
+            final String value = node.get("value").asText();
+            return node.has("timestamp")
+                    ? new EventStoreOperation(collection, key, type, value, node.get("timestamp").asLong())
+                    : new EventStoreOperation(collection, key, type, value);
+        }
+
+        synchronized void close() {
+            closeQuietly(writer);
+            closeQuietly(reader);
+            writer = null;
+            reader = null;
+            written = 0;
+            read = 0;
+            if (file.exists() && !file.delete()) {
+                log.warn("Couldn't delete the spill file '{}'.", file);
+            }
+        }
+
+        private static void closeQuietly(@Nullable final Closeable closeable) {
+            if (closeable == null) {
+                return;
+            }
+            try {
+                closeable.close();
+            } catch (final IOException e) {
+                log.debug("Failed to close the spill file.", e);
+            }
+        }
+
+    }
+
+    /**
+     * A point in time copy of the statistics of an {@link EventAppender}.
+     */
+    public static final class Stats {
+
+        /** The number of events appended. */
+        private final long appended;
+        /** The number of events stored. */
+        private final long stored;
+        /** The number of events that couldn't be stored. */
+        private final long failed;
+        /** The number of events dropped. */
+        private final long dropped;
+        /** The number of events spilled to disk. */
+        private final long spilled;
+        /** The number of events in the queue. */
+        private final int queued;
+        /** The number of events in flight. */
+        private final int inFlight;
+
+        private Stats(final long appended, final long stored, final long failed, final long dropped,
+                final long spilled, final int queued, final int inFlight) {
+            this.appended = appended;
+            this.stored = stored;
+            this.failed = failed;
+            this.dropped = dropped;
+            this.spilled = spilled;
+            this.queued = queued;
+            this.inFlight = inFlight;
+        }
+
+        /**
+         * Returns the number of events accepted by the appender.
+         *
+         * @return The number of events appended.
+         */
+        public long getAppended() {
+            return appended;
+        }
+
+        /**
+         * Returns the number of events stored.
+         *
+         * @return The number of events stored.
+         */
+        public long getStored() {
+            return stored;
+        }
+
+        /**
+         * Returns the number of events that couldn't be stored.
+         *
+         * @return The number of failed events.
+         */
+        public long getFailed() {
+            return failed;
+        }
+
+        /**
+         * Returns the number of events dropped because the queue was full.
+         *
+         * @return The number of dropped events.
+         */
+        public long getDropped() {
+            return dropped;
+        }
+
+        /**
+         * Returns the number of events spilled to disk because the queue was
+         * full.
+         *
+         * @return The number of spilled events.
+         */
+        public long getSpilled() {
+            return spilled;
+        }
+
+        /**
+         * Returns the number of events in the queue, including those waiting
+         * for their stream.
+         *
+         * @return The number of queued events.
+         */
+        public int getQueued() {
+            return queued;
+        }
+
+        /**
+         * Returns the number of events in flight.
+         *
+         * @return The number of events in flight.
+         */
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        @Override
+        public String toString() {
+            return "appended=" + appended +
+                    ", stored=" + stored +
+                    ", failed=" + failed +
+                    ", dropped=" + dropped +
+                    ", spilled=" + spilled +
+                    ", queued=" + queued +
+                    ", inFlight=" + inFlight;
+        }
+
+    }
+
+    /**
+     * Builder used to create {@code EventAppender} instances.
+     */
+    public static final class Builder {
+
+        /** The client to store events with. */
+        private final Client client;
+        /** The maximum number of queued events. */
+        private int queueCapacity;
+        /** What to do with an event appended to a full queue. */
+        private OverflowPolicy overflowPolicy;
+        /** The directory for spilled events. */
+        private File spillDirectory;
+        /** The maximum number of events taken from the queue at once. */
+        private int batchSize;
+        /** The number of serializer threads. */
+        private int serializerThreads;
+        /** The maximum number of events in flight. */
+        private int maxInFlight;
+        /** The maximum number of events in flight per stream. */
+        private int maxInFlightPerStream;
+        /** The mapper for spilled events. */
+        private ObjectMapper mapper;
+        /** The listener for failed and dropped events. */
+        private Listener listener;
+
+        private Builder(final Client client) {
+            this.client = checkNotNull(client, "client");
+            this.queueCapacity = 65536;
+            this.overflowPolicy = OverflowPolicy.BLOCK;
+            this.spillDirectory = null;
+            this.batchSize = 256;
+            this.serializerThreads = Runtime.getRuntime().availableProcessors();
+            this.maxInFlight = 256;
+            this.maxInFlightPerStream = 4;
+            this.mapper = new ObjectMapper();
+            this.listener = LOGGING_LISTENER;
+        }
+
+        /**
+         * The maximum number of events in the queue, including those waiting
+         * for their stream. Defaults to {@code 65536}.
+         *
+         * @param queueCapacity The capacity of the queue.
+         * @return This builder.
+         */
+        public Builder queueCapacity(final int queueCapacity) {
+            checkArgument(queueCapacity > 0, "'queueCapacity' must be greater than zero.");
+
+            this.queueCapacity = queueCapacity;
+            return this;
+        }
+
+        /**
+         * What to do with an event appended to a full queue, defaults to
+         * {@link OverflowPolicy#BLOCK}.
+         *
+         * @param overflowPolicy The policy for a full queue.
+         * @return This builder.
+         */
+        public Builder overflowPolicy(final OverflowPolicy overflowPolicy) {
+            this.overflowPolicy = checkNotNull(overflowPolicy, "overflowPolicy");
+            return this;
+        }
+
+        /**
+         * The directory to spill events to with the {@link
+         * OverflowPolicy#SPILL} policy.
+         *
+         * @param spillDirectory The directory for spilled events.
+         * @return This builder.
+         */
+        public Builder spillDirectory(final File spillDirectory) {
+            this.spillDirectory = checkNotNull(spillDirectory, "spillDirectory");
+            return this;
+        }
+
+        /**
+         * The maximum number of events the drain thread takes from the queue
+         * at once, defaults to {@code 256}.
+         *
+         * @param batchSize The size of a batch.
+         * @return This builder.
+         */
+        public Builder batchSize(final int batchSize) {
+            checkArgument(batchSize > 0, "'batchSize' must be greater than zero.");
+
+            this.batchSize = batchSize;
+            return this;
+        }
+
+        /**
+         * The number of threads that serialize and send events, defaults to
+         * the number of processors.
+         *
+         * @param serializerThreads The number of serializer threads.
+         * @return This builder.
+         */
+        public Builder serializerThreads(final int serializerThreads) {
+            checkArgument(serializerThreads > 0, "'serializerThreads' must be greater than zero.");
+
+            this.serializerThreads = serializerThreads;
+            return this;
+        }
+
+        /**
+         * The maximum number of events in flight, defaults to {@code 256}.
+         *
+         * @param maxInFlight The maximum number of events in flight.
+         * @return This builder.
+         */
+        public Builder maxInFlight(final int maxInFlight) {
+            checkArgument(maxInFlight > 0, "'maxInFlight' must be greater than zero.");
+
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * The maximum number of events in flight for each collection, key and
+         * type, defaults to {@code 4}.
+         *
+         * @param maxInFlightPerStream The maximum number of events in flight
+         *                             per stream.
+         * @return This builder.
+         */
+        public Builder maxInFlightPerStream(final int maxInFlightPerStream) {
+            checkArgument(maxInFlightPerStream > 0, "'maxInFlightPerStream' must be greater than zero.");
+
+            this.maxInFlightPerStream = maxInFlightPerStream;
+            return this;
+        }
+
+        /**
+         * The mapper to serialize spilled events with, defaults to a new
+         * {@code ObjectMapper}. It should match the client's mapper.
+         *
+         * @param mapper The mapper for spilled events.
+         * @return This builder.
+         */
+        public Builder mapper(final ObjectMapper mapper) {
+            this.mapper = checkNotNull(mapper, "mapper");
+            return this;
+        }
+
+        /**
+         * The listener for failed and dropped events, defaults to logging
+         * them.
+         *
+         * @param listener The listener for failed and dropped events.
+         * @return This builder.
+         */
+        public Builder listener(@Nullable final Listener listener) {
+            this.listener = (listener == null) ? LOGGING_LISTENER : listener;
+            return this;
+        }
+
+        /**
+         * Creates a new {@code EventAppender} and starts its threads.
+         *
+         * @return A new {@link EventAppender}.
+         */
+        public EventAppender build() {
+            checkArgument(overflowPolicy != OverflowPolicy.SPILL || spillDirectory != null,
+                    "The SPILL policy needs a 'spillDirectory'.");
+
+            return new EventAppender(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,684 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.EqualsAndHashCode;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * Caches the events fetched for time ranges, so overlapping ranges are only
+ * fetched once.
+ *
+ * <p>The cache keeps the time intervals fetched for each collection, key and
+ * type, merging intervals that overlap or touch. A fetch with a {@code start}
+ * and an {@code end} is served from the cache if the range is covered,
+ * otherwise only the gaps are requested. Fetches without both timestamps, or
+ * with their own API key, aren't cached.
+ *
+ * <p>Events stored, purged or deleted through the client invalidate the
+ * cached intervals they could change, events stored by other clients aren't
+ * seen until the intervals are invalidated or evicted. When the cache holds
+ * more than {@link Builder#maxEvents(int)} events the least recently used
+ * keys are evicted, each key and each interval without events counts as one
+ * event towards the bound. A key keeps at most {@link
+ * Builder#maxIntervals(int)} intervals, the intervals furthest from the
+ * latest fetch are dropped first. A key whose first fetch fails isn't kept.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * Client client = new ClientBuilder("your api key")
+ *         .eventCache(EventCache.builder().maxEvents(100000).build())
+ *         .build();
+ * }
+ * </pre>
+ */
+public final class EventCache {
+
+    /** Orders events from the oldest. */
+    private static final Comparator<Event<String>> OLDEST_FIRST = new Comparator<Event<String>>() {
+        @Override
+        public int compare(final Event<String> e1, final Event<String> e2) {
+            final long t1 = e1.getTimestamp();
+            final long t2 = e2.getTimestamp();
+            return (t1 < t2) ? -1 : ((t1 == t2) ? 0 : 1);
+        }
+    };
+
+    /** The builder for this cache. */
+    private final Builder builder;
+    /** The cached intervals of each stream, least recently used first. */
+    private final LinkedHashMap<StreamKey, Stream> streams;
+    /** The last generation given to a stream. */
+    private long generations;
+    /** The number of cached events. */
+    private long eventCount;
+    /** The size of the cache, counted towards {@code maxEvents}. */
+    private long weight;
+    /** The number of fetches served from the cache. */
+    private long hits;
+    /** The number of fetches partly served from the cache. */
+    private long partialHits;
+    /** The number of fetches not served from the cache. */
+    private long misses;
+    /** The number of streams evicted. */
+    private long evictions;
+
+    private EventCache(final Builder builder) {
+        assert (builder != null);
+
+        this.builder = builder;
+        this.streams = new LinkedHashMap<StreamKey, Stream>(16, 0.75f, true);
+        this.generations = 0;
+        this.eventCount = 0;
+        this.weight = 0;
+        this.hits = 0;
+        this.partialHits = 0;
+        this.misses = 0;
+        this.evictions = 0;
+    }
+
+    /**
+     * Removes the cached events of the {@code type} for the {@code key} in
+     * the {@code collection}.
+     *
+     * @param collection The collection containing the key.
+     * @param key The key of the events.
+     * @param type The type of the events.
+     */
+    public void invalidate(final String collection, final String key, final String type) {
+        checkNotNullOrEmpty(collection, "collection");
+        checkNotNullOrEmpty(key, "key");
+        checkNotNullOrEmpty(type, "type");
+
+        invalidate(collection, key, type, null);
+    }
+
+    /**
+     * Removes the cached events of every type for the {@code key} in the
+     * {@code collection}.
+     *
+     * @param collection The collection containing the key.
+     * @param key The key of the events.
+     */
+    public synchronized void invalidate(final String collection, final String key) {
+        checkNotNullOrEmpty(collection, "collection");
+        checkNotNullOrEmpty(key, "key");
+
+        final Iterator<Map.Entry<StreamKey, Stream>> iter = streams.entrySet().iterator();
+        while (iter.hasNext()) {
+            final Map.Entry<StreamKey, Stream> entry = iter.next();
+            if (entry.getKey().collection.equals(collection) && entry.getKey().key.equals(key)) {
+                forget(entry.getValue());
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes the cached events of every key in the {@code collection}.
+     *
+     * @param collection The collection of the events.
+     */
+    public synchronized void invalidateCollection(final String collection) {
+        checkNotNullOrEmpty(collection, "collection");
+
+        final Iterator<Map.Entry<StreamKey, Stream>> iter = streams.entrySet().iterator();
+        while (iter.hasNext()) {
+            final Map.Entry<StreamKey, Stream> entry = iter.next();
+            if (entry.getKey().collection.equals(collection)) {
+                forget(entry.getValue());
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes every cached event.
+     */
+    public synchronized void clear() {
+        streams.clear();
+        eventCount = 0;
+        weight = 0;
+    }
+
+    /**
+     * Returns the number of events in the cache.
+     *
+     * @return The number of cached events.
+     */
+    public synchronized long getEventCount() {
+        return eventCount;
+    }
+
+    /**
+     * Returns the number of fetches served entirely from the cache.
+     *
+     * @return The number of cache hits.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of fetches served partly from the cache, for which
+     * only the gaps were requested.
+     *
+     * @return The number of partial cache hits.
+     */
+    public synchronized long getPartialHitCount() {
+        return partialHits;
+    }
+
+    /**
+     * Returns the number of fetches with nothing cached for their range.
+     *
+     * @return The number of cache misses.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of keys evicted to keep the cache to its size.
+     *
+     * @return The number of evictions.
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Returns whether the events for the {@code eventFetchOp} can be served
+     * from this cache.
+     *
+     * @param eventFetchOp The event fetch operation.
+     * @return {@code true} if the fetch can be cached.
+     */
+    boolean isCacheable(final EventFetchOperation<?> eventFetchOp) {
+        return eventFetchOp.hasStart() && eventFetchOp.hasEnd() && !eventFetchOp.hasApiKey()
+                && eventFetchOp.getEnd() > eventFetchOp.getStart();
+    }
+
+    /**
+     * Fetches the events for the {@code eventFetchOp}, requesting the gaps in
+     * the cached intervals with the {@code client}.
+     *
+     * @param eventFetchOp The event fetch operation, must be cacheable.
+     * @param client The client to fetch the gaps with.
+     * @param mapper The mapper to deserialize the events with.
+     * @param <T> The type to deserialize the events to.
+     * @return The future for the events, newest first.
+     */
+    <T> OrchestrateFuture<Iterable<Event<T>>> fetch(
+            final EventFetchOperation<T> eventFetchOp, final HttpClient client, final ObjectMapper mapper) {
+        assert (isCacheable(eventFetchOp));
+
+        final StreamKey streamKey =
+                new StreamKey(eventFetchOp.getCollection(), eventFetchOp.getKey(), eventFetchOp.getType());
+        final long start = eventFetchOp.getStart();
+        final long end = eventFetchOp.getEnd();
+
+        final List<Event<String>> cached = new ArrayList<Event<String>>();
+        final List<long[]> gaps = new ArrayList<long[]>();
+        final Stream stream;
+        final long generation;
+        synchronized (this) {
+            final Stream existing = streams.get(streamKey);
+            if (existing != null) {
+                stream = existing;
+            } else {
+                // added now, so that a store while the gaps are fetched is seen
+                stream = new Stream(++generations);
+                streams.put(streamKey, stream);
+                weight += stream.weight;
+                evict();
+            }
+            generation = stream.generation;
+
+            long cursor = start;
+            final Map.Entry<Long, Interval> floor = stream.intervals.floorEntry(start);
+            final long from = (floor == null) ? start : floor.getKey();
+            for (final Interval interval : stream.intervals.tailMap(from, true).values()) {
+                if (interval.start >= end) {
+                    break;
+                }
+                if (interval.end <= cursor) {
+                    continue;
+                }
+                if (interval.start > cursor) {
+                    gaps.add(new long[] { cursor, interval.start });
+                }
+                interval.copyTo(cached, cursor, end);
+                cursor = interval.end;
+                if (cursor >= end) {
+                    break;
+                }
+            }
+            if (cursor < end) {
+                gaps.add(new long[] { cursor, end });
+            }
+
+            if (gaps.isEmpty()) {
+                hits++;
+            } else if (cursor == start && gaps.size() == 1) {
+                misses++;
+            } else {
+                partialHits++;
+            }
+        }
+
+        final OrchestrateFutureImpl<Iterable<Event<T>>> future =
+                new OrchestrateFutureImpl<Iterable<Event<T>>>(eventFetchOp);
+        if (gaps.isEmpty()) {
+            complete(future, cached, eventFetchOp.getClazz(), mapper);
+            return future;
+        }
+
+        final List<List<Event<String>>> fetched = new ArrayList<List<Event<String>>>(gaps.size());
+        for (int i = 0; i < gaps.size(); i++) {
+            fetched.add(null);
+        }
+        final AtomicInteger remaining = new AtomicInteger(gaps.size());
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        for (int i = 0; i < gaps.size(); i++) {
+            final int index = i;
+            final long[] gap = gaps.get(i);
+            final EventFetchOperation<String> gapFetchOp = new EventFetchOperation<String>(
+                    streamKey.collection, streamKey.key, streamKey.type, gap[0], gap[1], String.class);
+
+            final OrchestrateFuture<Iterable<Event<String>>> gapFuture;
+            try {
+                gapFuture = client.fetchEvents(gapFetchOp);
+            } catch (final RuntimeException e) {
+                if (failed.compareAndSet(false, true)) {
+                    failed(streamKey, stream);
+                    future.setException(e);
+                }
+                break;
+            }
+            gapFuture.addListener(new OrchestrateFutureListener<Iterable<Event<String>>>() {
+                @Override
+                public void onComplete(final OrchestrateFuture<Iterable<Event<String>>> gapFuture) {
+                    final List<Event<String>> events = new ArrayList<Event<String>>();
+                    try {
+                        for (final Event<String> event : gapFuture.get()) {
+                            events.add(event);
+                        }
+                    } catch (final Exception e) {
+                        onError(e);
+                        return;
+                    }
+                    // the service returns the newest events first
+                    Collections.reverse(events);
+                    synchronized (fetched) {
+                        fetched.set(index, events);
+                    }
+                    if (remaining.decrementAndGet() == 0 && !failed.get()) {
+                        fill(streamKey, generation, gaps, fetched);
+                        synchronized (fetched) {
+                            for (final List<Event<String>> gapEvents : fetched) {
+                                cached.addAll(gapEvents);
+                            }
+                        }
+                        complete(future, cached, eventFetchOp.getClazz(), mapper);
+                    }
+                }
+
+                @Override
+                public void onException(final OrchestrateFuture<Iterable<Event<String>>> gapFuture) {
+                    try {
+                        gapFuture.get();
+                        onError(new IllegalStateException("The gap request failed without an error."));
+                    } catch (final ExecutionException e) {
+                        onError(e.getCause());
+                    } catch (final InterruptedException e) {
+                        onError(e);
+                    }
+                }
+
+                private void onError(final Throwable error) {
+                    if (failed.compareAndSet(false, true)) {
+                        failed(streamKey, stream);
+                        future.setException(error);
+                    }
+                }
+            });
+        }
+        return future;
+    }
+
+    /**
+     * Invalidates the cached intervals that the {@code eventStoreOp} could
+     * change.
+     *
+     * @param eventStoreOp The event store operation.
+     */
+    void invalidate(final EventStoreOperation eventStoreOp) {
+        invalidate(eventStoreOp.getCollection(), eventStoreOp.getKey(), eventStoreOp.getType(),
+                eventStoreOp.getTimestamp());
+    }
+
+    private synchronized void invalidate(
+            final String collection, final String key, final String type, @Nullable final Long timestamp) {
+        final Stream stream = streams.get(new StreamKey(collection, key, type));
+        if (stream == null) {
+            return;
+        }
+        stream.generation = ++generations;
+
+        if (timestamp == null) {
+            // the service gives the event a timestamp, it could be in any interval
+            for (final Interval interval : stream.intervals.values()) {
+                removed(stream, interval);
+            }
+            stream.intervals.clear();
+            return;
+        }
+        final Map.Entry<Long, Interval> floor = stream.intervals.floorEntry(timestamp);
+        if (floor != null && floor.getValue().end > timestamp) {
+            stream.intervals.remove(floor.getKey());
+            removed(stream, floor.getValue());
+        }
+    }
+
+    // drops the stream added by a fetch that failed, unless a fetch since
+    // has cached something for it
+    private synchronized void failed(final StreamKey streamKey, final Stream stream) {
+        if (streams.get(streamKey) == stream && stream.intervals.isEmpty()) {
+            streams.remove(streamKey);
+            forget(stream);
+        }
+    }
+
+    private synchronized void fill(
+            final StreamKey streamKey, final long generation, final List<long[]> gaps,
+            final List<List<Event<String>>> fetched) {
+        final Stream stream = streams.get(streamKey);
+        if (stream == null || stream.generation != generation) {
+            // evicted or invalidated while the gaps were fetched
+            return;
+        }
+
+        synchronized (fetched) {
+            for (int i = 0; i < gaps.size(); i++) {
+                final Interval inserted = insert(stream, gaps.get(i)[0], gaps.get(i)[1], fetched.get(i));
+                trim(stream, inserted);
+            }
+        }
+        evict();
+    }
+
+    // called while holding the lock, evicts the least recently used streams
+    // until the cache is within its bound
+    private void evict() {
+        final Iterator<Stream> iter = streams.values().iterator();
+        while (weight > builder.maxEvents && iter.hasNext()) {
+            forget(iter.next());
+            iter.remove();
+            evictions++;
+        }
+    }
+
+    // called while holding the lock, drops the intervals furthest from the
+    // interval just inserted until the stream is within its bound
+    private void trim(final Stream stream, final Interval inserted) {
+        while (stream.intervals.size() > builder.maxIntervals) {
+            final Interval first = stream.intervals.firstEntry().getValue();
+            final Interval last = stream.intervals.lastEntry().getValue();
+            final Interval furthest = (inserted.start - first.end > last.start - inserted.end) ? first : last;
+            stream.intervals.remove(furthest.start);
+            removed(stream, furthest);
+        }
+    }
+
+    // called while holding the lock, takes the stream out of the totals
+    private void forget(final Stream stream) {
+        eventCount -= stream.eventCount;
+        weight -= stream.weight;
+    }
+
+    // called while holding the lock, counts an interval added to the stream
+    private void added(final Stream stream, final Interval interval) {
+        stream.eventCount += interval.events.size();
+        stream.weight += interval.weight();
+        eventCount += interval.events.size();
+        weight += interval.weight();
+    }
+
+    // called while holding the lock, counts an interval removed from the stream
+    private void removed(final Stream stream, final Interval interval) {
+        stream.eventCount -= interval.events.size();
+        stream.weight -= interval.weight();
+        eventCount -= interval.events.size();
+        weight -= interval.weight();
+    }
+
+    // called while holding the lock, merges the interval with the intervals it
+    // overlaps or touches
+    private Interval insert(
+            final Stream stream, final long start, final long end, final List<Event<String>> events) {
+        long mergedStart = start;
+        long mergedEnd = end;
+        final List<Event<String>> merged = new ArrayList<Event<String>>(events);
+
+        final Map.Entry<Long, Interval> floor = stream.intervals.floorEntry(start);
+        final long from = (floor != null && floor.getValue().end >= start) ? floor.getKey() : start;
+        final Iterator<Interval> iter = stream.intervals.tailMap(from, true).values().iterator();
+        while (iter.hasNext()) {
+            final Interval interval = iter.next();
+            if (interval.start > end) {
+                break;
+            }
+            mergedStart = Math.min(mergedStart, interval.start);
+            mergedEnd = Math.max(mergedEnd, interval.end);
+            for (final Event<String> event : interval.events) {
+                if (event.getTimestamp() < start || event.getTimestamp() >= end) {
+                    merged.add(event);
+                }
+            }
+            iter.remove();
+            removed(stream, interval);
+        }
+
+        Collections.sort(merged, OLDEST_FIRST);
+        final Interval interval = new Interval(mergedStart, mergedEnd, merged);
+        stream.intervals.put(mergedStart, interval);
+        added(stream, interval);
+        return interval;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> void complete(
+            final OrchestrateFutureImpl<Iterable<Event<T>>> future, final List<Event<String>> events,
+            final Class<T> clazz, final ObjectMapper mapper) {
+        Collections.sort(events, OLDEST_FIRST);
+
+        // returned newest first, like the service
+        final List<Event<T>> result = new ArrayList<Event<T>>(events.size());
+        try {
+            for (int i = events.size() - 1; i >= 0; i--) {
+                final Event<String> event = events.get(i);
+                final String rawValue = event.rawValue();
+                final T value = (clazz == String.class) ? (T) rawValue : mapper.readValue(rawValue, clazz);
+                result.add(new Event<T>(value, rawValue, event.getTimestamp()));
+            }
+        } catch (final IOException e) {
+            future.setException(e);
+            return;
+        }
+        future.setResult(result);
+    }
+
+    /**
+     * A new builder to create an {@code EventCache} with default settings.
+     *
+     * @return A new {@code Builder} with default settings.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * The collection, key and type of cached events.
+     */
+    @EqualsAndHashCode
+    private static final class StreamKey {
+
+        /** The collection containing the key. */
+        final String collection;
+        /** The key of the events. */
+        final String key;
+        /** The type of the events. */
+        final String type;
+
+        StreamKey(final String collection, final String key, final String type) {
+            this.collection = collection;
+            this.key = key;
+            this.type = type;
+        }
+
+    }
+
+    /**
+     * The cached intervals of a collection, key and type.
+     */
+    private static final class Stream {
+
+        /** The disjoint intervals, by their start timestamp. */
+        final TreeMap<Long, Interval> intervals;
+        /** Changed whenever the stream is invalidated. */
+        long generation;
+        /** The number of events in the intervals. */
+        int eventCount;
+        /** The size of the stream, one plus the weight of its intervals. */
+        int weight;
+
+        Stream(final long generation) {
+            this.intervals = new TreeMap<Long, Interval>();
+            this.generation = generation;
+            this.eventCount = 0;
+            this.weight = 1;
+        }
+
+    }
+
+    /**
+     * A time interval and the events stored in it.
+     */
+    private static final class Interval {
+
+        /** The timestamp the interval starts at, inclusive. */
+        final long start;
+        /** The timestamp the interval ends at, exclusive. */
+        final long end;
+        /** The events in the interval, oldest first. */
+        final List<Event<String>> events;
+
+        Interval(final long start, final long end, final List<Event<String>> events) {
+            this.start = start;
+            this.end = end;
+            this.events = events;
+        }
+
+        // an interval without events still takes room in the cache
+        int weight() {
+            return Math.max(1, events.size());
+        }
+
+        void copyTo(final List<Event<String>> target, final long from, final long to) {
+            // binary search for the first event at or after 'from'
+            int low = 0;
+            int high = events.size();
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                if (events.get(mid).getTimestamp() < from) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            for (int i = low; i < events.size() && events.get(i).getTimestamp() < to; i++) {
+                target.add(events.get(i));
+            }
+        }
+
+    }
+
+    /**
+     * Builder used to create {@code EventCache} instances.
+     */
+    public static final class Builder {
+
+        /** The maximum number of cached events. */
+        private int maxEvents;
+        /** The maximum number of intervals cached for a stream. */
+        private int maxIntervals;
+
+        private Builder() {
+            maxEvents = 100000;
+            maxIntervals = 64;
+        }
+
+        /**
+         * The maximum number of events to cache, defaults to {@code 100000}.
+         * Each key and each interval without events counts as one event.
+         *
+         * @param maxEvents The maximum number of cached events.
+         * @return This builder.
+         */
+        public Builder maxEvents(final int maxEvents) {
+            checkArgument(maxEvents > 0, "'maxEvents' must be greater than zero.");
+
+            this.maxEvents = maxEvents;
+            return this;
+        }
+
+        /**
+         * The maximum number of disjoint intervals to cache for the events of
+         * a collection, key and type, defaults to {@code 64}.
+         *
+         * @param maxIntervals The maximum number of intervals for a key.
+         * @return This builder.
+         */
+        public Builder maxIntervals(final int maxIntervals) {
+            checkArgument(maxIntervals > 0, "'maxIntervals' must be greater than zero.");
+
+            this.maxIntervals = maxIntervals;
+            return this;
+        }
+
+        /**
+         * Creates a new {@code EventCache}.
+         *
+         * @return A new {@link EventCache}.
+         */
+        public EventCache build() {
+            return new EventCache(this);
+        }
+
+    }
+
+}
@@ -219,6 +219,10 @@ public final class EventFetchOperation<T> extends AbstractOperation<Iterable<Eve
         return end;
     }
 
+    Class<T> getClazz() {
+        return clazz;
+    }
+
     /**
      * Returns whether a start timestamp was supplied to this operation.
      *
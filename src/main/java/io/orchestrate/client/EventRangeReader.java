@@ -0,0 +1,505 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * Reads the events of a key over a large time range, in timestamp order.
+ *
+ * <p>The range is split into consecutive time windows that are fetched
+ * concurrently, at most {@link Builder#maxInFlight(int)} at once. The events
+ * of a window are read once every earlier window has been read, and a window
+ * is released as soon as it's been read, so only the windows in flight are
+ * held in memory rather than the whole range.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * EventRangeReader<MyObject> reader = EventRangeReader
+ *         .builder(client, "myCollection", "someKey", "eventType", MyObject.class)
+ *         .range(start, end)
+ *         .windowSize(1, TimeUnit.HOURS)
+ *         .build();
+ * EventRangeReader.EventIterator<MyObject> iter = reader.iterator();
+ * try {
+ *     while (iter.hasNext()) {
+ *         System.out.println(iter.next().getTimestamp());
+ *     }
+ * } finally {
+ *     iter.close();
+ * }
+ * }
+ * </pre>
+ *
+ * @param <T> The type to deserialize the events to.
+ */
+public final class EventRangeReader<T> {
+
+    /** The client to fetch events with. */
+    private final Client client;
+    /** The collection containing the key. */
+    private final String collection;
+    /** The key to read events for. */
+    private final String key;
+    /** The type of events to read. */
+    private final String type;
+    /** Type information for marshalling objects at runtime. */
+    private final Class<T> clazz;
+    /** The timestamp to read events from, inclusive. */
+    private final long start;
+    /** The timestamp to read events up to, exclusive. */
+    private final long end;
+    /** The length of a window, in milliseconds. */
+    private final long windowMillis;
+    /** The maximum number of windows fetched at once. */
+    private final int maxInFlight;
+    /** Whether to read the newest events first. */
+    private final boolean newestFirst;
+
+    private EventRangeReader(final Builder<T> builder) {
+        assert (builder != null);
+
+        this.client = builder.client;
+        this.collection = builder.collection;
+        this.key = builder.key;
+        this.type = builder.type;
+        this.clazz = builder.clazz;
+        this.start = builder.start;
+        this.end = builder.end;
+        this.windowMillis = builder.windowMillis;
+        this.maxInFlight = builder.maxInFlight;
+        this.newestFirst = builder.newestFirst;
+    }
+
+    /**
+     * Starts reading the events, the first windows are requested straight
+     * away.
+     *
+     * @return An iterator over the events in the range.
+     */
+    public EventIterator<T> iterator() {
+        return new EventIterator<T>(this);
+    }
+
+    /**
+     * Returns the number of windows the range is split into.
+     *
+     * @return The number of windows.
+     */
+    public long getWindowCount() {
+        return ((end - start) + windowMillis - 1) / windowMillis;
+    }
+
+    /**
+     * A new builder to read the events of the {@code type} for the {@code key}
+     * in the {@code collection}.
+     *
+     * @param client The client to fetch events with.
+     * @param collection The collection containing the key.
+     * @param key The key to read events for.
+     * @param type The type of events to read.
+     * @param clazz Type information for deserializing to type {@code T} at
+     *              runtime.
+     * @param <T> The type to deserialize the events to.
+     * @return A new {@code Builder}.
+     */
+    public static <T> Builder<T> builder(
+            final Client client, final String collection, final String key, final String type,
+            final Class<T> clazz) {
+        return new Builder<T>(client, collection, key, type, clazz);
+    }
+
+    /**
+     * An iterator over the events of an {@code EventRangeReader}.
+     *
+     * <p>A failed request is rethrown from {@link #hasNext()} as a {@link
+     * ClientException}. The iterator should be closed if it isn't read to the
+     * end, so that no more windows are requested.
+     *
+     * @param <T> The type to deserialize the events to.
+     */
+    public static final class EventIterator<T> implements Iterator<Event<T>>, Closeable {
+
+        /** The reader being iterated. */
+        private final EventRangeReader<T> reader;
+        /** The lock for the windows. */
+        private final ReentrantLock lock;
+        /** Signalled when a window arrives or a request fails. */
+        private final Condition windowArrived;
+        /** The windows requested and not yet read, in order, guarded by the lock. */
+        private final Deque<Window<T>> windows;
+        /** The index of the next window to request, guarded by the lock. */
+        private long nextWindow;
+        /** The error a request failed with, guarded by the lock. */
+        private Throwable failure;
+        /** Whether this iterator has been closed, guarded by the lock. */
+        private boolean closed;
+
+        private EventIterator(final EventRangeReader<T> reader) {
+            assert (reader != null);
+
+            this.reader = reader;
+            this.lock = new ReentrantLock();
+            this.windowArrived = lock.newCondition();
+            this.windows = new ArrayDeque<Window<T>>(reader.maxInFlight);
+            this.nextWindow = 0;
+            this.failure = null;
+            this.closed = false;
+        }
+
+        /**
+         * Returns whether there are more events, waiting for the next window
+         * to arrive if needed.
+         *
+         * @return {@code true} if there are more events.
+         * @throws ClientException If a request failed or the thread was
+         *         interrupted while waiting.
+         */
+        @Override
+        public boolean hasNext() {
+            return (head() != null);
+        }
+
+        @Override
+        public Event<T> next() {
+            final Window<T> window = head();
+            if (window == null) {
+                throw new NoSuchElementException();
+            }
+            lock.lock();
+            try {
+                // release each event as it's read
+                final Event<T> event = window.events.get(window.position);
+                window.events.set(window.position++, null);
+                return event;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Stops requesting windows, requests already in flight are ignored
+         * when they complete.
+         */
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                closed = true;
+                windows.clear();
+                windowArrived.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // waits until the first unread window has arrived, requesting windows
+        // to keep up to 'maxInFlight' ahead of the reader
+        private Window<T> head() {
+            while (true) {
+                List<Window<T>> planned;
+                lock.lock();
+                try {
+                    while (true) {
+                        if (failure != null) {
+                            throw new ClientException(failure);
+                        }
+                        if (closed) {
+                            return null;
+                        }
+
+                        final Window<T> head = windows.peek();
+                        if (head != null && head.events != null && head.position >= head.events.size()) {
+                            windows.poll();
+                            continue;
+                        }
+                        planned = plan();
+                        if (!planned.isEmpty()) {
+                            break;
+                        }
+                        if (head == null) {
+                            return null;
+                        }
+                        if (head.events != null) {
+                            return head;
+                        }
+                        windowArrived.await();
+                    }
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new ClientException(e);
+                } finally {
+                    lock.unlock();
+                }
+
+                // the requests are sent without holding the lock
+                for (final Window<T> window : planned) {
+                    fetch(window);
+                }
+            }
+        }
+
+        // called while holding the lock
+        private List<Window<T>> plan() {
+            final long windowCount = reader.getWindowCount();
+            if (windows.size() >= reader.maxInFlight || nextWindow >= windowCount) {
+                return Collections.emptyList();
+            }
+
+            final List<Window<T>> planned = new ArrayList<Window<T>>(reader.maxInFlight - windows.size());
+            while (windows.size() < reader.maxInFlight && nextWindow < windowCount) {
+                final long offset = nextWindow * reader.windowMillis;
+                final long windowStart;
+                final long windowEnd;
+                if (reader.newestFirst) {
+                    windowEnd = reader.end - offset;
+                    windowStart = Math.max(windowEnd - reader.windowMillis, reader.start);
+                } else {
+                    windowStart = reader.start + offset;
+                    windowEnd = Math.min(windowStart + reader.windowMillis, reader.end);
+                }
+                final Window<T> window = new Window<T>(windowStart, windowEnd);
+                windows.add(window);
+                planned.add(window);
+                nextWindow++;
+            }
+            return planned;
+        }
+
+        private void fetch(final Window<T> window) {
+            final EventFetchOperation<T> eventFetchOp = new EventFetchOperation<T>(
+                    reader.collection, reader.key, reader.type, window.start, window.end, reader.clazz);
+
+            final OrchestrateFuture<Iterable<Event<T>>> future;
+            try {
+                future = reader.client.execute(eventFetchOp);
+            } catch (final RuntimeException e) {
+                failed(e);
+                return;
+            }
+            future.addListener(new OrchestrateFutureListener<Iterable<Event<T>>>() {
+                @Override
+                public void onComplete(final OrchestrateFuture<Iterable<Event<T>>> future) {
+                    try {
+                        arrived(window, future.get());
+                    } catch (final InterruptedException e) {
+                        failed(e);
+                    } catch (final ExecutionException e) {
+                        failed(e.getCause());
+                    }
+                }
+
+                @Override
+                public void onException(final OrchestrateFuture<Iterable<Event<T>>> future) {
+                    try {
+                        future.get();
+                        failed(new IllegalStateException("The window request failed without an error."));
+                    } catch (final InterruptedException e) {
+                        failed(e);
+                    } catch (final ExecutionException e) {
+                        failed(e.getCause());
+                    }
+                }
+            });
+        }
+
+        private void arrived(final Window<T> window, final Iterable<Event<T>> events) {
+            // the service returns the newest events first
+            final List<Event<T>> ordered = new ArrayList<Event<T>>();
+            for (final Event<T> event : events) {
+                ordered.add(event);
+            }
+            if (!reader.newestFirst) {
+                Collections.reverse(ordered);
+            }
+
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                window.events = ordered;
+                windowArrived.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void failed(final Throwable t) {
+            lock.lock();
+            try {
+                failure = t;
+                windowArrived.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+    }
+
+    /**
+     * A time window of an {@code EventRangeReader}.
+     *
+     * @param <T> The type to deserialize the events to.
+     */
+    private static final class Window<T> {
+
+        /** The timestamp the window starts at, inclusive. */
+        final long start;
+        /** The timestamp the window ends at, exclusive. */
+        final long end;
+        /** The events of the window, {@code null} until they arrive. */
+        List<Event<T>> events;
+        /** The index of the next event to read. */
+        int position;
+
+        Window(final long start, final long end) {
+            this.start = start;
+            this.end = end;
+            this.events = null;
+            this.position = 0;
+        }
+
+    }
+
+    /**
+     * Builder used to create {@code EventRangeReader} instances.
+     *
+     * @param <T> The type to deserialize the events to.
+     */
+    public static final class Builder<T> {
+
+        /** The client to fetch events with. */
+        private final Client client;
+        /** The collection containing the key. */
+        private final String collection;
+        /** The key to read events for. */
+        private final String key;
+        /** The type of events to read. */
+        private final String type;
+        /** Type information for marshalling objects at runtime. */
+        private final Class<T> clazz;
+        /** The timestamp to read events from, inclusive. */
+        private long start;
+        /** The timestamp to read events up to, exclusive. */
+        private long end;
+        /** The length of a window, in milliseconds. */
+        private long windowMillis;
+        /** The maximum number of windows fetched at once. */
+        private int maxInFlight;
+        /** Whether to read the newest events first. */
+        private boolean newestFirst;
+
+        private Builder(
+                final Client client, final String collection, final String key, final String type,
+                final Class<T> clazz) {
+            this.client = checkNotNull(client, "client");
+            this.collection = checkNotNullOrEmpty(collection, "collection");
+            this.key = checkNotNullOrEmpty(key, "key");
+            this.type = checkNotNullOrEmpty(type, "type");
+            this.clazz = checkNotNull(clazz, "clazz");
+            this.start = -1;
+            this.end = -1;
+            this.windowMillis = TimeUnit.HOURS.toMillis(1);
+            this.maxInFlight = 4;
+            this.newestFirst = false;
+        }
+
+        /**
+         * The time range to read events from, required.
+         *
+         * @param start The timestamp to read events from, inclusive.
+         * @param end The timestamp to read events up to, exclusive.
+         * @return This builder.
+         */
+        public Builder<T> range(final long start, final long end) {
+            checkArgument(start >= 0, "'start' cannot be negative.");
+            checkArgument(end > start, "'end' must be after 'start'.");
+
+            this.start = start;
+            this.end = end;
+            return this;
+        }
+
+        /**
+         * The length of the windows the range is split into, defaults to one
+         * hour.
+         *
+         * @param windowSize The length of a window.
+         * @param unit The unit of time of the {@code windowSize}.
+         * @return This builder.
+         */
+        public Builder<T> windowSize(final long windowSize, final TimeUnit unit) {
+            checkNotNull(unit, "unit");
+            checkArgument(unit.toMillis(windowSize) > 0, "'windowSize' must be at least one millisecond.");
+
+            this.windowMillis = unit.toMillis(windowSize);
+            return this;
+        }
+
+        /**
+         * The maximum number of windows fetched at once, defaults to {@code
+         * 4}.
+         *
+         * @param maxInFlight The maximum number of windows in flight.
+         * @return This builder.
+         */
+        public Builder<T> maxInFlight(final int maxInFlight) {
+            checkArgument(maxInFlight > 0, "'maxInFlight' must be greater than zero.");
+
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Whether to read the newest events first, defaults to {@code false}
+         * (the oldest events first).
+         *
+         * @param newestFirst {@code true} to read the newest events first.
+         * @return This builder.
+         */
+        public Builder<T> newestFirst(final boolean newestFirst) {
+            this.newestFirst = newestFirst;
+            return this;
+        }
+
+        /**
+         * Creates a new {@code EventRangeReader}.
+         *
+         * @return A new {@link EventRangeReader}.
+         */
+        public EventRangeReader<T> build() {
+            checkArgument(start >= 0, "A 'range' is required.");
+
+            return new EventRangeReader<T>(this);
+        }
+
+    }
+
+}
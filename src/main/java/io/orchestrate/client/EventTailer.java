@@ -0,0 +1,497 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * Follows the new events of many keys with a bounded number of requests.
+ *
+ * <p>Each subscription is polled with an {@link EventFetchOperation} that
+ * starts at the timestamp of the last event it has seen, so only the new
+ * events are downloaded. The events at that timestamp are fetched again and
+ * filtered out by their raw value, so a subscriber sees each event once (two
+ * events with the same timestamp and value are seen as one). A subscription that
+ * finds new events is polled again after the {@link
+ * Builder#minInterval(long, TimeUnit) minimum interval}; one that doesn't is
+ * polled half as often each time, up to the {@link Builder#maxInterval(long,
+ * TimeUnit) maximum interval}. Subscriptions are polled in the order they're
+ * due, with at most {@link Builder#maxInFlight(int)} requests at once.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * EventTailer tailer = EventTailer.builder(client).build();
+ * tailer.subscribe("myCollection", "someKey", "eventType", MyObject.class,
+ *         new EventTailer.Listener<MyObject>() {
+ *             public void onEvents(List<Event<MyObject>> events) { ... }
+ *             public void onFailure(Throwable error) { ... }
+ *         });
+ * ...
+ * tailer.close();
+ * }
+ * </pre>
+ */
+@Slf4j
+public final class EventTailer implements Closeable {
+
+    /**
+     * Receives the new events of a subscription.
+     *
+     * <p>The methods are called from the client's I/O threads, one at a time
+     * for each subscription.
+     *
+     * @param <T> The type to deserialize the events to.
+     */
+    public interface Listener<T> {
+
+        /**
+         * Invoked with the new events of the subscription.
+         *
+         * @param events The new events, oldest first.
+         */
+        void onEvents(final List<Event<T>> events);
+
+        /**
+         * Invoked when a poll failed, the subscription is polled again after
+         * the maximum interval.
+         *
+         * @param error The error the poll failed with.
+         */
+        void onFailure(final Throwable error);
+
+    }
+
+    /** Orders the subscriptions by when they're due to be polled. */
+    private static final Comparator<Subscription<?>> DUE_FIRST = new Comparator<Subscription<?>>() {
+        @Override
+        public int compare(final Subscription<?> s1, final Subscription<?> s2) {
+            return (s1.nextPollNanos < s2.nextPollNanos) ? -1 : ((s1.nextPollNanos == s2.nextPollNanos) ? 0 : 1);
+        }
+    };
+
+    /** The builder for this tailer. */
+    private final Builder builder;
+    /** The thread that starts the polls. */
+    private final ScheduledExecutorService timer;
+    /** The subscriptions waiting to be polled, guarded by this. */
+    private final PriorityQueue<Subscription<?>> due;
+    /** The number of polls in flight, guarded by this. */
+    private int inFlight;
+    /** The number of polls made. */
+    private final AtomicLong polls;
+    /** The number of new events delivered. */
+    private final AtomicLong delivered;
+    /** Whether this tailer has been closed, guarded by this. */
+    private boolean closed;
+
+    private EventTailer(final Builder builder) {
+        assert (builder != null);
+
+        this.builder = builder;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "OrchestrateEventTailer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.due = new PriorityQueue<Subscription<?>>(16, DUE_FIRST);
+        this.inFlight = 0;
+        this.polls = new AtomicLong(0);
+        this.delivered = new AtomicLong(0);
+        this.closed = false;
+
+        // check a few times per minimum interval for subscriptions that are due
+        final long tick = Math.max(TimeUnit.MILLISECONDS.toNanos(1), builder.minIntervalNanos / 4);
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pollDue();
+                } catch (final RuntimeException e) {
+                    log.warn("Event tailer poll failed.", e);
+                }
+            }
+        }, 0, tick, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Follows the events stored from now on of the {@code type} for the
+     * {@code key} in the {@code collection}.
+     *
+     * @param collection The collection containing the key.
+     * @param key The key to follow events for.
+     * @param type The type of events to follow.
+     * @param clazz Type information for deserializing to type {@code T} at
+     *              runtime.
+     * @param listener The listener for new events.
+     * @param <T> The type to deserialize the events to.
+     * @return The subscription, to cancel it with.
+     */
+    public <T> Subscription<T> subscribe(
+            final String collection, final String key, final String type, final Class<T> clazz,
+            final Listener<T> listener) {
+        return subscribe(collection, key, type, System.currentTimeMillis(), clazz, listener);
+    }
+
+    /**
+     * Follows the events of the {@code type} for the {@code key} in the
+     * {@code collection}, from the {@code start} timestamp on.
+     *
+     * @param collection The collection containing the key.
+     * @param key The key to follow events for.
+     * @param type The type of events to follow.
+     * @param start The timestamp to deliver events from, inclusive.
+     * @param clazz Type information for deserializing to type {@code T} at
+     *              runtime.
+     * @param listener The listener for new events.
+     * @param <T> The type to deserialize the events to.
+     * @return The subscription, to cancel it with.
+     */
+    public <T> Subscription<T> subscribe(
+            final String collection, final String key, final String type, final long start,
+            final Class<T> clazz, final Listener<T> listener) {
+        checkNotNullOrEmpty(collection, "collection");
+        checkNotNullOrEmpty(key, "key");
+        checkNotNullOrEmpty(type, "type");
+        checkArgument(start >= 0, "'start' cannot be negative.");
+        checkNotNull(clazz, "clazz");
+        checkNotNull(listener, "listener");
+
+        final Subscription<T> subscription =
+                new Subscription<T>(this, collection, key, type, start, clazz, listener);
+        synchronized (this) {
+            if (closed) {
+                throw new IllegalStateException("The tailer has been closed.");
+            }
+            subscription.nextPollNanos = System.nanoTime();
+            due.add(subscription);
+        }
+        return subscription;
+    }
+
+    /**
+     * Returns the number of polls made so far.
+     *
+     * @return The number of polls.
+     */
+    public long getPollCount() {
+        return polls.get();
+    }
+
+    /**
+     * Returns the number of new events delivered so far.
+     *
+     * @return The number of events delivered.
+     */
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    /**
+     * Cancels every subscription and stops the tailer's thread, polls already
+     * in flight are ignored when they complete.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            for (final Subscription<?> subscription : due) {
+                subscription.cancelled = true;
+            }
+            due.clear();
+        }
+        timer.shutdownNow();
+    }
+
+    private void pollDue() {
+        final List<Subscription<?>> ready = new ArrayList<Subscription<?>>();
+        synchronized (this) {
+            final long now = System.nanoTime();
+            while (inFlight < builder.maxInFlight && !due.isEmpty() && due.peek().nextPollNanos - now <= 0) {
+                ready.add(due.poll());
+                inFlight++;
+            }
+        }
+
+        // the requests are sent without holding the lock
+        for (final Subscription<?> subscription : ready) {
+            polls.incrementAndGet();
+            subscription.poll();
+        }
+    }
+
+    private synchronized void polled(final Subscription<?> subscription, final long intervalNanos) {
+        inFlight--;
+        if (closed || subscription.cancelled) {
+            return;
+        }
+        subscription.nextPollNanos = System.nanoTime() + intervalNanos;
+        due.add(subscription);
+    }
+
+    private synchronized void cancel(final Subscription<?> subscription) {
+        subscription.cancelled = true;
+        due.remove(subscription);
+    }
+
+    /**
+     * A key followed by an {@code EventTailer}.
+     *
+     * @param <T> The type to deserialize the events to.
+     */
+    public static final class Subscription<T> {
+
+        /** The tailer polling this subscription. */
+        private final EventTailer tailer;
+        /** The collection containing the key. */
+        private final String collection;
+        /** The key to follow events for. */
+        private final String key;
+        /** The type of events to follow. */
+        private final String type;
+        /** Type information for marshalling objects at runtime. */
+        private final Class<T> clazz;
+        /** The listener for new events. */
+        private final Listener<T> listener;
+        /** The raw values of the events delivered at the last timestamp. */
+        private final Set<String> seenAtLast;
+        /** The timestamp of the last event delivered, or the start. */
+        private volatile long lastTimestamp;
+        /** The time to wait after an empty poll. */
+        private long intervalNanos;
+        /** When the subscription is due to be polled, guarded by the tailer. */
+        private long nextPollNanos;
+        /** Whether the subscription has been cancelled, guarded by the tailer. */
+        private boolean cancelled;
+
+        private Subscription(
+                final EventTailer tailer, final String collection, final String key, final String type,
+                final long start, final Class<T> clazz, final Listener<T> listener) {
+            this.tailer = tailer;
+            this.collection = collection;
+            this.key = key;
+            this.type = type;
+            this.clazz = clazz;
+            this.listener = listener;
+            this.seenAtLast = new HashSet<String>();
+            this.lastTimestamp = start;
+            this.intervalNanos = tailer.builder.minIntervalNanos;
+            this.nextPollNanos = 0;
+            this.cancelled = false;
+        }
+
+        /**
+         * Returns the timestamp of the last event delivered, or the start
+         * timestamp if none has been.
+         *
+         * @return The timestamp the next poll starts from.
+         */
+        public long getLastTimestamp() {
+            return lastTimestamp;
+        }
+
+        /**
+         * Stops following the key, a poll already in flight is delivered.
+         */
+        public void cancel() {
+            tailer.cancel(this);
+        }
+
+        private void poll() {
+            final EventFetchOperation<T> eventFetchOp =
+                    new EventFetchOperation<T>(collection, key, type, lastTimestamp, clazz);
+
+            final OrchestrateFuture<Iterable<Event<T>>> future;
+            try {
+                future = tailer.builder.client.execute(eventFetchOp);
+            } catch (final RuntimeException e) {
+                failed(e);
+                return;
+            }
+            future.addListener(new OrchestrateFutureListener<Iterable<Event<T>>>() {
+                @Override
+                public void onComplete(final OrchestrateFuture<Iterable<Event<T>>> future) {
+                    try {
+                        arrived(future.get());
+                    } catch (final InterruptedException e) {
+                        failed(e);
+                    } catch (final ExecutionException e) {
+                        failed(e.getCause());
+                    }
+                }
+
+                @Override
+                public void onException(final OrchestrateFuture<Iterable<Event<T>>> future) {
+                    try {
+                        future.get();
+                        failed(new IllegalStateException("The poll failed without an error."));
+                    } catch (final InterruptedException e) {
+                        failed(e);
+                    } catch (final ExecutionException e) {
+                        failed(e.getCause());
+                    }
+                }
+            });
+        }
+
+        private void arrived(final Iterable<Event<T>> events) {
+            // the service returns the newest events first
+            final List<Event<T>> fresh = new ArrayList<Event<T>>();
+            for (final Event<T> event : events) {
+                if (event.getTimestamp() > lastTimestamp
+                        || (event.getTimestamp() == lastTimestamp && !seenAtLast.contains(event.rawValue()))) {
+                    fresh.add(event);
+                }
+            }
+            Collections.reverse(fresh);
+
+            final Builder builder = tailer.builder;
+            if (fresh.isEmpty()) {
+                intervalNanos = Math.min(intervalNanos * 2, builder.maxIntervalNanos);
+            } else {
+                final long newest = fresh.get(fresh.size() - 1).getTimestamp();
+                if (newest != lastTimestamp) {
+                    seenAtLast.clear();
+                }
+                for (int i = fresh.size() - 1; i >= 0 && fresh.get(i).getTimestamp() == newest; i--) {
+                    seenAtLast.add(fresh.get(i).rawValue());
+                }
+                lastTimestamp = newest;
+                intervalNanos = builder.minIntervalNanos;
+
+                tailer.delivered.addAndGet(fresh.size());
+                try {
+                    listener.onEvents(Collections.unmodifiableList(fresh));
+                } catch (final RuntimeException e) {
+                    log.warn("Event tailer listener failed.", e);
+                }
+            }
+            tailer.polled(this, intervalNanos);
+        }
+
+        private void failed(final Throwable error) {
+            intervalNanos = tailer.builder.maxIntervalNanos;
+            try {
+                listener.onFailure(error);
+            } catch (final RuntimeException e) {
+                log.warn("Event tailer listener failed.", e);
+            }
+            tailer.polled(this, intervalNanos);
+        }
+
+    }
+
+    /**
+     * A new builder to follow events with the {@code client}.
+     *
+     * @param client The client to poll for events with.
+     * @return A new {@code Builder} with default settings.
+     */
+    public static Builder builder(final Client client) {
+        return new Builder(client);
+    }
+
+    /**
+     * Builder used to create {@code EventTailer} instances.
+     */
+    public static final class Builder {
+
+        /** The client to poll for events with. */
+        private final Client client;
+        /** The time to wait after a poll that found events. */
+        private long minIntervalNanos;
+        /** The longest time to wait between polls. */
+        private long maxIntervalNanos;
+        /** The maximum number of polls in flight. */
+        private int maxInFlight;
+
+        private Builder(final Client client) {
+            this.client = checkNotNull(client, "client");
+            this.minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(500);
+            this.maxIntervalNanos = TimeUnit.SECONDS.toNanos(30);
+            this.maxInFlight = 4;
+        }
+
+        /**
+         * The time to wait before polling a subscription that found new
+         * events, defaults to {@code 500ms}.
+         *
+         * @param minInterval The minimum time between polls.
+         * @param unit The unit of time of the {@code minInterval}.
+         * @return This builder.
+         */
+        public Builder minInterval(final long minInterval, final TimeUnit unit) {
+            checkArgument(minInterval > 0, "'minInterval' must be greater than zero.");
+            checkNotNull(unit, "unit");
+
+            this.minIntervalNanos = unit.toNanos(minInterval);
+            return this;
+        }
+
+        /**
+         * The longest time to wait before polling a subscription that hasn't
+         * found new events, defaults to {@code 30s}.
+         *
+         * @param maxInterval The maximum time between polls.
+         * @param unit The unit of time of the {@code maxInterval}.
+         * @return This builder.
+         */
+        public Builder maxInterval(final long maxInterval, final TimeUnit unit) {
+            checkArgument(maxInterval > 0, "'maxInterval' must be greater than zero.");
+            checkNotNull(unit, "unit");
+
+            this.maxIntervalNanos = unit.toNanos(maxInterval);
+            return this;
+        }
+
+        /**
+         * The maximum number of polls in flight for all the subscriptions,
+         * defaults to {@code 4}.
+         *
+         * @param maxInFlight The maximum number of polls in flight.
+         * @return This builder.
+         */
+        public Builder maxInFlight(final int maxInFlight) {
+            checkArgument(maxInFlight > 0, "'maxInFlight' must be greater than zero.");
+
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Creates a new {@code EventTailer} and starts its thread.
+         *
+         * @return A new {@link EventTailer}.
+         */
+        public EventTailer build() {
+            checkArgument(maxIntervalNanos >= minIntervalNanos, "'maxInterval' cannot be less than 'minInterval'.");
+
+            return new EventTailer(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,590 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import lombok.EqualsAndHashCode;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * Traverses the relations from a set of start keys, breadth first.
+ *
+ * <p>Each hop fetches the relations of the {@link Builder#kinds(String...)
+ * kinds} for every node found in the hop before, with up to {@link
+ * Builder#maxInFlight(int)} requests at once across all the nodes. A node is
+ * visited once, at the depth it's first found, and the traversal stops after
+ * {@link Builder#maxDepth(int)} hops or when {@link Builder#maxNodes(int)}
+ * nodes have been found. {@link Builder#maxFanOut(int)} bounds the number of
+ * related nodes taken from each request.
+ *
+ * <p>Hops are expanded one at a time, so that every node is found at its
+ * shortest depth. Nodes are delivered to the {@link Listener} in the order
+ * they're found, from the client's I/O threads but never concurrently, and
+ * the listener isn't called while the traversal holds its lock. The
+ * traversal's future completes once the last node has been delivered.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * // friends of friends
+ * Future<Integer> done = GraphTraversal.builder(client)
+ *         .start("users", "alice", "bob")
+ *         .kinds("friend")
+ *         .maxDepth(2)
+ *         .build()
+ *         .start(new GraphTraversal.Listener() {
+ *             public void onNode(GraphTraversal.Node node) {
+ *                 System.out.println(node.getKey() + " at depth " + node.getDepth());
+ *             }
+ *         });
+ * done.get();
+ * }
+ * </pre>
+ */
+public final class GraphTraversal {
+
+    /**
+     * Receives the nodes found by a {@code GraphTraversal}.
+     */
+    public interface Listener {
+
+        /**
+         * Invoked for each node found, an exception thrown from this method
+         * fails the traversal.
+         *
+         * @param node The node found.
+         */
+        void onNode(final Node node);
+
+    }
+
+    /** The client to fetch relations with. */
+    private final Client client;
+    /** The nodes to start from. */
+    private final List<NodeId> startNodes;
+    /** The kinds of relation to follow at each hop. */
+    private final String[] kinds;
+    /** The maximum number of hops from the start nodes. */
+    private final int maxDepth;
+    /** The maximum number of related nodes taken from each request. */
+    private final int maxFanOut;
+    /** The maximum number of nodes to find. */
+    private final int maxNodes;
+    /** The maximum number of requests in flight. */
+    private final int maxInFlight;
+    /** The result of the traversal, the number of nodes found. */
+    private final ResultFuture<Integer> result;
+    /** The nodes visited, including the start nodes. */
+    private final Set<NodeId> visited;
+    /** The requests of the current hop. */
+    private List<Expansion> hop;
+    /** The nodes found in the current hop. */
+    private List<Node> found;
+    /** The depth of the current hop. */
+    private int depth;
+    /** The index of the next request of the current hop. */
+    private int nextRequest;
+    /** The number of requests in flight. */
+    private int inFlight;
+    /** The number of nodes found. */
+    private int nodeCount;
+    /** The listener for the nodes, or {@code null} until started. */
+    private Listener listener;
+    /** The requests waiting to be sent. */
+    private final Queue<Expansion> unsent;
+    /** Whether a thread is sending the unsent requests. */
+    private boolean sending;
+    /** The nodes found and not yet delivered to the listener. */
+    private final Queue<Node> undelivered;
+    /** Whether a thread is delivering the undelivered nodes. */
+    private boolean delivering;
+    /** Whether the traversal has found all its nodes. */
+    private boolean finished;
+
+    private GraphTraversal(final Builder builder) {
+        assert (builder != null);
+
+        this.client = builder.client;
+        this.startNodes = new ArrayList<NodeId>(builder.startNodes);
+        this.kinds = builder.kinds.toArray(new String[builder.kinds.size()]);
+        this.maxDepth = builder.maxDepth;
+        this.maxFanOut = builder.maxFanOut;
+        this.maxNodes = builder.maxNodes;
+        this.maxInFlight = builder.maxInFlight;
+        this.result = new ResultFuture<Integer>();
+        this.visited = new HashSet<NodeId>(startNodes);
+        this.hop = Collections.emptyList();
+        this.found = new ArrayList<Node>();
+        this.depth = 0;
+        this.nextRequest = 0;
+        this.inFlight = 0;
+        this.nodeCount = 0;
+        this.listener = null;
+        this.unsent = new ArrayDeque<Expansion>();
+        this.sending = false;
+        this.undelivered = new ArrayDeque<Node>();
+        this.delivering = false;
+        this.finished = false;
+    }
+
+    /**
+     * Starts the traversal, the returned future completes with the number of
+     * nodes found, not counting the start nodes.
+     *
+     * @param listener The listener for the nodes found.
+     * @return A future for the end of the traversal, cancelling it stops the
+     *         traversal from requesting more relations.
+     */
+    public Future<Integer> start(final Listener listener) {
+        checkNotNull(listener, "listener");
+
+        final List<Expansion> requests;
+        synchronized (this) {
+            checkArgument(this.listener == null, "The traversal has already been started.");
+            this.listener = listener;
+
+            final List<Node> roots = new ArrayList<Node>(startNodes.size());
+            for (final NodeId id : startNodes) {
+                roots.add(new Node(id.collection, id.key, 0, null, null));
+            }
+            requests = nextHop(roots);
+        }
+        send(requests);
+        deliver();
+        return result;
+    }
+
+    /**
+     * Returns the number of nodes found so far, not counting the start nodes.
+     *
+     * @return The number of nodes found.
+     */
+    public synchronized int getNodeCount() {
+        return nodeCount;
+    }
+
+    // called while holding the lock
+    private List<Expansion> nextHop(final List<Node> nodes) {
+        if (nodes.isEmpty() || depth >= maxDepth) {
+            finished = true;
+            return Collections.emptyList();
+        }
+
+        depth++;
+        hop = new ArrayList<Expansion>(nodes.size() * kinds.length);
+        for (final Node node : nodes) {
+            for (final String kind : kinds) {
+                hop.add(new Expansion(node, kind));
+            }
+        }
+        found = new ArrayList<Node>();
+        nextRequest = 0;
+        return take();
+    }
+
+    // called while holding the lock
+    private List<Expansion> take() {
+        final List<Expansion> requests = new ArrayList<Expansion>();
+        while (inFlight < maxInFlight && nextRequest < hop.size()) {
+            requests.add(hop.get(nextRequest++));
+            inFlight++;
+        }
+        return requests;
+    }
+
+    // a response served from a cache completes on the sending thread, the
+    // requests it leads to are queued for this loop rather than sent from
+    // within it, so the stack doesn't grow with the number of hits
+    private void send(final List<Expansion> requests) {
+        synchronized (this) {
+            unsent.addAll(requests);
+            if (sending) {
+                return;
+            }
+            sending = true;
+        }
+
+        while (true) {
+            final Expansion expansion;
+            synchronized (this) {
+                expansion = unsent.poll();
+                if (expansion == null || result.isDone()) {
+                    unsent.clear();
+                    sending = false;
+                    return;
+                }
+            }
+
+            final RelationFetchOperation relationFetchOp = new RelationFetchOperation(
+                    expansion.from.collection, expansion.from.key, expansion.kind);
+            final OrchestrateFuture<Iterable<KvObject<String>>> future;
+            try {
+                future = client.execute(relationFetchOp);
+            } catch (final RuntimeException e) {
+                result.fail(e);
+                continue;
+            }
+            future.addListener(new OrchestrateFutureListener<Iterable<KvObject<String>>>() {
+                @Override
+                public void onComplete(final OrchestrateFuture<Iterable<KvObject<String>>> future) {
+                    try {
+                        expanded(expansion, future.get());
+                    } catch (final ExecutionException e) {
+                        result.fail(e.getCause());
+                    } catch (final Throwable t) {
+                        result.fail(t);
+                    }
+                }
+
+                @Override
+                public void onException(final OrchestrateFuture<Iterable<KvObject<String>>> future) {
+                    result.failFrom(future);
+                }
+            });
+        }
+    }
+
+    private void expanded(final Expansion expansion, final Iterable<KvObject<String>> related) {
+        final List<Expansion> requests;
+        synchronized (this) {
+            if (finished || result.isDone()) {
+                return;
+            }
+            inFlight--;
+
+            int taken = 0;
+            for (final KvObject<String> kvObject : related) {
+                if (taken >= maxFanOut || nodeCount >= maxNodes) {
+                    break;
+                }
+                taken++;
+                final NodeId id = new NodeId(kvObject.getCollection(), kvObject.getKey());
+                if (!visited.add(id)) {
+                    continue;
+                }
+                final Node node = new Node(id.collection, id.key, depth, expansion.kind, kvObject);
+                found.add(node);
+                undelivered.add(node);
+                nodeCount++;
+            }
+
+            if (nodeCount >= maxNodes) {
+                finished = true;
+                requests = Collections.emptyList();
+            } else if (inFlight == 0 && nextRequest >= hop.size()) {
+                requests = nextHop(found);
+            } else {
+                requests = take();
+            }
+        }
+        deliver();
+        send(requests);
+    }
+
+    // delivers the nodes found to the listener from one thread at a time,
+    // without holding the lock, and completes the traversal once it's
+    // finished and every node has been delivered
+    private void deliver() {
+        synchronized (this) {
+            if (delivering) {
+                return;
+            }
+            delivering = true;
+        }
+
+        while (true) {
+            final List<Node> nodes;
+            synchronized (this) {
+                if (undelivered.isEmpty() || result.isDone()) {
+                    undelivered.clear();
+                    delivering = false;
+                    if (finished) {
+                        result.complete(nodeCount);
+                    }
+                    return;
+                }
+                nodes = new ArrayList<Node>(undelivered);
+                undelivered.clear();
+            }
+
+            for (final Node node : nodes) {
+                try {
+                    listener.onNode(node);
+                } catch (final Throwable t) {
+                    result.fail(t);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * A new builder to traverse relations with the {@code client}.
+     *
+     * @param client The client to fetch relations with.
+     * @return A new {@code Builder} with default settings.
+     */
+    public static Builder builder(final Client client) {
+        return new Builder(client);
+    }
+
+    /**
+     * A node found by a {@code GraphTraversal}.
+     */
+    public static final class Node {
+
+        /** The collection of the node. */
+        private final String collection;
+        /** The key of the node. */
+        private final String key;
+        /** The number of hops from the start nodes. */
+        private final int depth;
+        /** The kind of relation the node was found by. */
+        private final String kind;
+        /** The object of the node. */
+        private final KvObject<String> kvObject;
+
+        private Node(final String collection, final String key, final int depth,
+                @Nullable final String kind, @Nullable final KvObject<String> kvObject) {
+            this.collection = collection;
+            this.key = key;
+            this.depth = depth;
+            this.kind = kind;
+            this.kvObject = kvObject;
+        }
+
+        /**
+         * Returns the collection of this node.
+         *
+         * @return The collection of this node.
+         */
+        public String getCollection() {
+            return collection;
+        }
+
+        /**
+         * Returns the key of this node.
+         *
+         * @return The key of this node.
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * Returns the number of hops from the start nodes to this node.
+         *
+         * @return The depth of this node, from {@code 1}.
+         */
+        public int getDepth() {
+            return depth;
+        }
+
+        /**
+         * Returns the kind of relation this node was found by.
+         *
+         * @return The kind of relation.
+         */
+        public String getKind() {
+            return kind;
+        }
+
+        /**
+         * Returns the object of this node, with its raw JSON value.
+         *
+         * @return The object of this node.
+         */
+        public KvObject<String> getKvObject() {
+            return kvObject;
+        }
+
+        @Override
+        public String toString() {
+            return collection + '/' + key + " (depth " + depth + ')';
+        }
+
+    }
+
+    /**
+     * The collection and key of a node.
+     */
+    @EqualsAndHashCode
+    private static final class NodeId {
+
+        /** The collection of the node. */
+        final String collection;
+        /** The key of the node. */
+        final String key;
+
+        NodeId(final String collection, final String key) {
+            this.collection = collection;
+            this.key = key;
+        }
+
+    }
+
+    /**
+     * A request for the relations of one kind from a node.
+     */
+    private static final class Expansion {
+
+        /** The node to fetch the relations of. */
+        final Node from;
+        /** The kind of relation. */
+        final String kind;
+
+        Expansion(final Node from, final String kind) {
+            this.from = from;
+            this.kind = kind;
+        }
+
+    }
+
+    /**
+     * Builder used to create {@code GraphTraversal} instances.
+     */
+    public static final class Builder {
+
+        /** The client to fetch relations with. */
+        private final Client client;
+        /** The nodes to start from. */
+        private final Set<NodeId> startNodes;
+        /** The kinds of relation to follow at each hop. */
+        private final Set<String> kinds;
+        /** The maximum number of hops from the start nodes. */
+        private int maxDepth;
+        /** The maximum number of related nodes taken from each request. */
+        private int maxFanOut;
+        /** The maximum number of nodes to find. */
+        private int maxNodes;
+        /** The maximum number of requests in flight. */
+        private int maxInFlight;
+
+        private Builder(final Client client) {
+            this.client = checkNotNull(client, "client");
+            this.startNodes = new LinkedHashSet<NodeId>();
+            this.kinds = new LinkedHashSet<String>();
+            this.maxDepth = 2;
+            this.maxFanOut = Integer.MAX_VALUE;
+            this.maxNodes = Integer.MAX_VALUE;
+            this.maxInFlight = 8;
+        }
+
+        /**
+         * Add keys in the {@code collection} to start the traversal from.
+         *
+         * @param collection The collection of the keys.
+         * @param keys The keys to start from.
+         * @return This builder.
+         */
+        public Builder start(final String collection, final String... keys) {
+            checkNotNullOrEmpty(collection, "collection");
+            checkNotNull(keys, "keys");
+            for (final String key : keys) {
+                startNodes.add(new NodeId(collection, checkNotNullOrEmpty(key, "key")));
+            }
+            return this;
+        }
+
+        /**
+         * Add kinds of relation to follow at each hop.
+         *
+         * @param kinds The kinds of relation.
+         * @return This builder.
+         */
+        public Builder kinds(final String... kinds) {
+            checkNotNull(kinds, "kinds");
+            for (final String kind : kinds) {
+                this.kinds.add(checkNotNullOrEmpty(kind, "kind"));
+            }
+            return this;
+        }
+
+        /**
+         * The maximum number of hops from the start nodes, defaults to {@code
+         * 2}.
+         *
+         * @param maxDepth The maximum depth of the traversal.
+         * @return This builder.
+         */
+        public Builder maxDepth(final int maxDepth) {
+            checkArgument(maxDepth > 0, "'maxDepth' must be greater than zero.");
+
+            this.maxDepth = maxDepth;
+            return this;
+        }
+
+        /**
+         * The maximum number of related nodes taken from the relations of one
+         * kind for a node, unbounded by default.
+         *
+         * @param maxFanOut The maximum fan out of a node.
+         * @return This builder.
+         */
+        public Builder maxFanOut(final int maxFanOut) {
+            checkArgument(maxFanOut > 0, "'maxFanOut' must be greater than zero.");
+
+            this.maxFanOut = maxFanOut;
+            return this;
+        }
+
+        /**
+         * The maximum number of nodes to find, unbounded by default.
+         *
+         * @param maxNodes The maximum number of nodes.
+         * @return This builder.
+         */
+        public Builder maxNodes(final int maxNodes) {
+            checkArgument(maxNodes > 0, "'maxNodes' must be greater than zero.");
+
+            this.maxNodes = maxNodes;
+            return this;
+        }
+
+        /**
+         * The maximum number of relation requests in flight, defaults to
+         * {@code 8}.
+         *
+         * @param maxInFlight The maximum number of requests in flight.
+         * @return This builder.
+         */
+        public Builder maxInFlight(final int maxInFlight) {
+            checkArgument(maxInFlight > 0, "'maxInFlight' must be greater than zero.");
+
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Creates a new {@code GraphTraversal}.
+         *
+         * @return A new {@link GraphTraversal}.
+         */
+        public GraphTraversal build() {
+            checkArgument(!startNodes.isEmpty(), "At least one start key is required.");
+            checkArgument(!kinds.isEmpty(), "At least one kind of relation is required.");
+
+            return new GraphTraversal(this);
+        }
+
+    }
+
+}
@@ -23,7 +23,6 @@ import org.glassfish.grizzly.filterchain.FilterChainBuilder;
 import org.glassfish.grizzly.filterchain.TransportFilter;
 import org.glassfish.grizzly.http.*;
 import org.glassfish.grizzly.http.util.Header;
-import org.glassfish.grizzly.http.util.UEncoder;
 import org.glassfish.grizzly.memory.ByteBufferWrapper;
 import org.glassfish.grizzly.nio.NIOTransport;
 import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
@@ -33,10 +32,19 @@ import org.glassfish.grizzly.ssl.SSLFilter;
 import org.glassfish.grizzly.strategies.WorkerThreadIOStrategy;
 import org.glassfish.grizzly.threadpool.ThreadPoolConfig;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static io.orchestrate.client.Preconditions.*;
 
@@ -56,10 +64,27 @@ import static io.orchestrate.client.Preconditions.*;
 @Slf4j
 public final class HttpClient implements Client {
 
+    /** The source of IDs to register the metrics of each client under. */
+    private static final AtomicInteger CLIENT_IDS = new AtomicInteger(0);
+    /** The time to wait for the final metrics report when the client stops. */
+    private static final long FINAL_REPORT_TIMEOUT_SECONDS = 5;
+
     /** The builder for this instance of the client. */
     private final ClientBuilder builder;
     /** The transport implementation for socket handling. */
     private final NIOTransport transport;
+    /** The pool of connections shared by all operations. */
+    private final ConnectionPool connectionPool;
+    /** The prefix for request paths with the version of the API to use. */
+    private final String uriPrefix;
+    /** The metrics recorded for the operations executed by this client. */
+    private final ClientMetrics metrics;
+    /** The name the metrics are registered with JMX under, or {@code null}. */
+    private final ObjectName metricsName;
+    /** The executor to report metrics with, or {@code null}. */
+    private final ScheduledExecutorService reporterExecutor;
+    /** The buffer for unconditional KV stores, or {@code null}. */
+    private final WriteBehindBuffer writeBehind;
 
     /**
      * Create a new {@code client} with the specified {@code apiKey} and default
@@ -109,6 +134,8 @@ public final class HttpClient implements Client {
         assert (builder != null);
 
         this.builder = builder;
+        this.uriPrefix = "/".concat(builder.getVersion().name());
+        this.metrics = new ClientMetrics();
 
         // TODO allow a custom executor service to be provided?
         final ThreadPoolConfig poolConfig = ThreadPoolConfig.defaultConfig()
@@ -117,8 +144,10 @@ public final class HttpClient implements Client {
                 .setMaxPoolSize(builder.getMaxPoolSize());
 
         // TODO add support for GZip compression
+        final ClientFilter clientFilter = new ClientFilter(builder, metrics);
         final FilterChainBuilder filterChainBuilder = FilterChainBuilder.stateless()
-                .add(new TransportFilter());
+                .add(new TransportFilter())
+                .add(new ByteCountingFilter(metrics));
         if (builder.isUseSSL()) {
             final SSLEngineConfigurator serverConfig = initializeSSL();
             final SSLEngineConfigurator clientConfig = serverConfig.copy().setClientMode(true);
@@ -127,7 +156,7 @@ public final class HttpClient implements Client {
         }
         filterChainBuilder
                 .add(new HttpClientFilter())
-                .add(new ClientFilter(builder));
+                .add(clientFilter);
         // TODO experiment with the Leader-Follower IOStrategy
         this.transport = TCPNIOTransportBuilder.newInstance()
                 .setTcpNoDelay(true)
@@ -136,20 +165,65 @@ public final class HttpClient implements Client {
                 .setIOStrategy(WorkerThreadIOStrategy.getInstance())
                 .setProcessor(filterChainBuilder.build())
                 .build();
+        this.connectionPool = new ConnectionPool(transport, builder);
+        clientFilter.setConnectionPool(connectionPool);
+        metrics.setConnectionPool(connectionPool);
+
+        this.metricsName = (builder.isUseJmx()) ? registerMetrics(metrics) : null;
+        this.reporterExecutor = (builder.getMetricsReporter() != null)
+                ? scheduleReporter(metrics, builder.getMetricsReporter(), builder.getMetricsReportPeriodMillis())
+                : null;
+        this.writeBehind = (builder.getWriteBehindNanos() > 0)
+                ? WriteBehindBuffer.builder(this)
+                        .flushWindow(builder.getWriteBehindNanos(), TimeUnit.NANOSECONDS)
+                        .build()
+                : null;
     }
 
-    private Future<Connection> newConnection() {
+    private static ObjectName registerMetrics(final ClientMetrics metrics) {
         try {
-            if (transport.isStopped()) {
-                transport.start();
+            final ObjectName name = new ObjectName(
+                    "io.orchestrate.client:type=ClientMetrics,name=client-" + CLIENT_IDS.incrementAndGet());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            return name;
+        } catch (final JMException e) {
+            throw new ClientException(e);
+        }
+    }
+
+    private static ScheduledExecutorService scheduleReporter(
+            final ClientMetrics metrics, final MetricsReporter reporter, final long periodMillis) {
+        final ScheduledExecutorService executor =
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread(r, "OrchestrateClientMetricsReporter");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                report(metrics, reporter);
             }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        return executor;
+    }
 
-            return transport.connect(builder.getHost().getHost(), builder.getPort());
-        } catch (final Exception e) {
-            throw new ClientException(e);
+    private static void report(final ClientMetrics metrics, final MetricsReporter reporter) {
+        try {
+            reporter.report(metrics);
+        } catch (final RuntimeException e) {
+            // keep reporting at the next interval
+            log.warn("Metrics reporter failed.", e);
         }
     }
 
+    private RequestUri uri() {
+        return RequestUri.create(uriPrefix);
+    }
+
     private static SSLEngineConfigurator initializeSSL() {
         final SSLContextConfigurator sslContextConfig = new SSLContextConfigurator();
         return new SSLEngineConfigurator(sslContextConfig.createSSLContext(),
@@ -164,8 +238,46 @@ public final class HttpClient implements Client {
         final OrchestrateFuture<Boolean> future =
                 new OrchestrateFutureImpl<Boolean>(deleteOp);
 
-        final UEncoder urlEncoder = new UEncoder();
-        final String uri = urlEncoder.encodeURL(deleteOp.getCollection());
+        if (writeBehind != null) {
+            writeBehind.discardCollection(deleteOp.getCollection());
+        }
+
+        final EventCache eventCache = builder.getEventCache();
+        if (eventCache != null) {
+            invalidateAround(future, new Runnable() {
+                @Override
+                public void run() {
+                    eventCache.invalidateCollection(deleteOp.getCollection());
+                }
+            });
+        }
+        final RelationCache relationCache = builder.getRelationCache();
+        if (relationCache != null) {
+            invalidateAround(future, new Runnable() {
+                @Override
+                public void run() {
+                    relationCache.invalidateCollection(deleteOp.getCollection());
+                }
+            });
+        }
+        final KvCache kvCache = builder.getKvCache();
+        if (kvCache != null) {
+            invalidateAround(future, new Runnable() {
+                @Override
+                public void run() {
+                    kvCache.invalidateCollection(deleteOp.getCollection());
+                }
+            });
+        }
+
+        execute(newRequest(deleteOp), future);
+        return future;
+    }
+
+    HttpContent newRequest(final DeleteOperation deleteOp) {
+        assert (deleteOp != null);
+
+        final String uri = uri().append(deleteOp.getCollection()).toString();
 
         final HttpRequestPacket.Builder httpHeaderBuilder = HttpRequestPacket
                 .builder()
@@ -173,8 +285,7 @@ public final class HttpClient implements Client {
                 .uri(uri)
                 .query("force=true");
 
-        execute(httpHeaderBuilder.build().httpContentBuilder().build(), future);
-        return future;
+        return httpHeaderBuilder.build().httpContentBuilder().build();
     }
 
     /** {@inheritDoc} */
@@ -185,10 +296,40 @@ public final class HttpClient implements Client {
         final OrchestrateFuture<Boolean> future =
                 new OrchestrateFutureImpl<Boolean>(kvDeleteOp);
 
-        final UEncoder urlEncoder = new UEncoder();
-        final String uri = urlEncoder.encodeURL(kvDeleteOp.getCollection())
-                .concat("/")
-                .concat(urlEncoder.encodeURL(kvDeleteOp.getKey()));
+        if (writeBehind != null) {
+            writeBehind.discard(kvDeleteOp.getCollection(), kvDeleteOp.getKey());
+        }
+
+        final RelationCache relationCache = builder.getRelationCache();
+        if (relationCache != null) {
+            invalidateAround(future, new Runnable() {
+                @Override
+                public void run() {
+                    relationCache.invalidateObject(kvDeleteOp.getCollection(), kvDeleteOp.getKey());
+                }
+            });
+        }
+        final KvCache kvCache = builder.getKvCache();
+        if (kvCache != null) {
+            invalidateAround(future, new Runnable() {
+                @Override
+                public void run() {
+                    kvCache.invalidate(kvDeleteOp.getCollection(), kvDeleteOp.getKey());
+                }
+            });
+        }
+
+        execute(newRequest(kvDeleteOp), future);
+        return future;
+    }
+
+    HttpContent newRequest(final KvDeleteOperation kvDeleteOp) {
+        assert (kvDeleteOp != null);
+
+        final String uri = uri()
+                .append(kvDeleteOp.getCollection())
+                .append(kvDeleteOp.getKey())
+                .toString();
 
         final HttpRequestPacket.Builder httpHeaderBuilder = HttpRequestPacket
                 .builder()
@@ -199,8 +340,7 @@ public final class HttpClient implements Client {
             httpHeaderBuilder.header(Header.IfMatch, value);
         }
 
-        execute(httpHeaderBuilder.build().httpContentBuilder().build(), future);
-        return future;
+        return httpHeaderBuilder.build().httpContentBuilder().build();
     }
 
     /** {@inheritDoc} */
@@ -211,10 +351,49 @@ public final class HttpClient implements Client {
         final OrchestrateFuture<Boolean> future =
                 new OrchestrateFutureImpl<Boolean>(kvPurgeOp);
 
-        final UEncoder urlEncoder = new UEncoder();
-        final String uri = urlEncoder.encodeURL(kvPurgeOp.getCollection())
-                .concat("/")
-                .concat(urlEncoder.encodeURL(kvPurgeOp.getKey()));
+        if (writeBehind != null) {
+            writeBehind.discard(kvPurgeOp.getCollection(), kvPurgeOp.getKey());
+        }
+
+        final EventCache eventCache = builder.getEventCache();
+        if (eventCache != null) {
+            invalidateAround(future, new Runnable() {
+                @Override
+                public void run() {
+                    eventCache.invalidate(kvPurgeOp.getCollection(), kvPurgeOp.getKey());
+                }
+            });
+        }
+        final RelationCache relationCache = builder.getRelationCache();
+        if (relationCache != null) {
+            invalidateAround(future, new Runnable() {
+                @Override
+                public void run() {
+                    relationCache.invalidateObject(kvPurgeOp.getCollection(), kvPurgeOp.getKey());
+                }
+            });
+        }
+        final KvCache kvCache = builder.getKvCache();
+        if (kvCache != null) {
+            invalidateAround(future, new Runnable() {
+                @Override
+                public void run() {
+                    kvCache.invalidate(kvPurgeOp.getCollection(), kvPurgeOp.getKey());
+                }
+            });
+        }
+
+        execute(newRequest(kvPurgeOp), future);
+        return future;
+    }
+
+    HttpContent newRequest(final KvPurgeOperation kvPurgeOp) {
+        assert (kvPurgeOp != null);
+
+        final String uri = uri()
+                .append(kvPurgeOp.getCollection())
+                .append(kvPurgeOp.getKey())
+                .toString();
 
         final HttpRequestPacket.Builder httpHeaderBuilder = HttpRequestPacket
                 .builder()
@@ -226,8 +405,7 @@ public final class HttpClient implements Client {
             httpHeaderBuilder.header(Header.IfMatch, value);
         }
 
-        execute(httpHeaderBuilder.build().httpContentBuilder().build(), future);
-        return future;
+        return httpHeaderBuilder.build().httpContentBuilder().build();
     }
 
     /** {@inheritDoc} */
@@ -235,31 +413,52 @@ public final class HttpClient implements Client {
     public <T> OrchestrateFuture<Iterable<Event<T>>> execute(final EventFetchOperation<T> eventFetchOp) {
         checkNotNull(eventFetchOp, "eventFetchOp");
 
+        final EventCache eventCache = builder.getEventCache();
+        if (eventCache != null && eventCache.isCacheable(eventFetchOp)) {
+            return eventCache.fetch(eventFetchOp, this, builder.getMapper().getMapper());
+        }
+        return fetchEvents(eventFetchOp);
+    }
+
+    <T> OrchestrateFuture<Iterable<Event<T>>> fetchEvents(final EventFetchOperation<T> eventFetchOp) {
+        assert (eventFetchOp != null);
+
         final OrchestrateFuture<Iterable<Event<T>>> future =
                 new OrchestrateFutureImpl<Iterable<Event<T>>>(eventFetchOp);
 
-        final UEncoder urlEncoder = new UEncoder();
-        final String uri = urlEncoder.encodeURL(eventFetchOp.getCollection())
-                .concat("/")
-                .concat(urlEncoder.encodeURL(eventFetchOp.getKey()))
-                .concat("/events/")
-                .concat(urlEncoder.encodeURL(eventFetchOp.getType()));
+        execute(newRequest(eventFetchOp), future);
+        return future;
+    }
+
+    HttpContent newRequest(final EventFetchOperation<?> eventFetchOp) {
+        assert (eventFetchOp != null);
+
+        final String uri = uri()
+                .append(eventFetchOp.getCollection())
+                .append(eventFetchOp.getKey())
+                .append("events")
+                .append(eventFetchOp.getType())
+                .toString();
 
         final HttpRequestPacket.Builder httpHeaderBuilder = HttpRequestPacket
                 .builder()
                 .method(Method.GET)
                 .uri(uri);
-        String query = null;
-        if (eventFetchOp.hasStart()) {
-            query += "start=" + eventFetchOp.getStart();
-        }
-        if (eventFetchOp.hasEnd()) {
-            query += "&end=" + eventFetchOp.getEnd();
+        if (eventFetchOp.hasStart() || eventFetchOp.hasEnd()) {
+            final StringBuilder query = new StringBuilder(48);
+            if (eventFetchOp.hasStart()) {
+                query.append("start=").append(eventFetchOp.getStart());
+            }
+            if (eventFetchOp.hasEnd()) {
+                if (query.length() > 0) {
+                    query.append('&');
+                }
+                query.append("end=").append(eventFetchOp.getEnd());
+            }
+            httpHeaderBuilder.query(query.toString());
         }
-        httpHeaderBuilder.query(query);
 
-        execute(httpHeaderBuilder.build().httpContentBuilder().build(), future);
-        return future;
+        return httpHeaderBuilder.build().httpContentBuilder().build();
     }
 
     /** {@inheritDoc} */
@@ -270,26 +469,39 @@ public final class HttpClient implements Client {
         final OrchestrateFutureImpl<Boolean> future =
                 new OrchestrateFutureImpl<Boolean>(eventStoreOp);
 
-        final ObjectMapper mapper = builder.getMapper().getMapper();
-        final byte[] content;
+        final HttpContent request;
         try {
-            final Object value = eventStoreOp.getValue();
-            if (value instanceof String) {
-                content = ((String) value).getBytes();
-            } else {
-                content = mapper.writeValueAsBytes(value);
-            }
+            request = newRequest(eventStoreOp);
         } catch (final JsonProcessingException e) {
             future.setException(e);
             return future;
         }
 
-        final UEncoder urlEncoder = new UEncoder();
-        final String uri = urlEncoder.encodeURL(eventStoreOp.getCollection())
-                .concat("/")
-                .concat(urlEncoder.encodeURL(eventStoreOp.getKey()))
-                .concat("/events/")
-                .concat(urlEncoder.encodeURL(eventStoreOp.getType()));
+        final EventCache eventCache = builder.getEventCache();
+        if (eventCache != null) {
+            invalidateAround(future, new Runnable() {
+                @Override
+                public void run() {
+                    eventCache.invalidate(eventStoreOp);
+                }
+            });
+        }
+
+        execute(request, future);
+        return future;
+    }
+
+    HttpContent newRequest(final EventStoreOperation eventStoreOp) throws JsonProcessingException {
+        assert (eventStoreOp != null);
+
+        final byte[] content = serialize(eventStoreOp.getValue());
+
+        final String uri = uri()
+                .append(eventStoreOp.getCollection())
+                .append(eventStoreOp.getKey())
+                .append("events")
+                .append(eventStoreOp.getType())
+                .toString();
 
         final HttpRequestPacket.Builder httpHeaderBuilder = HttpRequestPacket
                 .builder()
@@ -301,13 +513,10 @@ public final class HttpClient implements Client {
         }
         httpHeaderBuilder.contentLength(content.length);
 
-        final HttpContent httpContent = httpHeaderBuilder.build()
+        return httpHeaderBuilder.build()
                 .httpContentBuilder()
                 .content(new ByteBufferWrapper(ByteBuffer.wrap(content)))
                 .build();
-
-        execute(httpContent, future);
-        return future;
     }
 
     /** {@inheritDoc} */
@@ -315,26 +524,81 @@ public final class HttpClient implements Client {
     public <T> OrchestrateFuture<KvObject<T>> execute(final KvFetchOperation<T> kvFetchOp) {
         checkNotNull(kvFetchOp, "kvFetchOp");
 
-        final OrchestrateFuture<KvObject<T>> future =
+        if (writeBehind != null) {
+            // read a buffered store to the key once it lands
+            final OrchestrateFuture<KvObject<T>> deferred = writeBehind.fetchAfterWrite(kvFetchOp);
+            if (deferred != null) {
+                return deferred;
+            }
+        }
+
+        final OrchestrateFutureImpl<KvObject<T>> future =
                 new OrchestrateFutureImpl<KvObject<T>>(kvFetchOp);
 
-        final UEncoder urlEncoder = new UEncoder();
-        String uri = urlEncoder.encodeURL(kvFetchOp.getCollection())
-                .concat("/")
-                .concat(urlEncoder.encodeURL(kvFetchOp.getKey()));
+        final KvCache kvCache = builder.getKvCache();
+        if (kvCache != null && kvCache.isCacheable(kvFetchOp)) {
+            final KvCache.Entry cached = kvCache.lookup(kvFetchOp);
+            if (cached != null) {
+                try {
+                    future.setResult(cached.toKvObject(kvFetchOp, builder.getMapper()));
+                } catch (final IOException e) {
+                    future.setException(e);
+                }
+                return future;
+            }
+
+            // the object isn't cached if it changes while in flight
+            final long generation = kvCache.generation();
+            future.addListener(new OrchestrateFutureListener<KvObject<T>>() {
+                @Override
+                public void onComplete(final OrchestrateFuture<KvObject<T>> future) {
+                    try {
+                        kvCache.fill(kvFetchOp, generation, future.get());
+                    } catch (final Exception e) {
+                        log.debug("Couldn't cache the object fetched for '{}'.", kvFetchOp.getKey(), e);
+                    }
+                }
+
+                @Override
+                public void onException(final OrchestrateFuture<KvObject<T>> future) {}
+            });
+        }
+
+        execute(newRequest(kvFetchOp), future);
+        return future;
+    }
+
+    HttpContent newRequest(final KvFetchOperation<?> kvFetchOp) {
+        assert (kvFetchOp != null);
+
+        final RequestUri uri = uri();
+        if (kvFetchOp.getEncodedPrefix() != null) {
+            // the collection has already been encoded by a prepared fetch
+            uri.appendEncoded(kvFetchOp.getEncodedPrefix());
+        } else {
+            uri.append(kvFetchOp.getCollection());
+        }
+        uri.append(kvFetchOp.getKey());
         if (kvFetchOp.hasRef()) {
-            uri = uri.concat("/refs/")
-                    .concat(kvFetchOp.getRef());
+            uri.append("refs").appendEncoded(kvFetchOp.getRef());
         }
 
         final HttpRequestPacket httpPacket = HttpRequestPacket
                 .builder()
                 .method(Method.GET)
-                .uri(uri)
+                .uri(uri.toString())
                 .build();
 
-        execute(httpPacket.httpContentBuilder().build(), future);
-        return future;
+        return httpPacket.httpContentBuilder().build();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public <T> Future<Map<String, KvObject<T>>> execute(final KvMultiFetchOperation<T> kvMultiFetchOp) {
+        checkNotNull(kvMultiFetchOp, "kvMultiFetchOp");
+
+        // keep no more requests in flight than there are pooled connections
+        return kvMultiFetchOp.execute(this, builder.getMaxIdleConnections());
     }
 
     /** {@inheritDoc} */
@@ -345,28 +609,32 @@ public final class HttpClient implements Client {
         final OrchestrateFuture<KvList<T>> future =
                 new OrchestrateFutureImpl<KvList<T>>(kvListOp);
 
-        final UEncoder urlEncoder = new UEncoder();
-        final String uri = urlEncoder.encodeURL(kvListOp.getCollection());
-        String query = "limit="
-                .concat(kvListOp.getLimit() + "");
+        execute(newRequest(kvListOp), future);
+        return future;
+    }
+
+    HttpContent newRequest(final KvListOperation<?> kvListOp) {
+        assert (kvListOp != null);
+
+        final String uri = uri().append(kvListOp.getCollection()).toString();
+        final StringBuilder query = UrlEncoder.buffer()
+                .append("limit=")
+                .append(kvListOp.getLimit());
         if (kvListOp.hasStartKey()) {
             final String keyName = (kvListOp.isInclusive())
-                    ? "startKey"
-                    : "afterKey";
-            query = query
-                    .concat('&' + keyName + '=')
-                    .concat(urlEncoder.encodeURL(kvListOp.getStartKey()));
+                    ? "&startKey="
+                    : "&afterKey=";
+            UrlEncoder.append(query.append(keyName), kvListOp.getStartKey());
         }
 
         final HttpRequestPacket httpPacket = HttpRequestPacket
                 .builder()
                 .method(Method.GET)
                 .uri(uri)
-                .query(query)
+                .query(query.toString())
                 .build();
 
-        execute(httpPacket.httpContentBuilder().build(), future);
-        return future;
+        return httpPacket.httpContentBuilder().build();
     }
 
     /** {@inheritDoc} */
@@ -374,27 +642,65 @@ public final class HttpClient implements Client {
     public OrchestrateFuture<KvMetadata> execute(final KvStoreOperation kvStoreOp) {
         checkNotNull(kvStoreOp, "kvStoreOp");
 
+        if (writeBehind != null && !kvStoreOp.hasCurrentRef() && !kvStoreOp.hasIfAbsent()) {
+            return writeBehind.store(kvStoreOp);
+        }
+        return executeUnbuffered(kvStoreOp);
+    }
+
+    /**
+     * Executes the {@code kvStoreOp} without buffering it, for the writes of
+     * a {@link WriteBehindBuffer}.
+     *
+     * @param kvStoreOp The KV store operation to execute.
+     * @return The future for the response from this operation.
+     */
+    OrchestrateFuture<KvMetadata> executeUnbuffered(final KvStoreOperation kvStoreOp) {
+        assert (kvStoreOp != null);
+
         final OrchestrateFutureImpl<KvMetadata> future =
                 new OrchestrateFutureImpl<KvMetadata>(kvStoreOp);
 
-        final ObjectMapper mapper = builder.getMapper().getMapper();
-        final byte[] content;
+        final HttpContent request;
         try {
-            final Object value = kvStoreOp.getValue();
-            if (value instanceof String) {
-                content = ((String) value).getBytes();
-            } else {
-                content = mapper.writeValueAsBytes(value);
-            }
+            request = newRequest(kvStoreOp);
         } catch (final JsonProcessingException e) {
             future.setException(e);
             return future;
         }
 
-        final UEncoder urlEncoder = new UEncoder();
-        final String uri = urlEncoder.encodeURL(kvStoreOp.getCollection())
-                .concat("/")
-                .concat(urlEncoder.encodeURL(kvStoreOp.getKey()));
+        final RelationCache relationCache = builder.getRelationCache();
+        if (relationCache != null) {
+            invalidateAround(future, new Runnable() {
+                @Override
+                public void run() {
+                    relationCache.invalidateObject(kvStoreOp.getCollection(), kvStoreOp.getKey());
+                }
+            });
+        }
+        final KvCache kvCache = builder.getKvCache();
+        if (kvCache != null) {
+            invalidateAround(future, new Runnable() {
+                @Override
+                public void run() {
+                    kvCache.invalidate(kvStoreOp.getCollection(), kvStoreOp.getKey());
+                }
+            });
+        }
+
+        execute(request, future);
+        return future;
+    }
+
+    HttpContent newRequest(final KvStoreOperation kvStoreOp) throws JsonProcessingException {
+        assert (kvStoreOp != null);
+
+        final byte[] content = serialize(kvStoreOp.getValue());
+
+        final String uri = uri()
+                .append(kvStoreOp.getCollection())
+                .append(kvStoreOp.getKey())
+                .toString();
 
         final HttpRequestPacket.Builder httpHeaderBuilder = HttpRequestPacket
                 .builder()
@@ -409,13 +715,10 @@ public final class HttpClient implements Client {
         }
         httpHeaderBuilder.contentLength(content.length);
 
-        final HttpContent httpContent = httpHeaderBuilder.build()
+        return httpHeaderBuilder.build()
                 .httpContentBuilder()
                 .content(new ByteBufferWrapper(ByteBuffer.wrap(content)))
                 .build();
-
-        execute(httpContent, future);
-        return future;
     }
 
     /** {@inheritDoc} */
@@ -424,28 +727,90 @@ public final class HttpClient implements Client {
             final RelationFetchOperation relationFetchOp) {
         checkNotNull(relationFetchOp, "relationFetchOp");
 
-        final OrchestrateFuture<Iterable<KvObject<String>>> future =
+        final OrchestrateFutureImpl<Iterable<KvObject<String>>> future =
                 new OrchestrateFutureImpl<Iterable<KvObject<String>>>(relationFetchOp);
 
-        final UEncoder urlEncoder = new UEncoder();
-        String uri = urlEncoder.encodeURL(relationFetchOp.getCollection())
-                .concat("/")
-                .concat(urlEncoder.encodeURL(relationFetchOp.getKey()))
-                .concat("/relations");
+        final RelationCache relationCache = builder.getRelationCache();
+        if (relationCache != null && relationCache.isCacheable(relationFetchOp)) {
+            final List<KvObject<String>> cached = relationCache.lookup(relationFetchOp);
+            if (cached != null) {
+                future.setResult(cached);
+                return future;
+            }
+
+            // the relations aren't cached if they change while in flight
+            final long generation = relationCache.generation();
+            future.addListener(new OrchestrateFutureListener<Iterable<KvObject<String>>>() {
+                @Override
+                public void onComplete(final OrchestrateFuture<Iterable<KvObject<String>>> future) {
+                    try {
+                        relationCache.fill(relationFetchOp, generation, future.get());
+                    } catch (final Exception e) {
+                        log.debug("Couldn't cache the relations fetched for '{}'.", relationFetchOp.getKey(), e);
+                    }
+                }
+
+                @Override
+                public void onException(final OrchestrateFuture<Iterable<KvObject<String>>> future) {}
+            });
+        }
+
+        execute(newRequest(relationFetchOp), future);
+        return future;
+    }
+
+    HttpContent newRequest(final RelationFetchOperation relationFetchOp) {
+        assert (relationFetchOp != null);
+
+        final RequestUri uri = uri()
+                .append(relationFetchOp.getCollection())
+                .append(relationFetchOp.getKey())
+                .append("relations");
         for (final String kind : relationFetchOp.getKinds()) {
-            uri = uri.concat("/").concat(urlEncoder.encodeURL(kind));
+            uri.append(kind);
         }
 
         final HttpRequestPacket httpPacket = HttpRequestPacket
                 .builder()
                 .method(Method.GET)
-                .uri(uri)
+                .uri(uri.toString())
                 .build();
 
-        execute(httpPacket.httpContentBuilder().build(), future);
+        return httpPacket.httpContentBuilder().build();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public OrchestrateFuture<RelatedObjects> execute(final TypedRelationFetchOperation relationFetchOp) {
+        checkNotNull(relationFetchOp, "relationFetchOp");
+
+        final OrchestrateFuture<RelatedObjects> future =
+                new OrchestrateFutureImpl<RelatedObjects>(relationFetchOp);
+
+        execute(newRequest(relationFetchOp), future);
         return future;
     }
 
+    HttpContent newRequest(final TypedRelationFetchOperation relationFetchOp) {
+        assert (relationFetchOp != null);
+
+        final RequestUri uri = uri()
+                .append(relationFetchOp.getCollection())
+                .append(relationFetchOp.getKey())
+                .append("relations");
+        for (final String kind : relationFetchOp.getKinds()) {
+            uri.append(kind);
+        }
+
+        final HttpRequestPacket httpPacket = HttpRequestPacket
+                .builder()
+                .method(Method.GET)
+                .uri(uri.toString())
+                .build();
+
+        return httpPacket.httpContentBuilder().build();
+    }
+
     /** {@inheritDoc} */
     @Override
     public OrchestrateFuture<Boolean> execute(final RelationStoreOperation relationStoreOp) {
@@ -454,16 +819,32 @@ public final class HttpClient implements Client {
         final OrchestrateFuture<Boolean> future =
                 new OrchestrateFutureImpl<Boolean>(relationStoreOp);
 
-        final UEncoder urlEncoder = new UEncoder();
-        final String uri = urlEncoder.encodeURL(relationStoreOp.getCollection())
-                .concat("/")
-                .concat(urlEncoder.encodeURL(relationStoreOp.getKey()))
-                .concat("/relation/")
-                .concat(urlEncoder.encodeURL(relationStoreOp.getKind()))
-                .concat("/")
-                .concat(urlEncoder.encodeURL(relationStoreOp.getToCollection()))
-                .concat("/")
-                .concat(urlEncoder.encodeURL(relationStoreOp.getToKey()));
+        final RelationCache relationCache = builder.getRelationCache();
+        if (relationCache != null) {
+            invalidateAround(future, new Runnable() {
+                @Override
+                public void run() {
+                    relationCache.invalidate(
+                            relationStoreOp.getCollection(), relationStoreOp.getKey(), relationStoreOp.getKind());
+                }
+            });
+        }
+
+        execute(newRequest(relationStoreOp), future);
+        return future;
+    }
+
+    HttpContent newRequest(final RelationStoreOperation relationStoreOp) {
+        assert (relationStoreOp != null);
+
+        final String uri = uri()
+                .append(relationStoreOp.getCollection())
+                .append(relationStoreOp.getKey())
+                .append("relation")
+                .append(relationStoreOp.getKind())
+                .append(relationStoreOp.getToCollection())
+                .append(relationStoreOp.getToKey())
+                .toString();
 
         final HttpRequestPacket httpPacket = HttpRequestPacket
                 .builder()
@@ -471,8 +852,7 @@ public final class HttpClient implements Client {
                 .uri(uri)
                 .build();
 
-        execute(httpPacket.httpContentBuilder().build(), future);
-        return future;
+        return httpPacket.httpContentBuilder().build();
     }
 
     /** {@inheritDoc} */
@@ -483,16 +863,32 @@ public final class HttpClient implements Client {
         final OrchestrateFuture<Boolean> future =
                 new OrchestrateFutureImpl<Boolean>(relationPurgeOp);
 
-        final UEncoder urlEncoder = new UEncoder();
-        final String uri = urlEncoder.encodeURL(relationPurgeOp.getCollection())
-                .concat("/")
-                .concat(urlEncoder.encodeURL(relationPurgeOp.getKey()))
-                .concat("/relation/")
-                .concat(urlEncoder.encodeURL(relationPurgeOp.getKind()))
-                .concat("/")
-                .concat(urlEncoder.encodeURL(relationPurgeOp.getToCollection()))
-                .concat("/")
-                .concat(urlEncoder.encodeURL(relationPurgeOp.getToKey()));
+        final RelationCache relationCache = builder.getRelationCache();
+        if (relationCache != null) {
+            invalidateAround(future, new Runnable() {
+                @Override
+                public void run() {
+                    relationCache.invalidate(
+                            relationPurgeOp.getCollection(), relationPurgeOp.getKey(), relationPurgeOp.getKind());
+                }
+            });
+        }
+
+        execute(newRequest(relationPurgeOp), future);
+        return future;
+    }
+
+    HttpContent newRequest(final RelationPurgeOperation relationPurgeOp) {
+        assert (relationPurgeOp != null);
+
+        final String uri = uri()
+                .append(relationPurgeOp.getCollection())
+                .append(relationPurgeOp.getKey())
+                .append("relation")
+                .append(relationPurgeOp.getKind())
+                .append(relationPurgeOp.getToCollection())
+                .append(relationPurgeOp.getToKey())
+                .toString();
 
         final HttpRequestPacket httpPacket = HttpRequestPacket
                 .builder()
@@ -501,8 +897,7 @@ public final class HttpClient implements Client {
                 .query("purge=true")
                 .build();
 
-        execute(httpPacket.httpContentBuilder().build(), future);
-        return future;
+        return httpPacket.httpContentBuilder().build();
     }
 
     /** {@inheritDoc} */
@@ -513,43 +908,124 @@ public final class HttpClient implements Client {
         final OrchestrateFuture<SearchResults<T>> future =
                 new OrchestrateFutureImpl<SearchResults<T>>(searchOp);
 
-        final UEncoder urlEncoder = new UEncoder();
-        final String query = "query=".concat(urlEncoder.encodeURL(searchOp.getQuery()))
-                .concat("&limit=").concat(searchOp.getLimit() + "")
-                .concat("&offset=").concat(searchOp.getOffset() + "");
+        execute(newRequest(searchOp), future);
+        return future;
+    }
+
+    HttpContent newRequest(final SearchOperation<?> searchOp) {
+        assert (searchOp != null);
+
+        final String uri = uri().append(searchOp.getCollection()).toString();
+        final StringBuilder query = UrlEncoder.append(UrlEncoder.buffer().append("query="), searchOp.getQuery())
+                .append("&limit=").append(searchOp.getLimit())
+                .append("&offset=").append(searchOp.getOffset());
 
         final HttpRequestPacket httpPacket = HttpRequestPacket
                 .builder()
                 .method(Method.GET)
-                .uri(urlEncoder.encodeURL(searchOp.getCollection()))
-                .query(query)
+                .uri(uri)
+                .query(query.toString())
                 .build();
 
-        execute(httpPacket.httpContentBuilder().build(), future);
-        return future;
+        return httpPacket.httpContentBuilder().build();
+    }
+
+    private byte[] serialize(final Object value) throws JsonProcessingException {
+        if (value instanceof String) {
+            return ((String) value).getBytes();
+        }
+
+        final long start = System.nanoTime();
+        final byte[] content = builder.getMapper().getMapper().writeValueAsBytes(value);
+        metrics.recordSerialization(System.nanoTime() - start);
+        return content;
+    }
+
+    /**
+     * Runs the {@code invalidation} now, and again when the {@code future}
+     * completes or fails, so fetches that overlap the write aren't cached.
+     */
+    private static <T> void invalidateAround(
+            final OrchestrateFuture<T> future, final Runnable invalidation) {
+        assert (future != null);
+        assert (invalidation != null);
+
+        invalidation.run();
+        future.addListener(new OrchestrateFutureListener<T>() {
+            @Override
+            public void onComplete(final OrchestrateFuture<T> future) {
+                invalidation.run();
+            }
+
+            @Override
+            public void onException(final OrchestrateFuture<T> future) {
+                invalidation.run();
+            }
+        });
     }
 
     private <T> void execute(final HttpContent httpPacket, final OrchestrateFuture<T> future) {
         assert (httpPacket != null);
         assert (future != null);
 
+        metrics.requestStarted();
         final Connection<?> connection;
         try {
-            final Future<Connection> connectionFuture = newConnection();
-            connection = connectionFuture.get(5, TimeUnit.SECONDS);
-            log.info("{}", connection);
-        } catch (final Exception e) {
-            throw new ClientException(e);
+            connection = connectionPool.acquire();
+        } catch (final RuntimeException e) {
+            metrics.requestFailed();
+            throw e;
         }
+        ((OrchestrateFutureImpl<T>) future).markConnected();
 
         // TODO abort the future early if the write fails
         connection.getAttributes().setAttribute(ClientFilter.HTTP_RESPONSE_ATTR, future);
         connection.write(httpPacket);
     }
 
+    /** {@inheritDoc} */
+    @Override
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
+
     /** {@inheritDoc} */
     @Override
     public void stop() throws IOException {
+        if (writeBehind != null) {
+            // write the buffered stores while the connections are open
+            writeBehind.close();
+        }
+        if (reporterExecutor != null) {
+            // the final report runs on the reporter thread too, after the
+            // periodic reports are cancelled
+            reporterExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    report(metrics, builder.getMetricsReporter());
+                }
+            });
+            reporterExecutor.shutdown();
+            try {
+                if (!reporterExecutor.awaitTermination(FINAL_REPORT_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    log.warn("Metrics reporter didn't finish the final report.");
+                    reporterExecutor.shutdownNow();
+                }
+            } catch (final InterruptedException e) {
+                reporterExecutor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (final JMException ignored) {
+                // already unregistered
+            }
+        }
+        // the tracer is the caller's and may be shared with other clients,
+        // so it's left running
+        connectionPool.close();
         if (transport != null && !transport.isStopped()) {
             transport.shutdownNow();
         }
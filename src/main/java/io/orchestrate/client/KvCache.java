@@ -0,0 +1,618 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import lombok.EqualsAndHashCode;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * Caches the KV objects fetched by a client, so fetches of hot keys are
+ * served from memory.
+ *
+ * <p>The cache keeps the ref and raw JSON value of each key, and objects are
+ * deserialized again for each fetch so callers never share a value. Keys that
+ * don't exist are cached too. The cache is bounded by the number of objects,
+ * or by their weight in characters, and evicts with the W-TinyLFU policy: new
+ * objects enter a small LRU window, and leave it for the main space only if
+ * they have been fetched more often than the least recently used object on
+ * probation, as counted by a compact frequency sketch. This keeps a burst of keys fetched
+ * once from pushing out the hot keys. Objects expire a fixed time after they
+ * were fetched.
+ *
+ * <p>Fetches of the latest version of a key are cached, fetches of a ref or
+ * with their own API key aren't. Objects stored, deleted or purged through the
+ * client invalidate their key, and deleting a collection invalidates its keys.
+ * Fetches that overlap one of these writes aren't cached. Changes made by
+ * other clients aren't seen until the objects expire or are invalidated.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * Client client = new ClientBuilder("your api key")
+ *         .kvCache(KvCache.builder()
+ *                 .maxEntries(10000)
+ *                 .expireAfterWrite(1, TimeUnit.MINUTES)
+ *                 .build())
+ *         .build();
+ * }
+ * </pre>
+ */
+public final class KvCache {
+
+    /** The LRU window new objects enter. */
+    private static final int WINDOW = 0;
+    /** The main space for objects that haven't been fetched again. */
+    private static final int PROBATION = 1;
+    /** The main space for objects that have been fetched again. */
+    private static final int PROTECTED = 2;
+
+    /** The builder for this cache. */
+    private final Builder builder;
+    /** The cached objects. */
+    private final Map<CacheKey, Entry> entries;
+    /** The counts of how often keys have been fetched. */
+    private final FrequencySketch sketch;
+    /** The sentinels of the window, probation and protected lists. */
+    private final Entry[] queues;
+    /** The weights of the window, probation and protected lists. */
+    private final long[] weights;
+    /** The maximum weight of the cache. */
+    private final long maximum;
+    /** The maximum weight of the window. */
+    private final long windowMaximum;
+    /** The maximum weight of the protected list. */
+    private final long protectedMaximum;
+    /** Changed by every invalidation. */
+    private long generation;
+    /** The number of fetches served from the cache. */
+    private long hits;
+    /** The number of fetches not served from the cache. */
+    private long misses;
+    /** The number of objects evicted. */
+    private long evictions;
+
+    private KvCache(final Builder builder) {
+        assert (builder != null);
+
+        this.builder = builder;
+        this.entries = new HashMap<CacheKey, Entry>();
+        this.maximum = (builder.weighted) ? builder.maxWeight : builder.maxEntries;
+        this.windowMaximum = Math.max(1, maximum / 100);
+        this.protectedMaximum = (long) ((maximum - windowMaximum) * 0.8);
+        final long expectedEntries = (builder.weighted) ? (maximum / 256) : maximum;
+        this.sketch = new FrequencySketch((int) Math.min(Math.max(expectedEntries, 16), 1 << 22));
+        this.queues = new Entry[] { new Entry(), new Entry(), new Entry() };
+        this.weights = new long[3];
+        this.generation = 0;
+        this.hits = 0;
+        this.misses = 0;
+        this.evictions = 0;
+    }
+
+    /**
+     * Removes the cached object for the {@code key} in the {@code
+     * collection}.
+     *
+     * @param collection The collection containing the key.
+     * @param key The key of the object.
+     */
+    public synchronized void invalidate(final String collection, final String key) {
+        checkNotNullOrEmpty(collection, "collection");
+        checkNotNullOrEmpty(key, "key");
+
+        generation++;
+        final Entry entry = entries.remove(new CacheKey(collection, key));
+        if (entry != null) {
+            unlink(entry);
+        }
+    }
+
+    /**
+     * Removes the cached objects for the keys in the {@code collection}.
+     *
+     * @param collection The collection that changed.
+     */
+    public synchronized void invalidateCollection(final String collection) {
+        checkNotNullOrEmpty(collection, "collection");
+
+        generation++;
+        final Iterator<Map.Entry<CacheKey, Entry>> iter = entries.entrySet().iterator();
+        while (iter.hasNext()) {
+            final Map.Entry<CacheKey, Entry> next = iter.next();
+            if (collection.equals(next.getKey().collection)) {
+                unlink(next.getValue());
+                iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Removes every cached object.
+     */
+    public synchronized void clear() {
+        generation++;
+        for (final Entry entry : entries.values()) {
+            unlink(entry);
+        }
+        entries.clear();
+    }
+
+    /**
+     * Returns the number of objects in the cache, including the keys cached
+     * as not existing.
+     *
+     * @return The number of cached objects.
+     */
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the weight of the objects in the cache, the number of objects
+     * unless the cache is bounded by {@link Builder#maxWeight(long)}.
+     *
+     * @return The weight of the cached objects.
+     */
+    public synchronized long getWeight() {
+        return weights[WINDOW] + weights[PROBATION] + weights[PROTECTED];
+    }
+
+    /**
+     * Returns the number of fetches served from the cache.
+     *
+     * @return The number of cache hits.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of cacheable fetches not served from the cache.
+     *
+     * @return The number of cache misses.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of objects evicted to keep the cache to its size,
+     * not counting expired or invalidated objects.
+     *
+     * @return The number of evictions.
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Returns the fraction of cacheable fetches served from the cache.
+     *
+     * @return The hit rate, between {@code 0} and {@code 1}.
+     */
+    public synchronized double getHitRate() {
+        final long requests = hits + misses;
+        return (requests == 0) ? 0 : (double) hits / requests;
+    }
+
+    /**
+     * Returns whether the object for the {@code kvFetchOp} can be served from
+     * this cache.
+     *
+     * @param kvFetchOp The KV fetch operation.
+     * @return {@code true} if the fetch can be cached.
+     */
+    boolean isCacheable(final KvFetchOperation<?> kvFetchOp) {
+        return !kvFetchOp.hasRef() && !kvFetchOp.hasApiKey();
+    }
+
+    /**
+     * Returns the cached object for the {@code kvFetchOp}.
+     *
+     * @param kvFetchOp The KV fetch operation, must be cacheable.
+     * @return The cached entry, or {@code null} if the key isn't cached.
+     */
+    @Nullable
+    synchronized Entry lookup(final KvFetchOperation<?> kvFetchOp) {
+        final CacheKey cacheKey = new CacheKey(kvFetchOp.getCollection(), kvFetchOp.getKey());
+        sketch.increment(cacheKey.hashCode());
+
+        final Entry entry = entries.get(cacheKey);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (System.nanoTime() - entry.expiresNanos >= 0) {
+            entries.remove(cacheKey);
+            unlink(entry);
+            misses++;
+            return null;
+        }
+
+        if (entry.queue == PROBATION) {
+            // fetched again, so promote it to the protected list
+            unlink(entry);
+            link(entry, PROTECTED);
+            while (weights[PROTECTED] > protectedMaximum) {
+                final Entry demoted = queues[PROTECTED].prev;
+                unlink(demoted);
+                link(demoted, PROBATION);
+            }
+        } else {
+            final int queue = entry.queue;
+            unlink(entry);
+            link(entry, queue);
+        }
+        hits++;
+        return entry;
+    }
+
+    /**
+     * Returns the current generation, to pass to {@link #fill} when the fetch
+     * completes.
+     *
+     * @return The current generation.
+     */
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Caches the object fetched for the {@code kvFetchOp}, unless the cache
+     * has been invalidated since the fetch started.
+     *
+     * @param kvFetchOp The KV fetch operation.
+     * @param startGeneration The generation when the fetch started.
+     * @param kvObject The object fetched, or {@code null} if the key doesn't
+     *                 exist.
+     */
+    synchronized void fill(
+            final KvFetchOperation<?> kvFetchOp, final long startGeneration,
+            @Nullable final KvObject<?> kvObject) {
+        if (startGeneration != generation) {
+            return;
+        }
+
+        final CacheKey cacheKey = new CacheKey(kvFetchOp.getCollection(), kvFetchOp.getKey());
+        final String ref = (kvObject == null) ? null : kvObject.getRef();
+        final String rawValue = (kvObject == null) ? null : kvObject.getRawValue();
+        final long weight = (builder.weighted) ? weigh(cacheKey, rawValue) : 1;
+        if (weight > maximum) {
+            return;
+        }
+
+        final Entry existing = entries.remove(cacheKey);
+        if (existing != null) {
+            unlink(existing);
+        }
+        final long expiresNanos = System.nanoTime() + builder.expireAfterWriteNanos;
+        final Entry entry = new Entry(cacheKey, ref, rawValue, weight, expiresNanos);
+        entries.put(cacheKey, entry);
+        link(entry, WINDOW);
+        evict();
+    }
+
+    // called while holding the lock
+    private void evict() {
+        // an object leaving the window competes once with the object at the
+        // tail of probation, the one it would evict, and only the more often
+        // fetched of the two stays in the main space
+        final long mainMaximum = maximum - windowMaximum;
+        while (weights[WINDOW] > windowMaximum) {
+            final Entry candidate = queues[WINDOW].prev;
+            unlink(candidate);
+            if (!admit(candidate, mainMaximum)) {
+                entries.remove(candidate.cacheKey);
+                evictions++;
+                continue;
+            }
+            while (weights[PROBATION] + weights[PROTECTED] + candidate.weight > mainMaximum) {
+                remove(victim());
+            }
+            link(candidate, PROBATION);
+        }
+    }
+
+    // called while holding the lock
+    private boolean admit(final Entry candidate, final long mainMaximum) {
+        if (candidate.weight > mainMaximum) {
+            return false;
+        }
+        if (weights[PROBATION] + weights[PROTECTED] + candidate.weight <= mainMaximum) {
+            return true;
+        }
+        final int candidateFrequency = sketch.frequency(candidate.cacheKey.hashCode());
+        return (candidateFrequency > sketch.frequency(victim().cacheKey.hashCode()));
+    }
+
+    // called while holding the lock, with objects in the main space
+    private Entry victim() {
+        return (queues[PROBATION].prev != queues[PROBATION])
+                ? queues[PROBATION].prev
+                : queues[PROTECTED].prev;
+    }
+
+    // called while holding the lock
+    private void remove(final Entry entry) {
+        unlink(entry);
+        entries.remove(entry.cacheKey);
+        evictions++;
+    }
+
+    // called while holding the lock
+    private void link(final Entry entry, final int queue) {
+        final Entry head = queues[queue];
+        entry.queue = queue;
+        entry.prev = head;
+        entry.next = head.next;
+        head.next.prev = entry;
+        head.next = entry;
+        weights[queue] += entry.weight;
+    }
+
+    // called while holding the lock
+    private void unlink(final Entry entry) {
+        entry.prev.next = entry.next;
+        entry.next.prev = entry.prev;
+        entry.prev = null;
+        entry.next = null;
+        weights[entry.queue] -= entry.weight;
+    }
+
+    private static long weigh(final CacheKey cacheKey, @Nullable final String rawValue) {
+        final long weight = cacheKey.collection.length() + cacheKey.key.length();
+        return (rawValue == null) ? weight : weight + rawValue.length();
+    }
+
+    /**
+     * A new builder to create a {@code KvCache} with default settings.
+     *
+     * @return A new {@code Builder} with default settings.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * The collection and key of a cached object.
+     */
+    @EqualsAndHashCode
+    private static final class CacheKey {
+
+        /** The collection of the object. */
+        final String collection;
+        /** The key of the object. */
+        final String key;
+
+        CacheKey(final String collection, final String key) {
+            this.collection = collection;
+            this.key = key;
+        }
+
+    }
+
+    /**
+     * A cached object, linked into the list it's in.
+     */
+    static final class Entry {
+
+        /** The collection and key of the object. */
+        final CacheKey cacheKey;
+        /** The version of the object, {@code null} if the key doesn't exist. */
+        final String ref;
+        /** The raw JSON value, {@code null} if the key doesn't exist. */
+        final String rawValue;
+        /** The weight of the object. */
+        final long weight;
+        /** The value of the system timer when the object expires. */
+        final long expiresNanos;
+        /** The list the object is in, guarded by the cache. */
+        int queue;
+        /** The previous entry in the list, guarded by the cache. */
+        Entry prev;
+        /** The next entry in the list, guarded by the cache. */
+        Entry next;
+
+        // the sentinel of a list
+        Entry() {
+            this(null, null, null, 0, 0);
+            prev = this;
+            next = this;
+        }
+
+        Entry(final CacheKey cacheKey, final String ref, final String rawValue,
+                final long weight, final long expiresNanos) {
+            this.cacheKey = cacheKey;
+            this.ref = ref;
+            this.rawValue = rawValue;
+            this.weight = weight;
+            this.expiresNanos = expiresNanos;
+        }
+
+        /**
+         * Creates the result of the {@code kvFetchOp} from this entry.
+         *
+         * @param kvFetchOp The KV fetch operation.
+         * @param mapper The mapper to deserialize the value with.
+         * @return The KV object, or {@code null} if the key doesn't exist.
+         * @throws IOException If the value couldn't be deserialized.
+         */
+        @Nullable
+        <T> KvObject<T> toKvObject(final KvFetchOperation<T> kvFetchOp, final JacksonMapper mapper)
+                throws IOException {
+            if (rawValue == null) {
+                return null;
+            }
+            return kvFetchOp.fromJson(ref, rawValue, mapper);
+        }
+
+    }
+
+    /**
+     * Approximate counts of how often keys have been fetched, a count-min
+     * sketch of 4-bit counters that are halved periodically so old fetches
+     * are forgotten.
+     */
+    private static final class FrequencySketch {
+
+        /** The seeds for the four hash functions. */
+        private static final long[] SEEDS = {
+                0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        /** The mask to halve the 4-bit counters in a word. */
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        /** The counters, sixteen to a word. */
+        private final long[] table;
+        /** The number of increments before the counters are halved. */
+        private final int sampleSize;
+        /** The number of increments since the counters were halved. */
+        private int additions;
+
+        FrequencySketch(final int expectedEntries) {
+            this.table = new long[Integer.highestOneBit(expectedEntries - 1) << 1];
+            this.sampleSize = 10 * expectedEntries;
+            this.additions = 0;
+        }
+
+        int frequency(final int hash) {
+            int frequency = Integer.MAX_VALUE;
+            for (int i = 0; i < SEEDS.length; i++) {
+                final int index = index(hash, i);
+                final int shift = counterShift(index);
+                frequency = Math.min(frequency, (int) ((table[index & (table.length - 1)] >>> shift) & 0xfL));
+            }
+            return frequency;
+        }
+
+        void increment(final int hash) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                final int index = index(hash, i);
+                final int slot = index & (table.length - 1);
+                final int shift = counterShift(index);
+                if (((table[slot] >>> shift) & 0xfL) < 15) {
+                    table[slot] += (1L << shift);
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                additions /= 2;
+            }
+        }
+
+        private static int index(final int hash, final int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += (h >>> 32);
+            return (int) h;
+        }
+
+        private static int counterShift(final int index) {
+            // the top bits of the index pick one of the sixteen counters
+            return (index >>> 28) << 2;
+        }
+
+    }
+
+    /**
+     * Builder used to create {@code KvCache} instances.
+     */
+    public static final class Builder {
+
+        /** The maximum number of cached objects. */
+        private long maxEntries;
+        /** The maximum weight of cached objects, if weighted. */
+        private long maxWeight;
+        /** Whether the cache is bounded by weight rather than entries. */
+        private boolean weighted;
+        /** The time objects are cached for, in nanoseconds. */
+        private long expireAfterWriteNanos;
+
+        private Builder() {
+            maxEntries = 10000;
+            maxWeight = 0;
+            weighted = false;
+            expireAfterWriteNanos = TimeUnit.MINUTES.toNanos(1);
+        }
+
+        /**
+         * The maximum number of objects to cache, defaults to {@code 10000}.
+         *
+         * @param maxEntries The maximum number of cached objects.
+         * @return This builder.
+         */
+        public Builder maxEntries(final long maxEntries) {
+            checkArgument(maxEntries > 0, "'maxEntries' must be greater than zero.");
+
+            this.maxEntries = maxEntries;
+            this.weighted = false;
+            return this;
+        }
+
+        /**
+         * The maximum weight of objects to cache, in characters of their
+         * collection, key and raw JSON value. Replaces the bound set with
+         * {@link #maxEntries(long)}.
+         *
+         * @param maxWeight The maximum weight of cached objects.
+         * @return This builder.
+         */
+        public Builder maxWeight(final long maxWeight) {
+            checkArgument(maxWeight > 0, "'maxWeight' must be greater than zero.");
+
+            this.maxWeight = maxWeight;
+            this.weighted = true;
+            return this;
+        }
+
+        /**
+         * The time objects are cached for after they're fetched, defaults to
+         * {@code 1} minute.
+         *
+         * @param duration The time to cache objects for.
+         * @param unit The unit of time of the {@code duration}.
+         * @return This builder.
+         */
+        public Builder expireAfterWrite(final long duration, final TimeUnit unit) {
+            checkArgument(duration > 0, "'duration' must be greater than zero.");
+            checkNotNull(unit, "unit");
+
+            this.expireAfterWriteNanos = unit.toNanos(duration);
+            return this;
+        }
+
+        /**
+         * Creates a new {@code KvCache}.
+         *
+         * @return A new {@link KvCache}.
+         */
+        public KvCache build() {
+            return new KvCache(this);
+        }
+
+    }
+
+}
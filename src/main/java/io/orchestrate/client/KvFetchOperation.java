@@ -19,7 +19,6 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
 import org.glassfish.grizzly.http.HttpHeader;
-import org.glassfish.grizzly.http.util.Header;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
@@ -43,8 +42,8 @@ import static io.orchestrate.client.Preconditions.*;
  * @param <T> The type to deserialize the result of this operation to.
  * @see <a href="http://java.orchestrate.io/querying/#fetch-data">http://java.orchestrate.io/querying/#fetch-data</a>
  */
-@ToString(callSuper=false)
-@EqualsAndHashCode(callSuper=false)
+@ToString(callSuper=false, exclude="encodedPrefix")
+@EqualsAndHashCode(callSuper=false, exclude="encodedPrefix")
 public final class KvFetchOperation<T> extends AbstractOperation<KvObject<T>> {
 
     /** The collection to fetch the key from. */
@@ -55,6 +54,8 @@ public final class KvFetchOperation<T> extends AbstractOperation<KvObject<T>> {
     private final String ref;
     /** Type information for marshalling objects at runtime. */
     private final Class<T> clazz;
+    /** The URL encoded collection from a prepared fetch, may be {@code null}. */
+    private final String encodedPrefix;
 
     /**
      * Create a new {@code KvFetchOperation} to get the object with the
@@ -72,6 +73,7 @@ public final class KvFetchOperation<T> extends AbstractOperation<KvObject<T>> {
         this.key = metadata.getKey();
         this.ref = metadata.getRef();
         this.clazz = checkNotNull(clazz, "clazz");
+        this.encodedPrefix = null;
     }
 
     /**
@@ -88,6 +90,7 @@ public final class KvFetchOperation<T> extends AbstractOperation<KvObject<T>> {
         this.key = checkNotNullOrEmpty(key, "key");
         this.ref = null;
         this.clazz = checkNotNull(clazz, "clazz");
+        this.encodedPrefix = null;
     }
 
     /**
@@ -123,11 +126,29 @@ public final class KvFetchOperation<T> extends AbstractOperation<KvObject<T>> {
         this.key = checkNotNullOrEmpty(key, "key");
         this.ref = checkNotNullOrEmpty(ref, "ref");
         this.clazz = checkNotNull(clazz, "clazz");
+        this.encodedPrefix = null;
+    }
+
+    /**
+     * Create a new {@code KvFetchOperation} to get the object with the
+     * specified {@code key} from the collection of the {@code preparedFetch}.
+     *
+     * @param preparedFetch The prepared fetch for the collection.
+     * @param key The key to fetch.
+     * @see PreparedKvFetch#operation(String)
+     */
+    KvFetchOperation(final PreparedKvFetch<T> preparedFetch, final String key) {
+        assert (preparedFetch != null);
+
+        this.collection = preparedFetch.getCollection();
+        this.key = checkNotNullOrEmpty(key, "key");
+        this.ref = null;
+        this.clazz = preparedFetch.getClazz();
+        this.encodedPrefix = preparedFetch.getEncodedPrefix();
     }
 
     /** {@inheritDoc} */
     @Override
-    @SuppressWarnings("unchecked")
     KvObject<T> fromResponse(
             final int status, final HttpHeader httpHeader, final String json, final JacksonMapper mapper)
             throws IOException {
@@ -135,6 +156,22 @@ public final class KvFetchOperation<T> extends AbstractOperation<KvObject<T>> {
             return null;
         }
 
+        return fromJson(refFromETag(httpHeader), json, mapper);
+    }
+
+    /**
+     * Creates the object for this fetch from its {@code ref} and raw JSON
+     * value, e.g. from a {@link KvCache}.
+     *
+     * @param ref The version of the object.
+     * @param json The raw JSON value of the object.
+     * @param mapper The mapper to deserialize the value with.
+     * @return The KV object.
+     * @throws IOException If the value couldn't be deserialized.
+     */
+    @SuppressWarnings("unchecked")
+    KvObject<T> fromJson(final String ref, final String json, final JacksonMapper mapper)
+            throws IOException {
         final T value;
         if (clazz == String.class) {
             // don't deserialize JSON data
@@ -143,12 +180,25 @@ public final class KvFetchOperation<T> extends AbstractOperation<KvObject<T>> {
             final ObjectMapper objectMapper = mapper.getMapper();
             value = objectMapper.readValue(json, clazz);
         }
-        final String ref = httpHeader.getHeader(Header.ETag)
-                .replace("\"", "")
-                .replaceFirst("-gzip$", "");
         return new KvObject<T>(collection, key, ref, value, json);
     }
 
+    /**
+     * Returns a copy of this operation without its listeners, to make the
+     * fetch again on behalf of this operation's future.
+     *
+     * @return A copy of this operation.
+     */
+    KvFetchOperation<T> copy() {
+        final KvFetchOperation<T> copy = (ref != null)
+                ? new KvFetchOperation<T>(collection, key, ref, clazz)
+                : new KvFetchOperation<T>(collection, key, clazz);
+        if (hasApiKey()) {
+            copy.withApiKey(getApiKey());
+        }
+        return copy;
+    }
+
     /**
      * Returns the collection from this operation.
      *
@@ -187,4 +237,15 @@ public final class KvFetchOperation<T> extends AbstractOperation<KvObject<T>> {
         return (ref != null);
     }
 
+    /**
+     * Returns the URL encoded collection (with a trailing path separator) when
+     * this operation was created from a {@code PreparedKvFetch}.
+     *
+     * @return The encoded collection, may be {@code null}.
+     */
+    @Nullable
+    String getEncodedPrefix() {
+        return encodedPrefix;
+    }
+
 }
@@ -0,0 +1,351 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * An iterator over all the KV objects in a collection, that follows the
+ * {@code next} links of the {@link KvList} pages automatically.
+ *
+ * <p>The next page is requested in the background as soon as the previous
+ * page arrives, so that a page boundary doesn't stall the caller for a full
+ * round trip. Up to {@link Builder#prefetchPages(int)} pages are buffered
+ * ahead of the caller, and no more are requested while the buffered pages
+ * hold {@link Builder#maxBufferedObjects(int)} or more objects.
+ *
+ * <p>A failed request is rethrown from {@link #hasNext()} as a {@link
+ * ClientException}. The iterator should be closed if it isn't read to the
+ * end, so that no more pages are requested.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * KvListOperation<MyObject> kvListOp =
+ *         new KvListOperation<MyObject>("myCollection", 100, MyObject.class);
+ * KvListIterator<MyObject> iter = KvListIterator.builder(client, kvListOp)
+ *         .prefetchPages(2)
+ *         .build();
+ * try {
+ *     while (iter.hasNext()) {
+ *         KvObject<MyObject> kvObject = iter.next();
+ *     }
+ * } finally {
+ *     iter.close();
+ * }
+ * }
+ * </pre>
+ *
+ * @param <T> The type to deserialize the KV objects to.
+ */
+public final class KvListIterator<T> implements Iterator<KvObject<T>>, Closeable {
+
+    /** The client to request pages with. */
+    private final Client client;
+    /** The maximum number of pages to buffer. */
+    private final int prefetchPages;
+    /** The number of buffered objects at which no more pages are requested. */
+    private final int maxBufferedObjects;
+    /** The lock for the page buffer. */
+    private final ReentrantLock lock;
+    /** Signalled when a page arrives or a request fails. */
+    private final Condition pageArrived;
+    /** The pages that arrived and haven't been read, guarded by the lock. */
+    private final Deque<KvList<T>> pages;
+    /** The number of objects in the buffered pages, guarded by the lock. */
+    private int bufferedObjects;
+    /** The operation for the next page to request, guarded by the lock. */
+    private KvListOperation<T> nextOp;
+    /** Whether a page request is in flight, guarded by the lock. */
+    private boolean fetching;
+    /** The error a page request failed with, guarded by the lock. */
+    private Throwable failure;
+    /** Whether this iterator has been closed, guarded by the lock. */
+    private boolean closed;
+    /** The objects of the page being read. */
+    private Iterator<KvObject<T>> current;
+
+    private KvListIterator(final Builder<T> builder) {
+        assert (builder != null);
+
+        this.client = builder.client;
+        this.prefetchPages = builder.prefetchPages;
+        this.maxBufferedObjects = builder.maxBufferedObjects;
+        this.lock = new ReentrantLock();
+        this.pageArrived = lock.newCondition();
+        this.pages = new ArrayDeque<KvList<T>>();
+        this.bufferedObjects = 0;
+        this.nextOp = builder.kvListOp;
+        this.fetching = false;
+        this.failure = null;
+        this.closed = false;
+        this.current = Collections.<KvObject<T>>emptyList().iterator();
+
+        fetchIfNeeded();
+    }
+
+    /**
+     * Returns whether there are more KV objects, waiting for the next page to
+     * arrive if needed.
+     *
+     * @return {@code true} if there are more KV objects.
+     * @throws ClientException If a page request failed or the thread was
+     *         interrupted while waiting.
+     */
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            final KvList<T> page = takePage();
+            if (page == null) {
+                return false;
+            }
+            current = page.iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public KvObject<T> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stops requesting pages, a request already in flight is ignored when it
+     * completes.
+     */
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            pages.clear();
+            bufferedObjects = 0;
+            nextOp = null;
+            current = Collections.<KvObject<T>>emptyList().iterator();
+            pageArrived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private KvList<T> takePage() {
+        final KvList<T> page;
+        lock.lock();
+        try {
+            while (pages.isEmpty()) {
+                if (failure != null) {
+                    throw new ClientException(failure);
+                }
+                if (closed || (!fetching && nextOp == null)) {
+                    return null;
+                }
+                pageArrived.await();
+            }
+            page = pages.poll();
+            bufferedObjects -= page.getCount();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientException(e);
+        } finally {
+            lock.unlock();
+        }
+
+        fetchIfNeeded();
+        return page;
+    }
+
+    private void fetchIfNeeded() {
+        final KvListOperation<T> op;
+        lock.lock();
+        try {
+            // always allow a request when the buffer is empty, so a small
+            // memory bound can't stall the iterator
+            final boolean hasRoom = pages.isEmpty()
+                    || (pages.size() < prefetchPages && bufferedObjects < maxBufferedObjects);
+            if (closed || fetching || nextOp == null || failure != null || !hasRoom) {
+                return;
+            }
+            op = nextOp;
+            fetching = true;
+        } finally {
+            lock.unlock();
+        }
+
+        final OrchestrateFuture<KvList<T>> future;
+        try {
+            future = client.execute(op);
+        } catch (final RuntimeException e) {
+            failed(e);
+            return;
+        }
+        future.addListener(new OrchestrateFutureListener<KvList<T>>() {
+            @Override
+            public void onComplete(final OrchestrateFuture<KvList<T>> future) {
+                final KvList<T> page;
+                try {
+                    page = future.get();
+                } catch (final InterruptedException e) {
+                    failed(e);
+                    return;
+                } catch (final ExecutionException e) {
+                    failed(e.getCause());
+                    return;
+                }
+                arrived(op, page);
+            }
+
+            @Override
+            public void onException(final OrchestrateFuture<KvList<T>> future) {
+                try {
+                    future.get();
+                    failed(new IllegalStateException("The page request failed without an error."));
+                } catch (final InterruptedException e) {
+                    failed(e);
+                } catch (final ExecutionException e) {
+                    failed(e.getCause());
+                }
+            }
+        });
+    }
+
+    private void arrived(final KvListOperation<T> op, final KvList<T> page) {
+        lock.lock();
+        try {
+            fetching = false;
+            if (closed) {
+                return;
+            }
+            nextOp = page.hasNext() ? op.nextPage(page.getNext()) : null;
+            pages.add(page);
+            bufferedObjects += page.getCount();
+            pageArrived.signalAll();
+        } catch (final RuntimeException e) {
+            failure = e;
+            pageArrived.signalAll();
+            return;
+        } finally {
+            lock.unlock();
+        }
+
+        fetchIfNeeded();
+    }
+
+    private void failed(final Throwable t) {
+        lock.lock();
+        try {
+            fetching = false;
+            failure = t;
+            pageArrived.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A new builder to iterate the results of the {@code kvListOp} and the
+     * pages that follow it.
+     *
+     * @param client The client to request pages with.
+     * @param kvListOp The operation for the first page.
+     * @param <T> The type to deserialize the KV objects to.
+     * @return A new {@code Builder} with default settings.
+     */
+    public static <T> Builder<T> builder(final Client client, final KvListOperation<T> kvListOp) {
+        return new Builder<T>(client, kvListOp);
+    }
+
+    /**
+     * Builder used to create {@code KvListIterator} instances.
+     *
+     * @param <T> The type to deserialize the KV objects to.
+     */
+    public static final class Builder<T> {
+
+        /** The client to request pages with. */
+        private final Client client;
+        /** The operation for the first page. */
+        private final KvListOperation<T> kvListOp;
+        /** The maximum number of pages to buffer. */
+        private int prefetchPages;
+        /** The number of buffered objects at which no more pages are requested. */
+        private int maxBufferedObjects;
+
+        private Builder(final Client client, final KvListOperation<T> kvListOp) {
+            this.client = checkNotNull(client, "client");
+            this.kvListOp = checkNotNull(kvListOp, "kvListOp");
+            this.prefetchPages = 1;
+            this.maxBufferedObjects = 10000;
+        }
+
+        /**
+         * The maximum number of pages to buffer ahead of the caller, defaults
+         * to {@code 1}.
+         *
+         * @param prefetchPages The number of pages to prefetch.
+         * @return This builder.
+         */
+        public Builder<T> prefetchPages(final int prefetchPages) {
+            checkArgument(prefetchPages > 0, "'prefetchPages' must be greater than zero.");
+
+            this.prefetchPages = prefetchPages;
+            return this;
+        }
+
+        /**
+         * The number of buffered objects at which no more pages are requested
+         * until the caller catches up, defaults to {@code 10000}. At least
+         * one page is always buffered, whatever its size.
+         *
+         * @param maxBufferedObjects The memory bound, in KV objects.
+         * @return This builder.
+         */
+        public Builder<T> maxBufferedObjects(final int maxBufferedObjects) {
+            checkArgument(maxBufferedObjects > 0, "'maxBufferedObjects' must be greater than zero.");
+
+            this.maxBufferedObjects = maxBufferedObjects;
+            return this;
+        }
+
+        /**
+         * Creates a new {@code KvListIterator} and requests the first page.
+         *
+         * @return A new {@link KvListIterator}.
+         */
+        public KvListIterator<T> build() {
+            return new KvListIterator<T>(this);
+        }
+
+    }
+
+}
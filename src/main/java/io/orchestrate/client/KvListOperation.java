@@ -116,6 +116,31 @@ public final class KvListOperation<T> extends AbstractOperation<KvList<T>> {
         return new KvList<T>(results, count, next);
     }
 
+    /**
+     * Create the operation for the page of results at the {@code next} URL of
+     * a {@link KvList} returned for this operation, e.g.
+     * {@code /v0/collection?limit=10&afterKey=someKey}.
+     *
+     * @param next The URL of the next page.
+     * @return The operation for the next page.
+     */
+    KvListOperation<T> nextPage(final String next) {
+        checkNotNullOrEmpty(next, "next");
+
+        final String afterKey = queryParam(next, "afterKey");
+        final String startKey = (afterKey != null) ? afterKey : queryParam(next, "startKey");
+        checkArgument(startKey != null, "'next' doesn't have a start key.");
+        final String limitParam = queryParam(next, "limit");
+        final int nextLimit = (limitParam != null) ? Integer.parseInt(limitParam) : limit;
+
+        final KvListOperation<T> nextOp =
+                new KvListOperation<T>(collection, startKey, nextLimit, afterKey == null, clazz);
+        if (hasApiKey()) {
+            nextOp.withApiKey(getApiKey());
+        }
+        return nextOp;
+    }
+
     /**
      * Returns the collection from this operation.
      *
@@ -162,4 +187,19 @@ public final class KvListOperation<T> extends AbstractOperation<KvList<T>> {
         return inclusive;
     }
 
+    @Nullable
+    private static String queryParam(final String uri, final String name) {
+        final int queryStart = uri.indexOf('?');
+        if (queryStart < 0) {
+            return null;
+        }
+        for (final String param : uri.substring(queryStart + 1).split("&")) {
+            final int eq = param.indexOf('=');
+            if (eq > 0 && name.equals(param.substring(0, eq))) {
+                return UrlEncoder.decode(param.substring(eq + 1));
+            }
+        }
+        return null;
+    }
+
 }
@@ -0,0 +1,306 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * Fetch many objects by key from a collection in the Orchestrate.io service.
+ *
+ * <p>Each key is fetched with its own request, the client keeps a bounded
+ * number of the requests in flight so that they reuse the pooled connections
+ * rather than opening one per key. Duplicate keys are fetched once, and keys
+ * that don't exist are left out of the result.
+ *
+ * <p>There is no single response to build the result from, so unlike the
+ * other operations this isn't an {@code AbstractOperation} and the client
+ * returns a plain {@link Future} for it.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * KvMultiFetchOperation<MyObject> kvMultiFetchOp =
+ *         new KvMultiFetchOperation<MyObject>("myCollection", keys, MyObject.class);
+ * Future<Map<String, KvObject<MyObject>>> futureResult = client.execute(kvMultiFetchOp);
+ * Map<String, KvObject<MyObject>> results = futureResult.get();
+ * }
+ * </pre>
+ *
+ * @param <T> The type to deserialize the results of this operation to.
+ */
+@ToString
+@EqualsAndHashCode
+public final class KvMultiFetchOperation<T> {
+
+    /** The collection to fetch the keys from. */
+    private final String collection;
+    /** The distinct keys to fetch, in the order they were given. */
+    private final Set<String> keys;
+    /** Type information for marshalling objects at runtime. */
+    private final Class<T> clazz;
+    /** The maximum number of requests in flight, or {@code 0} for the default. */
+    private final int maxConcurrency;
+    /** The API key to make the fetches with, may be {@code null}. */
+    private String apiKey;
+
+    /**
+     * Create a new {@code KvMultiFetchOperation} to get the objects with the
+     * specified {@code keys} in the {@code collection}.
+     *
+     * @param collection The collection to fetch the keys from.
+     * @param keys The keys to fetch.
+     * @param clazz Type information for deserializing to type {@code T} at
+     *              runtime.
+     */
+    public KvMultiFetchOperation(final String collection, final Iterable<String> keys, final Class<T> clazz) {
+        this(collection, keys, 0, clazz);
+    }
+
+    /**
+     * Create a new {@code KvMultiFetchOperation} to get the objects with the
+     * specified {@code keys} in the {@code collection}, with at most {@code
+     * maxConcurrency} requests in flight.
+     *
+     * @param collection The collection to fetch the keys from.
+     * @param keys The keys to fetch.
+     * @param maxConcurrency The maximum number of requests in flight, or
+     *                       {@code 0} for the maximum number of idle
+     *                       connections the client keeps open.
+     * @param clazz Type information for deserializing to type {@code T} at
+     *              runtime.
+     */
+    public KvMultiFetchOperation(
+            final String collection, final Iterable<String> keys, final int maxConcurrency, final Class<T> clazz) {
+        checkNotNull(keys, "keys");
+        checkArgument(maxConcurrency >= 0, "'maxConcurrency' cannot be negative.");
+
+        this.collection = checkNotNullOrEmpty(collection, "collection");
+        this.keys = new LinkedHashSet<String>();
+        for (final String key : keys) {
+            this.keys.add(checkNotNullOrEmpty(key, "key"));
+        }
+        this.clazz = checkNotNull(clazz, "clazz");
+        this.maxConcurrency = maxConcurrency;
+        this.apiKey = null;
+    }
+
+    /**
+     * Fetches the keys with the {@code client}.
+     *
+     * @param client The client to fetch the keys with.
+     * @param defaultConcurrency The maximum number of requests in flight if
+     *                           none was given to this operation.
+     * @return A future for the objects found, or the first error.
+     */
+    Future<Map<String, KvObject<T>>> execute(final Client client, final int defaultConcurrency) {
+        assert (client != null);
+
+        final ResultFuture<Map<String, KvObject<T>>> future = new ResultFuture<Map<String, KvObject<T>>>();
+        if (keys.isEmpty()) {
+            future.complete(Collections.<String, KvObject<T>>emptyMap());
+            return future;
+        }
+
+        final int concurrency = (maxConcurrency > 0) ? maxConcurrency : Math.max(1, defaultConcurrency);
+        new MultiFetch(client, future).start(Math.min(concurrency, keys.size()));
+        return future;
+    }
+
+    /**
+     * Make the fetches with the specified {@code apiKey} instead of the API
+     * key the client was built with.
+     *
+     * @param apiKey An API key for the Orchestrate.io service.
+     * @return This operation.
+     */
+    public KvMultiFetchOperation<T> withApiKey(final String apiKey) {
+        this.apiKey = checkNotNullOrEmpty(apiKey, "apiKey");
+        return this;
+    }
+
+    /**
+     * Returns the API key for this operation.
+     *
+     * @return The API key for this operation, may be {@code null}.
+     * @see #hasApiKey()
+     */
+    @Nullable
+    public String getApiKey() {
+        return apiKey;
+    }
+
+    /**
+     * Returns whether an API key was supplied to this operation.
+     *
+     * @return {@code true} if an API key was supplied to this operation.
+     */
+    public boolean hasApiKey() {
+        return (apiKey != null);
+    }
+
+    /**
+     * Returns the collection from this operation.
+     *
+     * @return The collection from this operation.
+     */
+    public String getCollection() {
+        return collection;
+    }
+
+    /**
+     * Returns the distinct keys from this operation.
+     *
+     * @return The keys from this operation, in the order they were given.
+     */
+    public Set<String> getKeys() {
+        return Collections.unmodifiableSet(keys);
+    }
+
+    /**
+     * Returns the maximum number of requests in flight for this operation.
+     *
+     * @return The maximum number of requests in flight, or {@code 0} for the
+     *         client's default.
+     */
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * The state of an executing multi fetch.
+     */
+    private final class MultiFetch implements OrchestrateFutureListener<KvObject<T>> {
+
+        /** The client to fetch the keys with. */
+        private final Client client;
+        /** The future for the multi fetch. */
+        private final ResultFuture<Map<String, KvObject<T>>> future;
+        /** The prepared fetch for the collection. */
+        private final PreparedKvFetch<T> preparedFetch;
+        /** The keys that haven't been requested, guarded by this. */
+        private final Iterator<String> pending;
+        /** The objects that have been found. */
+        private final Map<String, KvObject<T>> found;
+        /** The number of keys that haven't been fetched. */
+        private final AtomicInteger remaining;
+        /** The number of fetches waiting to be sent, guarded by this. */
+        private int unsent;
+        /** Whether a thread is sending the unsent fetches, guarded by this. */
+        private boolean sending;
+
+        MultiFetch(final Client client, final ResultFuture<Map<String, KvObject<T>>> future) {
+            this.client = client;
+            this.future = future;
+            this.preparedFetch = new PreparedKvFetch<T>(collection, clazz);
+            this.pending = keys.iterator();
+            this.found = new ConcurrentHashMap<String, KvObject<T>>(keys.size());
+            this.remaining = new AtomicInteger(keys.size());
+            this.unsent = 0;
+            this.sending = false;
+        }
+
+        void start(final int concurrency) {
+            send(concurrency);
+        }
+
+        // a fetch served from the cache completes on the sending thread, the
+        // fetch it leads to is counted for this loop rather than sent from
+        // within it, so the stack doesn't grow with the number of hits
+        private void send(final int fetches) {
+            synchronized (this) {
+                unsent += fetches;
+                if (sending) {
+                    return;
+                }
+                sending = true;
+            }
+
+            while (true) {
+                final String key;
+                synchronized (this) {
+                    // a cancelled or failed future stops the remaining fetches
+                    if (unsent == 0 || future.isDone() || !pending.hasNext()) {
+                        sending = false;
+                        return;
+                    }
+                    unsent--;
+                    key = pending.next();
+                }
+
+                final KvFetchOperation<T> kvFetchOp = preparedFetch.operation(key);
+                if (apiKey != null) {
+                    kvFetchOp.withApiKey(apiKey);
+                }
+                try {
+                    client.execute(kvFetchOp).addListener(this);
+                } catch (final RuntimeException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        @Override
+        public void onComplete(final OrchestrateFuture<KvObject<T>> fetch) {
+            try {
+                final KvObject<T> kvObject = fetch.get();
+                if (kvObject != null) {
+                    found.put(kvObject.getKey(), kvObject);
+                }
+            } catch (final Exception e) {
+                fail((e instanceof ExecutionException) ? e.getCause() : e);
+                return;
+            }
+
+            if (remaining.decrementAndGet() == 0) {
+                complete();
+            } else {
+                send(1);
+            }
+        }
+
+        @Override
+        public void onException(final OrchestrateFuture<KvObject<T>> fetch) {
+            future.failFrom(fetch);
+        }
+
+        private void complete() {
+            final Map<String, KvObject<T>> results = new LinkedHashMap<String, KvObject<T>>(found.size());
+            for (final String key : keys) {
+                final KvObject<T> kvObject = found.get(key);
+                if (kvObject != null) {
+                    results.put(key, kvObject);
+                }
+            }
+            future.complete(results);
+        }
+
+        private void fail(final Throwable t) {
+            future.fail(t);
+        }
+
+    }
+
+}
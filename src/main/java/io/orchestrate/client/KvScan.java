@@ -0,0 +1,836 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * A parallel scan of all the KV objects in a collection.
+ *
+ * <p>The key space is split into ranges, from the split keys given to the
+ * builder or from keys sampled with search requests, and up to {@link
+ * Builder#parallelism(int)} ranges are listed concurrently. Each range is
+ * listed in key order from its start key, and stops at the first key past its
+ * end, so a range reads at most one page more than it needs.
+ *
+ * <p>Pages are delivered to the {@link Listener} from the client's I/O
+ * threads, the pages of a range are delivered in order and never
+ * concurrently but the pages of different ranges can be. The progress of
+ * every range is available as a {@link Checkpoint} while the scan runs, a
+ * scan that was cancelled or failed can be resumed from its checkpoint.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * KvScan<MyObject> scan = KvScan.builder(client, "myCollection", MyObject.class)
+ *         .parallelism(8)
+ *         .splitKeys("g", "n", "t")
+ *         .build();
+ * Future<KvScan.Checkpoint> done = scan.start(new KvScan.Listener<MyObject>() {
+ *     public void onPage(KvScan.Partition partition, List<KvObject<MyObject>> objects) {
+ *         // do something with the objects
+ *     }
+ *
+ *     public void onPartitionComplete(KvScan.Partition partition) {}
+ * });
+ * done.get();
+ * }
+ * </pre>
+ *
+ * @param <T> The type to deserialize the KV objects to.
+ */
+public final class KvScan<T> {
+
+    /**
+     * Receives the KV objects read by a {@code KvScan}.
+     *
+     * @param <T> The type to deserialize the KV objects to.
+     */
+    public interface Listener<T> {
+
+        /**
+         * Invoked with each page of KV objects read from a key range, an
+         * exception thrown from this method fails the scan. The checkpoint
+         * only includes the page once this method returns, so a scan resumed
+         * from it delivers the page again.
+         *
+         * @param partition The progress of the key range, including this page.
+         * @param objects The KV objects in the page, in key order.
+         */
+        void onPage(final Partition partition, final List<KvObject<T>> objects);
+
+        /**
+         * Invoked when all the KV objects in a key range have been read.
+         *
+         * @param partition The final progress of the key range.
+         */
+        void onPartitionComplete(final Partition partition);
+
+    }
+
+    /** The number of keys to sample per partition to pick split keys. */
+    private static final int SAMPLES_PER_PARTITION = 4;
+    /** The mapper for checkpoints. */
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /** The client to list keys with. */
+    private final Client client;
+    /** The collection to scan. */
+    private final String collection;
+    /** Type information for marshalling objects at runtime. */
+    private final Class<T> clazz;
+    /** The maximum number of ranges to list or keys to sample concurrently. */
+    private final int parallelism;
+    /** The number of KV objects to request per page. */
+    private final int pageSize;
+    /** The number of ranges to split the key space into by sampling. */
+    private final int partitionCount;
+    /** The key ranges, or {@code null} until the split keys are sampled. */
+    private volatile List<PartitionState> partitions;
+    /** The ranges waiting to be listed. */
+    private final Queue<PartitionState> pending;
+    /** The number of ranges that haven't been read to the end. */
+    private final AtomicInteger remaining;
+    /** The result of the scan. */
+    private final ResultFuture<Checkpoint> result;
+    /** Whether this scan has been started. */
+    private boolean started;
+
+    private KvScan(final Builder<T> builder) {
+        assert (builder != null);
+
+        this.client = builder.client;
+        this.collection = builder.collection;
+        this.clazz = builder.clazz;
+        this.parallelism = builder.parallelism;
+        this.pageSize = builder.pageSize;
+        this.partitionCount = builder.partitionCount;
+        this.pending = new ConcurrentLinkedQueue<PartitionState>();
+        this.remaining = new AtomicInteger(0);
+        this.result = new ResultFuture<Checkpoint>();
+        this.started = false;
+
+        if (builder.checkpoint != null) {
+            final List<PartitionState> states = new ArrayList<PartitionState>();
+            for (final Partition partition : builder.checkpoint.getPartitions()) {
+                states.add(new PartitionState(partition));
+            }
+            this.partitions = Collections.unmodifiableList(states);
+        } else if (builder.splitKeys != null || builder.partitionCount == 1) {
+            this.partitions = fromSplitKeys(builder.splitKeys);
+        } else {
+            this.partitions = null;
+        }
+    }
+
+    /**
+     * Starts the scan, the returned future completes with the final
+     * checkpoint when every key range has been read.
+     *
+     * @param listener The listener for the KV objects read.
+     * @return A future for the end of the scan, cancelling it stops the scan
+     *         from requesting more pages.
+     */
+    public synchronized Future<Checkpoint> start(final Listener<T> listener) {
+        checkNotNull(listener, "listener");
+        checkArgument(!started, "The scan has already been started.");
+        started = true;
+
+        if (partitions != null) {
+            launch(listener);
+        } else {
+            sampleSplitKeys(listener);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the progress of every key range of the scan, to resume the scan
+     * from with {@link Builder#resumeFrom(Checkpoint)}.
+     *
+     * @return The current checkpoint of the scan, empty if the key ranges
+     *         haven't been sampled yet.
+     */
+    public Checkpoint getCheckpoint() {
+        final List<PartitionState> states = partitions;
+        final List<Partition> snapshots = new ArrayList<Partition>();
+        if (states != null) {
+            for (final PartitionState state : states) {
+                snapshots.add(state.snapshot());
+            }
+        }
+        return new Checkpoint(snapshots);
+    }
+
+    private void launch(final Listener<T> listener) {
+        for (final PartitionState state : partitions) {
+            if (!state.done) {
+                pending.add(state);
+                remaining.incrementAndGet();
+            }
+        }
+        if (remaining.get() == 0) {
+            result.complete(getCheckpoint());
+            return;
+        }
+        for (int i = 0; i < parallelism; i++) {
+            final PartitionState state = pending.poll();
+            if (state == null) {
+                break;
+            }
+            fetch(state, listener);
+        }
+    }
+
+    private void fetch(final PartitionState state, final Listener<T> listener) {
+        if (result.isDone()) {
+            return;
+        }
+
+        final KvListOperation<T> kvListOp;
+        if (state.lastKey != null) {
+            kvListOp = new KvListOperation<T>(collection, state.lastKey, pageSize, false, clazz);
+        } else if (state.startKey != null) {
+            kvListOp = new KvListOperation<T>(collection, state.startKey, pageSize, true, clazz);
+        } else {
+            kvListOp = new KvListOperation<T>(collection, null, pageSize, false, clazz);
+        }
+
+        final OrchestrateFuture<KvList<T>> future;
+        try {
+            future = client.execute(kvListOp);
+        } catch (final RuntimeException e) {
+            result.fail(e);
+            return;
+        }
+        future.addListener(new OrchestrateFutureListener<KvList<T>>() {
+            @Override
+            public void onComplete(final OrchestrateFuture<KvList<T>> future) {
+                try {
+                    pageArrived(state, future.get(), listener);
+                } catch (final ExecutionException e) {
+                    result.fail(e.getCause());
+                } catch (final Throwable t) {
+                    result.fail(t);
+                }
+            }
+
+            @Override
+            public void onException(final OrchestrateFuture<KvList<T>> future) {
+                result.failFrom(future);
+            }
+        });
+    }
+
+    private void pageArrived(final PartitionState state, final KvList<T> page, final Listener<T> listener) {
+        final List<KvObject<T>> objects = new ArrayList<KvObject<T>>(page.getCount());
+        boolean pastEnd = false;
+        for (final KvObject<T> kvObject : page) {
+            if (state.endKey != null && kvObject.getKey().compareTo(state.endKey) >= 0) {
+                pastEnd = true;
+                break;
+            }
+            objects.add(kvObject);
+        }
+
+        final boolean done = pastEnd || !page.hasNext();
+        if (!objects.isEmpty()) {
+            // the checkpoint only moves past a page once the listener has
+            // handled it, so a resumed scan redelivers a page that failed
+            final String lastKey = objects.get(objects.size() - 1).getKey();
+            listener.onPage(state.snapshot(lastKey, objects.size(), done), objects);
+            state.progress(lastKey, objects.size(), done);
+        } else if (done) {
+            state.progress(state.lastKey, 0, true);
+        }
+
+        if (!done) {
+            fetch(state, listener);
+            return;
+        }
+        listener.onPartitionComplete(state.snapshot());
+        if (remaining.decrementAndGet() == 0) {
+            result.complete(getCheckpoint());
+            return;
+        }
+        final PartitionState next = pending.poll();
+        if (next != null) {
+            fetch(next, listener);
+        }
+    }
+
+    private void sampleSplitKeys(final Listener<T> listener) {
+        // the total count of the collection decides the offsets to sample
+        final SearchOperation<String> countOp = SearchOperation.builder(collection, String.class)
+                .query("*")
+                .limit(1)
+                .build();
+        final OrchestrateFuture<SearchResults<String>> countFuture;
+        try {
+            countFuture = client.execute(countOp);
+        } catch (final RuntimeException e) {
+            result.fail(e);
+            return;
+        }
+        countFuture.addListener(new OrchestrateFutureListener<SearchResults<String>>() {
+            @Override
+            public void onComplete(final OrchestrateFuture<SearchResults<String>> future) {
+                try {
+                    sampleKeys(future.get().getTotalCount(), listener);
+                } catch (final ExecutionException e) {
+                    result.fail(e.getCause());
+                } catch (final Throwable t) {
+                    result.fail(t);
+                }
+            }
+
+            @Override
+            public void onException(final OrchestrateFuture<SearchResults<String>> future) {
+                result.failFrom(future);
+            }
+        });
+    }
+
+    private void sampleKeys(final int totalCount, final Listener<T> listener) {
+        final int samples = Math.min(totalCount, partitionCount * SAMPLES_PER_PARTITION);
+        if (samples < partitionCount) {
+            partitions = fromSplitKeys(null);
+            launch(listener);
+            return;
+        }
+
+        // the samples go through the same window as the list requests, so a
+        // large partition count doesn't flood the client with searches
+        final Sampling sampling = new Sampling(totalCount, samples);
+        for (int i = 0; i < Math.min(parallelism, samples); i++) {
+            sampleNext(sampling, listener);
+        }
+    }
+
+    private void sampleNext(final Sampling sampling, final Listener<T> listener) {
+        final int i = sampling.next.getAndIncrement();
+        if (i >= sampling.samples || result.isDone()) {
+            return;
+        }
+
+        final SearchOperation<String> sampleOp = SearchOperation.builder(collection, String.class)
+                .query("*")
+                .limit(1)
+                .offset((int) ((long) i * sampling.totalCount / sampling.samples))
+                .build();
+        final OrchestrateFuture<SearchResults<String>> future;
+        try {
+            future = client.execute(sampleOp);
+        } catch (final RuntimeException e) {
+            result.fail(e);
+            return;
+        }
+        future.addListener(new OrchestrateFutureListener<SearchResults<String>>() {
+            @Override
+            public void onComplete(final OrchestrateFuture<SearchResults<String>> future) {
+                try {
+                    for (final Result<String> sample : future.get()) {
+                        sampling.keys.add(sample.getKvObject().getKey());
+                    }
+                } catch (final ExecutionException e) {
+                    result.fail(e.getCause());
+                    return;
+                } catch (final Throwable t) {
+                    result.fail(t);
+                    return;
+                }
+                if (sampling.outstanding.decrementAndGet() > 0) {
+                    sampleNext(sampling, listener);
+                    return;
+                }
+                try {
+                    splitSampled(new ArrayList<String>(sampling.keys), listener);
+                } catch (final Throwable t) {
+                    result.fail(t);
+                }
+            }
+
+            @Override
+            public void onException(final OrchestrateFuture<SearchResults<String>> future) {
+                result.failFrom(future);
+            }
+        });
+    }
+
+    private void splitSampled(final List<String> sortedKeys, final Listener<T> listener) {
+        if (sortedKeys.isEmpty()) {
+            // the objects were deleted since the count, scan a single range
+            partitions = fromSplitKeys(null);
+            launch(listener);
+            return;
+        }
+
+        final Set<String> splitKeys = new TreeSet<String>();
+        for (int i = 1; i < partitionCount; i++) {
+            splitKeys.add(sortedKeys.get(i * sortedKeys.size() / partitionCount));
+        }
+        partitions = fromSplitKeys(splitKeys.toArray(new String[splitKeys.size()]));
+        launch(listener);
+    }
+
+    private static List<PartitionState> fromSplitKeys(@Nullable final String[] splitKeys) {
+        final List<PartitionState> states = new ArrayList<PartitionState>();
+        String startKey = null;
+        if (splitKeys != null) {
+            for (final String splitKey : splitKeys) {
+                states.add(new PartitionState(states.size(), startKey, splitKey));
+                startKey = splitKey;
+            }
+        }
+        states.add(new PartitionState(states.size(), startKey, null));
+        return Collections.unmodifiableList(states);
+    }
+
+    /**
+     * A new builder to scan the {@code collection}.
+     *
+     * @param client The client to list keys with.
+     * @param collection The collection to scan.
+     * @param clazz Type information for deserializing to type {@code T} at
+     *              runtime.
+     * @param <T> The type to deserialize the KV objects to.
+     * @return A new {@code Builder} with default settings.
+     */
+    public static <T> Builder<T> builder(final Client client, final String collection, final Class<T> clazz) {
+        return new Builder<T>(client, collection, clazz);
+    }
+
+    /**
+     * The mutable progress of a key range.
+     */
+    private static final class PartitionState {
+
+        /** The position of the range in the key space. */
+        final int index;
+        /** The first key of the range, or {@code null} for the first key. */
+        final String startKey;
+        /** The key after the range, or {@code null} for the last key. */
+        final String endKey;
+        /** The last key read. */
+        volatile String lastKey;
+        /** The number of objects read. */
+        volatile long objectCount;
+        /** Whether the range has been read to the end. */
+        volatile boolean done;
+
+        PartitionState(final int index, @Nullable final String startKey, @Nullable final String endKey) {
+            this.index = index;
+            this.startKey = startKey;
+            this.endKey = endKey;
+            this.lastKey = null;
+            this.objectCount = 0;
+            this.done = false;
+        }
+
+        PartitionState(final Partition partition) {
+            this.index = partition.index;
+            this.startKey = partition.startKey;
+            this.endKey = partition.endKey;
+            this.lastKey = partition.lastKey;
+            this.objectCount = partition.objectCount;
+            this.done = partition.done;
+        }
+
+        // only the thread delivering the range's current page writes progress
+        void progress(@Nullable final String lastKey, final int count, final boolean done) {
+            this.lastKey = lastKey;
+            this.objectCount += count;
+            this.done = done;
+        }
+
+        Partition snapshot() {
+            return new Partition(index, startKey, endKey, lastKey, objectCount, done);
+        }
+
+        Partition snapshot(@Nullable final String lastKey, final int count, final boolean done) {
+            return new Partition(index, startKey, endKey, lastKey, objectCount + count, done);
+        }
+
+    }
+
+    /**
+     * The progress of sampling the keys to split the key space at.
+     */
+    private static final class Sampling {
+
+        /** The number of objects in the collection. */
+        final int totalCount;
+        /** The number of keys to sample. */
+        final int samples;
+        /** The index of the next sample to request. */
+        final AtomicInteger next;
+        /** The number of samples that haven't arrived yet. */
+        final AtomicInteger outstanding;
+        /** The sampled keys, in key order. */
+        final Set<String> keys;
+
+        Sampling(final int totalCount, final int samples) {
+            this.totalCount = totalCount;
+            this.samples = samples;
+            this.next = new AtomicInteger(0);
+            this.outstanding = new AtomicInteger(samples);
+            this.keys = new ConcurrentSkipListSet<String>();
+        }
+
+    }
+
+    /**
+     * The progress of a key range of a scan.
+     */
+    public static final class Partition {
+
+        /** The position of the range in the key space. */
+        private final int index;
+        /** The first key of the range. */
+        private final String startKey;
+        /** The key after the range. */
+        private final String endKey;
+        /** The last key read. */
+        private final String lastKey;
+        /** The number of objects read. */
+        private final long objectCount;
+        /** Whether the range has been read to the end. */
+        private final boolean done;
+
+        Partition(final int index, @Nullable final String startKey, @Nullable final String endKey,
+                @Nullable final String lastKey, final long objectCount, final boolean done) {
+            this.index = index;
+            this.startKey = startKey;
+            this.endKey = endKey;
+            this.lastKey = lastKey;
+            this.objectCount = objectCount;
+            this.done = done;
+        }
+
+        /**
+         * Returns the position of this range in the key space.
+         *
+         * @return The index of this range, from {@code 0}.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * Returns the first key of this range, inclusive.
+         *
+         * @return The start key, or {@code null} for the start of the
+         *         collection.
+         */
+        @Nullable
+        public String getStartKey() {
+            return startKey;
+        }
+
+        /**
+         * Returns the key after this range, exclusive.
+         *
+         * @return The end key, or {@code null} for the end of the collection.
+         */
+        @Nullable
+        public String getEndKey() {
+            return endKey;
+        }
+
+        /**
+         * Returns the last key read from this range.
+         *
+         * @return The last key read, or {@code null} if none were read.
+         */
+        @Nullable
+        public String getLastKey() {
+            return lastKey;
+        }
+
+        /**
+         * Returns the number of KV objects read from this range.
+         *
+         * @return The number of KV objects read.
+         */
+        public long getObjectCount() {
+            return objectCount;
+        }
+
+        /**
+         * Returns whether this range has been read to the end.
+         *
+         * @return {@code true} if the range is done.
+         */
+        public boolean isDone() {
+            return done;
+        }
+
+        @Override
+        public String toString() {
+            return "Partition(index=" + index + ", startKey=" + startKey + ", endKey=" + endKey +
+                    ", lastKey=" + lastKey + ", objectCount=" + objectCount + ", done=" + done + ")";
+        }
+
+    }
+
+    /**
+     * The progress of every key range of a scan, which can be saved as JSON
+     * to resume the scan later.
+     */
+    public static final class Checkpoint {
+
+        /** The progress of the key ranges. */
+        private final List<Partition> partitions;
+
+        Checkpoint(final List<Partition> partitions) {
+            assert (partitions != null);
+
+            this.partitions = Collections.unmodifiableList(partitions);
+        }
+
+        /**
+         * Returns the progress of the key ranges, in key order.
+         *
+         * @return The progress of each key range.
+         */
+        public List<Partition> getPartitions() {
+            return partitions;
+        }
+
+        /**
+         * Returns the number of KV objects read from all the key ranges.
+         *
+         * @return The number of KV objects read.
+         */
+        public long getObjectCount() {
+            long total = 0;
+            for (final Partition partition : partitions) {
+                total += partition.objectCount;
+            }
+            return total;
+        }
+
+        /**
+         * Returns whether every key range has been read to the end.
+         *
+         * @return {@code true} if the scan is complete.
+         */
+        public boolean isComplete() {
+            for (final Partition partition : partitions) {
+                if (!partition.done) {
+                    return false;
+                }
+            }
+            return !partitions.isEmpty();
+        }
+
+        /**
+         * Returns this checkpoint as JSON.
+         *
+         * @return The JSON form of this checkpoint.
+         * @see #fromJson(String)
+         */
+        public String toJson() {
+            final ArrayNode array = MAPPER.createArrayNode();
+            for (final Partition partition : partitions) {
+                final ObjectNode node = array.addObject();
+                node.put("index", partition.index);
+                node.put("startKey", partition.startKey);
+                node.put("endKey", partition.endKey);
+                node.put("lastKey", partition.lastKey);
+                node.put("objectCount", partition.objectCount);
+                node.put("done", partition.done);
+            }
+            return array.toString();
+        }
+
+        /**
+         * Parses a checkpoint from JSON.
+         *
+         * @param json The JSON form of a checkpoint.
+         * @return The checkpoint.
+         * @throws IOException If the JSON isn't a valid checkpoint.
+         * @see #toJson()
+         */
+        public static Checkpoint fromJson(final String json) throws IOException {
+            checkNotNullOrEmpty(json, "json");
+
+            final JsonNode array = MAPPER.readTree(json);
+            if (array == null || !array.isArray()) {
+                throw new IOException("A checkpoint must be a JSON array.");
+            }
+            final List<Partition> partitions = new ArrayList<Partition>(array.size());
+            for (final JsonNode node : array) {
+                partitions.add(new Partition(
+                        node.path("index").asInt(), text(node, "startKey"), text(node, "endKey"),
+                        text(node, "lastKey"), node.path("objectCount").asLong(), node.path("done").asBoolean()));
+            }
+            return new Checkpoint(partitions);
+        }
+
+        @Nullable
+        private static String text(final JsonNode node, final String field) {
+            final JsonNode value = node.get(field);
+            return (value == null || value.isNull()) ? null : value.asText();
+        }
+
+        @Override
+        public String toString() {
+            return "Checkpoint(" + partitions + ")";
+        }
+
+    }
+
+    /**
+     * Builder used to create {@code KvScan} instances.
+     *
+     * @param <T> The type to deserialize the KV objects to.
+     */
+    public static final class Builder<T> {
+
+        /** The client to list keys with. */
+        private final Client client;
+        /** The collection to scan. */
+        private final String collection;
+        /** Type information for marshalling objects at runtime. */
+        private final Class<T> clazz;
+        /** The maximum number of ranges to list concurrently. */
+        private int parallelism;
+        /** The number of KV objects to request per page. */
+        private int pageSize;
+        /** The number of ranges to split the key space into by sampling. */
+        private int partitionCount;
+        /** The keys to split the key space at. */
+        private String[] splitKeys;
+        /** The checkpoint to resume from. */
+        private Checkpoint checkpoint;
+
+        private Builder(final Client client, final String collection, final Class<T> clazz) {
+            this.client = checkNotNull(client, "client");
+            this.collection = checkNotNullOrEmpty(collection, "collection");
+            this.clazz = checkNotNull(clazz, "clazz");
+            this.parallelism = 4;
+            this.pageSize = 100;
+            this.partitionCount = 0;
+            this.splitKeys = null;
+            this.checkpoint = null;
+        }
+
+        /**
+         * The maximum number of key ranges to list concurrently, and of
+         * search requests to sample split keys with, defaults to {@code 4}.
+         *
+         * @param parallelism The number of concurrent requests.
+         * @return This builder.
+         */
+        public Builder<T> parallelism(final int parallelism) {
+            checkArgument(parallelism > 0, "'parallelism' must be greater than zero.");
+
+            this.parallelism = parallelism;
+            return this;
+        }
+
+        /**
+         * The number of KV objects to request per page, defaults to {@code
+         * 100}.
+         *
+         * @param pageSize The page size, between {@code 1} and {@code 100}.
+         * @return This builder.
+         */
+        public Builder<T> pageSize(final int pageSize) {
+            checkArgument(pageSize > 0 && pageSize <= 100, "'pageSize' must be between 1 and 100.");
+
+            this.pageSize = pageSize;
+            return this;
+        }
+
+        /**
+         * The keys to split the key space at, the first range ends before
+         * the first split key and the last range starts at the last split
+         * key.
+         *
+         * @param splitKeys The keys to split the key space at.
+         * @return This builder.
+         */
+        public Builder<T> splitKeys(final String... splitKeys) {
+            checkNotNull(splitKeys, "splitKeys");
+            final SortedSet<String> sorted = new TreeSet<String>();
+            for (final String splitKey : splitKeys) {
+                sorted.add(checkNotNullOrEmpty(splitKey, "splitKey"));
+            }
+
+            this.splitKeys = sorted.toArray(new String[sorted.size()]);
+            return this;
+        }
+
+        /**
+         * The number of key ranges to split the key space into, from keys
+         * sampled with search requests when the scan starts. Defaults to the
+         * parallelism. Sampling relies on the search index, which can lag
+         * behind the most recent writes.
+         *
+         * @param partitions The number of key ranges.
+         * @return This builder.
+         */
+        public Builder<T> partitions(final int partitions) {
+            checkArgument(partitions > 0, "'partitions' must be greater than zero.");
+
+            this.partitionCount = partitions;
+            return this;
+        }
+
+        /**
+         * Resume a scan from its {@code checkpoint}, the key ranges that were
+         * read to the end are skipped and the others continue after their
+         * last key.
+         *
+         * @param checkpoint The checkpoint of an earlier scan.
+         * @return This builder.
+         */
+        public Builder<T> resumeFrom(final Checkpoint checkpoint) {
+            checkNotNull(checkpoint, "checkpoint");
+            checkArgument(!checkpoint.getPartitions().isEmpty(), "'checkpoint' has no partitions.");
+
+            this.checkpoint = checkpoint;
+            return this;
+        }
+
+        /**
+         * Creates a new {@code KvScan}.
+         *
+         * @return A new {@link KvScan}.
+         */
+        public KvScan<T> build() {
+            if (partitionCount == 0) {
+                partitionCount = parallelism;
+            }
+            return new KvScan<T>(this);
+        }
+
+    }
+
+}
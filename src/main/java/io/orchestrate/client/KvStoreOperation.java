@@ -18,7 +18,6 @@ package io.orchestrate.client;
 import lombok.EqualsAndHashCode;
 import lombok.ToString;
 import org.glassfish.grizzly.http.HttpHeader;
-import org.glassfish.grizzly.http.util.Header;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
@@ -141,9 +140,7 @@ public final class KvStoreOperation extends AbstractOperation<KvMetadata> {
             final int status, final HttpHeader httpHeader, final String json, final JacksonMapper mapper)
             throws IOException {
         if (status == 201) {
-            final String ref = httpHeader.getHeader(Header.ETag)
-                    .replace("\"", "")
-                    .replace("-gzip", "");
+            final String ref = refFromETag(httpHeader);
             return new KvMetadata(collection, key, ref);
         }
         return null;
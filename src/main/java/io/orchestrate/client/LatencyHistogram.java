@@ -0,0 +1,229 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * A histogram of latencies, recorded in nanoseconds.
+ *
+ * <p>Values are counted in log-linear buckets (in the style of an HDR
+ * histogram): each power of two is split into 32 linear sub-buckets, so a
+ * recorded value is reported to within ~3% of its actual value. Recording is
+ * lock-free and doesn't allocate. Values larger than ~137 seconds are counted
+ * in the last bucket.
+ */
+public final class LatencyHistogram {
+
+    /** The number of bits for the sub-buckets of each power of two. */
+    private static final int SUB_BUCKET_BITS = 5;
+    /** The number of sub-buckets for each power of two. */
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    /** The highest bit of a value that is tracked precisely. */
+    private static final int MAX_VALUE_BIT = 37;
+    /** The largest value that is tracked precisely. */
+    private static final long MAX_TRACKED_VALUE = (1L << (MAX_VALUE_BIT + 1)) - 1;
+    /** The number of buckets in the histogram. */
+    static final int BUCKET_COUNT =
+            (2 * SUB_BUCKET_COUNT) + ((MAX_VALUE_BIT - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT);
+
+    /** The counts of the buckets. */
+    private final AtomicLongArray counts;
+    /** The number of values recorded. */
+    private final AtomicLong count;
+    /** The sum of the values recorded. */
+    private final AtomicLong sum;
+    /** The largest value recorded. */
+    private final AtomicLong max;
+
+    LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKET_COUNT);
+        count = new AtomicLong(0);
+        sum = new AtomicLong(0);
+        max = new AtomicLong(0);
+    }
+
+    /**
+     * Records a latency in the histogram, negative values are ignored.
+     *
+     * @param nanos The latency, in nanoseconds.
+     */
+    void record(final long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+
+        counts.incrementAndGet(bucketIndex(nanos));
+        count.incrementAndGet();
+        sum.addAndGet(nanos);
+
+        long current = max.get();
+        while (nanos > current) {
+            if (max.compareAndSet(current, nanos)) {
+                break;
+            }
+            current = max.get();
+        }
+    }
+
+    /**
+     * Returns the number of latencies recorded in this histogram.
+     *
+     * @return The number of latencies recorded.
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns a point in time copy of this histogram.
+     *
+     * <p>The snapshot isn't atomic with respect to concurrent recording, values
+     * recorded while the snapshot is taken may be partially included.
+     *
+     * @return A snapshot of this histogram.
+     */
+    public Snapshot snapshot() {
+        final long[] bucketCounts = new long[BUCKET_COUNT];
+        long total = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            bucketCounts[i] = counts.get(i);
+            total += bucketCounts[i];
+        }
+        return new Snapshot(bucketCounts, total, sum.get(), max.get());
+    }
+
+    static int bucketIndex(final long value) {
+        assert (value >= 0);
+
+        if (value < 2 * SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        final long clamped = Math.min(value, MAX_TRACKED_VALUE);
+        final int magnitude = (63 - Long.numberOfLeadingZeros(clamped)) - SUB_BUCKET_BITS;
+        final int subBucket = (int) (clamped >>> magnitude) - SUB_BUCKET_COUNT;
+        return (2 * SUB_BUCKET_COUNT) + ((magnitude - 1) * SUB_BUCKET_COUNT) + subBucket;
+    }
+
+    static long bucketUpperBound(final int index) {
+        assert (index >= 0 && index < BUCKET_COUNT);
+
+        if (index < 2 * SUB_BUCKET_COUNT) {
+            return index;
+        }
+        final int magnitude = ((index - (2 * SUB_BUCKET_COUNT)) / SUB_BUCKET_COUNT) + 1;
+        final long subBucket = ((index - (2 * SUB_BUCKET_COUNT)) % SUB_BUCKET_COUNT) + SUB_BUCKET_COUNT;
+        return ((subBucket + 1) << magnitude) - 1;
+    }
+
+    /**
+     * A point in time copy of a {@link LatencyHistogram}.
+     */
+    public static final class Snapshot {
+
+        /** The counts of the buckets. */
+        private final long[] counts;
+        /** The number of values in the snapshot. */
+        private final long count;
+        /** The sum of the values in the snapshot. */
+        private final long sum;
+        /** The largest value in the snapshot. */
+        private final long max;
+
+        private Snapshot(final long[] counts, final long count, final long sum, final long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * Returns the number of latencies in this snapshot.
+         *
+         * @return The number of latencies.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the largest latency in this snapshot.
+         *
+         * @param unit The unit of time to return the latency in.
+         * @return The largest latency.
+         */
+        public long getMax(final TimeUnit unit) {
+            return unit.convert(max, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * Returns the mean latency in this snapshot.
+         *
+         * @param unit The unit of time to return the latency in.
+         * @return The mean latency, or {@code 0} if the snapshot is empty.
+         */
+        public double getMean(final TimeUnit unit) {
+            if (count == 0) {
+                return 0;
+            }
+            return (double) sum / count / unit.toNanos(1);
+        }
+
+        /**
+         * Returns the latency at the specified {@code percentile}, e.g. {@code
+         * 99.9}, to within the precision of the histogram.
+         *
+         * @param percentile The percentile, between {@code 0} and {@code 100}.
+         * @param unit The unit of time to return the latency in.
+         * @return The latency at the percentile, or {@code 0} if the snapshot is
+         *         empty.
+         */
+        public long getValueAtPercentile(final double percentile, final TimeUnit unit) {
+            checkArgument(percentile >= 0 && percentile <= 100, "'percentile' must be between 0 and 100.");
+            checkNotNull(unit, "unit");
+
+            if (count == 0) {
+                return 0;
+            }
+            final long target = Math.max(1, (long) Math.ceil((percentile / 100) * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    final long value = Math.min(bucketUpperBound(i), max);
+                    return unit.convert(value, TimeUnit.NANOSECONDS);
+                }
+            }
+            return unit.convert(max, TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count +
+                    ", mean=" + (long) getMean(TimeUnit.MICROSECONDS) + "us" +
+                    ", p50=" + getValueAtPercentile(50, TimeUnit.MICROSECONDS) + "us" +
+                    ", p99=" + getValueAtPercentile(99, TimeUnit.MICROSECONDS) + "us" +
+                    ", p99.9=" + getValueAtPercentile(99.9, TimeUnit.MICROSECONDS) + "us" +
+                    ", max=" + getMax(TimeUnit.MICROSECONDS) + "us";
+        }
+
+    }
+
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts events and tracks their rate as a one minute exponentially weighted
+ * moving average.
+ *
+ * <p>Marking an event only updates a {@link StripedCounter}, the moving
+ * average is brought up to date when the rate is read.
+ */
+final class Meter {
+
+    /** The interval the moving average is updated at. */
+    private static final long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+    /** The weight of each interval for a one minute moving average. */
+    private static final double ALPHA = 1 - Math.exp(-5 / 60.0);
+    /** The most intervals to replay when the rate hasn't been read in a while. */
+    private static final int MAX_TICKS = 120;
+
+    /** The count of events. */
+    private final StripedCounter count;
+    /** The time the moving average was last updated. */
+    private long lastTick;
+    /** The count at the time the moving average was last updated. */
+    private long lastCount;
+    /** The moving average, in events per second. */
+    private double rate;
+    /** Whether the moving average has been initialized. */
+    private boolean initialized;
+
+    Meter() {
+        count = new StripedCounter();
+        lastTick = System.nanoTime();
+        lastCount = 0;
+        rate = 0;
+        initialized = false;
+    }
+
+    void mark() {
+        count.increment();
+    }
+
+    long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * Returns the one minute moving average of the rate of events.
+     *
+     * @return The rate, in events per second.
+     */
+    synchronized double getOneMinuteRate() {
+        final long now = System.nanoTime();
+        final long ticks = (now - lastTick) / TICK_INTERVAL;
+        if (ticks <= 0) {
+            return rate;
+        }
+
+        // spread the events since the last update evenly over the intervals
+        final long current = count.sum();
+        final double instantRate = (double) (current - lastCount) / ticks
+                / TimeUnit.NANOSECONDS.toSeconds(TICK_INTERVAL);
+        for (long i = 0; i < Math.min(ticks, MAX_TICKS); i++) {
+            if (initialized) {
+                rate += ALPHA * (instantRate - rate);
+            } else {
+                rate = instantRate;
+                initialized = true;
+            }
+        }
+        lastTick += ticks * TICK_INTERVAL;
+        lastCount = current;
+        return rate;
+    }
+
+}
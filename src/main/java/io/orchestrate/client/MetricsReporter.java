@@ -0,0 +1,46 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+/**
+ * Receives the metrics of a client at a regular interval, e.g. to publish
+ * them to a monitoring system.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * Client client = new ClientBuilder("your api key")
+ *         .metricsReporter(new MetricsReporter() {
+ *             public void report(ClientMetrics metrics) {
+ *                 System.out.println(metrics.getRequestRate());
+ *             }
+ *         }, 1, TimeUnit.MINUTES)
+ *         .build();
+ * }
+ * </pre>
+ */
+public interface MetricsReporter {
+
+    /**
+     * Invoked from a background thread of the client with its metrics, and a
+     * last time from the same thread when the client is stopped. Exceptions
+     * are logged and reporting continues at the next interval.
+     *
+     * @param metrics The metrics of the client.
+     */
+    void report(final ClientMetrics metrics);
+
+}
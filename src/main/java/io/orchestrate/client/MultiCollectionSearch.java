@@ -0,0 +1,521 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import java.io.Closeable;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * Runs a search on several collections and merges the results by score.
+ *
+ * <p>The search is sent to every collection concurrently. {@link #top(int)}
+ * keeps the best results in a heap bounded to the number requested, and
+ * {@link #iterator()} merges the collections' results lazily, requesting the
+ * next page of a collection only when the merge gets close to the end of the
+ * page it has, so neither holds every collection's full result list.
+ *
+ * <p>The results of a collection are in score order, results with the same
+ * score are merged in the order the collections were given.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * MultiCollectionSearch<MyObject> search = MultiCollectionSearch
+ *         .builder(client, MyObject.class)
+ *         .collections("shard0", "shard1", "shard2")
+ *         .query("title:foo")
+ *         .build();
+ * List<Result<MyObject>> best = search.top(20).get();
+ * }
+ * </pre>
+ *
+ * @param <T> The type to deserialize the results to.
+ */
+public final class MultiCollectionSearch<T> {
+
+    /** Orders results from the lowest score, for the top-K heap. */
+    private static final Comparator<Result<?>> LOWEST_SCORE_FIRST = new Comparator<Result<?>>() {
+        @Override
+        public int compare(final Result<?> r1, final Result<?> r2) {
+            return Double.compare(r1.getScore(), r2.getScore());
+        }
+    };
+
+    /** The client to search with. */
+    private final Client client;
+    /** Type information for marshalling objects at runtime. */
+    private final Class<T> clazz;
+    /** The collections to search. */
+    private final List<String> collections;
+    /** The lucene query. */
+    private final String query;
+    /** The number of results to request per page. */
+    private final int pageSize;
+    /** The maximum number of pages to request at once from a collection. */
+    private final int maxInFlight;
+
+    private MultiCollectionSearch(final Builder<T> builder) {
+        assert (builder != null);
+
+        this.client = builder.client;
+        this.clazz = builder.clazz;
+        this.collections = Collections.unmodifiableList(new ArrayList<String>(builder.collections));
+        this.query = builder.query;
+        this.pageSize = builder.pageSize;
+        this.maxInFlight = builder.maxInFlight;
+    }
+
+    /**
+     * Returns the {@code k} results with the highest scores across all the
+     * collections, at most {@code k} results are read from each collection.
+     *
+     * @param k The number of results to return.
+     * @return A future for the results, from the highest score.
+     */
+    public Future<List<Result<T>>> top(final int k) {
+        checkArgument(k > 0, "'k' must be greater than zero.");
+
+        final ResultFuture<List<Result<T>>> result = new ResultFuture<List<Result<T>>>();
+        final PriorityQueue<Result<T>> heap = new PriorityQueue<Result<T>>(k + 1, LOWEST_SCORE_FIRST);
+        final AtomicInteger remaining = new AtomicInteger(collections.size());
+
+        final SearchStream.Listener<T> listener = new SearchStream.Listener<T>() {
+            @Override
+            public void onResults(final int offset, final List<Result<T>> results) {
+                synchronized (heap) {
+                    for (final Result<T> r : results) {
+                        if (heap.size() < k) {
+                            heap.add(r);
+                        } else if (r.getScore() > heap.peek().getScore()) {
+                            heap.poll();
+                            heap.add(r);
+                        }
+                    }
+                }
+            }
+        };
+
+        for (final String collection : collections) {
+            final SearchOperation<T> searchOp = SearchOperation.builder(collection, clazz)
+                    .query(query)
+                    .limit(Math.min(pageSize, k))
+                    .build();
+            final ResultFuture<Integer> shard = SearchStream.builder(client, searchOp)
+                    .maxInFlight(maxInFlight)
+                    .maxResults(k)
+                    .ordered(false)
+                    .build()
+                    .run(listener);
+            shard.whenDone(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        shard.get();
+                    } catch (final ExecutionException e) {
+                        result.fail(e.getCause());
+                        return;
+                    } catch (final Exception e) {
+                        result.fail(e);
+                        return;
+                    }
+                    if (remaining.decrementAndGet() == 0) {
+                        final List<Result<T>> best;
+                        synchronized (heap) {
+                            best = new ArrayList<Result<T>>(heap);
+                        }
+                        Collections.sort(best, Collections.reverseOrder(LOWEST_SCORE_FIRST));
+                        result.complete(best);
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Returns an iterator over the results of all the collections, from the
+     * highest score. The first page of every collection is requested
+     * straight away, and a collection's next page is requested when the
+     * merge starts reading the page before it.
+     *
+     * @return A new iterator over the merged results.
+     */
+    public ResultIterator<T> iterator() {
+        return new ResultIterator<T>(this);
+    }
+
+    /**
+     * A new builder to search collections with results of type {@code T}.
+     *
+     * @param client The client to search with.
+     * @param clazz Type information for deserializing to type {@code T} at
+     *              runtime.
+     * @param <T> The type to deserialize the results to.
+     * @return A new {@code Builder} with default settings.
+     */
+    public static <T> Builder<T> builder(final Client client, final Class<T> clazz) {
+        return new Builder<T>(client, clazz);
+    }
+
+    /**
+     * An iterator over the merged results of a {@code MultiCollectionSearch}.
+     *
+     * <p>A failed request is rethrown from {@link #hasNext()} as a {@link
+     * ClientException}. The iterator should be closed if it isn't read to the
+     * end, so that no more pages are requested.
+     *
+     * @param <T> The type to deserialize the results to.
+     */
+    public static final class ResultIterator<T> implements Iterator<Result<T>>, Closeable {
+
+        /** The search being merged. */
+        private final MultiCollectionSearch<T> search;
+        /** The lock for the buffered pages. */
+        private final ReentrantLock lock;
+        /** Signalled when a page arrives or a request fails. */
+        private final Condition pageArrived;
+        /** The results of each collection, guarded by the lock. */
+        private final List<Shard<T>> shards;
+        /** The error a page request failed with, guarded by the lock. */
+        private Throwable failure;
+        /** Whether this iterator has been closed, guarded by the lock. */
+        private boolean closed;
+
+        private ResultIterator(final MultiCollectionSearch<T> search) {
+            assert (search != null);
+
+            this.search = search;
+            this.lock = new ReentrantLock();
+            this.pageArrived = lock.newCondition();
+            this.shards = new ArrayList<Shard<T>>(search.collections.size());
+            this.failure = null;
+            this.closed = false;
+
+            for (final String collection : search.collections) {
+                shards.add(new Shard<T>(collection));
+            }
+            for (final Shard<T> shard : shards) {
+                fetchIfNeeded(shard);
+            }
+        }
+
+        /**
+         * Returns whether there are more results, waiting for the collections'
+         * pages to arrive if needed.
+         *
+         * @return {@code true} if there are more results.
+         * @throws ClientException If a page request failed or the thread was
+         *         interrupted while waiting.
+         */
+        @Override
+        public boolean hasNext() {
+            lock.lock();
+            try {
+                return (best() != null);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public Result<T> next() {
+            final Shard<T> shard;
+            final Result<T> next;
+            lock.lock();
+            try {
+                shard = best();
+                if (shard == null) {
+                    throw new NoSuchElementException();
+                }
+                next = shard.buffer.poll();
+            } finally {
+                lock.unlock();
+            }
+
+            fetchIfNeeded(shard);
+            return next;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Stops requesting pages, requests already in flight are ignored when
+         * they complete.
+         */
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                closed = true;
+                for (final Shard<T> shard : shards) {
+                    shard.buffer.clear();
+                }
+                pageArrived.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // called while holding the lock, waits until every collection has a
+        // result buffered or has no more
+        private Shard<T> best() {
+            try {
+                while (true) {
+                    if (failure != null) {
+                        throw new ClientException(failure);
+                    }
+                    if (closed) {
+                        return null;
+                    }
+
+                    Shard<T> best = null;
+                    boolean waiting = false;
+                    for (final Shard<T> shard : shards) {
+                        final Result<T> head = shard.buffer.peek();
+                        if (head == null) {
+                            waiting |= !shard.exhausted;
+                        } else if (best == null || head.getScore() > best.buffer.peek().getScore()) {
+                            best = shard;
+                        }
+                    }
+                    if (!waiting) {
+                        return best;
+                    }
+                    pageArrived.await();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ClientException(e);
+            }
+        }
+
+        private void fetchIfNeeded(final Shard<T> shard) {
+            final SearchOperation<T> searchOp;
+            lock.lock();
+            try {
+                // request the next page once the merge is into the last one
+                if (closed || failure != null || shard.fetching || shard.exhausted
+                        || shard.buffer.size() >= search.pageSize) {
+                    return;
+                }
+                searchOp = SearchOperation.builder(shard.collection, search.clazz)
+                        .query(search.query)
+                        .limit(search.pageSize)
+                        .offset(shard.nextOffset)
+                        .build();
+                shard.fetching = true;
+            } finally {
+                lock.unlock();
+            }
+
+            final OrchestrateFuture<SearchResults<T>> future;
+            try {
+                future = search.client.execute(searchOp);
+            } catch (final RuntimeException e) {
+                failed(e);
+                return;
+            }
+            future.addListener(new OrchestrateFutureListener<SearchResults<T>>() {
+                @Override
+                public void onComplete(final OrchestrateFuture<SearchResults<T>> future) {
+                    try {
+                        arrived(shard, future.get());
+                    } catch (final InterruptedException e) {
+                        failed(e);
+                    } catch (final ExecutionException e) {
+                        failed(e.getCause());
+                    }
+                }
+
+                @Override
+                public void onException(final OrchestrateFuture<SearchResults<T>> future) {
+                    try {
+                        future.get();
+                        failed(new IllegalStateException("The page request failed without an error."));
+                    } catch (final InterruptedException e) {
+                        failed(e);
+                    } catch (final ExecutionException e) {
+                        failed(e.getCause());
+                    }
+                }
+            });
+        }
+
+        private void arrived(final Shard<T> shard, final SearchResults<T> page) {
+            lock.lock();
+            try {
+                shard.fetching = false;
+                if (closed) {
+                    return;
+                }
+                for (final Result<T> r : page) {
+                    shard.buffer.add(r);
+                }
+                shard.nextOffset += search.pageSize;
+                shard.exhausted = (page.getCount() < search.pageSize) || (shard.nextOffset >= page.getTotalCount());
+                pageArrived.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void failed(final Throwable t) {
+            lock.lock();
+            try {
+                failure = t;
+                pageArrived.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+    }
+
+    /**
+     * The buffered results of one collection in a merge.
+     *
+     * @param <T> The type to deserialize the results to.
+     */
+    private static final class Shard<T> {
+
+        /** The collection searched. */
+        final String collection;
+        /** The results that haven't been merged yet. */
+        final Deque<Result<T>> buffer;
+        /** The offset of the next page to request. */
+        int nextOffset;
+        /** Whether a page request is in flight. */
+        boolean fetching;
+        /** Whether the collection has no more results to request. */
+        boolean exhausted;
+
+        Shard(final String collection) {
+            this.collection = collection;
+            this.buffer = new ArrayDeque<Result<T>>();
+            this.nextOffset = 0;
+            this.fetching = false;
+            this.exhausted = false;
+        }
+
+    }
+
+    /**
+     * Builder used to create {@code MultiCollectionSearch} instances.
+     *
+     * @param <T> The type to deserialize the results to.
+     */
+    public static final class Builder<T> {
+
+        /** The client to search with. */
+        private final Client client;
+        /** Type information for marshalling objects at runtime. */
+        private final Class<T> clazz;
+        /** The collections to search. */
+        private final Set<String> collections;
+        /** The lucene query. */
+        private String query;
+        /** The number of results to request per page. */
+        private int pageSize;
+        /** The maximum number of pages to request at once from a collection. */
+        private int maxInFlight;
+
+        private Builder(final Client client, final Class<T> clazz) {
+            this.client = checkNotNull(client, "client");
+            this.clazz = checkNotNull(clazz, "clazz");
+            this.collections = new LinkedHashSet<String>();
+            this.query = SearchOperation.Builder.LUCENE_STAR_QUERY;
+            this.pageSize = 100;
+            this.maxInFlight = 2;
+        }
+
+        /**
+         * Add collections to search, results with the same score are merged
+         * in the order the collections are added.
+         *
+         * @param collections The names of the collections.
+         * @return This builder.
+         */
+        public Builder<T> collections(final String... collections) {
+            checkNotNull(collections, "collections");
+            for (final String collection : collections) {
+                this.collections.add(checkNotNullOrEmpty(collection, "collection"));
+            }
+            return this;
+        }
+
+        /**
+         * The lucene query to run on every collection, defaults to {@code *}.
+         *
+         * @param luceneQuery The lucene query.
+         * @return This builder.
+         */
+        public Builder<T> query(final String luceneQuery) {
+            this.query = checkNotNullOrEmpty(luceneQuery, "luceneQuery");
+            return this;
+        }
+
+        /**
+         * The number of results to request per page from each collection,
+         * defaults to {@code 100}.
+         *
+         * @param pageSize The page size, between {@code 1} and {@code 100}.
+         * @return This builder.
+         */
+        public Builder<T> pageSize(final int pageSize) {
+            checkArgument(pageSize > 0 && pageSize <= 100, "'pageSize' must be between 1 and 100.");
+
+            this.pageSize = pageSize;
+            return this;
+        }
+
+        /**
+         * The maximum number of pages requested at once from each collection
+         * by {@link MultiCollectionSearch#top(int)}, defaults to {@code 2}.
+         *
+         * @param maxInFlight The maximum number of pages per collection.
+         * @return This builder.
+         */
+        public Builder<T> maxInFlight(final int maxInFlight) {
+            checkArgument(maxInFlight > 0, "'maxInFlight' must be greater than zero.");
+
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Creates a new {@code MultiCollectionSearch}.
+         *
+         * @return A new {@link MultiCollectionSearch}.
+         */
+        public MultiCollectionSearch<T> build() {
+            checkArgument(!collections.isEmpty(), "At least one collection is required.");
+
+            return new MultiCollectionSearch<T>(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+/**
+ * The latency histograms of each {@link RequestPhase} for a type of operation
+ * on a collection.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * OperationLatency latency = client.getMetrics()
+ *         .getOperationLatency(KvFetchOperation.class, "myCollection");
+ * LatencyHistogram.Snapshot snapshot =
+ *         latency.getHistogram(RequestPhase.TOTAL).snapshot();
+ * long p99 = snapshot.getValueAtPercentile(99, TimeUnit.MILLISECONDS);
+ * }
+ * </pre>
+ */
+public final class OperationLatency {
+
+    /** The phases in the order of their ordinal. */
+    private static final RequestPhase[] PHASES = RequestPhase.values();
+
+    /** The type of operation. */
+    private final Class<?> operationType;
+    /** The collection the operations were made on. */
+    private final String collection;
+    /** The histograms for each phase, indexed by ordinal. */
+    private final LatencyHistogram[] histograms;
+
+    OperationLatency(final Class<?> operationType, final String collection) {
+        assert (operationType != null);
+        assert (collection != null);
+
+        this.operationType = operationType;
+        this.collection = collection;
+        this.histograms = new LatencyHistogram[PHASES.length];
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Records the latencies of the phases of a completed request, phases that
+     * weren't reached (e.g. when a connection failed) aren't recorded.
+     *
+     * @param future The future of the request.
+     * @param deserializeStartNanos When deserializing the response started, or
+     *                              {@code 0} if it wasn't deserialized.
+     * @param deserializeEndNanos When deserializing the response finished.
+     * @param completedNanos When the future and its listeners completed.
+     */
+    void record(
+            final OrchestrateFutureImpl<?> future, final long deserializeStartNanos,
+            final long deserializeEndNanos, final long completedNanos) {
+        assert (future != null);
+
+        final long start = future.getStartNanos();
+        final long connected = future.getConnectedNanos();
+        final long firstByte = future.getFirstByteNanos();
+        // the write completes on another thread, so the response can start to
+        // be read before it's marked
+        final long markedWritten = future.getWrittenNanos();
+        final long written = (firstByte != 0 && (markedWritten == 0 || markedWritten > firstByte))
+                ? firstByte
+                : markedWritten;
+        final long lastByte = future.getLastByteNanos();
+
+        record(RequestPhase.CONNECT, start, connected);
+        record(RequestPhase.WRITE, connected, written);
+        record(RequestPhase.WAIT, written, firstByte);
+        record(RequestPhase.TRANSFER, firstByte, lastByte);
+        record(RequestPhase.DESERIALIZE, deserializeStartNanos, deserializeEndNanos);
+        record(RequestPhase.LISTENERS, (deserializeEndNanos != 0) ? deserializeEndNanos : lastByte, completedNanos);
+        record(RequestPhase.TOTAL, start, completedNanos);
+    }
+
+    private void record(final RequestPhase phase, final long startNanos, final long endNanos) {
+        if (startNanos != 0 && endNanos != 0) {
+            histograms[phase.ordinal()].record(endNanos - startNanos);
+        }
+    }
+
+    /**
+     * Returns the type of operation these latencies are for.
+     *
+     * @return The type of operation, e.g. {@code KvFetchOperation}.
+     */
+    public Class<?> getOperationType() {
+        return operationType;
+    }
+
+    /**
+     * Returns the collection these latencies are for.
+     *
+     * @return The collection the operations were made on.
+     */
+    public String getCollection() {
+        return collection;
+    }
+
+    /**
+     * Returns the latency histogram of the specified {@code phase}.
+     *
+     * @param phase The phase of the requests.
+     * @return The histogram for the phase.
+     */
+    public LatencyHistogram getHistogram(final RequestPhase phase) {
+        return histograms[phase.ordinal()];
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(256)
+                .append(operationType.getSimpleName())
+                .append(' ')
+                .append(collection);
+        for (final RequestPhase phase : PHASES) {
+            sb.append("\n  ").append(phase).append(": ").append(getHistogram(phase).snapshot());
+        }
+        return sb.toString();
+    }
+
+}
@@ -68,6 +68,18 @@ final class OrchestrateFutureImpl<T> implements OrchestrateFuture<T> {
     private final Set<OrchestrateFutureListener<T>> listeners;
     /** Tracks whether these listeners have already fired. */
     private volatile boolean listenersFired;
+    /** The wall clock time this future was created at, in milliseconds. */
+    private final long startTimeMillis;
+    /** The value of the system timer when this future was created. */
+    private final long startNanos;
+    /** The value of the system timer when a connection was acquired. */
+    private volatile long connectedNanos;
+    /** The value of the system timer when the request was written. */
+    private volatile long writtenNanos;
+    /** The value of the system timer when the response started to arrive. */
+    private volatile long firstByteNanos;
+    /** The value of the system timer when the response was read. */
+    private volatile long lastByteNanos;
 
     OrchestrateFutureImpl(final AbstractOperation<T> operation) {
         this.operation = operation;
@@ -78,6 +90,54 @@ final class OrchestrateFutureImpl<T> implements OrchestrateFuture<T> {
         listenersLock = new ReentrantLock();
         listeners = new LinkedHashSet<OrchestrateFutureListener<T>>(operation.getListeners());
         listenersFired = false;
+        startTimeMillis = System.currentTimeMillis();
+        startNanos = System.nanoTime();
+        connectedNanos = 0;
+        writtenNanos = 0;
+        firstByteNanos = 0;
+        lastByteNanos = 0;
+    }
+
+    long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    long getStartNanos() {
+        return startNanos;
+    }
+
+    void markConnected() {
+        connectedNanos = System.nanoTime();
+    }
+
+    long getConnectedNanos() {
+        return connectedNanos;
+    }
+
+    void markWritten() {
+        writtenNanos = System.nanoTime();
+    }
+
+    long getWrittenNanos() {
+        return writtenNanos;
+    }
+
+    void markFirstByte() {
+        if (firstByteNanos == 0) {
+            firstByteNanos = System.nanoTime();
+        }
+    }
+
+    long getFirstByteNanos() {
+        return firstByteNanos;
+    }
+
+    void markLastByte() {
+        lastByteNanos = System.nanoTime();
+    }
+
+    long getLastByteNanos() {
+        return lastByteNanos;
     }
 
     synchronized void setResult(final T result) {
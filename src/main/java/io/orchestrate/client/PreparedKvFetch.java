@@ -0,0 +1,96 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * A prepared template for fetching objects by key from a collection in the
+ * Orchestrate.io service.
+ *
+ * <p>The request path for the collection is encoded once, so that creating
+ * and executing an operation from this template only needs to encode the key.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * PreparedKvFetch<MyObject> preparedFetch =
+ *         new PreparedKvFetch<MyObject>("myCollection", MyObject.class);
+ * Future<KvObject<MyObject>> futureResult =
+ *         client.execute(preparedFetch.operation("someKey"));
+ * KvObject<MyObject> result = futureResult.get();
+ * }
+ * </pre>
+ *
+ * @param <T> The type to deserialize the results of fetch operations to.
+ */
+@ToString
+@EqualsAndHashCode
+public final class PreparedKvFetch<T> {
+
+    /** The collection to fetch keys from. */
+    private final String collection;
+    /** Type information for marshalling objects at runtime. */
+    private final Class<T> clazz;
+    /** The URL encoded collection with a trailing path separator. */
+    private final String encodedPrefix;
+
+    /**
+     * Create a new {@code PreparedKvFetch} to get objects from the specified
+     * {@code collection}.
+     *
+     * @param collection The collection to fetch keys from.
+     * @param clazz Type information for deserializing to type {@code T} at
+     *              runtime.
+     */
+    public PreparedKvFetch(final String collection, final Class<T> clazz) {
+        this.collection = checkNotNullOrEmpty(collection, "collection");
+        this.clazz = checkNotNull(clazz, "clazz");
+        this.encodedPrefix = UrlEncoder.encode(collection).concat("/");
+    }
+
+    /**
+     * Create a new {@code KvFetchOperation} to get the object with the
+     * specified {@code key} from the collection of this template.
+     *
+     * @param key The key to fetch.
+     * @return A new fetch operation for the key.
+     */
+    public KvFetchOperation<T> operation(final String key) {
+        return new KvFetchOperation<T>(this, key);
+    }
+
+    /**
+     * Returns the collection from this template.
+     *
+     * @return The collection from this template.
+     */
+    public String getCollection() {
+        return collection;
+    }
+
+    Class<T> getClazz() {
+        return clazz;
+    }
+
+    String getEncodedPrefix() {
+        return encodedPrefix;
+    }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * The objects related to a key, from a {@link TypedRelationFetchOperation}.
+ *
+ * <p>If the operation was {@link TypedRelationFetchOperation.Builder#metadataOnly(boolean)
+ * metadata only}, the values are deserialized by {@link #hydrate()} or
+ * {@link #hydrate(Executor)}, or when they're first read.
+ */
+public final class RelatedObjects implements Iterable<KvObject<?>> {
+
+    /** The number of values deserialized by each task of a parallel hydrate. */
+    private static final int HYDRATE_CHUNK_SIZE = 64;
+
+    /** The metadata of the related objects. */
+    private final List<KvMetadata> metadata;
+    /** The raw JSON values of the related objects. */
+    private final List<String> rawValues;
+    /** The types to deserialize the values to. */
+    private final List<Class<?>> classes;
+    /** The deserialized values. */
+    private final Object[] values;
+    /** The mapper to deserialize the values with. */
+    private final ObjectMapper mapper;
+    /** Whether the values have been deserialized. */
+    private volatile boolean hydrated;
+
+    RelatedObjects(final List<KvMetadata> metadata, final List<String> rawValues, final List<Class<?>> classes,
+            final List<Object> values, final ObjectMapper mapper) {
+        assert (metadata != null);
+        assert (rawValues != null);
+        assert (classes != null);
+        assert (mapper != null);
+
+        this.metadata = Collections.unmodifiableList(metadata);
+        this.rawValues = rawValues;
+        this.classes = classes;
+        this.values = (values == null) ? new Object[metadata.size()] : values.toArray();
+        this.mapper = mapper;
+        // there's nothing to deserialize without related objects
+        this.hydrated = (values != null || metadata.isEmpty());
+    }
+
+    /**
+     * Returns the number of related objects.
+     *
+     * @return The number of related objects.
+     */
+    public int size() {
+        return metadata.size();
+    }
+
+    /**
+     * Returns the collection, key and ref of the related objects, without
+     * deserializing their values.
+     *
+     * @return The metadata of the related objects.
+     */
+    public List<KvMetadata> getMetadata() {
+        return metadata;
+    }
+
+    /**
+     * Returns whether the values have been deserialized.
+     *
+     * @return {@code true} if the values have been deserialized.
+     */
+    public boolean isHydrated() {
+        return hydrated;
+    }
+
+    /**
+     * Deserializes the values on the calling thread, if they haven't been.
+     *
+     * @return These related objects.
+     * @throws ClientException If a value couldn't be deserialized.
+     */
+    public RelatedObjects hydrate() {
+        if (hydrated) {
+            return this;
+        }
+        try {
+            deserialize(0, values.length);
+        } catch (final IOException e) {
+            throw new ClientException(e);
+        }
+        hydrated = true;
+        return this;
+    }
+
+    /**
+     * Deserializes the values in parallel on the {@code executor}, if they
+     * haven't been.
+     *
+     * @param executor The executor to deserialize the values on.
+     * @return A future that completes with these related objects once the
+     *         values have been deserialized.
+     */
+    public Future<RelatedObjects> hydrate(final Executor executor) {
+        checkNotNull(executor, "executor");
+
+        final ResultFuture<RelatedObjects> result = new ResultFuture<RelatedObjects>();
+        if (hydrated) {
+            result.complete(this);
+            return result;
+        }
+
+        final int chunks = (values.length + HYDRATE_CHUNK_SIZE - 1) / HYDRATE_CHUNK_SIZE;
+        final AtomicInteger remaining = new AtomicInteger(chunks);
+        for (int i = 0; i < chunks; i++) {
+            final int from = i * HYDRATE_CHUNK_SIZE;
+            final int to = Math.min(from + HYDRATE_CHUNK_SIZE, values.length);
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (result.isDone()) {
+                            return;
+                        }
+                        try {
+                            deserialize(from, to);
+                        } catch (final IOException e) {
+                            result.fail(e);
+                            return;
+                        }
+                        if (remaining.decrementAndGet() == 0) {
+                            hydrated = true;
+                            result.complete(RelatedObjects.this);
+                        }
+                    }
+                });
+            } catch (final RejectedExecutionException e) {
+                result.fail(e);
+                break;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the related objects deserialized to the {@code clazz}, in the
+     * order they were returned.
+     *
+     * @param clazz The type of the objects.
+     * @param <T> The type of the objects.
+     * @return The related objects of the type.
+     * @throws ClientException If a value couldn't be deserialized.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<KvObject<T>> ofType(final Class<T> clazz) {
+        checkNotNull(clazz, "clazz");
+
+        hydrate();
+        final List<KvObject<T>> objects = new ArrayList<KvObject<T>>();
+        for (int i = 0; i < values.length; i++) {
+            if (classes.get(i) == clazz) {
+                objects.add(new KvObject<T>(metadata.get(i), (T) values[i], rawValues.get(i)));
+            }
+        }
+        return objects;
+    }
+
+    /**
+     * Returns an iterator over the related objects, deserializing the values
+     * if they haven't been.
+     *
+     * @return An iterator over the related objects.
+     * @throws ClientException If a value couldn't be deserialized.
+     */
+    @Override
+    public Iterator<KvObject<?>> iterator() {
+        hydrate();
+        return new Iterator<KvObject<?>>() {
+            private int index = 0;
+
+            @Override
+            public boolean hasNext() {
+                return (index < values.length);
+            }
+
+            @Override
+            @SuppressWarnings("unchecked")
+            public KvObject<?> next() {
+                if (index >= values.length) {
+                    throw new NoSuchElementException();
+                }
+                final int i = index++;
+                return new KvObject<Object>(metadata.get(i), values[i], rawValues.get(i));
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    private void deserialize(final int from, final int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            final Class<?> clazz = classes.get(i);
+            final String rawValue = rawValues.get(i);
+            values[i] = (clazz == String.class) ? rawValue : mapper.readValue(rawValue, clazz);
+        }
+    }
+
+}
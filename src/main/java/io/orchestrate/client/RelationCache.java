@@ -0,0 +1,645 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import lombok.EqualsAndHashCode;
+
+import javax.annotation.Nullable;
+import java.util.*;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * Caches the relations fetched by a client, so the neighbours of hot keys are
+ * served from memory.
+ *
+ * <p>Each collection and key seen in a relation is interned to an {@code int}
+ * id, and its ref and raw JSON value are stored once however many relations
+ * lead to it. The relations of a key and kind are stored as an {@code int[]}
+ * of ids in a primitive hash table, rather than as lists of objects. When the
+ * cache holds more than {@link Builder#maxEdges(int)} relations, entries that
+ * haven't been used since the last sweep are evicted (the CLOCK algorithm).
+ *
+ * <p>Fetches of a single kind of relation are cached, fetches that follow
+ * several kinds or have their own API key aren't. Relations stored or purged
+ * through the client invalidate the cached relations of their key and kind,
+ * and objects stored, deleted or purged through the client invalidate the
+ * cached relations that lead to them. Fetches that overlap one of these
+ * writes aren't cached. Changes made by other clients aren't seen until the
+ * entries are invalidated or evicted.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * Client client = new ClientBuilder("your api key")
+ *         .relationCache(RelationCache.builder().maxEdges(1000000).build())
+ *         .build();
+ * }
+ * </pre>
+ */
+public final class RelationCache {
+
+    /** The value for a missing entry. */
+    private static final int NO_ENTRY = -1;
+
+    /** The builder for this cache. */
+    private final Builder builder;
+    /** The ids of the interned collections and keys. */
+    private final Map<NodeKey, Integer> nodeIds;
+    /** The ids of the kinds of relation. */
+    private final Map<String, Integer> kindIds;
+    /** The entries, by their key and kind of relation. */
+    private final LongIntMap entryIndex;
+    /** The collections of the nodes, by id. */
+    private String[] nodeCollections;
+    /** The keys of the nodes, by id. */
+    private String[] nodeKeys;
+    /** The refs of the nodes, by id. */
+    private String[] nodeRefs;
+    /** The raw JSON values of the nodes, by id. */
+    private String[] nodeValues;
+    /** The number of entries and relations that use each node. */
+    private int[] nodeUses;
+    /** Whether a node's value has been invalidated. */
+    private boolean[] nodeStale;
+    /** The node ids that can be reused. */
+    private int[] freeNodes;
+    /** The number of node ids that can be reused. */
+    private int freeNodeCount;
+    /** The number of node ids allocated. */
+    private int nodeCount;
+    /** The key and kind of each entry. */
+    private long[] entryKeys;
+    /** The related node ids of each entry. */
+    private int[][] entryEdges;
+    /** Whether each entry has been used since the last sweep. */
+    private boolean[] entryUsed;
+    /** The entry ids that can be reused. */
+    private int[] freeEntries;
+    /** The number of entry ids that can be reused. */
+    private int freeEntryCount;
+    /** The number of entry ids allocated. */
+    private int entryCount;
+    /** The next entry the eviction sweep looks at. */
+    private int clockHand;
+    /** The number of cached relations. */
+    private long edgeCount;
+    /** Changed by every invalidation. */
+    private long generation;
+    /** The number of fetches served from the cache. */
+    private long hits;
+    /** The number of fetches not served from the cache. */
+    private long misses;
+    /** The number of entries evicted. */
+    private long evictions;
+
+    private RelationCache(final Builder builder) {
+        assert (builder != null);
+
+        this.builder = builder;
+        this.nodeIds = new HashMap<NodeKey, Integer>();
+        this.kindIds = new HashMap<String, Integer>();
+        this.entryIndex = new LongIntMap(64);
+        this.nodeCollections = new String[64];
+        this.nodeKeys = new String[64];
+        this.nodeRefs = new String[64];
+        this.nodeValues = new String[64];
+        this.nodeUses = new int[64];
+        this.nodeStale = new boolean[64];
+        this.freeNodes = new int[16];
+        this.freeNodeCount = 0;
+        this.nodeCount = 0;
+        this.entryKeys = new long[64];
+        this.entryEdges = new int[64][];
+        this.entryUsed = new boolean[64];
+        this.freeEntries = new int[16];
+        this.freeEntryCount = 0;
+        this.entryCount = 0;
+        this.clockHand = 0;
+        this.edgeCount = 0;
+        this.generation = 0;
+        this.hits = 0;
+        this.misses = 0;
+        this.evictions = 0;
+    }
+
+    /**
+     * Removes the cached relations of the {@code kind} from the {@code key}
+     * in the {@code collection}.
+     *
+     * @param collection The collection containing the key.
+     * @param key The key the relations are from.
+     * @param kind The kind of relation.
+     */
+    public synchronized void invalidate(final String collection, final String key, final String kind) {
+        checkNotNullOrEmpty(collection, "collection");
+        checkNotNullOrEmpty(key, "key");
+        checkNotNullOrEmpty(kind, "kind");
+
+        generation++;
+        final Integer nodeId = nodeIds.get(new NodeKey(collection, key));
+        final Integer kindId = kindIds.get(kind);
+        if (nodeId == null || kindId == null) {
+            return;
+        }
+        final int entry = entryIndex.get(pack(nodeId, kindId));
+        if (entry != NO_ENTRY) {
+            removeEntry(entry);
+        }
+    }
+
+    /**
+     * Removes the cached relations from the {@code key} in the {@code
+     * collection}, and the cached relations that lead to it.
+     *
+     * @param collection The collection containing the key.
+     * @param key The key that changed.
+     */
+    public synchronized void invalidateObject(final String collection, final String key) {
+        checkNotNullOrEmpty(collection, "collection");
+        checkNotNullOrEmpty(key, "key");
+
+        generation++;
+        final Integer nodeId = nodeIds.get(new NodeKey(collection, key));
+        if (nodeId != null) {
+            invalidateNode(nodeId);
+        }
+    }
+
+    /**
+     * Removes the cached relations from and to the keys in the {@code
+     * collection}.
+     *
+     * @param collection The collection that changed.
+     */
+    public synchronized void invalidateCollection(final String collection) {
+        checkNotNullOrEmpty(collection, "collection");
+
+        generation++;
+        for (int id = 0; id < nodeCount; id++) {
+            if (collection.equals(nodeCollections[id])) {
+                invalidateNode(id);
+            }
+        }
+    }
+
+    /**
+     * Removes every cached relation.
+     */
+    public synchronized void clear() {
+        generation++;
+        for (int entry = 0; entry < entryCount; entry++) {
+            if (entryEdges[entry] != null) {
+                removeEntry(entry);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of relations in the cache.
+     *
+     * @return The number of cached relations.
+     */
+    public synchronized long getEdgeCount() {
+        return edgeCount;
+    }
+
+    /**
+     * Returns the number of collections and keys interned by the cache.
+     *
+     * @return The number of cached nodes.
+     */
+    public synchronized int getNodeCount() {
+        return nodeIds.size();
+    }
+
+    /**
+     * Returns the number of fetches served from the cache.
+     *
+     * @return The number of cache hits.
+     */
+    public synchronized long getHitCount() {
+        return hits;
+    }
+
+    /**
+     * Returns the number of cacheable fetches not served from the cache.
+     *
+     * @return The number of cache misses.
+     */
+    public synchronized long getMissCount() {
+        return misses;
+    }
+
+    /**
+     * Returns the number of entries evicted to keep the cache to its size.
+     *
+     * @return The number of evictions.
+     */
+    public synchronized long getEvictionCount() {
+        return evictions;
+    }
+
+    /**
+     * Returns whether the relations for the {@code relationFetchOp} can be
+     * served from this cache.
+     *
+     * @param relationFetchOp The relation fetch operation.
+     * @return {@code true} if the fetch can be cached.
+     */
+    boolean isCacheable(final RelationFetchOperation relationFetchOp) {
+        return (relationFetchOp.getKinds().size() == 1) && !relationFetchOp.hasApiKey();
+    }
+
+    /**
+     * Returns the cached related objects for the {@code relationFetchOp}.
+     *
+     * @param relationFetchOp The relation fetch operation, must be cacheable.
+     * @return The related objects, or {@code null} if they aren't cached.
+     */
+    @Nullable
+    synchronized List<KvObject<String>> lookup(final RelationFetchOperation relationFetchOp) {
+        final Integer nodeId = nodeIds.get(new NodeKey(relationFetchOp.getCollection(), relationFetchOp.getKey()));
+        final Integer kindId = kindIds.get(relationFetchOp.getKinds().get(0));
+        final int entry = (nodeId == null || kindId == null) ? NO_ENTRY : entryIndex.get(pack(nodeId, kindId));
+        if (entry == NO_ENTRY) {
+            misses++;
+            return null;
+        }
+
+        final int[] edges = entryEdges[entry];
+        for (final int id : edges) {
+            if (nodeStale[id]) {
+                misses++;
+                return null;
+            }
+        }
+        final List<KvObject<String>> related = new ArrayList<KvObject<String>>(edges.length);
+        for (final int id : edges) {
+            final KvMetadata metadata = new KvMetadata(nodeCollections[id], nodeKeys[id], nodeRefs[id]);
+            related.add(new KvObject<String>(metadata, nodeValues[id], nodeValues[id]));
+        }
+        entryUsed[entry] = true;
+        hits++;
+        return related;
+    }
+
+    /**
+     * Returns the current generation, to pass to {@link #fill} when the fetch
+     * completes.
+     *
+     * @return The current generation.
+     */
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Caches the related objects fetched for the {@code relationFetchOp},
+     * unless the cache has been invalidated since the fetch started.
+     *
+     * @param relationFetchOp The relation fetch operation.
+     * @param startGeneration The generation when the fetch started.
+     * @param related The related objects.
+     */
+    synchronized void fill(
+            final RelationFetchOperation relationFetchOp, final long startGeneration,
+            final Iterable<KvObject<String>> related) {
+        if (startGeneration != generation) {
+            return;
+        }
+
+        // the new entry takes its uses before the old one is removed, so the
+        // nodes they share aren't freed
+        int[] edges = new int[16];
+        int edgeLength = 0;
+        for (final KvObject<String> kvObject : related) {
+            final int id = intern(kvObject.getCollection(), kvObject.getKey());
+            nodeRefs[id] = kvObject.getRef();
+            nodeValues[id] = kvObject.getRawValue();
+            nodeStale[id] = false;
+            nodeUses[id]++;
+            if (edgeLength == edges.length) {
+                edges = Arrays.copyOf(edges, edgeLength * 2);
+            }
+            edges[edgeLength++] = id;
+        }
+        final int sourceId = intern(relationFetchOp.getCollection(), relationFetchOp.getKey());
+        nodeUses[sourceId]++;
+
+        final String kind = relationFetchOp.getKinds().get(0);
+        Integer kindId = kindIds.get(kind);
+        if (kindId == null) {
+            kindId = kindIds.size();
+            kindIds.put(kind, kindId);
+        }
+        final long entryKey = pack(sourceId, kindId);
+        final int existing = entryIndex.get(entryKey);
+        if (existing != NO_ENTRY) {
+            removeEntry(existing);
+        }
+
+        final int entry = allocateEntry();
+        entryKeys[entry] = entryKey;
+        entryEdges[entry] = (edgeLength == edges.length) ? edges : Arrays.copyOf(edges, edgeLength);
+        entryUsed[entry] = false;
+        entryIndex.put(entryKey, entry);
+        edgeCount += edgeLength;
+
+        evict();
+    }
+
+    // called while holding the lock
+    private void invalidateNode(final int nodeId) {
+        // the relations that lead to the node are checked when they're used
+        nodeStale[nodeId] = true;
+        for (final Integer kindId : kindIds.values()) {
+            final int entry = entryIndex.get(pack(nodeId, kindId));
+            if (entry != NO_ENTRY) {
+                removeEntry(entry);
+            }
+        }
+    }
+
+    // called while holding the lock
+    private void evict() {
+        while (edgeCount > builder.maxEdges && entryIndex.size() > 0) {
+            if (clockHand >= entryCount) {
+                clockHand = 0;
+            }
+            final int entry = clockHand++;
+            if (entryEdges[entry] == null) {
+                continue;
+            }
+            if (entryUsed[entry]) {
+                entryUsed[entry] = false;
+                continue;
+            }
+            removeEntry(entry);
+            evictions++;
+        }
+    }
+
+    // called while holding the lock
+    private int intern(final String collection, final String key) {
+        final NodeKey nodeKey = new NodeKey(collection, key);
+        final Integer existing = nodeIds.get(nodeKey);
+        if (existing != null) {
+            return existing;
+        }
+
+        final int id;
+        if (freeNodeCount > 0) {
+            id = freeNodes[--freeNodeCount];
+        } else {
+            if (nodeCount == nodeKeys.length) {
+                final int capacity = nodeCount * 2;
+                nodeCollections = Arrays.copyOf(nodeCollections, capacity);
+                nodeKeys = Arrays.copyOf(nodeKeys, capacity);
+                nodeRefs = Arrays.copyOf(nodeRefs, capacity);
+                nodeValues = Arrays.copyOf(nodeValues, capacity);
+                nodeUses = Arrays.copyOf(nodeUses, capacity);
+                nodeStale = Arrays.copyOf(nodeStale, capacity);
+            }
+            id = nodeCount++;
+        }
+        nodeCollections[id] = collection;
+        nodeKeys[id] = key;
+        nodeUses[id] = 0;
+        nodeStale[id] = false;
+        nodeIds.put(nodeKey, id);
+        return id;
+    }
+
+    // called while holding the lock
+    private void release(final int nodeId) {
+        if (--nodeUses[nodeId] > 0) {
+            return;
+        }
+        nodeIds.remove(new NodeKey(nodeCollections[nodeId], nodeKeys[nodeId]));
+        nodeCollections[nodeId] = null;
+        nodeKeys[nodeId] = null;
+        nodeRefs[nodeId] = null;
+        nodeValues[nodeId] = null;
+        if (freeNodeCount == freeNodes.length) {
+            freeNodes = Arrays.copyOf(freeNodes, freeNodeCount * 2);
+        }
+        freeNodes[freeNodeCount++] = nodeId;
+    }
+
+    // called while holding the lock
+    private int allocateEntry() {
+        if (freeEntryCount > 0) {
+            return freeEntries[--freeEntryCount];
+        }
+        if (entryCount == entryKeys.length) {
+            final int capacity = entryCount * 2;
+            entryKeys = Arrays.copyOf(entryKeys, capacity);
+            entryEdges = Arrays.copyOf(entryEdges, capacity);
+            entryUsed = Arrays.copyOf(entryUsed, capacity);
+        }
+        return entryCount++;
+    }
+
+    // called while holding the lock
+    private void removeEntry(final int entry) {
+        final int[] edges = entryEdges[entry];
+        entryIndex.remove(entryKeys[entry]);
+        entryEdges[entry] = null;
+        edgeCount -= edges.length;
+
+        release((int) (entryKeys[entry] >>> 32));
+        for (final int id : edges) {
+            release(id);
+        }
+        if (freeEntryCount == freeEntries.length) {
+            freeEntries = Arrays.copyOf(freeEntries, freeEntryCount * 2);
+        }
+        freeEntries[freeEntryCount++] = entry;
+    }
+
+    private static long pack(final int nodeId, final int kindId) {
+        return ((long) nodeId << 32) | kindId;
+    }
+
+    /**
+     * A new builder to create a {@code RelationCache} with default settings.
+     *
+     * @return A new {@code Builder} with default settings.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * The collection and key of an interned node.
+     */
+    @EqualsAndHashCode
+    private static final class NodeKey {
+
+        /** The collection of the node. */
+        final String collection;
+        /** The key of the node. */
+        final String key;
+
+        NodeKey(final String collection, final String key) {
+            this.collection = collection;
+            this.key = key;
+        }
+
+    }
+
+    /**
+     * An open addressing hash table from non-negative {@code long} keys to
+     * {@code int} values, with linear probing.
+     */
+    private static final class LongIntMap {
+
+        /** The key of an empty slot. */
+        private static final long EMPTY = -1L;
+
+        /** The keys of the slots. */
+        private long[] keys;
+        /** The values of the slots. */
+        private int[] values;
+        /** The mask to map a hash to a slot. */
+        private int mask;
+        /** The number of keys in the table. */
+        private int size;
+
+        LongIntMap(final int capacity) {
+            assert (Integer.bitCount(capacity) == 1);
+
+            this.keys = new long[capacity];
+            this.values = new int[capacity];
+            this.mask = capacity - 1;
+            this.size = 0;
+            Arrays.fill(keys, EMPTY);
+        }
+
+        int size() {
+            return size;
+        }
+
+        int get(final long key) {
+            for (int i = slot(key); keys[i] != EMPTY; i = (i + 1) & mask) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+            }
+            return NO_ENTRY;
+        }
+
+        void put(final long key, final int value) {
+            assert (key != EMPTY);
+
+            if ((size + 1) * 4 > keys.length * 3) {
+                resize();
+            }
+            int i = slot(key);
+            while (keys[i] != EMPTY) {
+                if (keys[i] == key) {
+                    values[i] = value;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            keys[i] = key;
+            values[i] = value;
+            size++;
+        }
+
+        void remove(final long key) {
+            int hole = slot(key);
+            while (keys[hole] != key) {
+                if (keys[hole] == EMPTY) {
+                    return;
+                }
+                hole = (hole + 1) & mask;
+            }
+
+            // shift back the keys that probed past the hole
+            for (int i = (hole + 1) & mask; keys[i] != EMPTY; i = (i + 1) & mask) {
+                final int home = slot(keys[i]);
+                if (((i - home) & mask) >= ((i - hole) & mask)) {
+                    keys[hole] = keys[i];
+                    values[hole] = values[i];
+                    hole = i;
+                }
+            }
+            keys[hole] = EMPTY;
+            size--;
+        }
+
+        private void resize() {
+            final long[] oldKeys = keys;
+            final int[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new int[oldValues.length * 2];
+            mask = keys.length - 1;
+            size = 0;
+            Arrays.fill(keys, EMPTY);
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    put(oldKeys[i], oldValues[i]);
+                }
+            }
+        }
+
+        private int slot(final long key) {
+            return (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+        }
+
+    }
+
+    /**
+     * Builder used to create {@code RelationCache} instances.
+     */
+    public static final class Builder {
+
+        /** The maximum number of cached relations. */
+        private int maxEdges;
+
+        private Builder() {
+            maxEdges = 1000000;
+        }
+
+        /**
+         * The maximum number of relations to cache, defaults to {@code
+         * 1000000}.
+         *
+         * @param maxEdges The maximum number of cached relations.
+         * @return This builder.
+         */
+        public Builder maxEdges(final int maxEdges) {
+            checkArgument(maxEdges > 0, "'maxEdges' must be greater than zero.");
+
+            this.maxEdges = maxEdges;
+            return this;
+        }
+
+        /**
+         * Creates a new {@code RelationCache}.
+         *
+         * @return A new {@link RelationCache}.
+         */
+        public RelationCache build() {
+            return new RelationCache(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+/**
+ * The phases of a request to the Orchestrate.io service that latencies are
+ * recorded for.
+ *
+ * @see OperationLatency
+ */
+public enum RequestPhase {
+
+    /**
+     * Acquiring a connection from the pool, including opening a new connection
+     * when no idle connections are available.
+     */
+    CONNECT,
+
+    /**
+     * Writing the request to the connection's socket, including the TLS
+     * handshake on a new connection.
+     */
+    WRITE,
+
+    /** Waiting for the first bytes of the response. */
+    WAIT,
+
+    /** Reading the rest of the response. */
+    TRANSFER,
+
+    /** Deserializing the response to the result of the operation. */
+    DESERIALIZE,
+
+    /** Completing the future, including the execution of its listeners. */
+    LISTENERS,
+
+    /** The whole request, from executing the operation to completing its future. */
+    TOTAL
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A trace of a single request made to the Orchestrate.io service.
+ *
+ * <p>Traces are captured by a {@link RequestTracer} and are only formatted
+ * when they're delivered to the tracer's listener.
+ */
+public final class RequestTrace {
+
+    /** The type of operation the request was made for. */
+    private final Class<?> operationType;
+    /** The HTTP method of the request. */
+    private final String method;
+    /** The request URI, including the query string. */
+    private final String uri;
+    /** The HTTP status code of the response, or {@code 0} if none. */
+    private final int statusCode;
+    /** The ID the service assigned to the request. */
+    private final String requestId;
+    /** The error the request failed with. */
+    private final Throwable error;
+    /** The wall clock time the request started at, in milliseconds. */
+    private final long startTimeMillis;
+    /** The duration of the request, in nanoseconds. */
+    private final long durationNanos;
+
+    RequestTrace(
+            final Class<?> operationType, @Nullable final String method, @Nullable final String uri,
+            final int statusCode, @Nullable final String requestId, @Nullable final Throwable error,
+            final long startTimeMillis, final long durationNanos) {
+        assert (operationType != null);
+        assert (statusCode >= 0);
+        assert (durationNanos >= 0);
+
+        this.operationType = operationType;
+        this.method = method;
+        this.uri = uri;
+        this.statusCode = statusCode;
+        this.requestId = requestId;
+        this.error = error;
+        this.startTimeMillis = startTimeMillis;
+        this.durationNanos = durationNanos;
+    }
+
+    /**
+     * Returns the type of operation the request was made for.
+     *
+     * @return The type of operation, e.g. {@code KvFetchOperation}.
+     */
+    public Class<?> getOperationType() {
+        return operationType;
+    }
+
+    /**
+     * Returns the HTTP method of the request.
+     *
+     * @return The HTTP method, may be {@code null} if no response was read.
+     */
+    @Nullable
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * Returns the request URI, including the query string.
+     *
+     * @return The request URI, may be {@code null} if no response was read.
+     */
+    @Nullable
+    public String getUri() {
+        return uri;
+    }
+
+    /**
+     * Returns the HTTP status code of the response.
+     *
+     * @return The HTTP status code, or {@code 0} if no response was read.
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Returns the ID the Orchestrate.io service assigned to the request.
+     *
+     * @return The request ID, may be {@code null}.
+     */
+    @Nullable
+    public String getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * Returns the error the request failed with.
+     *
+     * @return The error, may be {@code null}.
+     */
+    @Nullable
+    public Throwable getError() {
+        return error;
+    }
+
+    /**
+     * Returns the wall clock time the request started at.
+     *
+     * @return The start time, in milliseconds since the epoch.
+     */
+    public long getStartTimeMillis() {
+        return startTimeMillis;
+    }
+
+    /**
+     * Returns the duration of the request in the specified {@code unit}.
+     *
+     * @param unit The unit of time to return the duration in.
+     * @return The duration of the request.
+     */
+    public long getDuration(final TimeUnit unit) {
+        return unit.convert(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(128)
+                .append(operationType.getSimpleName())
+                .append(' ')
+                .append(method)
+                .append(' ')
+                .append(uri)
+                .append(" status=")
+                .append(statusCode)
+                .append(" time=")
+                .append(TimeUnit.NANOSECONDS.toMicros(durationNanos))
+                .append("us");
+        if (requestId != null) {
+            sb.append(" reqId=").append(requestId);
+        }
+        if (error != null) {
+            sb.append(" error=").append(error);
+        }
+        return sb.toString();
+    }
+
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.Nullable;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * Captures traces of the requests made by a client.
+ *
+ * <p>A request is traced when it's sampled (see {@link Builder#sampleRate(double)})
+ * or when it takes longer than the slow request threshold (see {@link
+ * Builder#slowRequestThreshold(long, TimeUnit)}). Traces are put into a
+ * bounded ring buffer and delivered to the listener from a background thread,
+ * traces are dropped if the buffer is full.
+ *
+ * <p>A tracer can be shared by several clients and isn't stopped when they
+ * are, call {@link #stop()} once the clients using it have stopped.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * Client client = new ClientBuilder("your api key")
+ *         .tracer(RequestTracer.builder()
+ *                 .sampleRate(0.01)
+ *                 .slowRequestThreshold(500, TimeUnit.MILLISECONDS)
+ *                 .build())
+ *         .build();
+ * }
+ * </pre>
+ */
+@Slf4j
+public final class RequestTracer {
+
+    /**
+     * Receives the traces captured by a {@code RequestTracer}.
+     */
+    public interface Listener {
+
+        /**
+         * Invoked from the tracer's background thread for each trace.
+         *
+         * @param trace The captured request trace.
+         */
+        void onTrace(final RequestTrace trace);
+
+    }
+
+    /** The listener that writes traces to the client's logger. */
+    private static final Listener LOGGING_LISTENER = new Listener() {
+        @Override
+        public void onTrace(final RequestTrace trace) {
+            if (trace.getError() != null || trace.getStatusCode() >= 500) {
+                log.warn("{}", trace);
+            } else {
+                log.info("{}", trace);
+            }
+        }
+    };
+
+    /** The per-thread source of random numbers for sampling. */
+    private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    /** The builder for this tracer. */
+    private final Builder builder;
+    /** The slots of the ring buffer. */
+    private final AtomicReferenceArray<RequestTrace> slots;
+    /** The mask to map a sequence number to a slot. */
+    private final int mask;
+    /** The next sequence number to publish a trace to. */
+    private final AtomicLong tail;
+    /** The next sequence number to deliver a trace from. */
+    private final AtomicLong head;
+    /** The number of traces dropped because the buffer was full. */
+    private final AtomicLong dropped;
+    /** The thread that delivers traces to the listener. */
+    private volatile Thread drainThread;
+    /** Whether this tracer has been stopped. */
+    private volatile boolean stopped;
+
+    private RequestTracer(final Builder builder) {
+        assert (builder != null);
+
+        this.builder = builder;
+        this.slots = new AtomicReferenceArray<RequestTrace>(builder.bufferSize);
+        this.mask = builder.bufferSize - 1;
+        this.tail = new AtomicLong(0);
+        this.head = new AtomicLong(0);
+        this.dropped = new AtomicLong(0);
+        this.drainThread = null;
+        this.stopped = false;
+    }
+
+    /**
+     * Returns whether a request that took {@code durationNanos} should be
+     * traced, this doesn't allocate.
+     *
+     * @param durationNanos The duration of the request.
+     * @return {@code true} if the request should be traced.
+     */
+    boolean shouldTrace(final long durationNanos) {
+        if (stopped) {
+            return false;
+        }
+        if (builder.slowThresholdNanos >= 0 && durationNanos >= builder.slowThresholdNanos) {
+            return true;
+        }
+        return builder.sampleRate > 0 && RANDOM.get().nextDouble() < builder.sampleRate;
+    }
+
+    /**
+     * Publish the {@code trace} to the ring buffer, the trace is dropped if the
+     * buffer is full.
+     *
+     * @param trace The trace to publish.
+     */
+    void record(final RequestTrace trace) {
+        assert (trace != null);
+
+        long seq;
+        do {
+            seq = tail.get();
+            if (seq - head.get() >= slots.length()) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(seq, seq + 1));
+        slots.lazySet((int) (seq & mask), trace);
+
+        if (drainThread == null) {
+            startDrainThread();
+        }
+    }
+
+    /**
+     * Returns the number of traces dropped because the buffer was full.
+     *
+     * @return The number of dropped traces.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Stops the background thread, after delivering the traces already in the
+     * buffer.
+     */
+    public void stop() {
+        stopped = true;
+        final Thread thread = drainThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private synchronized void startDrainThread() {
+        if (drainThread != null || stopped) {
+            return;
+        }
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "OrchestrateClientTracer");
+        thread.setDaemon(true);
+        drainThread = thread;
+        thread.start();
+    }
+
+    private void drain() {
+        while (true) {
+            final long seq = head.get();
+            final int slot = (int) (seq & mask);
+            final RequestTrace trace = slots.get(slot);
+            if (trace == null) {
+                if (stopped && seq == tail.get()) {
+                    return;
+                }
+                LockSupport.parkNanos(builder.drainIntervalNanos);
+                continue;
+            }
+
+            slots.lazySet(slot, null);
+            head.lazySet(seq + 1);
+            try {
+                builder.listener.onTrace(trace);
+            } catch (final RuntimeException e) {
+                log.warn("Trace listener failed.", e);
+            }
+        }
+    }
+
+    /**
+     * A new builder to create a {@code RequestTracer} with default settings.
+     *
+     * @return A new {@code Builder} with default settings.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Builder used to create {@code RequestTracer} instances.
+     */
+    public static final class Builder {
+
+        /** The fraction of requests to trace. */
+        private double sampleRate;
+        /** The duration after which requests are always traced. */
+        private long slowThresholdNanos;
+        /** The capacity of the ring buffer. */
+        private int bufferSize;
+        /** The time to wait between checks for new traces. */
+        private long drainIntervalNanos;
+        /** The listener to deliver traces to. */
+        private Listener listener;
+
+        private Builder() {
+            sampleRate = 0;
+            slowThresholdNanos = -1;
+            bufferSize = 1024;
+            drainIntervalNanos = TimeUnit.MILLISECONDS.toNanos(10);
+            listener = LOGGING_LISTENER;
+        }
+
+        /**
+         * The fraction of requests to trace, between {@code 0} (none) and
+         * {@code 1} (all). Defaults to {@code 0}.
+         *
+         * @param sampleRate The fraction of requests to trace.
+         * @return This builder.
+         */
+        public Builder sampleRate(final double sampleRate) {
+            checkArgument(sampleRate >= 0 && sampleRate <= 1, "'sampleRate' must be between 0 and 1.");
+
+            this.sampleRate = sampleRate;
+            return this;
+        }
+
+        /**
+         * Trace every request that takes at least as long as the {@code
+         * threshold}, whether or not it was sampled. Disabled by default.
+         *
+         * @param threshold The duration of a slow request.
+         * @param unit The unit of time of the {@code threshold}.
+         * @return This builder.
+         */
+        public Builder slowRequestThreshold(final long threshold, final TimeUnit unit) {
+            checkArgument(threshold >= 0, "'threshold' cannot be negative.");
+            checkNotNull(unit, "unit");
+
+            this.slowThresholdNanos = unit.toNanos(threshold);
+            return this;
+        }
+
+        /**
+         * The number of traces that can wait to be delivered to the listener,
+         * rounded up to a power of two. Defaults to {@code 1024}.
+         *
+         * @param bufferSize The capacity of the ring buffer.
+         * @return This builder.
+         */
+        public Builder bufferSize(final int bufferSize) {
+            checkArgument(bufferSize > 0, "'bufferSize' must be greater than zero.");
+            checkArgument(bufferSize <= (1 << 30), "'bufferSize' cannot be greater than 2^30.");
+
+            this.bufferSize = (bufferSize == 1) ? 1 : Integer.highestOneBit(bufferSize - 1) << 1;
+            return this;
+        }
+
+        /**
+         * The listener to deliver traces to, defaults to writing traces to
+         * the client's logger.
+         *
+         * @param listener The listener for captured traces.
+         * @return This builder.
+         */
+        public Builder listener(@Nullable final Listener listener) {
+            this.listener = (listener == null) ? LOGGING_LISTENER : listener;
+            return this;
+        }
+
+        /**
+         * Creates a new {@code RequestTracer}.
+         *
+         * @return A new {@link RequestTracer}.
+         */
+        public RequestTracer build() {
+            return new RequestTracer(this);
+        }
+
+    }
+
+}
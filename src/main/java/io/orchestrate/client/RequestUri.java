@@ -0,0 +1,86 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+/**
+ * Builds the path of a request URI from URL encoded segments, in the
+ * {@link UrlEncoder#buffer()} of the calling thread.
+ */
+final class RequestUri {
+
+    /** The buffer for the path. */
+    private final StringBuilder buffer;
+
+    private RequestUri(final StringBuilder buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Start a new request path with the {@code prefix} (e.g. "/v0"), the path
+     * is built in the buffer of the current thread so it must be copied with
+     * {@link #toString()} before the buffer is used again, e.g. for the query.
+     *
+     * @param prefix The already encoded prefix, without a trailing separator.
+     * @return A new request path.
+     */
+    static RequestUri create(final String prefix) {
+        assert (prefix != null);
+
+        return new RequestUri(UrlEncoder.buffer().append(prefix));
+    }
+
+    /**
+     * Appends a path separator and the URL encoded {@code segment}.
+     *
+     * @param segment The segment to encode and append.
+     * @return This request path.
+     */
+    RequestUri append(final String segment) {
+        assert (segment != null);
+
+        separator();
+        UrlEncoder.append(buffer, segment);
+        return this;
+    }
+
+    /**
+     * Appends a path separator and the {@code encoded} segments as they are.
+     *
+     * @param encoded The already encoded segments to append, trailing
+     *                separators are allowed.
+     * @return This request path.
+     */
+    RequestUri appendEncoded(final String encoded) {
+        assert (encoded != null);
+
+        separator();
+        buffer.append(encoded);
+        return this;
+    }
+
+    private void separator() {
+        final int length = buffer.length();
+        if (length == 0 || buffer.charAt(length - 1) != '/') {
+            buffer.append('/');
+        }
+    }
+
+    @Override
+    public String toString() {
+        return buffer.toString();
+    }
+
+}
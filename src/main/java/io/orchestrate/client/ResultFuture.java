@@ -0,0 +1,163 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * A future that is completed by the client's callbacks, for the results of
+ * operations that span many requests.
+ *
+ * @param <V> The type of the result.
+ */
+final class ResultFuture<V> implements Future<V> {
+
+    /** Released when the result is available. */
+    private final CountDownLatch done = new CountDownLatch(1);
+    /** The result. */
+    private volatile V value;
+    /** The error the operation failed with. */
+    private volatile Throwable failure;
+    /** Whether the operation was cancelled. */
+    private volatile boolean cancelled;
+    /** The callbacks to run when the future is done, guarded by this. */
+    private List<Runnable> callbacks;
+
+    void complete(final V value) {
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            this.value = value;
+            done.countDown();
+        }
+        runCallbacks();
+    }
+
+    void fail(final Throwable failure) {
+        assert (failure != null);
+
+        synchronized (this) {
+            if (isDone()) {
+                return;
+            }
+            this.failure = failure;
+            done.countDown();
+        }
+        runCallbacks();
+    }
+
+    /**
+     * Runs the {@code callback} when this future is done, or straight away
+     * if it already is.
+     *
+     * @param callback The callback to run.
+     */
+    void whenDone(final Runnable callback) {
+        assert (callback != null);
+
+        synchronized (this) {
+            if (!isDone()) {
+                if (callbacks == null) {
+                    callbacks = new ArrayList<Runnable>(2);
+                }
+                callbacks.add(callback);
+                return;
+            }
+        }
+        callback.run();
+    }
+
+    /**
+     * Fails this future with the error of a failed request.
+     *
+     * @param future The future of the failed request.
+     */
+    void failFrom(final OrchestrateFuture<?> future) {
+        try {
+            future.get();
+            fail(new IllegalStateException("The request failed without an error."));
+        } catch (final ExecutionException e) {
+            fail(e.getCause());
+        } catch (final InterruptedException e) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public boolean cancel(final boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (isDone()) {
+                return false;
+            }
+            cancelled = true;
+            done.countDown();
+        }
+        runCallbacks();
+        return true;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public boolean isDone() {
+        return (done.getCount() == 0);
+    }
+
+    @Override
+    public V get() throws InterruptedException, ExecutionException {
+        done.await();
+        return result();
+    }
+
+    @Override
+    public V get(final long timeout, final TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return result();
+    }
+
+    private void runCallbacks() {
+        final List<Runnable> toRun;
+        synchronized (this) {
+            toRun = callbacks;
+            callbacks = null;
+        }
+        if (toRun != null) {
+            for (final Runnable callback : toRun) {
+                callback.run();
+            }
+        }
+    }
+
+    private V result() throws ExecutionException {
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * Reads all the results of a search, with concurrent requests for the pages.
+ *
+ * <p>The service limits a search request to 100 results, so a large result
+ * set is read one offset window at a time. The stream requests the first
+ * window of the {@link SearchOperation} it's created with, reads the total
+ * count from its results, then requests the remaining windows concurrently
+ * with up to {@link Builder#maxInFlight(int)} windows outstanding.
+ *
+ * <p>Windows are delivered to the {@link Listener} in offset order by
+ * default, windows that arrive early are held until the windows before them
+ * have been delivered. With {@link Builder#ordered(boolean)} set to {@code
+ * false} windows are delivered as they arrive. The listener is invoked from
+ * the client's I/O threads but never concurrently.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * SearchOperation<MyObject> searchOp = SearchOperation
+ *         .builder("myCollection", MyObject.class)
+ *         .query("*")
+ *         .limit(100)  // the size of each window
+ *         .build();
+ * Future<Integer> done = SearchStream.builder(client, searchOp)
+ *         .maxInFlight(8)
+ *         .build()
+ *         .start(new SearchStream.Listener<MyObject>() {
+ *             public void onResults(int offset, List<Result<MyObject>> results) {
+ *                 // do something with the results
+ *             }
+ *         });
+ * done.get();
+ * }
+ * </pre>
+ *
+ * @param <T> The type to deserialize the results to.
+ */
+public final class SearchStream<T> {
+
+    /**
+     * Receives the results read by a {@code SearchStream}.
+     *
+     * @param <T> The type to deserialize the results to.
+     */
+    public interface Listener<T> {
+
+        /**
+         * Invoked with the results of each offset window, an exception thrown
+         * from this method fails the stream.
+         *
+         * @param offset The offset of the first result in the window.
+         * @param results The results in the window, in score order.
+         */
+        void onResults(final int offset, final List<Result<T>> results);
+
+    }
+
+    /** The client to search with. */
+    private final Client client;
+    /** The search for the first window. */
+    private final SearchOperation<T> searchOp;
+    /** The number of results to request per window. */
+    private final int windowSize;
+    /** The maximum number of windows requested but not delivered. */
+    private final int maxInFlight;
+    /** Whether to deliver windows in offset order. */
+    private final boolean ordered;
+    /** The maximum number of results to read. */
+    private final int maxResults;
+    /** The result of the stream, the number of results delivered. */
+    private final ResultFuture<Integer> result;
+    /** The windows that arrived before the windows preceding them. */
+    private final SortedMap<Integer, List<Result<T>>> arrived;
+    /** The sizes of the windows that have been requested. */
+    private final Map<Integer, Integer> windowSizes;
+    /** The listener for the results, or {@code null} until started. */
+    private Listener<T> listener;
+    /** The offset after the last result to read, known after the first window. */
+    private int endOffset;
+    /** The offset of the next window to request. */
+    private int nextRequest;
+    /** The offset of the next window to deliver, when ordered. */
+    private int nextDelivery;
+    /** The number of windows requested but not delivered. */
+    private int inFlight;
+    /** The number of results delivered. */
+    private int delivered;
+
+    private SearchStream(final Builder<T> builder) {
+        assert (builder != null);
+
+        this.client = builder.client;
+        this.searchOp = builder.searchOp;
+        this.windowSize = builder.searchOp.getLimit();
+        this.maxInFlight = builder.maxInFlight;
+        this.ordered = builder.ordered;
+        this.maxResults = builder.maxResults;
+        this.result = new ResultFuture<Integer>();
+        this.arrived = new TreeMap<Integer, List<Result<T>>>();
+        this.windowSizes = new HashMap<Integer, Integer>();
+        this.listener = null;
+        this.endOffset = -1;
+        this.nextRequest = searchOp.getOffset();
+        this.nextDelivery = searchOp.getOffset();
+        this.inFlight = 0;
+        this.delivered = 0;
+    }
+
+    /**
+     * Starts the stream, the returned future completes with the number of
+     * results delivered when every window has been delivered.
+     *
+     * @param listener The listener for the results.
+     * @return A future for the end of the stream, cancelling it stops the
+     *         stream from requesting more windows.
+     */
+    public Future<Integer> start(final Listener<T> listener) {
+        return run(listener);
+    }
+
+    ResultFuture<Integer> run(final Listener<T> listener) {
+        checkNotNull(listener, "listener");
+
+        final int offset;
+        final int size;
+        synchronized (this) {
+            checkArgument(this.listener == null, "The stream has already been started.");
+            this.listener = listener;
+
+            offset = nextRequest;
+            size = Math.min(windowSize, maxResults);
+            windowSizes.put(offset, size);
+            nextRequest += size;
+            inFlight++;
+        }
+        request(offset, size);
+        return result;
+    }
+
+    /**
+     * Returns the number of results that will be read, from the total count
+     * of the first window.
+     *
+     * @return The number of results to read, or {@code -1} if the first
+     *         window hasn't arrived.
+     */
+    public synchronized int getExpectedCount() {
+        return (endOffset < 0) ? -1 : endOffset - searchOp.getOffset();
+    }
+
+    private void request(final int offset, final int size) {
+        if (result.isDone()) {
+            return;
+        }
+
+        final SearchOperation<T> windowOp = SearchOperation.builder(searchOp)
+                .offset(offset)
+                .limit(size)
+                .build();
+        if (searchOp.hasApiKey()) {
+            windowOp.withApiKey(searchOp.getApiKey());
+        }
+
+        final OrchestrateFuture<SearchResults<T>> future;
+        try {
+            future = client.execute(windowOp);
+        } catch (final RuntimeException e) {
+            result.fail(e);
+            return;
+        }
+        future.addListener(new OrchestrateFutureListener<SearchResults<T>>() {
+            @Override
+            public void onComplete(final OrchestrateFuture<SearchResults<T>> future) {
+                try {
+                    windowArrived(offset, future.get());
+                } catch (final ExecutionException e) {
+                    result.fail(e.getCause());
+                } catch (final Throwable t) {
+                    result.fail(t);
+                }
+            }
+
+            @Override
+            public void onException(final OrchestrateFuture<SearchResults<T>> future) {
+                result.failFrom(future);
+            }
+        });
+    }
+
+    private void windowArrived(final int offset, final SearchResults<T> results) {
+        final List<Result<T>> window = new ArrayList<Result<T>>(results.getCount());
+        for (final Result<T> r : results) {
+            window.add(r);
+        }
+
+        final List<int[]> requests = new ArrayList<int[]>(maxInFlight);
+        synchronized (this) {
+            if (result.isDone()) {
+                return;
+            }
+            if (endOffset < 0) {
+                final long maxEnd = (long) searchOp.getOffset() + maxResults;
+                endOffset = (int) Math.min(results.getTotalCount(), maxEnd);
+            }
+
+            if (ordered) {
+                arrived.put(offset, window);
+                while (!arrived.isEmpty() && arrived.firstKey() == nextDelivery) {
+                    final List<Result<T>> next = arrived.remove(nextDelivery);
+                    deliver(nextDelivery, next);
+                    nextDelivery += windowSizes.remove(nextDelivery);
+                }
+            } else {
+                windowSizes.remove(offset);
+                deliver(offset, window);
+            }
+
+            while (inFlight < maxInFlight && nextRequest < endOffset) {
+                final int size = Math.min(windowSize, endOffset - nextRequest);
+                windowSizes.put(nextRequest, size);
+                requests.add(new int[] { nextRequest, size });
+                nextRequest += size;
+                inFlight++;
+            }
+            if (inFlight == 0) {
+                result.complete(delivered);
+                return;
+            }
+        }
+
+        for (final int[] request : requests) {
+            request(request[0], request[1]);
+        }
+    }
+
+    // called while holding the lock on this stream
+    private void deliver(final int offset, final List<Result<T>> window) {
+        inFlight--;
+        delivered += window.size();
+        if (!window.isEmpty()) {
+            listener.onResults(offset, window);
+        }
+    }
+
+    /**
+     * A new builder to read all the results of the {@code searchOp}, the
+     * operation's limit is the size of each window and its offset is where
+     * the stream starts.
+     *
+     * @param client The client to search with.
+     * @param searchOp The search to read the results of.
+     * @param <T> The type to deserialize the results to.
+     * @return A new {@code Builder} with default settings.
+     */
+    public static <T> Builder<T> builder(final Client client, final SearchOperation<T> searchOp) {
+        return new Builder<T>(client, searchOp);
+    }
+
+    /**
+     * Builder used to create {@code SearchStream} instances.
+     *
+     * @param <T> The type to deserialize the results to.
+     */
+    public static final class Builder<T> {
+
+        /** The client to search with. */
+        private final Client client;
+        /** The search for the first window. */
+        private final SearchOperation<T> searchOp;
+        /** The maximum number of windows requested but not delivered. */
+        private int maxInFlight;
+        /** Whether to deliver windows in offset order. */
+        private boolean ordered;
+        /** The maximum number of results to read. */
+        private int maxResults;
+
+        private Builder(final Client client, final SearchOperation<T> searchOp) {
+            this.client = checkNotNull(client, "client");
+            this.searchOp = checkNotNull(searchOp, "searchOp");
+            checkArgument(searchOp.getLimit() > 0, "'searchOp' must have a limit greater than zero.");
+            this.maxInFlight = 4;
+            this.ordered = true;
+            this.maxResults = Integer.MAX_VALUE;
+        }
+
+        /**
+         * The maximum number of windows that have been requested but not yet
+         * delivered, defaults to {@code 4}. When results are delivered in
+         * order this also bounds the number of windows held in memory.
+         *
+         * @param maxInFlight The maximum number of outstanding windows.
+         * @return This builder.
+         */
+        public Builder<T> maxInFlight(final int maxInFlight) {
+            checkArgument(maxInFlight > 0, "'maxInFlight' must be greater than zero.");
+
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Whether to deliver the windows in offset order, defaults to {@code
+         * true}.
+         *
+         * @param ordered {@code false} to deliver windows as they arrive.
+         * @return This builder.
+         */
+        public Builder<T> ordered(final boolean ordered) {
+            this.ordered = ordered;
+            return this;
+        }
+
+        /**
+         * The maximum number of results to read, defaults to all of them.
+         *
+         * @param maxResults The maximum number of results.
+         * @return This builder.
+         */
+        public Builder<T> maxResults(final int maxResults) {
+            checkArgument(maxResults > 0, "'maxResults' must be greater than zero.");
+
+            this.maxResults = maxResults;
+            return this;
+        }
+
+        /**
+         * Creates a new {@code SearchStream}.
+         *
+         * @return A new {@link SearchStream}.
+         */
+        public SearchStream<T> build() {
+            return new SearchStream<T>(this);
+        }
+
+    }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that spreads updates from different threads over several padded
+ * cells, so that threads recording at the same time don't contend on a
+ * single value.
+ *
+ * <p>Reading the counter sums the cells, which is slower than updating it.
+ */
+final class StripedCounter {
+
+    /** The number of longs between cells, to keep cells on separate cache lines. */
+    private static final int PADDING = 8;
+    /** The number of cells for each counter. */
+    private static final int STRIPES = stripes();
+
+    /** The cells of the counter, {@code PADDING} longs apart. */
+    private final AtomicLongArray cells;
+
+    StripedCounter() {
+        cells = new AtomicLongArray(STRIPES * PADDING);
+    }
+
+    void increment() {
+        add(1);
+    }
+
+    void add(final long delta) {
+        final int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        cells.getAndAdd(stripe * PADDING, delta);
+    }
+
+    long sum() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    private static int stripes() {
+        final int processors = Runtime.getRuntime().availableProcessors();
+        return Math.min(64, Integer.highestOneBit(Math.max(1, processors) * 2 - 1) << 1);
+    }
+
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
+import org.glassfish.grizzly.http.HttpHeader;
+
+import java.io.IOException;
+import java.util.*;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * Fetch the objects related to a key in the Orchestrate.io service, as Java
+ * types.
+ *
+ * <p>Relations can span collections, so the type to deserialize a related
+ * object to is chosen by its collection, see {@link Builder#as(String,
+ * Class)}. Objects in collections without a type are returned as their raw
+ * JSON string. The response is read with a streaming parser, without
+ * building a tree of it. With {@link Builder#metadataOnly(boolean)} the
+ * values aren't deserialized when the response is read, their JSON text is
+ * kept and they're deserialized in bulk by {@link RelatedObjects#hydrate()}
+ * or on first use.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * TypedRelationFetchOperation relationFetchOp = TypedRelationFetchOperation
+ *         .builder("users", "tony", "friend")
+ *         .as("users", User.class)
+ *         .as("pages", Page.class)
+ *         .build();
+ * RelatedObjects related = client.execute(relationFetchOp).get();
+ * for (KvObject<User> user : related.ofType(User.class)) {
+ *     System.out.println(user.getValue().getName());
+ * }
+ * }
+ * </pre>
+ *
+ * @see RelationFetchOperation
+ */
+@ToString(callSuper=false)
+@EqualsAndHashCode(callSuper=false)
+public final class TypedRelationFetchOperation extends AbstractOperation<RelatedObjects> {
+
+    /** The collection containing the key. */
+    private final String collection;
+    /** The key to fetch the related objects of. */
+    private final String key;
+    /** The kinds of relation to follow. */
+    private final String[] kinds;
+    /** The types to deserialize the objects of each collection to. */
+    private final Map<String, Class<?>> types;
+    /** The type for objects in collections without a type. */
+    private final Class<?> defaultType;
+    /** Whether to defer deserializing the values. */
+    private final boolean metadataOnly;
+
+    private TypedRelationFetchOperation(final Builder builder) {
+        assert (builder != null);
+
+        this.collection = builder.collection;
+        this.key = builder.key;
+        this.kinds = builder.kinds;
+        this.types = new HashMap<String, Class<?>>(builder.types);
+        this.defaultType = builder.defaultType;
+        this.metadataOnly = builder.metadataOnly;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    RelatedObjects fromResponse(
+            final int status, final HttpHeader httpHeader, final String json, final JacksonMapper mapper)
+            throws IOException {
+        assert (status == 200);
+
+        final ObjectMapper objectMapper = mapper.getMapper();
+        final List<KvMetadata> metadata = new ArrayList<KvMetadata>();
+        final List<String> rawValues = new ArrayList<String>();
+        final List<Class<?>> classes = new ArrayList<Class<?>>();
+        final List<Object> values = metadataOnly ? null : new ArrayList<Object>();
+
+        final JsonParser parser = objectMapper.getFactory().createParser(json);
+        try {
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                final String field = parser.getCurrentName();
+                final JsonToken token = parser.nextToken();
+                if ("results".equals(field) && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        readResult(parser, json, objectMapper, metadata, rawValues, classes, values);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } finally {
+            parser.close();
+        }
+
+        return new RelatedObjects(metadata, rawValues, classes, values, objectMapper);
+    }
+
+    // reads a result object, the parser is at its start
+    private void readResult(
+            final JsonParser parser, final String json, final ObjectMapper objectMapper,
+            final List<KvMetadata> metadata, final List<String> rawValues, final List<Class<?>> classes,
+            final List<Object> values) throws IOException {
+        String relatedCollection = null;
+        String relatedKey = null;
+        String ref = null;
+        Object value = null;
+        String rawValue = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            final String field = parser.getCurrentName();
+            final int fieldOffset = (int) parser.getTokenLocation().getCharOffset();
+            final JsonToken token = parser.nextToken();
+            if ("path".equals(field) && token == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String pathField = parser.getCurrentName();
+                    parser.nextToken();
+                    if ("collection".equals(pathField)) {
+                        relatedCollection = parser.getText();
+                    } else if ("key".equals(pathField)) {
+                        relatedKey = parser.getText();
+                    } else if ("ref".equals(pathField)) {
+                        ref = parser.getText();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else if ("value".equals(field)) {
+                // the raw value is the span of the response it was read from
+                final int start = valueStart(json, fieldOffset);
+                if (values != null && relatedCollection != null && typeOf(relatedCollection) != String.class) {
+                    value = objectMapper.readValue(parser, typeOf(relatedCollection));
+                } else if (token.isScalarValue()) {
+                    // reads the rest of the token
+                    parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+                rawValue = json.substring(start, (int) parser.getCurrentLocation().getCharOffset());
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (relatedCollection == null || relatedKey == null || ref == null || rawValue == null) {
+            throw new IOException("A related object is missing its path or value.");
+        }
+
+        final Class<?> clazz = typeOf(relatedCollection);
+        metadata.add(new KvMetadata(relatedCollection, relatedKey, ref));
+        classes.add(clazz);
+        rawValues.add(rawValue);
+        if (values != null) {
+            if (clazz == String.class) {
+                value = rawValue;
+            } else if (value == null) {
+                // the value came before its path
+                value = objectMapper.readValue(rawValue, clazz);
+            }
+            values.add(value);
+        }
+    }
+
+    // the parser reads the start of a value along with its field name, so
+    // the value's offset is found after the colon that follows the name
+    private static int valueStart(final String json, final int fieldOffset) throws IOException {
+        int i = json.indexOf(':', fieldOffset) + 1;
+        if (i == 0) {
+            throw new IOException("Expected ':' after the field at " + fieldOffset + '.');
+        }
+        while (i < json.length() && Character.isWhitespace(json.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static void expect(final JsonToken token, final JsonToken expected) throws IOException {
+        if (token != expected) {
+            throw new IOException("Expected " + expected + " but found " + token + '.');
+        }
+    }
+
+    /**
+     * Returns the collection from this operation.
+     *
+     * @return The collection from this operation.
+     */
+    public String getCollection() {
+        return collection;
+    }
+
+    /**
+     * Returns the key from this operation.
+     *
+     * @return The key from this operation.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * Returns the kinds of relation from this operation.
+     *
+     * @return The kinds of relation from this operation.
+     */
+    public List<String> getKinds() {
+        return Arrays.asList(kinds);
+    }
+
+    /**
+     * Returns the type the objects in the {@code collection} are
+     * deserialized to.
+     *
+     * @param collection The name of a collection.
+     * @return The type for the objects in the collection.
+     */
+    public Class<?> typeOf(final String collection) {
+        final Class<?> clazz = types.get(collection);
+        return (clazz == null) ? defaultType : clazz;
+    }
+
+    /**
+     * Returns whether deserializing the values is deferred.
+     *
+     * @return {@code true} if the values are deserialized after the
+     *         response is read.
+     */
+    public boolean isMetadataOnly() {
+        return metadataOnly;
+    }
+
+    /**
+     * A new builder to fetch the objects related to the {@code key} in the
+     * {@code collection} by the {@code kinds} of relation.
+     *
+     * @param collection The collection containing the key.
+     * @param key The key to fetch the related objects of.
+     * @param kinds The kinds of relation to follow, one per hop.
+     * @return A new {@code Builder}.
+     */
+    public static Builder builder(final String collection, final String key, final String... kinds) {
+        return new Builder(collection, key, kinds);
+    }
+
+    /**
+     * Builder used to create {@code TypedRelationFetchOperation} instances.
+     */
+    public static final class Builder {
+
+        /** The collection containing the key. */
+        private final String collection;
+        /** The key to fetch the related objects of. */
+        private final String key;
+        /** The kinds of relation to follow. */
+        private final String[] kinds;
+        /** The types to deserialize the objects of each collection to. */
+        private final Map<String, Class<?>> types;
+        /** The type for objects in collections without a type. */
+        private Class<?> defaultType;
+        /** Whether to defer deserializing the values. */
+        private boolean metadataOnly;
+
+        private Builder(final String collection, final String key, final String... kinds) {
+            checkNotNull(kinds, "kinds");
+            checkArgument(kinds.length > 0, "'kinds' cannot be empty.");
+            for (final String kind : kinds) {
+                checkNotNullOrEmpty(kind, "kind");
+            }
+
+            this.collection = checkNotNullOrEmpty(collection, "collection");
+            this.key = checkNotNullOrEmpty(key, "key");
+            this.kinds = kinds.clone();
+            this.types = new HashMap<String, Class<?>>();
+            this.defaultType = String.class;
+            this.metadataOnly = false;
+        }
+
+        /**
+         * The type to deserialize the related objects in the {@code
+         * collection} to.
+         *
+         * @param collection The name of a collection.
+         * @param clazz Type information for deserializing the objects at
+         *              runtime.
+         * @return This builder.
+         */
+        public Builder as(final String collection, final Class<?> clazz) {
+            checkNotNullOrEmpty(collection, "collection");
+            checkNotNull(clazz, "clazz");
+
+            types.put(collection, clazz);
+            return this;
+        }
+
+        /**
+         * The type to deserialize related objects in other collections to,
+         * defaults to {@code String} (the raw JSON value).
+         *
+         * @param clazz Type information for deserializing the objects at
+         *              runtime.
+         * @return This builder.
+         */
+        public Builder defaultType(final Class<?> clazz) {
+            this.defaultType = checkNotNull(clazz, "clazz");
+            return this;
+        }
+
+        /**
+         * Whether to read only the metadata and the JSON text of the values
+         * with the response, and defer deserializing the values until they're
+         * used. Defaults to {@code false}.
+         *
+         * @param metadataOnly {@code true} to defer deserializing the values.
+         * @return This builder.
+         * @see RelatedObjects#hydrate(java.util.concurrent.Executor)
+         */
+        public Builder metadataOnly(final boolean metadataOnly) {
+            this.metadataOnly = metadataOnly;
+            return this;
+        }
+
+        /**
+         * Creates a new {@code TypedRelationFetchOperation}.
+         *
+         * @return A new {@link TypedRelationFetchOperation}.
+         */
+        public TypedRelationFetchOperation build() {
+            return new TypedRelationFetchOperation(this);
+        }
+
+    }
+
+}
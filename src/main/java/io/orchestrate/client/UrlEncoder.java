@@ -0,0 +1,153 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.BitSet;
+
+/**
+ * A URL encoder for the path and query segments of a request, equivalent to
+ * the encoding from {@link org.glassfish.grizzly.http.util.UEncoder} but
+ * appending to a reusable buffer.
+ */
+final class UrlEncoder {
+
+    /** The charset to encode unsafe characters with. */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /** The hex digits for percent encoding. */
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    /** The characters that don't need to be encoded. */
+    private static final BitSet SAFE_CHARS = new BitSet(128);
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            SAFE_CHARS.set(c);
+        }
+        for (char c = 'A'; c <= 'Z'; c++) {
+            SAFE_CHARS.set(c);
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            SAFE_CHARS.set(c);
+        }
+        for (final char c : "$-_.!*'(),".toCharArray()) {
+            SAFE_CHARS.set(c);
+        }
+    }
+
+    /** The per-thread buffer to build request paths and queries in. */
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(128);
+        }
+    };
+
+    private UrlEncoder() {}
+
+    /**
+     * Returns the (cleared) buffer for the current thread.
+     *
+     * <p>The buffer must not be held on to, its contents should be copied
+     * (e.g. with {@code toString()}) before the next call to this method.
+     *
+     * @return An empty buffer for the current thread.
+     */
+    static StringBuilder buffer() {
+        final StringBuilder buffer = BUFFER.get();
+        buffer.setLength(0);
+        return buffer;
+    }
+
+    /**
+     * Returns the URL encoded form of the {@code value}.
+     *
+     * @param value The value to encode.
+     * @return The URL encoded value.
+     */
+    static String encode(final String value) {
+        assert (value != null);
+
+        if (isSafe(value)) {
+            return value;
+        }
+        return append(new StringBuilder(value.length() * 3), value).toString();
+    }
+
+    /**
+     * Appends the URL encoded form of the {@code value} to the {@code buffer}.
+     *
+     * @param buffer The buffer to append to.
+     * @param value The value to encode.
+     * @return The buffer.
+     */
+    static StringBuilder append(final StringBuilder buffer, final String value) {
+        assert (buffer != null);
+        assert (value != null);
+
+        final int length = value.length();
+        for (int i = 0; i < length; i++) {
+            final char c = value.charAt(i);
+            if (SAFE_CHARS.get(c)) {
+                buffer.append(c);
+                continue;
+            }
+
+            // encode the character, and its low surrogate if it has one
+            int end = i + 1;
+            if (Character.isHighSurrogate(c) && end < length
+                    && Character.isLowSurrogate(value.charAt(end))) {
+                end++;
+            }
+            final byte[] bytes = value.substring(i, end).getBytes(UTF_8);
+            for (final byte b : bytes) {
+                buffer.append('%')
+                        .append(HEX_DIGITS[(b >> 4) & 0xF])
+                        .append(HEX_DIGITS[b & 0xF]);
+            }
+            i = end - 1;
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns the decoded form of the URL encoded {@code value}, e.g. a query
+     * parameter from a link in a response.
+     *
+     * @param value The value to decode.
+     * @return The decoded value.
+     */
+    static String decode(final String value) {
+        assert (value != null);
+
+        try {
+            return URLDecoder.decode(value, UTF_8.name());
+        } catch (final UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static boolean isSafe(final String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (!SAFE_CHARS.get(value.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
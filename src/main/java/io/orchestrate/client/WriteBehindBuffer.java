@@ -0,0 +1,686 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client;
+
+import lombok.EqualsAndHashCode;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * Buffers KV store operations and coalesces repeated writes to the same key.
+ *
+ * <p>A store is held for up to the {@link Builder#flushWindow(long, TimeUnit)
+ * flush window}, and a later store to the same collection and key in that
+ * time replaces its value, so only the last value is written. The futures of
+ * all the coalesced stores complete with the metadata of the write that
+ * lands. Writes to a key are never in flight concurrently, so they land in
+ * the order they were made, and at most {@link Builder#maxConcurrency(int)}
+ * writes are in flight at once.
+ *
+ * <p>At most {@link Builder#maxBufferedKeys(int)} keys are buffered, a store
+ * to another key blocks the caller while the buffer is full, so it shouldn't
+ * be made from a listener on the client's I/O threads. A {@link
+ * #fetch(KvFetchOperation) fetch} through the buffer of a key with a buffered
+ * store writes the store straight away and reads the key once it lands.
+ *
+ * <p>Only unconditional stores can be buffered, the value of a store
+ * shouldn't be modified after it's been buffered. A client built with {@link
+ * ClientBuilder#writeBehind(long, TimeUnit)} buffers its unconditional stores
+ * in a buffer of its own.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * WriteBehindBuffer buffer = WriteBehindBuffer.builder(client)
+ *         .flushWindow(100, TimeUnit.MILLISECONDS)
+ *         .build();
+ * KvStoreOperation kvStoreOp = new KvStoreOperation("myCollection", "someKey", obj);
+ * Future<KvMetadata> futureResult = buffer.store(kvStoreOp);
+ * ...
+ * buffer.close();  // writes the buffered stores
+ * }
+ * </pre>
+ */
+@Slf4j
+public final class WriteBehindBuffer implements Closeable {
+
+    /** The builder for this buffer. */
+    private final Builder builder;
+    /** The thread that flushes buffered writes when their window ends. */
+    private final ScheduledExecutorService timer;
+    /** The writes waiting to be flushed, in the order they were buffered. */
+    private final LinkedHashMap<Key, Pending> pending;
+    /** The writes in flight, by key. */
+    private final Map<Key, Pending> inFlight;
+    /** The number of stores that were coalesced into another write. */
+    private final AtomicLong coalesced;
+    /** The number of writes made. */
+    private final AtomicLong written;
+    /** The number of callers waiting for a flush, guarded by this. */
+    private int flushing;
+    /** The number of callers waiting for room in the buffer, guarded by this. */
+    private int waitingForRoom;
+    /** Whether this buffer has been closed, guarded by this. */
+    private boolean closed;
+
+    private WriteBehindBuffer(final Builder builder) {
+        assert (builder != null);
+
+        this.builder = builder;
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "OrchestrateWriteBehind");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.pending = new LinkedHashMap<Key, Pending>();
+        this.inFlight = new HashMap<Key, Pending>();
+        this.coalesced = new AtomicLong(0);
+        this.written = new AtomicLong(0);
+        this.flushing = 0;
+        this.waitingForRoom = 0;
+        this.closed = false;
+
+        // check a few times per window, so a write waits at most ~1.25 windows
+        final long tick = Math.max(TimeUnit.MILLISECONDS.toNanos(1), builder.flushWindowNanos / 4);
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    drain();
+                } catch (final RuntimeException e) {
+                    log.warn("Write behind flush failed.", e);
+                }
+            }
+        }, tick, tick, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Buffers the {@code kvStoreOp}, replacing the value of a buffered store
+     * to the same collection and key. While the maximum number of keys are
+     * buffered, a store to another key writes the oldest keys straight away
+     * and waits for room.
+     *
+     * @param kvStoreOp The store operation to buffer, it can't be conditional.
+     * @return A future for the metadata of the write that lands, or {@code
+     *         null} if the write was discarded.
+     * @throws ClientException If the thread was interrupted while waiting for
+     *         room in the buffer.
+     */
+    public OrchestrateFuture<KvMetadata> store(final KvStoreOperation kvStoreOp) {
+        checkNotNull(kvStoreOp, "kvStoreOp");
+        checkArgument(!kvStoreOp.hasCurrentRef() && !kvStoreOp.hasIfAbsent(),
+                "Conditional stores can't be buffered.");
+
+        final OrchestrateFutureImpl<KvMetadata> future = new OrchestrateFutureImpl<KvMetadata>(kvStoreOp);
+        final Key key = new Key(kvStoreOp.getCollection(), kvStoreOp.getKey(), kvStoreOp.getApiKey());
+        while (!buffer(key, kvStoreOp.getValue(), future)) {
+            drain(true);
+            awaitRoom(key);
+        }
+        return future;
+    }
+
+    /**
+     * Fetches the key of the {@code kvFetchOp}, after the buffered store to
+     * the key lands if there is one. A buffered store is written straight
+     * away rather than at the end of its flush window.
+     *
+     * @param kvFetchOp The fetch operation to make.
+     * @param <T> The type to deserialize the result to.
+     * @return The future for the response from the fetch.
+     */
+    public <T> OrchestrateFuture<KvObject<T>> fetch(final KvFetchOperation<T> kvFetchOp) {
+        checkNotNull(kvFetchOp, "kvFetchOp");
+
+        final OrchestrateFuture<KvObject<T>> future = fetchAfterWrite(kvFetchOp);
+        return (future != null) ? future : builder.client.execute(kvFetchOp);
+    }
+
+    /**
+     * Makes the {@code kvFetchOp} after the buffered store to its key lands,
+     * if there is a store to the key buffered or in flight.
+     *
+     * @param kvFetchOp The fetch operation to make.
+     * @param <T> The type to deserialize the result to.
+     * @return The future for the fetch, or {@code null} if there is no store
+     *         to wait for.
+     */
+    @Nullable
+    <T> OrchestrateFuture<KvObject<T>> fetchAfterWrite(final KvFetchOperation<T> kvFetchOp) {
+        assert (kvFetchOp != null);
+
+        if (kvFetchOp.hasRef()) {
+            // a version of the object can't change
+            return null;
+        }
+        final Key key = new Key(kvFetchOp.getCollection(), kvFetchOp.getKey(), kvFetchOp.getApiKey());
+        final OrchestrateFutureImpl<KvObject<T>> future = new OrchestrateFutureImpl<KvObject<T>>(kvFetchOp);
+        final Runnable fetch = new Runnable() {
+            @Override
+            public void run() {
+                forward(builder.client.execute(kvFetchOp.copy()), future);
+            }
+        };
+
+        final Pending writeNow;
+        synchronized (this) {
+            final Pending buffered = pending.get(key);
+            final Pending writing = inFlight.get(key);
+            if (buffered == null && writing == null) {
+                return null;
+            }
+            if (buffered == null) {
+                writing.afterLanded(fetch);
+                writeNow = null;
+            } else if (writing != null) {
+                // written as soon as the write in flight lands
+                buffered.flushNow = true;
+                buffered.afterLanded(fetch);
+                writeNow = null;
+            } else {
+                buffered.afterLanded(fetch);
+                pending.remove(key);
+                inFlight.put(key, buffered);
+                writeNow = buffered;
+                notifyAll();
+            }
+        }
+
+        if (writeNow != null) {
+            write(key, writeNow);
+        }
+        return future;
+    }
+
+    private static <T> void forward(final OrchestrateFuture<T> from, final OrchestrateFutureImpl<T> to) {
+        from.addListener(new OrchestrateFutureListener<T>() {
+            @Override
+            public void onComplete(final OrchestrateFuture<T> future) {
+                try {
+                    to.setResult(future.get());
+                } catch (final ExecutionException e) {
+                    to.setException(e.getCause());
+                } catch (final InterruptedException e) {
+                    to.setException(e);
+                }
+            }
+
+            @Override
+            public void onException(final OrchestrateFuture<T> future) {
+                try {
+                    future.get();
+                    to.setException(new IllegalStateException("The fetch failed without an error."));
+                } catch (final ExecutionException e) {
+                    to.setException(e.getCause());
+                } catch (final InterruptedException e) {
+                    to.setException(e);
+                }
+            }
+        });
+    }
+
+    private synchronized boolean buffer(
+            final Key key, final Object value, final OrchestrateFutureImpl<KvMetadata> future) {
+        if (closed) {
+            throw new IllegalStateException("The buffer has been closed.");
+        }
+        Pending write = pending.get(key);
+        if (write == null) {
+            if (pending.size() >= builder.maxBufferedKeys) {
+                return false;
+            }
+            write = new Pending(System.nanoTime());
+            pending.put(key, write);
+        } else {
+            coalesced.incrementAndGet();
+        }
+        write.value = value;
+        write.futures.add(future);
+        return true;
+    }
+
+    private synchronized void awaitRoom(final Key key) {
+        waitingForRoom++;
+        try {
+            while (!closed && !pending.containsKey(key) && pending.size() >= builder.maxBufferedKeys) {
+                wait();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientException(e);
+        } finally {
+            waitingForRoom--;
+        }
+    }
+
+    /**
+     * Discards the buffered store to the {@code key} in the {@code
+     * collection}, its futures complete with {@code null}. A write to the key
+     * that's already in flight isn't affected.
+     *
+     * @param collection The collection of the key.
+     * @param key The key to discard the buffered store of.
+     * @return {@code true} if a buffered store was discarded.
+     */
+    public boolean discard(final String collection, final String key) {
+        checkNotNullOrEmpty(collection, "collection");
+        checkNotNullOrEmpty(key, "key");
+
+        return discardMatching(collection, key);
+    }
+
+    /**
+     * Discards the buffered stores to all the keys in the {@code
+     * collection}, their futures complete with {@code null}.
+     *
+     * @param collection The collection to discard the buffered stores of.
+     * @return {@code true} if any buffered stores were discarded.
+     */
+    public boolean discardCollection(final String collection) {
+        checkNotNullOrEmpty(collection, "collection");
+
+        return discardMatching(collection, null);
+    }
+
+    private boolean discardMatching(final String collection, @Nullable final String key) {
+        final List<Pending> discarded = new ArrayList<Pending>(1);
+        final List<Runnable> callbacks = new ArrayList<Runnable>(0);
+        synchronized (this) {
+            final Iterator<Map.Entry<Key, Pending>> iter = pending.entrySet().iterator();
+            while (iter.hasNext()) {
+                final Map.Entry<Key, Pending> entry = iter.next();
+                if (entry.getKey().collection.equals(collection)
+                        && (key == null || entry.getKey().key.equals(key))) {
+                    discarded.add(entry.getValue());
+                    final List<Runnable> waiting = entry.getValue().takeAfterLanded();
+                    if (waiting != null) {
+                        callbacks.addAll(waiting);
+                    }
+                    iter.remove();
+                }
+            }
+            notifyAll();
+        }
+        for (final Pending write : discarded) {
+            for (final OrchestrateFutureImpl<KvMetadata> future : write.futures) {
+                future.setResult(null);
+            }
+        }
+        // the fetches waiting for a discarded store read the key as it is
+        runAll(callbacks);
+        return !discarded.isEmpty();
+    }
+
+    /**
+     * Writes every buffered store now, and waits until the writes have
+     * landed.
+     *
+     * @param timeout The maximum time to wait.
+     * @param unit The unit of time of the {@code timeout}.
+     * @return {@code true} if the buffer was flushed, {@code false} if the
+     *         timeout elapsed first.
+     * @throws InterruptedException If the thread was interrupted while
+     *         waiting.
+     */
+    public boolean flush(final long timeout, final TimeUnit unit) throws InterruptedException {
+        checkNotNull(unit, "unit");
+
+        final long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this) {
+            flushing++;
+        }
+        try {
+            drain(true);
+            synchronized (this) {
+                while (!pending.isEmpty() || !inFlight.isEmpty()) {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return false;
+                    }
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+            }
+            return true;
+        } finally {
+            synchronized (this) {
+                flushing--;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of stores that were replaced by a later store to
+     * the same key before they were written.
+     *
+     * @return The number of coalesced stores.
+     */
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    /**
+     * Returns the number of writes made to the service.
+     *
+     * @return The number of writes.
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * Stops accepting stores, writes the buffered stores and waits for them
+     * to land.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+        }
+        try {
+            flush(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            timer.shutdownNow();
+        }
+    }
+
+    private void drain() {
+        final boolean force;
+        synchronized (this) {
+            force = (flushing > 0 || waitingForRoom > 0 || closed);
+        }
+        drain(force);
+    }
+
+    private void drain(final boolean force) {
+        final List<Map.Entry<Key, Pending>> toWrite = new ArrayList<Map.Entry<Key, Pending>>();
+        synchronized (this) {
+            final long now = System.nanoTime();
+            final Iterator<Map.Entry<Key, Pending>> iter = pending.entrySet().iterator();
+            while (iter.hasNext() && inFlight.size() < builder.maxConcurrency) {
+                final Map.Entry<Key, Pending> entry = iter.next();
+                if (!force && now - entry.getValue().bufferedNanos < builder.flushWindowNanos) {
+                    // the writes are in the order they were buffered
+                    break;
+                }
+                if (!inFlight.containsKey(entry.getKey())) {
+                    inFlight.put(entry.getKey(), entry.getValue());
+                    toWrite.add(entry);
+                    iter.remove();
+                }
+            }
+            if (!toWrite.isEmpty()) {
+                // wake the stores waiting for room
+                notifyAll();
+            }
+        }
+
+        for (final Map.Entry<Key, Pending> entry : toWrite) {
+            write(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void write(final Key key, final Pending write) {
+        final KvStoreOperation kvStoreOp = new KvStoreOperation(key.collection, key.key, write.value);
+        if (key.apiKey != null) {
+            kvStoreOp.withApiKey(key.apiKey);
+        }
+        written.incrementAndGet();
+
+        final OrchestrateFuture<KvMetadata> future;
+        try {
+            // a client's own buffer writes around itself
+            future = (builder.client instanceof HttpClient)
+                    ? ((HttpClient) builder.client).executeUnbuffered(kvStoreOp)
+                    : builder.client.execute(kvStoreOp);
+        } catch (final RuntimeException e) {
+            landed(key, write, null, e);
+            return;
+        }
+        future.addListener(new OrchestrateFutureListener<KvMetadata>() {
+            @Override
+            public void onComplete(final OrchestrateFuture<KvMetadata> future) {
+                try {
+                    landed(key, write, future.get(), null);
+                } catch (final ExecutionException e) {
+                    landed(key, write, null, e.getCause());
+                } catch (final InterruptedException e) {
+                    landed(key, write, null, e);
+                }
+            }
+
+            @Override
+            public void onException(final OrchestrateFuture<KvMetadata> future) {
+                try {
+                    future.get();
+                    landed(key, write, null, new IllegalStateException("The write failed without an error."));
+                } catch (final ExecutionException e) {
+                    landed(key, write, null, e.getCause());
+                } catch (final InterruptedException e) {
+                    landed(key, write, null, e);
+                }
+            }
+        });
+    }
+
+    private void landed(
+            final Key key, final Pending write, @Nullable final KvMetadata metadata, @Nullable final Throwable error) {
+        for (final OrchestrateFutureImpl<KvMetadata> future : write.futures) {
+            if (error == null) {
+                future.setResult(metadata);
+            } else {
+                future.setException(error);
+            }
+        }
+
+        final Pending next;
+        final List<Runnable> callbacks;
+        synchronized (this) {
+            inFlight.remove(key);
+            callbacks = write.takeAfterLanded();
+            // a buffered store that a fetch is waiting for is written next
+            final Pending buffered = pending.get(key);
+            if (buffered != null && buffered.flushNow) {
+                pending.remove(key);
+                inFlight.put(key, buffered);
+                next = buffered;
+            } else {
+                next = null;
+            }
+            notifyAll();
+        }
+        runAll(callbacks);
+        if (next != null) {
+            write(key, next);
+        }
+        drain();
+    }
+
+    private static void runAll(@Nullable final List<Runnable> callbacks) {
+        if (callbacks == null) {
+            return;
+        }
+        for (final Runnable callback : callbacks) {
+            try {
+                callback.run();
+            } catch (final RuntimeException e) {
+                log.warn("Write behind callback failed.", e);
+            }
+        }
+    }
+
+    /**
+     * A new builder to buffer stores made with the {@code client}.
+     *
+     * @param client The client to write with.
+     * @return A new {@code Builder} with default settings.
+     */
+    public static Builder builder(final Client client) {
+        return new Builder(client);
+    }
+
+    /**
+     * The collection, key and API key of a buffered store.
+     */
+    @EqualsAndHashCode
+    private static final class Key {
+
+        /** The collection to write to. */
+        final String collection;
+        /** The key to write to. */
+        final String key;
+        /** The API key to write with, may be {@code null}. */
+        final String apiKey;
+
+        Key(final String collection, final String key, @Nullable final String apiKey) {
+            this.collection = collection;
+            this.key = key;
+            this.apiKey = apiKey;
+        }
+
+    }
+
+    /**
+     * A buffered write and the futures of the stores coalesced into it.
+     */
+    private static final class Pending {
+
+        /** The value of the system timer when the first store was buffered. */
+        final long bufferedNanos;
+        /** The futures of the stores. */
+        final List<OrchestrateFutureImpl<KvMetadata>> futures;
+        /** The value of the last store. */
+        Object value;
+        /** Whether to write without waiting for the flush window, guarded by the buffer. */
+        boolean flushNow;
+        /** The callbacks to run when the write lands, guarded by the buffer. */
+        private List<Runnable> afterLanded;
+
+        Pending(final long bufferedNanos) {
+            this.bufferedNanos = bufferedNanos;
+            this.futures = new ArrayList<OrchestrateFutureImpl<KvMetadata>>(1);
+            this.value = null;
+            this.flushNow = false;
+            this.afterLanded = null;
+        }
+
+        // called while holding the lock on the buffer
+        void afterLanded(final Runnable callback) {
+            if (afterLanded == null) {
+                afterLanded = new ArrayList<Runnable>(1);
+            }
+            afterLanded.add(callback);
+        }
+
+        // called while holding the lock on the buffer
+        @Nullable
+        List<Runnable> takeAfterLanded() {
+            final List<Runnable> callbacks = afterLanded;
+            afterLanded = null;
+            return callbacks;
+        }
+
+    }
+
+    /**
+     * Builder used to create {@code WriteBehindBuffer} instances.
+     */
+    public static final class Builder {
+
+        /** The client to write with. */
+        private final Client client;
+        /** The time a store is buffered for. */
+        private long flushWindowNanos;
+        /** The maximum number of writes in flight. */
+        private int maxConcurrency;
+        /** The number of buffered keys at which the buffer is flushed early. */
+        private int maxBufferedKeys;
+
+        private Builder(final Client client) {
+            this.client = checkNotNull(client, "client");
+            this.flushWindowNanos = TimeUnit.MILLISECONDS.toNanos(100);
+            this.maxConcurrency = 16;
+            this.maxBufferedKeys = 10000;
+        }
+
+        /**
+         * The time a store is buffered for before it's written, stores to
+         * the same key in that time are coalesced. Defaults to {@code 100}
+         * milliseconds.
+         *
+         * @param flushWindow The time to buffer stores for.
+         * @param unit The unit of time of the {@code flushWindow}.
+         * @return This builder.
+         */
+        public Builder flushWindow(final long flushWindow, final TimeUnit unit) {
+            checkArgument(flushWindow > 0, "'flushWindow' must be greater than zero.");
+            checkNotNull(unit, "unit");
+
+            this.flushWindowNanos = unit.toNanos(flushWindow);
+            return this;
+        }
+
+        /**
+         * The maximum number of writes in flight, defaults to {@code 16}.
+         *
+         * @param maxConcurrency The maximum number of writes in flight.
+         * @return This builder.
+         */
+        public Builder maxConcurrency(final int maxConcurrency) {
+            checkArgument(maxConcurrency > 0, "'maxConcurrency' must be greater than zero.");
+
+            this.maxConcurrency = maxConcurrency;
+            return this;
+        }
+
+        /**
+         * The number of buffered keys at which the buffer is written without
+         * waiting for the flush window, defaults to {@code 10000}.
+         *
+         * @param maxBufferedKeys The number of buffered keys.
+         * @return This builder.
+         */
+        public Builder maxBufferedKeys(final int maxBufferedKeys) {
+            checkArgument(maxBufferedKeys > 0, "'maxBufferedKeys' must be greater than zero.");
+
+            this.maxBufferedKeys = maxBufferedKeys;
+            return this;
+        }
+
+        /**
+         * Creates a new {@code WriteBehindBuffer} and starts its flush timer.
+         *
+         * @return A new {@link WriteBehindBuffer}.
+         */
+        public WriteBehindBuffer build() {
+            return new WriteBehindBuffer(this);
+        }
+
+    }
+
+}
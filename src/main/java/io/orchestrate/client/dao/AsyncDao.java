@@ -19,6 +19,7 @@ import io.orchestrate.client.KvMetadata;
 import io.orchestrate.client.KvObject;
 import io.orchestrate.client.OrchestrateFutureListener;
 
+import java.util.Map;
 import java.util.concurrent.Future;
 
 /**
@@ -91,6 +92,15 @@ public interface AsyncDao<T> {
      */
     void findOne(final String key, final String ref, final Iterable<OrchestrateFutureListener<KvObject<T>>> listeners);
 
+    /**
+     * Return a {@code Future} for the objects stored with the specified
+     * {@code keys}, by key. Keys that don't exist are left out of the result.
+     *
+     * @param keys The keys used to find the objects.
+     * @return A future for the objects found with these keys.
+     */
+    Future<Map<String, KvObject<T>>> findAll(final Iterable<String> keys);
+
     /**
      * Save the specified {@code value} to the {@code key}. This returns a
      * future with the {@link KvMetadata} about the saved object.
@@ -17,6 +17,8 @@ package io.orchestrate.client.dao;
 
 import io.orchestrate.client.*;
 
+import javax.annotation.Nullable;
+import java.util.Map;
 import java.util.concurrent.Future;
 
 import static io.orchestrate.client.Preconditions.*;
@@ -36,6 +38,8 @@ public abstract class GenericAsyncDao<T> implements AsyncDao<T> {
     private final String collection;
     /** Type information for marshalling objects at runtime. */
     private final Class<T> clazz;
+    /** The buffer for unconditional saves, may be {@code null}. */
+    private final WriteBehindBuffer writeBehind;
 
     /**
      * Create a data access object to store objects of type {@code T} to the
@@ -47,9 +51,34 @@ public abstract class GenericAsyncDao<T> implements AsyncDao<T> {
      *              runtime.
      */
     public GenericAsyncDao(final Client client, final String collection, final Class<T> clazz) {
+        this(client, collection, clazz, null);
+    }
+
+    /**
+     * Create a data access object to store objects of type {@code T} to the
+     * specified {@code collection} using the {@code client}, unconditional
+     * saves are buffered in the {@code writeBehind} buffer.
+     *
+     * <p>Unconditional deletes discard the buffered save of the key, but a
+     * buffered save that's already being written can land after a delete or
+     * a conditional save of the same key. Flush the buffer first if that
+     * matters. {@code findOne} of a key with a buffered save reads the key
+     * once the save lands, {@code findAll} doesn't wait for buffered saves.
+     *
+     * @param client The client used to query the Orchestrate.io service.
+     * @param collection The name of the collection to store objects to.
+     * @param clazz Type information for deserializing to type {@code T} at
+     *              runtime.
+     * @param writeBehind The buffer for unconditional saves, may be {@code
+     *                    null}.
+     */
+    public GenericAsyncDao(
+            final Client client, final String collection, final Class<T> clazz,
+            @Nullable final WriteBehindBuffer writeBehind) {
         this.client = checkNotNull(client, "client");
         this.collection = checkNotNullOrEmpty(collection, "collection");
         this.clazz = checkNotNull(clazz, "clazz");
+        this.writeBehind = writeBehind;
     }
 
     /** {@inheritDoc} */
@@ -58,7 +87,7 @@ public abstract class GenericAsyncDao<T> implements AsyncDao<T> {
         checkNotNullOrEmpty(key, "key");
 
         final KvFetchOperation<T> kvFetchOp = new KvFetchOperation<T>(collection, key, clazz);
-        return client.execute(kvFetchOp);
+        return fetch(kvFetchOp);
     }
 
     /** {@inheritDoc} */
@@ -69,7 +98,7 @@ public abstract class GenericAsyncDao<T> implements AsyncDao<T> {
 
         final KvFetchOperation<T> kvFetchOp = new KvFetchOperation<T>(collection, key, clazz);
         kvFetchOp.addListener(listeners);
-        client.execute(kvFetchOp);
+        fetch(kvFetchOp);
     }
 
     /** {@inheritDoc} */
@@ -80,7 +109,7 @@ public abstract class GenericAsyncDao<T> implements AsyncDao<T> {
 
         final KvFetchOperation<T> kvFetchOp =
                 new KvFetchOperation<T>(collection, key, metadata, clazz);
-        return client.execute(kvFetchOp);
+        return fetch(kvFetchOp);
     }
 
     /** {@inheritDoc} */
@@ -93,7 +122,7 @@ public abstract class GenericAsyncDao<T> implements AsyncDao<T> {
 
         final KvFetchOperation<T> kvFetchOp = new KvFetchOperation<T>(collection, key, metadata, clazz);
         kvFetchOp.addListener(listeners);
-        client.execute(kvFetchOp);
+        fetch(kvFetchOp);
     }
 
     /** {@inheritDoc} */
@@ -104,7 +133,7 @@ public abstract class GenericAsyncDao<T> implements AsyncDao<T> {
 
         final KvFetchOperation<T> kvFetchOp =
                 new KvFetchOperation<T>(collection, key, ref, clazz);
-        return client.execute(kvFetchOp);
+        return fetch(kvFetchOp);
     }
 
     /** {@inheritDoc} */
@@ -117,7 +146,16 @@ public abstract class GenericAsyncDao<T> implements AsyncDao<T> {
 
         final KvFetchOperation<T> kvFetchOp = new KvFetchOperation<T>(collection, key, ref, clazz);
         kvFetchOp.addListener(listeners);
-        client.execute(kvFetchOp);
+        fetch(kvFetchOp);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Future<Map<String, KvObject<T>>> findAll(final Iterable<String> keys) {
+        checkNotNull(keys, "keys");
+
+        final KvMultiFetchOperation<T> kvMultiFetchOp = new KvMultiFetchOperation<T>(collection, keys, clazz);
+        return client.execute(kvMultiFetchOp);
     }
 
     /** {@inheritDoc} */
@@ -127,6 +165,9 @@ public abstract class GenericAsyncDao<T> implements AsyncDao<T> {
         checkNotNull(value, "value");
 
         final KvStoreOperation kvStoreOp = new KvStoreOperation(collection, key, value);
+        if (writeBehind != null) {
+            return writeBehind.store(kvStoreOp);
+        }
         return client.execute(kvStoreOp);
     }
 
@@ -140,7 +181,11 @@ public abstract class GenericAsyncDao<T> implements AsyncDao<T> {
 
         final KvStoreOperation kvStoreOp = new KvStoreOperation(collection, key, value);
         kvStoreOp.addListener(listeners);
-        client.execute(kvStoreOp);
+        if (writeBehind != null) {
+            writeBehind.store(kvStoreOp);
+        } else {
+            client.execute(kvStoreOp);
+        }
     }
 
     /** {@inheritDoc} */
@@ -226,6 +271,7 @@ public abstract class GenericAsyncDao<T> implements AsyncDao<T> {
     public Future<Boolean> delete(final String key) {
         checkNotNullOrEmpty(key, "key");
 
+        discardBuffered(key);
         final KvDeleteOperation deleteOp = new KvDeleteOperation(collection, key);
         return client.execute(deleteOp);
     }
@@ -236,6 +282,7 @@ public abstract class GenericAsyncDao<T> implements AsyncDao<T> {
         checkNotNullOrEmpty(key, "key");
         checkNotNull(listeners, "listeners");
 
+        discardBuffered(key);
         final KvDeleteOperation deleteOp = new KvDeleteOperation(collection, key);
         deleteOp.addListener(listeners);
         client.execute(deleteOp);
@@ -290,6 +337,7 @@ public abstract class GenericAsyncDao<T> implements AsyncDao<T> {
     /** {@inheritDoc} */
     @Override
     public Future<Boolean> deleteAll() {
+        discardBuffered(null);
         final DeleteOperation deleteOp = new DeleteOperation(collection);
         return client.execute(deleteOp);
     }
@@ -299,9 +347,28 @@ public abstract class GenericAsyncDao<T> implements AsyncDao<T> {
     public void deleteAll(final Iterable<OrchestrateFutureListener<Boolean>> listeners) {
         checkNotNull(listeners, "listeners");
 
+        discardBuffered(null);
         final DeleteOperation deleteOp = new DeleteOperation(collection);
         deleteOp.addListener(listeners);
         client.execute(deleteOp);
     }
 
+    private OrchestrateFuture<KvObject<T>> fetch(final KvFetchOperation<T> kvFetchOp) {
+        // read the buffered save of the key, if there is one
+        return (writeBehind != null)
+                ? writeBehind.fetch(kvFetchOp)
+                : client.execute(kvFetchOp);
+    }
+
+    private void discardBuffered(@Nullable final String key) {
+        if (writeBehind == null) {
+            return;
+        }
+        if (key != null) {
+            writeBehind.discard(collection, key);
+        } else {
+            writeBehind.discardCollection(collection);
+        }
+    }
+
 }
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client.stub;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * The distribution of the latencies a {@link StubServer} adds to responses.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * // most responses take ~20ms, 1% take 150ms or more
+ * LatencyDistribution latency =
+ *         LatencyDistribution.logNormal(20, 150, TimeUnit.MILLISECONDS);
+ * }
+ * </pre>
+ */
+public abstract class LatencyDistribution {
+
+    /** The z-score of the 99th percentile of a normal distribution. */
+    private static final double Z_99 = 2.326;
+
+    /**
+     * Returns the next latency from this distribution.
+     *
+     * @param random The source of randomness to sample with.
+     * @return The latency, in nanoseconds.
+     */
+    public abstract long nextNanos(final Random random);
+
+    /**
+     * A distribution that doesn't add any latency.
+     *
+     * @return A new distribution.
+     */
+    public static LatencyDistribution none() {
+        return fixed(0, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * A distribution that adds the same latency to every response.
+     *
+     * @param latency The latency to add.
+     * @param unit The unit of time of the {@code latency}.
+     * @return A new distribution.
+     */
+    public static LatencyDistribution fixed(final long latency, final TimeUnit unit) {
+        checkLatency(latency, unit);
+
+        final long nanos = unit.toNanos(latency);
+        return new LatencyDistribution() {
+            @Override
+            public long nextNanos(final Random random) {
+                return nanos;
+            }
+        };
+    }
+
+    /**
+     * A distribution of latencies spread evenly between {@code min} and
+     * {@code max}.
+     *
+     * @param min The smallest latency to add.
+     * @param max The largest latency to add.
+     * @param unit The unit of time of the latencies.
+     * @return A new distribution.
+     */
+    public static LatencyDistribution uniform(final long min, final long max, final TimeUnit unit) {
+        checkLatency(min, unit);
+        checkArgument(max >= min, "'max' cannot be smaller than 'min'.");
+
+        final long minNanos = unit.toNanos(min);
+        final long rangeNanos = unit.toNanos(max) - minNanos;
+        return new LatencyDistribution() {
+            @Override
+            public long nextNanos(final Random random) {
+                return minNanos + (long) (random.nextDouble() * rangeNanos);
+            }
+        };
+    }
+
+    /**
+     * A distribution of latencies with a long tail, where the median and the
+     * 99th percentile latencies are specified.
+     *
+     * @param median The median latency.
+     * @param p99 The 99th percentile latency.
+     * @param unit The unit of time of the latencies.
+     * @return A new distribution.
+     */
+    public static LatencyDistribution logNormal(final long median, final long p99, final TimeUnit unit) {
+        checkLatency(median, unit);
+        checkArgument(median > 0, "'median' must be greater than zero.");
+        checkArgument(p99 >= median, "'p99' cannot be smaller than 'median'.");
+
+        final double mu = Math.log(unit.toNanos(median));
+        final double sigma = Math.log((double) p99 / median) / Z_99;
+        return new LatencyDistribution() {
+            @Override
+            public long nextNanos(final Random random) {
+                return (long) Math.exp(mu + sigma * random.nextGaussian());
+            }
+        };
+    }
+
+    private static void checkLatency(final long latency, final TimeUnit unit) {
+        checkArgument(latency >= 0, "'latency' cannot be negative.");
+        checkNotNull(unit, "unit");
+    }
+
+}
@@ -0,0 +1,591 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client.stub;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.glassfish.grizzly.Buffer;
+import org.glassfish.grizzly.filterchain.BaseFilter;
+import org.glassfish.grizzly.filterchain.FilterChainContext;
+import org.glassfish.grizzly.filterchain.NextAction;
+import org.glassfish.grizzly.http.HttpContent;
+import org.glassfish.grizzly.http.HttpRequestPacket;
+import org.glassfish.grizzly.http.HttpResponsePacket;
+import org.glassfish.grizzly.http.Method;
+import org.glassfish.grizzly.http.util.Base64Utils;
+import org.glassfish.grizzly.http.util.Header;
+import org.glassfish.grizzly.memory.Buffers;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers the requests made to a {@link StubServer} from its {@link
+ * StubStore}, with the latency, errors and bandwidth the server was
+ * configured with.
+ */
+final class StubHandler extends BaseFilter {
+
+    /** The charset of request and response bodies. */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /** The prefix of the paths of the v0 API. */
+    private static final String PATH_PREFIX = "/v0/";
+    /** The prefix of basic {@code Authorization} headers. */
+    private static final String BASIC_PREFIX = "Basic ";
+    /** The default number of results for list and search requests. */
+    private static final int DEFAULT_LIMIT = 10;
+    /** The largest number of results for list and search requests. */
+    private static final int MAX_LIMIT = 100;
+
+    /** The per-thread source of random numbers. */
+    private static final ThreadLocal<Random> RANDOM = new ThreadLocal<Random>() {
+        @Override
+        protected Random initialValue() {
+            return new Random();
+        }
+    };
+
+    /** The storage to answer requests from. */
+    private final StubStore store;
+    /** The builder with the server's settings. */
+    private final StubServer.Builder builder;
+    /** The scheduler for delayed responses. */
+    private final ScheduledExecutorService scheduler;
+    /** The time the shaped link is free to send more bytes, in nanoseconds. */
+    private final AtomicLong linkFreeNanos;
+    /** The parser for stored JSON values. */
+    private final ObjectMapper mapper;
+
+    StubHandler(final StubStore store, final StubServer.Builder builder,
+            final ScheduledExecutorService scheduler) {
+        assert (store != null);
+        assert (builder != null);
+        assert (scheduler != null);
+
+        this.store = store;
+        this.builder = builder;
+        this.scheduler = scheduler;
+        this.linkFreeNanos = new AtomicLong(System.nanoTime());
+        this.mapper = new ObjectMapper();
+    }
+
+    @Override
+    public NextAction handleRead(final FilterChainContext ctx) throws IOException {
+        final HttpContent content = ctx.getMessage();
+        if (!content.isLast()) {
+            return ctx.getStopAction(content);
+        }
+
+        final HttpRequestPacket request = (HttpRequestPacket) content.getHttpHeader();
+        final String body = content.getContent().toStringContent(UTF_8);
+        final Reply reply = reply(request, body);
+
+        final HttpResponsePacket response = HttpResponsePacket.builder(request)
+                .status(reply.status)
+                .build();
+        response.setHeader("x-orchestrate-req-id", UUID.randomUUID().toString());
+        if (reply.ref != null) {
+            response.setHeader(Header.ETag, "\"" + reply.ref + "\"");
+        }
+        final HttpContent.Builder<?> responseContent = response.httpContentBuilder().last(true);
+        int length = 0;
+        if (reply.body != null) {
+            final byte[] bytes = reply.body.getBytes(UTF_8);
+            final Buffer buffer = Buffers.wrap(ctx.getMemoryManager(), bytes);
+            response.setContentType("application/json");
+            response.setContentLength(bytes.length);
+            responseContent.content(buffer);
+            length = bytes.length;
+        } else if (reply.status != 204) {
+            response.setContentLength(0);
+        }
+
+        final long delayNanos = delayNanos(body.length() + length);
+        if (delayNanos <= 0) {
+            ctx.write(responseContent.build());
+            return ctx.getStopAction();
+        }
+
+        // suspend the request and write the response from the scheduler, so
+        // the worker thread is free to read other requests in the meantime
+        final HttpContent delayed = responseContent.build();
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ctx.write(delayed);
+                ctx.resume(ctx.getStopAction());
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+        return ctx.getSuspendAction();
+    }
+
+    private long delayNanos(final int bytes) {
+        final long now = System.nanoTime();
+        final long latency = Math.max(0, builder.latency.nextNanos(RANDOM.get()));
+        if (builder.bytesPerSecond <= 0) {
+            return latency;
+        }
+
+        // reserve the time to send the bytes on the shared link, after the
+        // latency of the request
+        final long transferNanos = (long) (bytes * (1e9 / builder.bytesPerSecond));
+        long free;
+        long done;
+        do {
+            free = linkFreeNanos.get();
+            done = Math.max(free, now + latency) + transferNanos;
+        } while (!linkFreeNanos.compareAndSet(free, done));
+        return done - now;
+    }
+
+    private boolean isAuthorized(final String authorization) {
+        if (authorization == null) {
+            return false;
+        }
+        if (builder.apiKeys == null) {
+            return true;
+        }
+        if (!authorization.startsWith(BASIC_PREFIX)) {
+            return false;
+        }
+        final byte[] credentials = Base64Utils.decode(authorization.substring(BASIC_PREFIX.length()));
+        if (credentials == null) {
+            return false;
+        }
+        // basic auth credentials are "user:password", the API key is the user
+        String apiKey = new String(credentials, UTF_8);
+        final int colon = apiKey.indexOf(':');
+        if (colon >= 0) {
+            apiKey = apiKey.substring(0, colon);
+        }
+        return builder.apiKeys.contains(apiKey);
+    }
+
+    private Reply reply(final HttpRequestPacket request, final String body) {
+        if (!isAuthorized(request.getHeader(Header.Authorization))) {
+            return error(401, "security_unauthorized", "Valid credentials are required.");
+        }
+        if (builder.errorRate > 0 && RANDOM.get().nextDouble() < builder.errorRate) {
+            return error(builder.errorStatus, "stub_injected_error", "An error injected by the stub server.");
+        }
+
+        final String uri = request.getRequestURI();
+        if (!uri.startsWith(PATH_PREFIX)) {
+            return error(404, "api_not_found", "The requested path doesn't exist.");
+        }
+        final List<String> path = decodePath(uri.substring(PATH_PREFIX.length()));
+        final Map<String, String> query = decodeQuery(request.getQueryString());
+        final Method method = request.getMethod();
+
+        try {
+            switch (path.size()) {
+                case 1:
+                    return collection(method, path.get(0), query);
+                case 2:
+                    return key(method, path.get(0), path.get(1), query, request, body);
+                default:
+                    final String resource = path.get(2);
+                    if ("refs".equals(resource) && path.size() == 4 && Method.GET.equals(method)) {
+                        return ref(path.get(0), path.get(1), path.get(3));
+                    }
+                    if ("events".equals(resource) && path.size() == 4) {
+                        return events(method, path.get(0), path.get(1), path.get(3), query, body);
+                    }
+                    if ("relations".equals(resource) && path.size() > 3 && Method.GET.equals(method)) {
+                        return relations(path.get(0), path.get(1), path.subList(3, path.size()));
+                    }
+                    if ("relation".equals(resource) && path.size() == 6) {
+                        return relation(method, path.get(0), path.get(1), path.get(3), path.get(4), path.get(5));
+                    }
+            }
+        } catch (final NumberFormatException e) {
+            return error(400, "api_bad_request", "A query parameter isn't a valid number.");
+        } catch (final IOException e) {
+            return error(400, "api_bad_request", "The request body isn't valid JSON.");
+        }
+        return error(405, "api_bad_request", "The method isn't supported for the requested path.");
+    }
+
+    private Reply collection(final Method method, final String collection, final Map<String, String> query)
+            throws IOException {
+        if (Method.DELETE.equals(method)) {
+            if (!"true".equals(query.get("force"))) {
+                return error(409, "api_bad_request", "Deleting a collection requires 'force=true'.");
+            }
+            store.deleteCollection(collection);
+            return new Reply(204, null, null);
+        }
+        if (!Method.GET.equals(method)) {
+            return error(405, "api_bad_request", "The method isn't supported for a collection.");
+        }
+        return query.containsKey("query")
+                ? search(collection, query)
+                : list(collection, query);
+    }
+
+    private Reply list(final String collection, final Map<String, String> query) {
+        final int limit = limit(query);
+        final String afterKey = query.get("afterKey");
+        final String startKey = (afterKey != null) ? afterKey : query.get("startKey");
+
+        // fetch one more item than the limit to know if there's another page
+        final List<StubStore.Item> items = store.list(collection, startKey, afterKey == null, limit + 1);
+        final StringBuilder sb = new StringBuilder(256);
+        final int count = Math.min(limit, items.size());
+        sb.append("{\"count\":").append(count).append(",\"results\":[");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            appendItem(sb, items.get(i), false);
+        }
+        sb.append(']');
+        if (items.size() > limit) {
+            final String next = PATH_PREFIX + encode(collection)
+                    + "?limit=" + limit + "&afterKey=" + encode(items.get(limit - 1).key);
+            sb.append(",\"next\":");
+            appendString(sb, next);
+        }
+        return new Reply(200, null, sb.append('}').toString());
+    }
+
+    private Reply search(final String collection, final Map<String, String> query) throws IOException {
+        final int limit = limit(query);
+        final int offset = query.containsKey("offset") ? Integer.parseInt(query.get("offset")) : 0;
+        if (offset < 0) {
+            return error(400, "api_bad_request", "The 'offset' cannot be negative.");
+        }
+        final List<String[]> terms = parseQuery(query.get("query"));
+
+        final StringBuilder results = new StringBuilder(256);
+        int total = 0;
+        int count = 0;
+        for (final StubStore.Item item : store.all(collection)) {
+            if (!matches(mapper.readTree(item.json), terms)) {
+                continue;
+            }
+            if (total >= offset && count < limit) {
+                if (count > 0) {
+                    results.append(',');
+                }
+                appendItem(results, item, true);
+                count++;
+            }
+            total++;
+        }
+
+        final String json = new StringBuilder(results.length() + 64)
+                .append("{\"count\":").append(count)
+                .append(",\"total_count\":").append(total)
+                .append(",\"results\":[").append(results).append("]}")
+                .toString();
+        return new Reply(200, null, json);
+    }
+
+    private Reply key(final Method method, final String collection, final String key,
+            final Map<String, String> query, final HttpRequestPacket request, final String body)
+            throws IOException {
+        final String ifMatch = unquote(request.getHeader(Header.IfMatch));
+        if (ifMatch != null && !isRef(ifMatch)) {
+            return error(400, "api_bad_request", "The ref in the 'If-Match' header isn't valid.");
+        }
+        if (Method.GET.equals(method)) {
+            final StubStore.Item item = store.get(collection, key);
+            return (item == null)
+                    ? error(404, "items_not_found", "The requested items could not be found.")
+                    : new Reply(200, item.ref, item.json);
+        }
+        if (Method.PUT.equals(method)) {
+            mapper.readTree(body);
+            final boolean ifAbsent = "*".equals(unquote(request.getHeader(Header.IfNoneMatch)));
+            final StubStore.Item item = store.put(collection, key, body, ifMatch, ifAbsent);
+            return (item == null)
+                    ? error(412, ifAbsent ? "item_already_present" : "item_version_mismatch",
+                            "The precondition of the request wasn't met.")
+                    : new Reply(201, item.ref, null);
+        }
+        if (Method.DELETE.equals(method)) {
+            final boolean purge = "true".equals(query.get("purge"));
+            return store.delete(collection, key, ifMatch, purge)
+                    ? new Reply(204, null, null)
+                    : error(412, "item_version_mismatch", "The precondition of the request wasn't met.");
+        }
+        return error(405, "api_bad_request", "The method isn't supported for a key.");
+    }
+
+    private Reply ref(final String collection, final String key, final String ref) {
+        final StubStore.Item item = store.get(collection, key, ref);
+        return (item == null)
+                ? error(404, "items_not_found", "The requested items could not be found.")
+                : new Reply(200, item.ref, item.json);
+    }
+
+    private Reply events(final Method method, final String collection, final String key, final String type,
+            final Map<String, String> query, final String body) throws IOException {
+        if (Method.PUT.equals(method)) {
+            mapper.readTree(body);
+            final long timestamp = query.containsKey("timestamp")
+                    ? Long.parseLong(query.get("timestamp"))
+                    : System.currentTimeMillis();
+            store.addEvent(collection, key, type, timestamp, body);
+            return new Reply(204, null, null);
+        }
+        if (!Method.GET.equals(method)) {
+            return error(405, "api_bad_request", "The method isn't supported for events.");
+        }
+
+        final long start = query.containsKey("start") ? Long.parseLong(query.get("start")) : 0;
+        final long end = query.containsKey("end") ? Long.parseLong(query.get("end")) : Long.MAX_VALUE;
+        final List<StubStore.Event> events = store.events(collection, key, type, start, end);
+        final StringBuilder sb = new StringBuilder(256)
+                .append("{\"count\":").append(events.size()).append(",\"results\":[");
+        for (int i = 0; i < events.size(); i++) {
+            final StubStore.Event event = events.get(i);
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"timestamp\":").append(event.timestamp)
+                    .append(",\"value\":").append(event.json).append('}');
+        }
+        return new Reply(200, null, sb.append("]}").toString());
+    }
+
+    private Reply relations(final String collection, final String key, final List<String> kinds) {
+        if (store.get(collection, key) == null) {
+            return error(404, "items_not_found", "The requested items could not be found.");
+        }
+
+        final List<StubStore.Item> items = store.related(collection, key, kinds);
+        final StringBuilder sb = new StringBuilder(256)
+                .append("{\"count\":").append(items.size()).append(",\"results\":[");
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            appendItem(sb, items.get(i), false);
+        }
+        return new Reply(200, null, sb.append("]}").toString());
+    }
+
+    private Reply relation(final Method method, final String collection, final String key, final String kind,
+            final String toCollection, final String toKey) {
+        if (Method.PUT.equals(method)) {
+            if (store.get(collection, key) == null || store.get(toCollection, toKey) == null) {
+                return error(404, "items_not_found", "The requested items could not be found.");
+            }
+            store.relate(collection, key, kind, toCollection, toKey);
+            return new Reply(204, null, null);
+        }
+        if (Method.DELETE.equals(method)) {
+            store.unrelate(collection, key, kind, toCollection, toKey);
+            return new Reply(204, null, null);
+        }
+        return error(405, "api_bad_request", "The method isn't supported for a relation.");
+    }
+
+    /**
+     * Parses a search query into its terms, each a field (or {@code null} for
+     * any field) and a value. Supports {@code *}, {@code value}, {@code
+     * field:value}, prefixes like {@code field:val*} and terms joined with
+     * {@code AND}.
+     */
+    private static List<String[]> parseQuery(final String query) {
+        final List<String[]> terms = new ArrayList<String[]>();
+        for (final String part : query.trim().split("\\s+AND\\s+")) {
+            final String term = part.trim();
+            if (term.length() == 0 || "*".equals(term)) {
+                continue;
+            }
+            final int colon = term.indexOf(':');
+            final String field = (colon > 0) ? term.substring(0, colon) : null;
+            String value = (colon > 0) ? term.substring(colon + 1) : term;
+            if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+                value = value.substring(1, value.length() - 1);
+            }
+            terms.add(new String[] { field, value.toLowerCase(Locale.ENGLISH) });
+        }
+        return terms;
+    }
+
+    private static boolean matches(final JsonNode value, final List<String[]> terms) {
+        for (final String[] term : terms) {
+            if (term[0] == null) {
+                boolean found = false;
+                final Iterator<JsonNode> fields = value.elements();
+                while (fields.hasNext() && !found) {
+                    found = matches(fields.next(), term[1]);
+                }
+                if (!found) {
+                    return false;
+                }
+            } else {
+                JsonNode field = value;
+                for (final String name : term[0].split("\\.")) {
+                    field = (field == null) ? null : field.get(name);
+                }
+                if (field == null || !matches(field, term[1])) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(final JsonNode field, final String value) {
+        if (field.isArray()) {
+            for (final JsonNode element : field) {
+                if (matches(element, value)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        if (!field.isValueNode()) {
+            return false;
+        }
+        final String text = field.asText().toLowerCase(Locale.ENGLISH);
+        if ("*".equals(value)) {
+            return true;
+        }
+        if (value.endsWith("*")) {
+            return text.startsWith(value.substring(0, value.length() - 1));
+        }
+        return text.equals(value);
+    }
+
+    private static int limit(final Map<String, String> query) {
+        final String limit = query.get("limit");
+        final int value = (limit == null) ? DEFAULT_LIMIT : Integer.parseInt(limit);
+        return Math.max(0, Math.min(value, MAX_LIMIT));
+    }
+
+    private static void appendItem(final StringBuilder sb, final StubStore.Item item, final boolean scored) {
+        sb.append("{\"path\":{\"collection\":");
+        appendString(sb, item.collection);
+        sb.append(",\"key\":");
+        appendString(sb, item.key);
+        sb.append(",\"ref\":");
+        appendString(sb, item.ref);
+        sb.append("},\"value\":").append(item.json);
+        if (scored) {
+            sb.append(",\"score\":1.0");
+        }
+        sb.append('}');
+    }
+
+    private static void appendString(final StringBuilder sb, final String value) {
+        sb.append('"').append(JsonStringEncoder.getInstance().quoteAsString(value)).append('"');
+    }
+
+    private static Reply error(final int status, final String code, final String message) {
+        final StringBuilder sb = new StringBuilder(128).append("{\"message\":");
+        appendString(sb, message);
+        sb.append(",\"code\":");
+        appendString(sb, code);
+        return new Reply(status, null, sb.append('}').toString());
+    }
+
+    private static List<String> decodePath(final String path) {
+        final String[] segments = path.split("/");
+        final List<String> decoded = new ArrayList<String>(segments.length);
+        for (final String segment : segments) {
+            if (segment.length() > 0) {
+                decoded.add(decode(segment.replace("+", "%2B")));
+            }
+        }
+        return decoded;
+    }
+
+    private static Map<String, String> decodeQuery(final String queryString) {
+        if (queryString == null || queryString.length() == 0) {
+            return Collections.emptyMap();
+        }
+        final Map<String, String> params = new HashMap<String, String>();
+        for (final String param : queryString.split("&")) {
+            final int eq = param.indexOf('=');
+            if (eq > 0) {
+                params.put(decode(param.substring(0, eq)), decode(param.substring(eq + 1)));
+            } else if (param.length() > 0) {
+                params.put(decode(param), "");
+            }
+        }
+        return params;
+    }
+
+    private static String decode(final String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static String encode(final String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8").replace("+", "%20");
+        } catch (final UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static boolean isRef(final String value) {
+        if (value.length() != 16) {
+            return false;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.digit(value.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String unquote(final String value) {
+        if (value != null && value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+            return value.substring(1, value.length() - 1);
+        }
+        return value;
+    }
+
+    /**
+     * The status, ref and body of a response.
+     */
+    private static final class Reply {
+
+        /** The HTTP status of the response. */
+        final int status;
+        /** The ref for the ETag header, or {@code null}. */
+        final String ref;
+        /** The JSON body of the response, or {@code null}. */
+        final String body;
+
+        Reply(final int status, final String ref, final String body) {
+            this.status = status;
+            this.ref = ref;
+            this.body = body;
+        }
+
+    }
+
+}
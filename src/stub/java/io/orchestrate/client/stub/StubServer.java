@@ -0,0 +1,351 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client.stub;
+
+import io.orchestrate.client.ClientBuilder;
+import org.glassfish.grizzly.filterchain.FilterChainBuilder;
+import org.glassfish.grizzly.filterchain.TransportFilter;
+import org.glassfish.grizzly.http.HttpServerFilter;
+import org.glassfish.grizzly.http.KeepAlive;
+import org.glassfish.grizzly.nio.transport.TCPNIOServerConnection;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransport;
+import org.glassfish.grizzly.nio.transport.TCPNIOTransportBuilder;
+import org.glassfish.grizzly.utils.DelayedExecutor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static io.orchestrate.client.Preconditions.*;
+
+/**
+ * An in-process stand-in for the Orchestrate.io service, to load and latency
+ * test code that uses the client without a network or an API key.
+ *
+ * <p>The server implements the v0 key-value, list, search, events and
+ * relations endpoints that the client uses, with in-memory storage and
+ * {@code ETag} refs. Responses can be delayed with a {@link
+ * LatencyDistribution}, a fraction of requests can fail with an injected
+ * error and the bandwidth of all connections can be limited. Delayed
+ * responses are written from a scheduler, so slow responses don't hold the
+ * server's worker threads.
+ *
+ * <p>Search supports a small subset of the query language: {@code *}, {@code
+ * value}, {@code field:value}, prefixes like {@code field:val*} and terms
+ * joined with {@code AND}, every match has a score of {@code 1.0}.
+ *
+ * <p>Usage:
+ * <pre>
+ * {@code
+ * StubServer server = StubServer.builder()
+ *         .latency(LatencyDistribution.logNormal(20, 150, TimeUnit.MILLISECONDS))
+ *         .errorRate(0.01, 503)
+ *         .build();
+ * server.start();
+ * Client client = server.clientBuilder("any api key").build();
+ * }
+ * </pre>
+ */
+public final class StubServer {
+
+    /** The builder for this server. */
+    private final Builder builder;
+    /** The storage of the server. */
+    private final StubStore store;
+    /** The executor for keep-alive timeouts. */
+    private ExecutorService executor;
+    /** The scheduler for keep-alive timeouts. */
+    private DelayedExecutor delayedExecutor;
+    /** The scheduler for delayed responses. */
+    private ScheduledExecutorService scheduler;
+    /** The server transport. */
+    private TCPNIOTransport transport;
+    /** The port the server is listening on. */
+    private volatile int port;
+
+    private StubServer(final Builder builder) {
+        assert (builder != null);
+
+        this.builder = builder;
+        this.store = new StubStore();
+        this.port = -1;
+    }
+
+    /**
+     * Starts the server.
+     *
+     * @throws IOException If the server couldn't bind to its port.
+     */
+    @SuppressWarnings("deprecation")    // keep-alive is only configurable this way in grizzly 2.3
+    public synchronized void start() throws IOException {
+        if (transport != null) {
+            throw new IllegalStateException("The server has already been started.");
+        }
+
+        executor = Executors.newCachedThreadPool(new DaemonThreadFactory("OrchestrateStubKeepAlive"));
+        delayedExecutor = new DelayedExecutor(executor);
+        delayedExecutor.start();
+        scheduler = Executors.newScheduledThreadPool(
+                builder.schedulerThreads, new DaemonThreadFactory("OrchestrateStubScheduler"));
+
+        final FilterChainBuilder filterChainBuilder = FilterChainBuilder.stateless()
+                .add(new TransportFilter())
+                .add(new HttpServerFilter(true, 8192, "application/json", new KeepAlive(), delayedExecutor))
+                .add(new StubHandler(store, builder, scheduler));
+        transport = TCPNIOTransportBuilder.newInstance()
+                .setTcpNoDelay(true)
+                .setProcessor(filterChainBuilder.build())
+                .build();
+        final TCPNIOServerConnection connection = transport.bind(builder.host, builder.port);
+        transport.start();
+        port = ((InetSocketAddress) connection.getLocalAddress()).getPort();
+    }
+
+    /**
+     * Stops the server, the stored data is kept if the server is restarted.
+     *
+     * @throws IOException If the server couldn't be stopped.
+     */
+    public synchronized void stop() throws IOException {
+        if (transport == null) {
+            return;
+        }
+
+        try {
+            transport.shutdownNow();
+        } finally {
+            scheduler.shutdownNow();
+            delayedExecutor.stop();
+            executor.shutdownNow();
+            transport = null;
+            port = -1;
+        }
+    }
+
+    /**
+     * Returns the port the server is listening on.
+     *
+     * @return The port of the server, or {@code -1} if it isn't started.
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Returns a builder for a client that connects to this server, the server
+     * must be started.
+     *
+     * @param apiKey The API key, the server only checks it if it was built
+     *               with {@link Builder#apiKeys(String...)}.
+     * @return A client builder for this server.
+     */
+    public ClientBuilder clientBuilder(final String apiKey) {
+        checkArgument(port >= 0, "The server must be started.");
+
+        return new ClientBuilder(apiKey)
+                .host("http://" + builder.host)
+                .port(port)
+                .useSSL(false);
+    }
+
+    /**
+     * A new builder to create a {@code StubServer} with default settings.
+     *
+     * @return A new {@code Builder} with default settings.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Builder used to create {@code StubServer} instances.
+     */
+    public static final class Builder {
+
+        /** The address to bind the server to. */
+        String host;
+        /** The port to bind the server to. */
+        int port;
+        /** The latency to add to responses. */
+        LatencyDistribution latency;
+        /** The fraction of requests that fail with an injected error. */
+        double errorRate;
+        /** The HTTP status of injected errors. */
+        int errorStatus;
+        /** The bandwidth shared by all connections, or {@code 0} if unlimited. */
+        long bytesPerSecond;
+        /** The number of threads that write delayed responses. */
+        int schedulerThreads;
+        /** The API keys requests must use, or {@code null} to accept any key. */
+        Set<String> apiKeys;
+
+        private Builder() {
+            host = "127.0.0.1";
+            port = 0;
+            latency = LatencyDistribution.none();
+            errorRate = 0;
+            errorStatus = 500;
+            bytesPerSecond = 0;
+            schedulerThreads = Runtime.getRuntime().availableProcessors();
+            apiKeys = null;
+        }
+
+        /**
+         * The address to bind the server to, defaults to {@code 127.0.0.1}.
+         *
+         * @param host The address of the server.
+         * @return This builder.
+         */
+        public Builder host(final String host) {
+            this.host = checkNotNullOrEmpty(host, "host");
+            return this;
+        }
+
+        /**
+         * The port to bind the server to, defaults to {@code 0} for an
+         * ephemeral port (see {@link StubServer#getPort()}).
+         *
+         * @param port The port of the server.
+         * @return This builder.
+         */
+        public Builder port(final int port) {
+            checkArgument(port >= 0 && port <= 65535, "'port' must be between 0 and 65535.");
+
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * The distribution of the latency added to each response, defaults to
+         * {@link LatencyDistribution#none()}.
+         *
+         * @param latency The latency to add to responses.
+         * @return This builder.
+         */
+        public Builder latency(final LatencyDistribution latency) {
+            this.latency = checkNotNull(latency, "latency");
+            return this;
+        }
+
+        /**
+         * The fraction of requests that fail with an error response with the
+         * {@code statusCode}, before they change any data. Defaults to
+         * {@code 0}.
+         *
+         * @param errorRate The fraction of requests to fail, between {@code 0}
+         *                  and {@code 1}.
+         * @param statusCode The HTTP status of the errors, e.g. {@code 503}.
+         * @return This builder.
+         */
+        public Builder errorRate(final double errorRate, final int statusCode) {
+            checkArgument(errorRate >= 0 && errorRate <= 1, "'errorRate' must be between 0 and 1.");
+            checkArgument(statusCode >= 400 && statusCode <= 599, "'statusCode' must be between 400 and 599.");
+
+            this.errorRate = errorRate;
+            this.errorStatus = statusCode;
+            return this;
+        }
+
+        /**
+         * The bandwidth shared by all connections to the server, request and
+         * response bodies are queued behind each other to fit it. Defaults to
+         * {@code 0} for unlimited bandwidth.
+         *
+         * @param bytesPerSecond The bandwidth, in bytes per second.
+         * @return This builder.
+         */
+        public Builder bandwidth(final long bytesPerSecond) {
+            checkArgument(bytesPerSecond >= 0, "'bytesPerSecond' cannot be negative.");
+
+            this.bytesPerSecond = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * The number of threads that write delayed responses, defaults to the
+         * number of processors.
+         *
+         * @param schedulerThreads The number of scheduler threads.
+         * @return This builder.
+         */
+        public Builder schedulerThreads(final int schedulerThreads) {
+            checkArgument(schedulerThreads > 0, "'schedulerThreads' must be greater than zero.");
+
+            this.schedulerThreads = schedulerThreads;
+            return this;
+        }
+
+        /**
+         * The API keys the server accepts, requests with any other key fail
+         * with a {@code 401} like they do on the service. Defaults to
+         * accepting any key.
+         *
+         * @param apiKeys The API keys to accept.
+         * @return This builder.
+         */
+        public Builder apiKeys(final String... apiKeys) {
+            checkNotNull(apiKeys, "apiKeys");
+            checkArgument(apiKeys.length > 0, "'apiKeys' cannot be empty.");
+
+            this.apiKeys = new HashSet<String>(Arrays.asList(apiKeys));
+            return this;
+        }
+
+        /**
+         * Creates a new {@code StubServer}, it must be started with {@link
+         * StubServer#start()}.
+         *
+         * @return A new {@link StubServer}.
+         */
+        public StubServer build() {
+            return new StubServer(this);
+        }
+
+    }
+
+    /**
+     * Creates daemon threads, so that a server that isn't stopped doesn't
+     * keep the JVM alive.
+     */
+    private static final class DaemonThreadFactory implements ThreadFactory {
+
+        /** The prefix of the names of the threads. */
+        private final String prefix;
+        /** The number of threads created. */
+        private final AtomicInteger count;
+
+        DaemonThreadFactory(final String prefix) {
+            this.prefix = prefix;
+            this.count = new AtomicInteger(0);
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+
+    }
+
+}
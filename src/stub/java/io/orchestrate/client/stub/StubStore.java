@@ -0,0 +1,382 @@
+/*
+ * Copyright 2013 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.orchestrate.client.stub;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The in-memory storage of a {@link StubServer}.
+ *
+ * <p>Reads don't lock, writes to a collection are serialized on the
+ * collection so that conditional stores and deletes are atomic.
+ */
+final class StubStore {
+
+    /**
+     * A version of a key in a collection.
+     */
+    static final class Item {
+
+        /** The collection of the item. */
+        final String collection;
+        /** The key of the item. */
+        final String key;
+        /** The ref of this version of the item. */
+        final String ref;
+        /** The JSON value of the item. */
+        final String json;
+
+        Item(final String collection, final String key, final String ref, final String json) {
+            this.collection = collection;
+            this.key = key;
+            this.ref = ref;
+            this.json = json;
+        }
+
+    }
+
+    /**
+     * An event stored for a key.
+     */
+    static final class Event {
+
+        /** The timestamp of the event, in milliseconds since the epoch. */
+        final long timestamp;
+        /** The JSON value of the event. */
+        final String json;
+
+        Event(final long timestamp, final String json) {
+            this.timestamp = timestamp;
+            this.json = json;
+        }
+
+    }
+
+    /**
+     * The data of a single collection.
+     */
+    private static final class CollectionData {
+
+        /** The current version of each key, ordered by key. */
+        final ConcurrentSkipListMap<String, Item> current =
+                new ConcurrentSkipListMap<String, Item>();
+        /** Every version of each key, by key then by ref. */
+        final ConcurrentMap<String, ConcurrentMap<String, Item>> history =
+                new ConcurrentHashMap<String, ConcurrentMap<String, Item>>();
+        /** The events of each key, by key then by type. */
+        final ConcurrentMap<String, Map<String, List<Event>>> events =
+                new ConcurrentHashMap<String, Map<String, List<Event>>>();
+        /** The relations of each key, by key then by kind. */
+        final ConcurrentMap<String, Map<String, Set<List<String>>>> relations =
+                new ConcurrentHashMap<String, Map<String, Set<List<String>>>>();
+
+    }
+
+    /** The collections, by name. */
+    private final ConcurrentMap<String, CollectionData> collections;
+    /** The source of refs. */
+    private final AtomicLong refs;
+
+    StubStore() {
+        this.collections = new ConcurrentHashMap<String, CollectionData>();
+        this.refs = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Returns the current version of the {@code key}.
+     *
+     * @return The item, or {@code null} if the key doesn't exist.
+     */
+    Item get(final String collection, final String key) {
+        final CollectionData coll = collections.get(collection);
+        return (coll == null) ? null : coll.current.get(key);
+    }
+
+    /**
+     * Returns the version of the {@code key} with the specified {@code ref},
+     * including versions that were deleted.
+     *
+     * @return The item, or {@code null} if the ref doesn't exist.
+     */
+    Item get(final String collection, final String key, final String ref) {
+        final CollectionData coll = collections.get(collection);
+        if (coll == null) {
+            return null;
+        }
+        final Map<String, Item> versions = coll.history.get(key);
+        return (versions == null) ? null : versions.get(ref);
+    }
+
+    /**
+     * Stores a new version of the {@code key}.
+     *
+     * @param ifMatch The ref the current version must have, or {@code null}.
+     * @param ifAbsent Whether the key must not exist.
+     * @return The new item, or {@code null} if a condition wasn't met.
+     */
+    Item put(final String collection, final String key, final String json,
+            final String ifMatch, final boolean ifAbsent) {
+        final CollectionData coll = collection(collection);
+        synchronized (coll) {
+            final Item current = coll.current.get(key);
+            if ((ifAbsent && current != null) || (ifMatch != null && !matches(current, ifMatch))) {
+                return null;
+            }
+
+            final Item item = new Item(collection, key, nextRef(), json);
+            ConcurrentMap<String, Item> versions = coll.history.get(key);
+            if (versions == null) {
+                versions = new ConcurrentHashMap<String, Item>();
+                coll.history.put(key, versions);
+            }
+            versions.put(item.ref, item);
+            coll.current.put(key, item);
+            return item;
+        }
+    }
+
+    /**
+     * Deletes the {@code key}, deleting a key that doesn't exist succeeds.
+     *
+     * @param ifMatch The ref the current version must have, or {@code null}.
+     * @param purge Whether to delete the history of the key too.
+     * @return {@code false} if a condition wasn't met.
+     */
+    boolean delete(final String collection, final String key, final String ifMatch, final boolean purge) {
+        final CollectionData coll = collections.get(collection);
+        if (coll == null) {
+            return (ifMatch == null);
+        }
+        synchronized (coll) {
+            if (ifMatch != null && !matches(coll.current.get(key), ifMatch)) {
+                return false;
+            }
+            coll.current.remove(key);
+            if (purge) {
+                coll.history.remove(key);
+                coll.events.remove(key);
+                coll.relations.remove(key);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Deletes the {@code collection} and everything in it.
+     */
+    void deleteCollection(final String collection) {
+        collections.remove(collection);
+    }
+
+    /**
+     * Returns up to {@code limit} items from the {@code collection} in key
+     * order, starting from the {@code startKey}.
+     *
+     * @param startKey The key to start from, or {@code null}.
+     * @param inclusive Whether to include the {@code startKey}.
+     */
+    List<Item> list(final String collection, final String startKey, final boolean inclusive, final int limit) {
+        final CollectionData coll = collections.get(collection);
+        if (coll == null || limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        final NavigableMap<String, Item> range = (startKey == null)
+                ? coll.current
+                : coll.current.tailMap(startKey, inclusive);
+        final List<Item> items = new ArrayList<Item>(Math.min(limit, 64));
+        for (final Item item : range.values()) {
+            if (items.size() == limit) {
+                break;
+            }
+            items.add(item);
+        }
+        return items;
+    }
+
+    /**
+     * Returns the current version of every key in the {@code collection}, in
+     * key order.
+     */
+    Collection<Item> all(final String collection) {
+        final CollectionData coll = collections.get(collection);
+        return (coll == null)
+                ? Collections.<Item>emptyList()
+                : coll.current.values();
+    }
+
+    /**
+     * Stores an event for the {@code key}.
+     */
+    void addEvent(final String collection, final String key, final String type,
+            final long timestamp, final String json) {
+        final CollectionData coll = collection(collection);
+        synchronized (coll) {
+            Map<String, List<Event>> types = coll.events.get(key);
+            if (types == null) {
+                types = new HashMap<String, List<Event>>();
+                coll.events.put(key, types);
+            }
+            List<Event> events = types.get(type);
+            if (events == null) {
+                events = new ArrayList<Event>();
+                types.put(type, events);
+            }
+            events.add(new Event(timestamp, json));
+        }
+    }
+
+    /**
+     * Returns the events of the {@code type} for the {@code key}, newest
+     * first.
+     *
+     * @param start The earliest timestamp to include, inclusive.
+     * @param end The latest timestamp to include, exclusive.
+     */
+    List<Event> events(final String collection, final String key, final String type,
+            final long start, final long end) {
+        final CollectionData coll = collections.get(collection);
+        if (coll == null) {
+            return Collections.emptyList();
+        }
+
+        final List<Event> matched = new ArrayList<Event>();
+        synchronized (coll) {
+            final Map<String, List<Event>> types = coll.events.get(key);
+            final List<Event> events = (types == null) ? null : types.get(type);
+            if (events != null) {
+                for (final Event event : events) {
+                    if (event.timestamp >= start && event.timestamp < end) {
+                        matched.add(event);
+                    }
+                }
+            }
+        }
+        Collections.sort(matched, new Comparator<Event>() {
+            @Override
+            public int compare(final Event e1, final Event e2) {
+                return (e1.timestamp < e2.timestamp) ? 1 : ((e1.timestamp == e2.timestamp) ? 0 : -1);
+            }
+        });
+        return matched;
+    }
+
+    /**
+     * Relates the {@code key} to the {@code toKey} in the {@code toCollection}.
+     */
+    void relate(final String collection, final String key, final String kind,
+            final String toCollection, final String toKey) {
+        final CollectionData coll = collection(collection);
+        synchronized (coll) {
+            Map<String, Set<List<String>>> kinds = coll.relations.get(key);
+            if (kinds == null) {
+                kinds = new HashMap<String, Set<List<String>>>();
+                coll.relations.put(key, kinds);
+            }
+            Set<List<String>> targets = kinds.get(kind);
+            if (targets == null) {
+                targets = new LinkedHashSet<List<String>>();
+                kinds.put(kind, targets);
+            }
+            targets.add(Arrays.asList(toCollection, toKey));
+        }
+    }
+
+    /**
+     * Removes the relation from the {@code key} to the {@code toKey} in the
+     * {@code toCollection}.
+     */
+    void unrelate(final String collection, final String key, final String kind,
+            final String toCollection, final String toKey) {
+        final CollectionData coll = collections.get(collection);
+        if (coll == null) {
+            return;
+        }
+        synchronized (coll) {
+            final Map<String, Set<List<String>>> kinds = coll.relations.get(key);
+            final Set<List<String>> targets = (kinds == null) ? null : kinds.get(kind);
+            if (targets != null) {
+                targets.remove(Arrays.asList(toCollection, toKey));
+            }
+        }
+    }
+
+    /**
+     * Returns the items reached by following the {@code kinds} of relation
+     * from the {@code key}, one kind per hop. Related keys that don't exist
+     * are skipped.
+     */
+    List<Item> related(final String collection, final String key, final List<String> kinds) {
+        Set<List<String>> frontier = new LinkedHashSet<List<String>>();
+        frontier.add(Arrays.asList(collection, key));
+        for (final String kind : kinds) {
+            final Set<List<String>> next = new LinkedHashSet<List<String>>();
+            for (final List<String> from : frontier) {
+                final CollectionData coll = collections.get(from.get(0));
+                if (coll == null) {
+                    continue;
+                }
+                synchronized (coll) {
+                    final Map<String, Set<List<String>>> relations = coll.relations.get(from.get(1));
+                    final Set<List<String>> targets = (relations == null) ? null : relations.get(kind);
+                    if (targets != null) {
+                        next.addAll(targets);
+                    }
+                }
+            }
+            frontier = next;
+        }
+
+        final List<Item> items = new ArrayList<Item>(frontier.size());
+        for (final List<String> target : frontier) {
+            final Item item = get(target.get(0), target.get(1));
+            if (item != null) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    private CollectionData collection(final String name) {
+        CollectionData coll = collections.get(name);
+        if (coll == null) {
+            final CollectionData created = new CollectionData();
+            coll = collections.putIfAbsent(name, created);
+            if (coll == null) {
+                coll = created;
+            }
+        }
+        return coll;
+    }
+
+    private String nextRef() {
+        // refs only need to be unique and opaque, mix the sequence so that
+        // consecutive refs don't look alike
+        long ref = refs.incrementAndGet() * 0x9E3779B97F4A7C15L;
+        ref ^= (ref >>> 32);
+        final String hex = Long.toHexString(ref);
+        return "0000000000000000".substring(hex.length()).concat(hex);
+    }
+
+    private static boolean matches(final Item current, final String ref) {
+        return (current != null && current.ref.equals(ref));
+    }
+
+}